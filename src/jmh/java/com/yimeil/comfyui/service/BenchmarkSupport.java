@@ -0,0 +1,112 @@
+package com.yimeil.comfyui.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.yimeil.comfyui.config.ComfyUIConfig;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * 基准测试公共部分：不启动 Spring 容器，手动装配被测的 Service
+ */
+final class BenchmarkSupport {
+
+    /**
+     * resources/workflows 下的全部工作流
+     */
+    static final String[] WORKFLOWS = {
+            "batch_matting_api.json",
+            "collage-excel-v-api.json",
+            "keyword_matting.json",
+            "matting_img_from_url_api.json",
+            "matting_keyword_api.json",
+            "part_fix_matting_api.json",
+            "qwen-Edit-Multiple-angles-api.json",
+            "qwen-img-translate-api.json",
+            "sam_mask_matting_api.json",
+            "zip-birefnet-matting-api.json"
+    };
+
+    static final String BASE_URL = "http://127.0.0.1:8188";
+
+    private BenchmarkSupport() {
+    }
+
+    static ComfyUIConfig config() {
+        ComfyUIConfig config = new ComfyUIConfig();
+        // 镜像会在后台下载结果图片，基准测试中关闭
+        config.getMirror().setEnabled(false);
+        return config;
+    }
+
+    static WorkflowTemplateCache templateCache(ComfyUIConfig config) throws IOException {
+        WorkflowTemplateCache cache = new WorkflowTemplateCache();
+        ReflectionTestUtils.setField(cache, "config", config);
+        cache.init();
+        return cache;
+    }
+
+    /**
+     * 只装配基准测试涉及的依赖：模板缓存、WebSocket client_id、结果镜像
+     */
+    static ComfyUIService comfyUIService() throws IOException {
+        ComfyUIConfig config = config();
+        ResultMirror resultMirror = new ResultMirror();
+        ReflectionTestUtils.setField(resultMirror, "config", config);
+        resultMirror.init();
+
+        ComfyUIService service = new ComfyUIService();
+        ReflectionTestUtils.setField(service, "config", config);
+        ReflectionTestUtils.setField(service, "workflowTemplateCache", templateCache(config));
+        ReflectionTestUtils.setField(service, "webSocketService", new ComfyUIWebSocketService());
+        ReflectionTestUtils.setField(service, "resultMirror", resultMirror);
+        return service;
+    }
+
+    /**
+     * 生成与 ComfyUI /history/{promptId} 结构一致的响应
+     * 包含提交的完整工作流、执行消息和 imageCount 张输出图片（另带一张临时预览图，验证过滤逻辑）
+     */
+    static byte[] historyResponse(ObjectMapper objectMapper, ObjectNode workflow, String promptId,
+                                  String saveImageNodeId, int imageCount) throws IOException {
+        ObjectNode root = objectMapper.createObjectNode();
+        ObjectNode entry = root.putObject(promptId);
+
+        ArrayNode prompt = entry.putArray("prompt");
+        prompt.add(1);
+        prompt.add(promptId);
+        prompt.add(workflow);
+        prompt.addObject().put("client_id", UUID.randomUUID().toString());
+        prompt.addArray().add(saveImageNodeId);
+
+        ObjectNode outputs = entry.putObject("outputs");
+        ArrayNode images = outputs.putObject(saveImageNodeId).putArray("images");
+        for (int i = 0; i < imageCount; i++) {
+            images.addObject()
+                    .put("filename", String.format("img_%05d_.png", i + 1))
+                    .put("subfolder", "collage/2026-01-01")
+                    .put("type", "output");
+        }
+        outputs.putObject("10").putArray("images").addObject()
+                .put("filename", "ComfyUI_temp_abcde_00001_.png")
+                .put("subfolder", "")
+                .put("type", "temp");
+
+        ObjectNode status = entry.putObject("status");
+        status.put("status_str", "success");
+        status.put("completed", true);
+        ArrayNode messages = status.putArray("messages");
+        long now = System.currentTimeMillis();
+        for (String name : new String[]{"execution_start", "execution_cached", "execution_success"}) {
+            ArrayNode message = messages.addArray();
+            message.add(name);
+            message.addObject().put("prompt_id", promptId).put("timestamp", now);
+        }
+        entry.putObject("meta");
+        return objectMapper.writeValueAsString(root).getBytes(StandardCharsets.UTF_8);
+    }
+}
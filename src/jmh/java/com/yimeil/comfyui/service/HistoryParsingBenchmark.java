@@ -0,0 +1,81 @@
+package com.yimeil.comfyui.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.yimeil.comfyui.model.BatchMattingResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 解析 /history 响应并收集输出图片
+ * imageCount=500 对应一次 Excel 拼接生成数百张拼图的情况
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryParsingBenchmark {
+
+    /**
+     * collage-excel-v-api.json 的 SaveImage 节点
+     */
+    private static final String SAVE_IMAGE_NODE_ID = "15";
+
+    @Param({"1", "50", "500"})
+    public int imageCount;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private ComfyUIService service;
+    private String promptId;
+    private byte[] response;
+
+    @Setup
+    public void setup() throws IOException {
+        service = BenchmarkSupport.comfyUIService();
+        promptId = UUID.randomUUID().toString();
+        response = BenchmarkSupport.historyResponse(objectMapper,
+                service.loadWorkflowFromResource("collage-excel-v-api.json"), promptId, SAVE_IMAGE_NODE_ID, imageCount);
+    }
+
+    @Benchmark
+    public JsonNode readTree() throws IOException {
+        return objectMapper.readTree(response);
+    }
+
+    @Benchmark
+    public List<BatchMattingResult.ImageInfo> readTreeAndCollectImages() throws IOException {
+        JsonNode outputs = objectMapper.readTree(response).get(promptId).get("outputs");
+        return service.collectBatchImages(outputs, SAVE_IMAGE_NODE_ID, BenchmarkSupport.BASE_URL, promptId);
+    }
+
+    /**
+     * fetchHistory 的实际路径：流式解析，只保留状态和输出图片描述
+     */
+    @Benchmark
+    public PromptHistory stream() throws IOException {
+        return PromptHistory.parse(objectMapper, new ByteArrayInputStream(response), promptId);
+    }
+
+    @Benchmark
+    public List<BatchMattingResult.ImageInfo> streamAndCollectImages() throws IOException {
+        JsonNode outputs = PromptHistory.parse(objectMapper, new ByteArrayInputStream(response), promptId).outputs();
+        return service.collectBatchImages(outputs, SAVE_IMAGE_NODE_ID, BenchmarkSupport.BASE_URL, promptId);
+    }
+}
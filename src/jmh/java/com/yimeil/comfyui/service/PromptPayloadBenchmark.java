@@ -0,0 +1,56 @@
+package com.yimeil.comfyui.service;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.hc.core5.http.HttpEntity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * executeWorkflow 中 /prompt 请求体的序列化和写出
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PromptPayloadBenchmark {
+
+    @Param({
+            "sam_mask_matting_api.json",
+            "collage-excel-v-api.json",
+            "qwen-Edit-Multiple-angles-api.json",
+            "zip-birefnet-matting-api.json"
+    })
+    public String workflowName;
+
+    private ComfyUIService service;
+    private ObjectNode workflow;
+
+    @Setup
+    public void setup() throws IOException {
+        service = BenchmarkSupport.comfyUIService();
+        workflow = service.loadWorkflowFromResource(workflowName);
+    }
+
+    @Benchmark
+    public long promptEntity() throws IOException {
+        HttpEntity entity = service.promptEntity(workflow);
+        // 与发送请求时一样完整写出一次
+        entity.writeTo(OutputStream.nullOutputStream());
+        return entity.getContentLength();
+    }
+}
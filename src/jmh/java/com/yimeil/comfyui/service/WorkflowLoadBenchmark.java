@@ -0,0 +1,71 @@
+package com.yimeil.comfyui.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.io.ClassPathResource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * loadWorkflowFromResource：模板缓存深拷贝 vs. 每次从 classpath 读取解析
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WorkflowLoadBenchmark {
+
+    @Param({
+            "batch_matting_api.json",
+            "collage-excel-v-api.json",
+            "keyword_matting.json",
+            "matting_img_from_url_api.json",
+            "matting_keyword_api.json",
+            "part_fix_matting_api.json",
+            "qwen-Edit-Multiple-angles-api.json",
+            "qwen-img-translate-api.json",
+            "sam_mask_matting_api.json",
+            "zip-birefnet-matting-api.json"
+    })
+    public String workflowName;
+
+    private ComfyUIService service;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Setup
+    public void setup() throws IOException {
+        service = BenchmarkSupport.comfyUIService();
+    }
+
+    @Benchmark
+    public ObjectNode loadWorkflowFromResource() throws IOException {
+        return service.loadWorkflowFromResource(workflowName);
+    }
+
+    /**
+     * 对照：不使用模板缓存时的读取和解析开销
+     */
+    @Benchmark
+    public JsonNode parseFromClasspath() throws IOException {
+        try (InputStream inputStream = new ClassPathResource("workflows/" + workflowName).getInputStream()) {
+            return objectMapper.readTree(inputStream);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.yimeil.comfyui.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.yimeil.comfyui.model.BatchMattingRequest;
+import com.yimeil.comfyui.model.CollageRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * 批量抠图 / Excel 拼接的参数绑定（含加载工作流实例）
+ * bind* 为当前的 WorkflowBindings 绑定计划，updateWorkflowParams* 为逐个调用 updateWorkflowParams 的写法
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WorkflowParamsBenchmark {
+
+    private ComfyUIService service;
+    private BatchMattingRequest batchRequest;
+    private CollageRequest collageRequest;
+    private String imageUrls;
+
+    @Setup
+    public void setup() throws IOException {
+        service = BenchmarkSupport.comfyUIService();
+        batchRequest = new BatchMattingRequest();
+        batchRequest.setInputMode("urls");
+        collageRequest = new CollageRequest();
+        imageUrls = IntStream.range(0, 50)
+                .mapToObj(i -> "https://img.example.com/products/sku-" + i + ".jpg")
+                .collect(Collectors.joining("\n"));
+    }
+
+    @Benchmark
+    public ObjectNode bindBatchUrls() throws IOException {
+        ObjectNode workflow = service.loadWorkflowFromResource("matting_img_from_url_api.json");
+        return WorkflowBindings.BATCH_URLS.apply(workflow, batchRequest, imageUrls);
+    }
+
+    @Benchmark
+    public ObjectNode bindBatchZip() throws IOException {
+        ObjectNode workflow = service.loadWorkflowFromResource("zip-birefnet-matting-api.json");
+        return WorkflowBindings.BATCH_ZIP.apply(workflow, batchRequest, "input/archive.zip");
+    }
+
+    @Benchmark
+    public ObjectNode bindCollage() throws IOException {
+        ObjectNode workflow = service.loadWorkflowFromResource("collage-excel-v-api.json");
+        return WorkflowBindings.COLLAGE.apply(workflow, collageRequest, "skus.xlsx");
+    }
+
+    @Benchmark
+    public JsonNode updateWorkflowParamsBatchUrls() throws IOException {
+        BatchMattingRequest r = batchRequest;
+        JsonNode workflow = service.loadWorkflowFromResource("matting_img_from_url_api.json");
+        service.updateWorkflowParams(workflow, "17", "image", imageUrls);
+        service.updateWorkflowParams(workflow, "12", "model_version", r.getModelVersion());
+        service.updateWorkflowParams(workflow, "12", "device", r.getDevice());
+        service.updateWorkflowParams(workflow, "7", "background_color", r.getBackgroundColor());
+        service.updateWorkflowParams(workflow, "7", "use_refine", r.getUseRefine());
+        service.updateWorkflowParams(workflow, "16", "height", r.getProcessHeight());
+        service.updateWorkflowParams(workflow, "5", "expand", r.getMaskExpand());
+        service.updateWorkflowParams(workflow, "5", "blur_radius", r.getBlurRadius());
+        service.updateWorkflowParams(workflow, "5", "tapered_corners", r.getTaperedCorners());
+        service.updateWorkflowParams(workflow, "5", "fill_holes", r.getFillHoles());
+        service.updateWorkflowParams(workflow, "5", "lerp_alpha", r.getLerpAlpha());
+        service.updateWorkflowParams(workflow, "5", "decay_factor", r.getDecayFactor());
+        service.updateWorkflowParams(workflow, "11", "model_name", r.getUpscaleModel());
+        service.updateWorkflowParams(workflow, "14", "filename_prefix", r.getFilenamePrefix());
+        return workflow;
+    }
+
+    @Benchmark
+    public JsonNode updateWorkflowParamsCollage() throws IOException {
+        CollageRequest r = collageRequest;
+        JsonNode workflow = service.loadWorkflowFromResource("collage-excel-v-api.json");
+        service.updateWorkflowParams(workflow, "34", "excel_file", "skus.xlsx");
+        service.updateWorkflowParams(workflow, "34", "sheet_name", r.getSheetName());
+        service.updateWorkflowParams(workflow, "34", "combined_sku_col", r.getCombinedSkuCol());
+        service.updateWorkflowParams(workflow, "34", "sku_col", r.getSkuCol());
+        service.updateWorkflowParams(workflow, "34", "pcs_col", r.getPcsCol());
+        service.updateWorkflowParams(workflow, "34", "url_col", r.getUrlCol());
+        service.updateWorkflowParams(workflow, "34", "start_row", r.getStartRow());
+        service.updateWorkflowParams(workflow, "34", "use_cache", r.getUseCache());
+        service.updateWorkflowParams(workflow, "34", "cache_size", r.getCacheSize());
+        service.updateWorkflowParams(workflow, "34", "label_format", r.getLabelFormat());
+        service.updateWorkflowParams(workflow, "34", "output_mode", r.getOutputMode());
+        service.updateWorkflowParams(workflow, "34", "filename_prefix", r.getFilenamePrefix());
+        service.updateWorkflowParams(workflow, "34", "filter_combined_sku", r.getFilterCombinedSku());
+        service.updateWorkflowParams(workflow, "12", "images_per_collage", r.getImagesPerCollage());
+        service.updateWorkflowParams(workflow, "12", "layout", r.getLayout());
+        service.updateWorkflowParams(workflow, "12", "output_width", r.getOutputWidth());
+        service.updateWorkflowParams(workflow, "12", "output_height", r.getOutputHeight());
+        service.updateWorkflowParams(workflow, "12", "spacing", r.getSpacing());
+        service.updateWorkflowParams(workflow, "12", "min_spacing", r.getMinSpacing());
+        service.updateWorkflowParams(workflow, "12", "outer_padding", r.getOuterPadding());
+        service.updateWorkflowParams(workflow, "12", "product_scale", r.getProductScale() / 100.0);
+        service.updateWorkflowParams(workflow, "12", "crop_margin", r.getCropMargin());
+        service.updateWorkflowParams(workflow, "12", "skip_empty", r.getSkipEmpty());
+        service.updateWorkflowParams(workflow, "12", "label_font_size", r.getLabelFontSize());
+        service.updateWorkflowParams(workflow, "12", "label_position", r.getLabelPosition());
+        service.updateWorkflowParams(workflow, "12", "label_margin", r.getLabelMargin());
+        service.updateWorkflowParams(workflow, "12", "hide_pcs_one", r.getHidePcsOne());
+        service.updateWorkflowParams(workflow, "12", "adaptive_direction", r.getAdaptiveDirection());
+        return workflow;
+    }
+}
@@ -0,0 +1,675 @@
+package com.yimeil.comfyui.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import jakarta.servlet.MultipartConfigElement;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.Part;
+import jakarta.websocket.CloseReason;
+import jakarta.websocket.Endpoint;
+import jakarta.websocket.EndpointConfig;
+import jakarta.websocket.Session;
+import jakarta.websocket.server.ServerContainer;
+import jakarta.websocket.server.ServerEndpointConfig;
+import org.apache.catalina.Context;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.tomcat.websocket.server.WsSci;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 本地 ComfyUI 模拟服务器，用于在没有 GPU 的环境中对整条链路做端到端压测
+ * <p>
+ * 实现 ComfyUIService 用到的接口：/upload/image、/prompt、/history/{id}、/view、/system_stats、/queue、/interrupt 和 /ws。
+ * 与真实 ComfyUI 一样，提交的 Prompt 进入 FIFO 队列，由 --workers 个执行器（模拟 GPU）依次执行，
+ * 执行期间通过 WebSocket 推送 execution_start / executing / progress / executed 事件，结束后写入 history。
+ * LoadImage 读取的文件没有上传过时与 ComfyUI 一样以 node_errors 拒绝；POST /stub/clear-input 清空已上传文件，
+ * 模拟 ComfyUI 的 input 目录被清理。
+ * <p>
+ * 参数：
+ * <pre>
+ *   --port 8188                 监听端口
+ *   --workers 1                 并行执行的 Prompt 数（GPU 数）
+ *   --latency lognormal:2000,0.4  每个 Prompt 的执行耗时分布（毫秒），见 {@link LoadTestOptions.Distribution}
+ *   --upload-latency fixed:0    /upload/image 耗时分布
+ *   --view-latency fixed:0      /view 耗时分布
+ *   --failure-rate 0            执行失败（execution_error）的比例
+ *   --prompt-error-rate 0       /prompt 直接返回 500 的比例
+ *   --steps 10                  每个 Prompt 推送的 progress 事件数
+ *   --images 1                  每个 SaveImage / PreviewImage 节点输出的图片数
+ *   --collage-images 6          拼图工作流（含 SmartProductCollageBatch 节点）输出的图片数
+ *   --image-size 512            /view 返回的 PNG 边长
+ * </pre>
+ */
+public class ComfyUIStubServer {
+
+    private static final int MAX_HISTORY = 10000;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final LoadTestOptions.Distribution latency;
+    private final LoadTestOptions.Distribution uploadLatency;
+    private final LoadTestOptions.Distribution viewLatency;
+    private final double failureRate;
+    private final double promptErrorRate;
+    private final int steps;
+    private final int imagesPerNode;
+    private final int collageImages;
+    private final byte[] image;
+
+    private final LinkedBlockingDeque<PromptJob> queue = new LinkedBlockingDeque<>();
+    private final Map<String, PromptJob> running = new ConcurrentHashMap<>();
+    private final Map<String, JsonNode> history = new LinkedHashMap<>(16, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, JsonNode> eldest) {
+            return size() > MAX_HISTORY;
+        }
+    };
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final Set<String> inputFiles = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger promptNumber = new AtomicInteger();
+
+    private final AtomicLong uploads = new AtomicLong();
+    private final AtomicLong uploadBytes = new AtomicLong();
+    private final AtomicLong prompts = new AtomicLong();
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong interrupted = new AtomicLong();
+    private final AtomicLong views = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        LoadTestOptions options = new LoadTestOptions(args);
+        ComfyUIStubServer stub = new ComfyUIStubServer(options);
+        int port = options.getInt("port", 8188);
+        int workers = options.getInt("workers", 1);
+        stub.start(port, workers);
+        System.out.printf("ComfyUI 模拟服务器已启动: http://127.0.0.1:%d (workers=%d, latency=%s, failure-rate=%.3f)%n",
+                port, workers, stub.latency, stub.failureRate);
+    }
+
+    ComfyUIStubServer(LoadTestOptions options) throws IOException {
+        this.latency = options.getDistribution("latency", "lognormal:2000,0.4");
+        this.uploadLatency = options.getDistribution("upload-latency", "fixed:0");
+        this.viewLatency = options.getDistribution("view-latency", "fixed:0");
+        this.failureRate = options.getDouble("failure-rate", 0);
+        this.promptErrorRate = options.getDouble("prompt-error-rate", 0);
+        this.steps = Math.max(1, options.getInt("steps", 10));
+        this.imagesPerNode = Math.max(1, options.getInt("images", 1));
+        this.collageImages = Math.max(1, options.getInt("collage-images", 6));
+        this.image = renderImage(options.getInt("image-size", 512));
+    }
+
+    void start(int port, int workers) throws Exception {
+        Path baseDir = Files.createTempDirectory("comfyui-stub");
+        Tomcat tomcat = new Tomcat();
+        tomcat.setBaseDir(baseDir.toString());
+        tomcat.setPort(port);
+        Connector connector = tomcat.getConnector();
+        connector.setProperty("maxThreads", "400");
+        connector.setProperty("maxConnections", "20000");
+        connector.setProperty("acceptCount", "1000");
+
+        Context context = tomcat.addContext("", baseDir.toString());
+        Wrapper wrapper = Tomcat.addServlet(context, "comfyui", new StubServlet());
+        wrapper.setMultipartConfigElement(new MultipartConfigElement(baseDir.toString(),
+                200L * 1024 * 1024, 400L * 1024 * 1024, 1024 * 1024));
+        context.addServletMappingDecoded("/", "comfyui");
+
+        // WsSci 先注册 ServerContainer，随后再把 /ws 端点挂上去
+        context.addServletContainerInitializer(new WsSci(), null);
+        context.addServletContainerInitializer((classes, servletContext) -> {
+            ServerContainer container = (ServerContainer) servletContext.getAttribute(ServerContainer.class.getName());
+            try {
+                container.addEndpoint(ServerEndpointConfig.Builder.create(StubSocket.class, "/ws")
+                        .configurator(new ServerEndpointConfig.Configurator() {
+                            @Override
+                            @SuppressWarnings("unchecked")
+                            public <T> T getEndpointInstance(Class<T> endpointClass) {
+                                return (T) new StubSocket();
+                            }
+                        })
+                        .build());
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }, null);
+
+        for (int i = 0; i < workers; i++) {
+            Thread.ofPlatform().daemon().name("stub-gpu-" + i).start(this::workLoop);
+        }
+        Thread.ofPlatform().daemon().name("stub-stats").start(this::statsLoop);
+
+        tomcat.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                tomcat.stop();
+            } catch (Exception ignored) {
+                // 退出中
+            }
+        }));
+    }
+
+    // ==================== 执行器 ====================
+
+    private void workLoop() {
+        while (true) {
+            PromptJob job;
+            try {
+                job = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            running.put(job.promptId, job);
+            try {
+                execute(job);
+            } catch (Exception e) {
+                System.err.println("模拟执行失败: " + e);
+            } finally {
+                running.remove(job.promptId);
+                sendStatus(null);
+            }
+        }
+    }
+
+    private void execute(PromptJob job) throws InterruptedException {
+        List<Object[]> messages = new ArrayList<>();
+        ObjectNode start = event("execution_start", job, null);
+        messages.add(new Object[]{"execution_start", start});
+        send(job, "execution_start", start);
+        send(job, "execution_cached", event("execution_cached", job, null).set("nodes", objectMapper.createArrayNode()));
+
+        String workNode = job.workNode();
+        send(job, "executing", event("executing", job, workNode));
+
+        long total = latency.sample();
+        boolean fail = ThreadLocalRandom.current().nextDouble() < failureRate;
+        int failStep = fail ? ThreadLocalRandom.current().nextInt(steps) : -1;
+        for (int step = 1; step <= steps; step++) {
+            Thread.sleep(total / steps);
+            if (job.interrupted) {
+                ObjectNode data = event("execution_interrupted", job, workNode);
+                data.put("node_type", job.classType(workNode));
+                data.set("executed", objectMapper.createArrayNode());
+                messages.add(new Object[]{"execution_interrupted", data});
+                send(job, "execution_interrupted", data);
+                finish(job, messages, false);
+                interrupted.incrementAndGet();
+                return;
+            }
+            if (step - 1 == failStep) {
+                ObjectNode data = event("execution_error", job, workNode);
+                data.put("node_type", job.classType(workNode));
+                data.put("exception_type", "RuntimeError");
+                data.put("exception_message", "stub: simulated failure");
+                data.set("traceback", objectMapper.createArrayNode());
+                data.set("executed", objectMapper.createArrayNode());
+                messages.add(new Object[]{"execution_error", data});
+                send(job, "execution_error", data);
+                finish(job, messages, false);
+                failed.incrementAndGet();
+                return;
+            }
+            ObjectNode progress = event(null, job, workNode);
+            progress.put("value", step);
+            progress.put("max", steps);
+            send(job, "progress", progress);
+        }
+
+        for (String node : job.outputNodes()) {
+            send(job, "executing", event("executing", job, node));
+            ObjectNode executed = event(null, job, node);
+            executed.putObject("output").set("images", job.outputs.get(node));
+            send(job, "executed", executed);
+        }
+        ObjectNode success = event("execution_success", job, null);
+        messages.add(new Object[]{"execution_success", success});
+        finish(job, messages, true);
+        send(job, "execution_success", success);
+        succeeded.incrementAndGet();
+    }
+
+    /**
+     * 写入 history 后再推送 executing node=null，与 ComfyUI 的顺序一致
+     */
+    private void finish(PromptJob job, List<Object[]> messages, boolean success) {
+        ObjectNode entry = objectMapper.createObjectNode();
+        ArrayNode prompt = entry.putArray("prompt");
+        prompt.add(job.number).add(job.promptId).add(job.workflow);
+        prompt.addObject();
+        prompt.add(objectMapper.<JsonNode>valueToTree(job.outputNodes()));
+        ObjectNode outputs = entry.putObject("outputs");
+        if (success) {
+            job.outputs.forEach((node, images) -> outputs.putObject(node).set("images", images));
+        }
+        ObjectNode status = entry.putObject("status");
+        status.put("status_str", success ? "success" : "error");
+        status.put("completed", success);
+        ArrayNode list = status.putArray("messages");
+        for (Object[] message : messages) {
+            list.addArray().add((String) message[0]).add((JsonNode) message[1]);
+        }
+        entry.putObject("meta");
+        synchronized (history) {
+            history.put(job.promptId, entry);
+        }
+        ObjectNode executing = event(null, job, null);
+        executing.putNull("node");
+        send(job, "executing", executing);
+    }
+
+    private ObjectNode event(String type, PromptJob job, String node) {
+        ObjectNode data = objectMapper.createObjectNode();
+        data.put("prompt_id", job.promptId);
+        if (node != null) {
+            data.put("node", node);
+            data.put("display_node", node);
+            if (type != null && type.startsWith("execution_")) {
+                data.put("node_id", node);
+            }
+        }
+        if (type != null && type.startsWith("execution_")) {
+            data.put("timestamp", System.currentTimeMillis());
+        }
+        return data;
+    }
+
+    // ==================== WebSocket ====================
+
+    public class StubSocket extends Endpoint {
+
+        private String clientId;
+
+        @Override
+        public void onOpen(Session session, EndpointConfig config) {
+            List<String> ids = session.getRequestParameterMap().get("clientId");
+            clientId = ids != null && !ids.isEmpty() ? ids.get(0) : UUID.randomUUID().toString().replace("-", "");
+            sessions.put(clientId, session);
+            sendStatus(clientId);
+        }
+
+        @Override
+        public void onClose(Session session, CloseReason closeReason) {
+            sessions.remove(clientId, session);
+        }
+
+        @Override
+        public void onError(Session session, Throwable thr) {
+            sessions.remove(clientId, session);
+        }
+    }
+
+    private void sendStatus(String clientId) {
+        ObjectNode data = objectMapper.createObjectNode();
+        data.putObject("status").putObject("exec_info").put("queue_remaining", queue.size() + running.size());
+        if (clientId != null) {
+            data.put("sid", clientId);
+            deliver(sessions.get(clientId), "status", data);
+        } else {
+            sessions.values().forEach(session -> deliver(session, "status", data));
+        }
+    }
+
+    /**
+     * 与 ComfyUI 一样，Prompt 事件只推给提交它的 client_id；未指定时广播
+     */
+    private void send(PromptJob job, String type, JsonNode data) {
+        if (job.clientId != null) {
+            deliver(sessions.get(job.clientId), type, data);
+        } else {
+            sessions.values().forEach(session -> deliver(session, type, data));
+        }
+    }
+
+    private void deliver(Session session, String type, JsonNode data) {
+        if (session == null || !session.isOpen()) {
+            return;
+        }
+        ObjectNode message = objectMapper.createObjectNode();
+        message.put("type", type);
+        message.set("data", data);
+        String text = message.toString();
+        synchronized (session) {
+            try {
+                session.getBasicRemote().sendText(text);
+            } catch (IOException | IllegalStateException e) {
+                // 客户端断开，onClose 会清理
+            }
+        }
+    }
+
+    // ==================== HTTP ====================
+
+    private class StubServlet extends HttpServlet {
+
+        @Override
+        protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+            String path = request.getRequestURI();
+            if (path.startsWith("/history/")) {
+                String promptId = path.substring("/history/".length());
+                ObjectNode body = objectMapper.createObjectNode();
+                JsonNode entry;
+                synchronized (history) {
+                    entry = history.get(promptId);
+                }
+                if (entry != null) {
+                    body.set(promptId, entry);
+                }
+                json(response, 200, body);
+            } else if (path.equals("/view")) {
+                sleep(viewLatency.sample());
+                views.incrementAndGet();
+                response.setContentType("image/png");
+                response.setContentLength(image.length);
+                response.getOutputStream().write(image);
+            } else if (path.equals("/queue")) {
+                ObjectNode body = objectMapper.createObjectNode();
+                ArrayNode queueRunning = body.putArray("queue_running");
+                running.values().forEach(job -> queueRunning.addArray().add(job.number).add(job.promptId));
+                ArrayNode queuePending = body.putArray("queue_pending");
+                queue.forEach(job -> queuePending.addArray().add(job.number).add(job.promptId));
+                json(response, 200, body);
+            } else if (path.equals("/prompt")) {
+                ObjectNode body = objectMapper.createObjectNode();
+                body.putObject("exec_info").put("queue_remaining", queue.size() + running.size());
+                json(response, 200, body);
+            } else if (path.equals("/system_stats")) {
+                ObjectNode body = objectMapper.createObjectNode();
+                ObjectNode system = body.putObject("system");
+                system.put("os", "posix");
+                system.put("comfyui_version", "stub");
+                system.put("python_version", "stub");
+                ObjectNode device = body.putArray("devices").addObject();
+                device.put("name", "cuda:0 ComfyUI Stub");
+                device.put("type", "cuda");
+                device.put("index", 0);
+                device.put("vram_total", 24L * 1024 * 1024 * 1024);
+                device.put("vram_free", 20L * 1024 * 1024 * 1024);
+                json(response, 200, body);
+            } else if (path.equals("/object_info")) {
+                json(response, 200, objectMapper.createObjectNode());
+            } else {
+                json(response, 404, objectMapper.createObjectNode());
+            }
+        }
+
+        @Override
+        protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+            String path = request.getRequestURI();
+            try {
+                if (path.equals("/upload/image") || path.equals("/upload/mask")) {
+                    upload(request, response);
+                } else if (path.equals("/prompt")) {
+                    prompt(request, response);
+                } else if (path.equals("/interrupt")) {
+                    interrupt(request, response);
+                } else if (path.equals("/queue")) {
+                    deleteFromQueue(request, response);
+                } else if (path.equals("/stub/clear-input")) {
+                    inputFiles.clear();
+                    response.setStatus(200);
+                } else {
+                    json(response, 404, objectMapper.createObjectNode());
+                }
+            } catch (Exception e) {
+                json(response, 500, objectMapper.createObjectNode().put("error", String.valueOf(e.getMessage())));
+            }
+        }
+
+        private void upload(HttpServletRequest request, HttpServletResponse response) throws Exception {
+            Part part = request.getPart("image");
+            if (part == null) {
+                json(response, 400, objectMapper.createObjectNode().put("error", "missing image"));
+                return;
+            }
+            try (InputStream in = part.getInputStream()) {
+                uploadBytes.addAndGet(in.transferTo(java.io.OutputStream.nullOutputStream()));
+            }
+            part.delete();
+            sleep(uploadLatency.sample());
+            uploads.incrementAndGet();
+            String subfolder = request.getParameter("subfolder");
+            inputFiles.add(subfolder == null || subfolder.isEmpty() ?
+                    part.getSubmittedFileName() : subfolder + "/" + part.getSubmittedFileName());
+            ObjectNode body = objectMapper.createObjectNode();
+            body.put("name", part.getSubmittedFileName());
+            body.put("subfolder", subfolder == null ? "" : subfolder);
+            body.put("type", request.getParameter("type") == null ? "input" : request.getParameter("type"));
+            json(response, 200, body);
+        }
+
+        private void prompt(HttpServletRequest request, HttpServletResponse response) throws IOException {
+            JsonNode payload = objectMapper.readTree(request.getInputStream());
+            if (ThreadLocalRandom.current().nextDouble() < promptErrorRate) {
+                json(response, 500, objectMapper.createObjectNode().put("error", "stub: simulated /prompt failure"));
+                return;
+            }
+            JsonNode workflow = payload.path("prompt");
+            if (!workflow.isObject() || workflow.isEmpty()) {
+                ObjectNode body = objectMapper.createObjectNode();
+                body.putObject("error").put("type", "prompt_no_outputs").put("message", "Prompt has no outputs");
+                body.putObject("node_errors");
+                json(response, 400, body);
+                return;
+            }
+            ObjectNode nodeErrors = missingInputs(workflow);
+            if (!nodeErrors.isEmpty()) {
+                ObjectNode body = objectMapper.createObjectNode();
+                body.putObject("error").put("type", "prompt_outputs_failed_validation")
+                        .put("message", "Prompt outputs failed validation");
+                body.set("node_errors", nodeErrors);
+                json(response, 400, body);
+                return;
+            }
+            PromptJob job = new PromptJob(UUID.randomUUID().toString(), promptNumber.getAndIncrement(),
+                    payload.path("client_id").asText(null), workflow);
+            prompts.incrementAndGet();
+            if (payload.path("front").asBoolean(false)) {
+                queue.addFirst(job);
+            } else {
+                queue.addLast(job);
+            }
+            sendStatus(null);
+            ObjectNode body = objectMapper.createObjectNode();
+            body.put("prompt_id", job.promptId);
+            body.put("number", job.number);
+            body.putObject("node_errors");
+            json(response, 200, body);
+        }
+
+        /**
+         * 读取未上传文件的 LoadImage 节点，格式与 ComfyUI 的 node_errors 相同
+         */
+        private ObjectNode missingInputs(JsonNode workflow) {
+            ObjectNode nodeErrors = objectMapper.createObjectNode();
+            workflow.fields().forEachRemaining(entry -> {
+                JsonNode node = entry.getValue();
+                String file = node.path("inputs").path("image").asText("");
+                if (!"LoadImage".equals(node.path("class_type").asText()) || !node.path("inputs").path("image").isTextual()
+                        || file.contains("://") || inputFiles.contains(file)) {
+                    return;
+                }
+                ObjectNode nodeError = nodeErrors.putObject(entry.getKey());
+                nodeError.putArray("errors").addObject()
+                        .put("type", "value_not_in_list")
+                        .put("message", "Value not in list")
+                        .put("details", "image: '" + file + "' not in list");
+                nodeError.putArray("dependent_outputs");
+                nodeError.put("class_type", "LoadImage");
+            });
+            return nodeErrors;
+        }
+
+        /**
+         * 中断正在执行的 Prompt；请求体带 prompt_id 时只中断该 Prompt
+         */
+        private void interrupt(HttpServletRequest request, HttpServletResponse response) throws IOException {
+            JsonNode payload = request.getContentLength() > 0 ? objectMapper.readTree(request.getInputStream()) : null;
+            String promptId = payload == null ? null : payload.path("prompt_id").asText(null);
+            running.values().stream()
+                    .filter(job -> promptId == null || job.promptId.equals(promptId))
+                    .forEach(job -> job.interrupted = true);
+            response.setStatus(200);
+        }
+
+        /**
+         * {"delete": [promptId...]} 从等待队列中删除，{"clear": true} 清空等待队列
+         */
+        private void deleteFromQueue(HttpServletRequest request, HttpServletResponse response) throws IOException {
+            JsonNode payload = objectMapper.readTree(request.getInputStream());
+            if (payload.path("clear").asBoolean(false)) {
+                queue.clear();
+            }
+            for (JsonNode id : payload.path("delete")) {
+                for (Iterator<PromptJob> it = queue.iterator(); it.hasNext(); ) {
+                    if (it.next().promptId.equals(id.asText())) {
+                        it.remove();
+                    }
+                }
+            }
+            sendStatus(null);
+            response.setStatus(200);
+        }
+
+        private void json(HttpServletResponse response, int status, JsonNode body) throws IOException {
+            byte[] bytes = objectMapper.writeValueAsBytes(body);
+            response.setStatus(status);
+            response.setContentType("application/json");
+            response.setContentLength(bytes.length);
+            response.getOutputStream().write(bytes);
+        }
+    }
+
+    // ==================== 辅助 ====================
+
+    private class PromptJob {
+        final String promptId;
+        final int number;
+        final String clientId;
+        final JsonNode workflow;
+        final Map<String, ArrayNode> outputs = new LinkedHashMap<>();
+        volatile boolean interrupted;
+
+        PromptJob(String promptId, int number, String clientId, JsonNode workflow) {
+            this.promptId = promptId;
+            this.number = number;
+            this.clientId = clientId;
+            this.workflow = workflow;
+
+            boolean collage = false;
+            for (JsonNode node : workflow) {
+                collage |= "SmartProductCollageBatch".equals(node.path("class_type").asText());
+            }
+            String tag = promptId.substring(0, 8);
+            workflow.fields().forEachRemaining(entry -> {
+                String classType = entry.getValue().path("class_type").asText();
+                if (!"SaveImage".equals(classType) && !"PreviewImage".equals(classType)) {
+                    return;
+                }
+                boolean temp = "PreviewImage".equals(classType);
+                ArrayNode images = objectMapper.createArrayNode();
+                for (int i = 0; i < imagesPerNode; i++) {
+                    images.addObject()
+                            .put("filename", String.format("stub_%s_%s_%05d_.png", tag, entry.getKey(), i + 1))
+                            .put("subfolder", "")
+                            .put("type", temp ? "temp" : "output");
+                }
+                outputs.put(entry.getKey(), images);
+            });
+            if (collage) {
+                outputs.values().forEach(images -> {
+                    for (int i = images.size(); i < collageImages; i++) {
+                        images.add(((ObjectNode) images.get(0).deepCopy()).put("filename",
+                                String.format("stub_%s_collage_%05d_.png", tag, i + 1)));
+                    }
+                });
+            }
+        }
+
+        List<String> outputNodes() {
+            return new ArrayList<>(outputs.keySet());
+        }
+
+        /**
+         * 模拟主要耗时的节点：第一个非输出节点
+         */
+        String workNode() {
+            Iterator<String> ids = workflow.fieldNames();
+            String first = null;
+            while (ids.hasNext()) {
+                String id = ids.next();
+                if (first == null) {
+                    first = id;
+                }
+                if (!outputs.containsKey(id)) {
+                    return id;
+                }
+            }
+            return first;
+        }
+
+        String classType(String node) {
+            return workflow.path(node).path("class_type").asText("");
+        }
+    }
+
+    private void statsLoop() {
+        while (true) {
+            try {
+                Thread.sleep(10_000);
+            } catch (InterruptedException e) {
+                return;
+            }
+            System.out.printf("[stub] prompts=%d success=%d failed=%d interrupted=%d queue=%d running=%d uploads=%d (%.1f MB) views=%d ws=%d%n",
+                    prompts.get(), succeeded.get(), failed.get(), interrupted.get(), queue.size(), running.size(),
+                    uploads.get(), uploadBytes.get() / 1024.0 / 1024.0, views.get(), sessions.size());
+        }
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static byte[] renderImage(int size) throws IOException {
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, new Color(64, 128, 255), size, size, new Color(255, 128, 64)));
+        g.fillOval(size / 8, size / 8, size * 3 / 4, size * 3 / 4);
+        g.dispose();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,529 @@
+package com.yimeil.comfyui.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * 端到端压测：以固定 RPS 调用 /api/matting/*、/api/qwen/* 和 /api/collage/execute，
+ * 输出吞吐量、p50/p90/p99 延迟以及服务端线程数和堆内存
+ * <p>
+ * 采用开环模型：第 i 个请求的计划发送时间固定为 start + i / rps，延迟从计划时间开始计算，
+ * 服务端变慢时不会因为压测端跟着放慢而低估延迟。
+ * <p>
+ * 参数：
+ * <pre>
+ *   --target http://127.0.0.1:8080   被测服务地址
+ *   --endpoints matting              逐个轮流调用的接口，逗号分隔：matting,keyword,batch,qwen-edit,qwen-translate,collage
+ *   --rps 5                          每秒请求数
+ *   --duration 60                    发送请求的时长（秒）
+ *   --timeout 600                    单个请求超时（秒）
+ *   --max-in-flight 2000             未完成请求上限，超过后计为 dropped，防止压测端自身耗尽内存
+ *   --image-size 512                 上传图片边长
+ *   --unique true                    每个请求使用不同的图片，避免命中结果缓存
+ *   --collage-rows 9                 拼图 Excel 的 SKU 行数
+ *   --collage-image-url http://127.0.0.1:8188/view   拼图 Excel 中的产品图片地址
+ *   --report target/loadtest-report.json            JSON 报告输出路径
+ * </pre>
+ */
+public class LoadGenerator {
+
+    private static final String BOUNDARY = "----comfyui-loadtest-" + UUID.randomUUID();
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final HttpClient client;
+    private final String target;
+    private final List<String> endpoints;
+    private final double rps;
+    private final int durationSeconds;
+    private final Duration timeout;
+    private final int maxInFlight;
+    private final boolean unique;
+    private final byte[] image;
+    private final int collageRows;
+    private final String collageImageUrl;
+    private final byte[] workbook;
+    private final String reportPath;
+
+    private final Map<String, Stats> stats = new LinkedHashMap<>();
+    private final Stats total = new Stats();
+    private final AtomicLong dropped = new AtomicLong();
+    private final ServerSampler sampler;
+
+    public static void main(String[] args) throws Exception {
+        LoadTestOptions options = new LoadTestOptions(args);
+        new LoadGenerator(options).run();
+        System.exit(0);
+    }
+
+    LoadGenerator(LoadTestOptions options) throws IOException {
+        this.target = options.get("target", "http://127.0.0.1:8080").replaceAll("/+$", "");
+        this.endpoints = Arrays.asList(options.get("endpoints", "matting").split(","));
+        for (String endpoint : endpoints) {
+            path(endpoint);
+            stats.put(endpoint, new Stats());
+        }
+        this.rps = options.getDouble("rps", 5);
+        this.durationSeconds = options.getInt("duration", 60);
+        this.timeout = Duration.ofSeconds(options.getInt("timeout", 600));
+        this.maxInFlight = options.getInt("max-in-flight", 2000);
+        this.unique = options.getBoolean("unique", true);
+        this.image = renderImage(options.getInt("image-size", 512));
+        this.collageRows = options.getInt("collage-rows", 9);
+        this.collageImageUrl = options.get("collage-image-url", "http://127.0.0.1:8188/view");
+        this.workbook = buildWorkbook(-1, collageRows, collageImageUrl);
+        this.reportPath = options.get("report", "target/loadtest-report.json");
+        this.client = HttpClient.newBuilder()
+                .executor(Executors.newVirtualThreadPerTaskExecutor())
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+        this.sampler = new ServerSampler();
+    }
+
+    void run() throws Exception {
+        System.out.printf("压测开始: target=%s endpoints=%s rps=%.1f duration=%ds%n", target, endpoints, rps, durationSeconds);
+        Thread samplerThread = Thread.ofPlatform().daemon().name("loadtest-sampler").start(sampler);
+
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        long periodNanos = (long) (1_000_000_000L / rps);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+        AtomicInteger sequence = new AtomicInteger();
+        Thread progress = Thread.ofPlatform().daemon().name("loadtest-progress").start(() -> printProgress(start));
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (long i = 0; ; i++) {
+                long intended = start + i * periodNanos;
+                if (intended >= end) {
+                    break;
+                }
+                long wait = intended - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                if (!inFlight.tryAcquire()) {
+                    dropped.incrementAndGet();
+                    continue;
+                }
+                int seq = sequence.getAndIncrement();
+                String endpoint = endpoints.get(seq % endpoints.size());
+                executor.execute(() -> {
+                    try {
+                        send(endpoint, seq, intended);
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+            System.out.println("请求已全部发出，等待未完成的请求...");
+        }
+        long elapsed = System.nanoTime() - start;
+        progress.interrupt();
+        samplerThread.interrupt();
+        report(elapsed);
+    }
+
+    private void send(String endpoint, int seq, long intended) {
+        Stats endpointStats = stats.get(endpoint);
+        endpointStats.sent.increment();
+        total.sent.increment();
+        String outcome;
+        try {
+            HttpRequest request = HttpRequest.newBuilder(URI.create(target + path(endpoint)))
+                    .timeout(timeout)
+                    .header("Content-Type", "multipart/form-data; boundary=" + BOUNDARY)
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(body(endpoint, seq)))
+                    .build();
+            HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+            outcome = classify(response);
+        } catch (java.net.http.HttpTimeoutException e) {
+            outcome = "timeout";
+        } catch (Exception e) {
+            outcome = e.getClass().getSimpleName();
+        }
+        long latency = System.nanoTime() - intended;
+        endpointStats.record(outcome, latency);
+        total.record(outcome, latency);
+    }
+
+    private String classify(HttpResponse<byte[]> response) {
+        if (response.statusCode() == 429) {
+            return "rejected";
+        }
+        if (response.statusCode() != 200) {
+            return "http_" + response.statusCode();
+        }
+        try {
+            JsonNode body = objectMapper.readTree(response.body());
+            int code = body.path("code").asInt();
+            if (code == 200) {
+                return "ok";
+            }
+            if (code == 429) {
+                return "rejected";
+            }
+            String message = body.path("message").asText("");
+            return "error: " + (message.length() > 60 ? message.substring(0, 60) : message);
+        } catch (IOException e) {
+            return "invalid_json";
+        }
+    }
+
+    // ==================== 请求构造 ====================
+
+    private static String path(String endpoint) {
+        return switch (endpoint) {
+            case "matting" -> "/api/matting/execute";
+            case "keyword" -> "/api/matting/keyword";
+            case "batch" -> "/api/matting/batch";
+            case "qwen-edit" -> "/api/qwen/edit-angles";
+            case "qwen-translate" -> "/api/qwen/translate-image";
+            case "collage" -> "/api/collage/execute";
+            default -> throw new IllegalArgumentException("未知接口: " + endpoint);
+        };
+    }
+
+    private byte[] body(String endpoint, int seq) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(image.length + 1024);
+        byte[] png = unique ? tagImage(image, seq) : image;
+        String filename = "loadtest_" + seq + ".png";
+        switch (endpoint) {
+            case "keyword" -> {
+                filePart(out, "image", filename, "image/png", png);
+                textPart(out, "keyword", "product");
+            }
+            case "batch" -> {
+                textPart(out, "inputMode", "image");
+                filePart(out, "imageFile", filename, "image/png", png);
+            }
+            case "qwen-translate" -> {
+                filePart(out, "image", filename, "image/png", png);
+                textPart(out, "apiKey", "loadtest");
+            }
+            case "collage" -> filePart(out, "excelFile", "loadtest_" + seq + ".xlsx",
+                    "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet",
+                    unique ? buildWorkbook(seq, collageRows, collageImageUrl) : workbook);
+            default -> filePart(out, "image", filename, "image/png", png);
+        }
+        out.write(("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8));
+        return out.toByteArray();
+    }
+
+    private static void textPart(ByteArrayOutputStream out, String name, String value) throws IOException {
+        out.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"" + name + "\"\r\n\r\n"
+                + value + "\r\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void filePart(ByteArrayOutputStream out, String name, String filename, String contentType,
+                                 byte[] content) throws IOException {
+        out.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"" + name + "\"; filename=\""
+                + filename + "\"\r\nContent-Type: " + contentType + "\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        out.write(content);
+        out.write("\r\n".getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] renderImage(int size) throws IOException {
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, size, size);
+        g.setColor(new Color(200, 60, 60));
+        g.fillRoundRect(size / 4, size / 4, size / 2, size / 2, size / 8, size / 8);
+        g.dispose();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+
+    /**
+     * 在 IEND 之前插入一个带序号的 tEXt 块，图片内容不变但字节不同，不会命中结果缓存
+     */
+    private static byte[] tagImage(byte[] png, int seq) {
+        byte[] text = ("loadtest\0" + seq + "-" + System.nanoTime()).getBytes(StandardCharsets.ISO_8859_1);
+        ByteBuffer chunk = ByteBuffer.allocate(12 + text.length);
+        chunk.putInt(text.length);
+        chunk.put("tEXt".getBytes(StandardCharsets.ISO_8859_1));
+        chunk.put(text);
+        CRC32 crc = new CRC32();
+        crc.update(chunk.array(), 4, 4 + text.length);
+        chunk.putInt((int) crc.getValue());
+
+        int iend = png.length - 12;
+        byte[] tagged = new byte[png.length + chunk.capacity()];
+        System.arraycopy(png, 0, tagged, 0, iend);
+        System.arraycopy(chunk.array(), 0, tagged, iend, chunk.capacity());
+        System.arraycopy(png, iend, tagged, iend + chunk.capacity(), 12);
+        return tagged;
+    }
+
+    /**
+     * 生成最小的 xlsx：A 组合SKU、B SKU、C 数量、D 图片URL，第一行为表头，与拼图接口的默认列一致
+     */
+    private static byte[] buildWorkbook(int seq, int rows, String imageUrl) throws IOException {
+        StringBuilder sheet = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>"
+                + "<worksheet xmlns=\"http://schemas.openxmlformats.org/spreadsheetml/2006/main\"><sheetData>");
+        appendRow(sheet, 1, "组合SKU", "SKU", "数量", "图片");
+        String combined = "LT" + (seq < 0 ? "" : "-" + seq);
+        for (int i = 0; i < rows; i++) {
+            String sku = combined + "-" + (i + 1);
+            appendRow(sheet, i + 2, combined, sku, String.valueOf(i % 3 + 1),
+                    imageUrl + "?filename=" + sku + ".png&type=input");
+        }
+        sheet.append("</sheetData></worksheet>");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(out)) {
+            entry(zip, "[Content_Types].xml", "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>"
+                    + "<Types xmlns=\"http://schemas.openxmlformats.org/package/2006/content-types\">"
+                    + "<Default Extension=\"rels\" ContentType=\"application/vnd.openxmlformats-package.relationships+xml\"/>"
+                    + "<Default Extension=\"xml\" ContentType=\"application/xml\"/>"
+                    + "<Override PartName=\"/xl/workbook.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.sheet.main+xml\"/>"
+                    + "<Override PartName=\"/xl/worksheets/sheet1.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.worksheet+xml\"/>"
+                    + "</Types>");
+            entry(zip, "_rels/.rels", "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>"
+                    + "<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">"
+                    + "<Relationship Id=\"rId1\" Type=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships/officeDocument\" Target=\"xl/workbook.xml\"/>"
+                    + "</Relationships>");
+            entry(zip, "xl/workbook.xml", "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>"
+                    + "<workbook xmlns=\"http://schemas.openxmlformats.org/spreadsheetml/2006/main\""
+                    + " xmlns:r=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships\">"
+                    + "<sheets><sheet name=\"Sheet1\" sheetId=\"1\" r:id=\"rId1\"/></sheets></workbook>");
+            entry(zip, "xl/_rels/workbook.xml.rels", "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>"
+                    + "<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">"
+                    + "<Relationship Id=\"rId1\" Type=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships/worksheet\" Target=\"worksheets/sheet1.xml\"/>"
+                    + "</Relationships>");
+            entry(zip, "xl/worksheets/sheet1.xml", sheet.toString());
+        }
+        return out.toByteArray();
+    }
+
+    private static void appendRow(StringBuilder sheet, int row, String... values) {
+        sheet.append("<row r=\"").append(row).append("\">");
+        for (int i = 0; i < values.length; i++) {
+            String ref = (char) ('A' + i) + String.valueOf(row);
+            String value = values[i].replace("&", "&amp;").replace("<", "&lt;");
+            if (value.matches("\\d+")) {
+                sheet.append("<c r=\"").append(ref).append("\"><v>").append(value).append("</v></c>");
+            } else {
+                sheet.append("<c r=\"").append(ref).append("\" t=\"inlineStr\"><is><t>").append(value).append("</t></is></c>");
+            }
+        }
+        sheet.append("</row>");
+    }
+
+    private static void entry(ZipOutputStream zip, String name, String content) throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+        zip.write(content.getBytes(StandardCharsets.UTF_8));
+        zip.closeEntry();
+    }
+
+    // ==================== 统计 ====================
+
+    private static class Stats {
+        final LongAdder sent = new LongAdder();
+        final Map<String, LongAdder> outcomes = new ConcurrentHashMap<>();
+        private long[] latencies = new long[1024];
+        private int count;
+
+        void record(String outcome, long latencyNanos) {
+            outcomes.computeIfAbsent(outcome, k -> new LongAdder()).increment();
+            if (!"ok".equals(outcome)) {
+                return;
+            }
+            synchronized (this) {
+                if (count == latencies.length) {
+                    latencies = Arrays.copyOf(latencies, count * 2);
+                }
+                latencies[count++] = latencyNanos;
+            }
+        }
+
+        long completed() {
+            return outcomes.values().stream().mapToLong(LongAdder::sum).sum();
+        }
+
+        long count(String outcome) {
+            LongAdder adder = outcomes.get(outcome);
+            return adder == null ? 0 : adder.sum();
+        }
+
+        synchronized long[] sortedLatencies() {
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+
+        static double percentileMs(long[] sorted, double percentile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1_000_000.0;
+        }
+    }
+
+    /**
+     * 每秒从 /actuator/metrics 读取服务端的线程数、堆内存和 CPU 使用率
+     */
+    private class ServerSampler implements Runnable {
+        volatile double threads;
+        volatile double maxThreads;
+        volatile double heapMb;
+        volatile double maxHeapMb;
+        volatile double maxCpu;
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    threads = metric("jvm.threads.live", null);
+                    maxThreads = Math.max(maxThreads, threads);
+                    heapMb = metric("jvm.memory.used", "area:heap") / 1024 / 1024;
+                    maxHeapMb = Math.max(maxHeapMb, heapMb);
+                    maxCpu = Math.max(maxCpu, metric("process.cpu.usage", null));
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        private double metric(String name, String tag) throws Exception {
+            String url = target + "/actuator/metrics/" + name + (tag == null ? "" : "?tag=" + tag);
+            HttpResponse<byte[]> response = client.send(HttpRequest.newBuilder(URI.create(url))
+                    .timeout(Duration.ofSeconds(5)).GET().build(), HttpResponse.BodyHandlers.ofByteArray());
+            if (response.statusCode() != 200) {
+                throw new IOException("HTTP " + response.statusCode());
+            }
+            return objectMapper.readTree(response.body()).path("measurements").path(0).path("value").asDouble();
+        }
+    }
+
+    private void printProgress(long start) {
+        long lastCompleted = 0;
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(5000);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long completed = total.completed();
+            System.out.printf("[%4ds] sent=%d completed=%d ok=%d (+%.1f/s) in-flight=%d threads=%.0f heap=%.0fMB%n",
+                    TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), total.sent.sum(), completed,
+                    total.count("ok"), (completed - lastCompleted) / 5.0, total.sent.sum() - completed,
+                    sampler.threads, sampler.heapMb);
+            lastCompleted = completed;
+        }
+    }
+
+    private void report(long elapsedNanos) throws IOException {
+        double seconds = elapsedNanos / 1_000_000_000.0;
+        ObjectNode json = objectMapper.createObjectNode();
+        json.put("target", target);
+        json.put("rps", rps);
+        json.put("durationSeconds", durationSeconds);
+        json.put("elapsedSeconds", seconds);
+        json.put("dropped", dropped.get());
+
+        System.out.println();
+        System.out.printf("%-16s %7s %7s %7s %9s %9s %9s %9s %9s%n",
+                "endpoint", "sent", "ok", "failed", "ok/s", "p50(ms)", "p90(ms)", "p99(ms)", "max(ms)");
+        ArrayNode rows = json.putArray("endpoints");
+        Map<String, Stats> all = new LinkedHashMap<>(stats);
+        if (stats.size() > 1) {
+            all.put("total", total);
+        }
+        for (Map.Entry<String, Stats> entry : all.entrySet()) {
+            Stats s = entry.getValue();
+            long[] sorted = s.sortedLatencies();
+            long ok = s.count("ok");
+            double p50 = Stats.percentileMs(sorted, 0.50);
+            double p90 = Stats.percentileMs(sorted, 0.90);
+            double p99 = Stats.percentileMs(sorted, 0.99);
+            double max = Stats.percentileMs(sorted, 1.0);
+            System.out.printf("%-16s %7d %7d %7d %9.2f %9.0f %9.0f %9.0f %9.0f%n", entry.getKey(), s.sent.sum(), ok,
+                    s.completed() - ok, ok / seconds, p50, p90, p99, max);
+
+            ObjectNode row = rows.addObject();
+            row.put("endpoint", entry.getKey());
+            row.put("sent", s.sent.sum());
+            row.put("ok", ok);
+            row.put("throughput", ok / seconds);
+            row.put("p50Ms", p50);
+            row.put("p90Ms", p90);
+            row.put("p99Ms", p99);
+            row.put("maxMs", max);
+            ObjectNode outcomes = row.putObject("outcomes");
+            new TreeMap<>(s.outcomes).forEach((k, v) -> outcomes.put(k, v.sum()));
+        }
+
+        System.out.println();
+        Map<String, Long> failures = new TreeMap<>();
+        total.outcomes.forEach((k, v) -> {
+            if (!"ok".equals(k)) {
+                failures.put(k, v.sum());
+            }
+        });
+        failures.forEach((k, v) -> System.out.printf("  %-60s %d%n", k, v));
+        if (dropped.get() > 0) {
+            System.out.printf("  %-60s %d%n", "dropped (max-in-flight)", dropped.get());
+        }
+        if (sampler.maxThreads > 0) {
+            System.out.printf("服务端: 最大线程数 %.0f, 最大堆内存 %.0f MB, 最高 CPU %.0f%%%n",
+                    sampler.maxThreads, sampler.maxHeapMb, sampler.maxCpu * 100);
+            ObjectNode server = json.putObject("server");
+            server.put("maxThreads", sampler.maxThreads);
+            server.put("maxHeapMb", sampler.maxHeapMb);
+            server.put("maxCpu", sampler.maxCpu);
+        } else {
+            System.out.println("服务端: 无法读取 /actuator/metrics");
+        }
+
+        Path path = Path.of(reportPath);
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        objectMapper.writerWithDefaultPrettyPrinter().writeValue(path.toFile(), json);
+        System.out.println("报告已保存: " + path.toAbsolutePath());
+    }
+}
@@ -0,0 +1,103 @@
+package com.yimeil.comfyui.loadtest;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 压测工具的命令行参数（--name value）和延迟分布
+ */
+final class LoadTestOptions {
+
+    private final Map<String, String> values = new HashMap<>();
+
+    LoadTestOptions(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("无法识别的参数: " + arg);
+            }
+            String name = arg.substring(2);
+            int eq = name.indexOf('=');
+            if (eq >= 0) {
+                values.put(name.substring(0, eq), name.substring(eq + 1));
+            } else if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                values.put(name, args[++i]);
+            } else {
+                values.put(name, "true");
+            }
+        }
+    }
+
+    String get(String name, String defaultValue) {
+        return values.getOrDefault(name, defaultValue);
+    }
+
+    int getInt(String name, int defaultValue) {
+        return values.containsKey(name) ? Integer.parseInt(values.get(name)) : defaultValue;
+    }
+
+    double getDouble(String name, double defaultValue) {
+        return values.containsKey(name) ? Double.parseDouble(values.get(name)) : defaultValue;
+    }
+
+    boolean getBoolean(String name, boolean defaultValue) {
+        return values.containsKey(name) ? Boolean.parseBoolean(values.get(name)) : defaultValue;
+    }
+
+    Distribution getDistribution(String name, String defaultValue) {
+        return Distribution.parse(get(name, defaultValue));
+    }
+
+    /**
+     * 延迟分布（毫秒）
+     * <ul>
+     *     <li>fixed:500 - 固定值</li>
+     *     <li>uniform:200-800 - 均匀分布</li>
+     *     <li>exp:500 - 指数分布，均值 500</li>
+     *     <li>lognormal:500,0.5 - 对数正态分布，中位数 500，sigma 0.5（长尾，接近真实 GPU 执行时间）</li>
+     * </ul>
+     */
+    record Distribution(String type, double a, double b) {
+
+        static Distribution parse(String spec) {
+            int colon = spec.indexOf(':');
+            String type = colon >= 0 ? spec.substring(0, colon) : "fixed";
+            String params = colon >= 0 ? spec.substring(colon + 1) : spec;
+            return switch (type) {
+                case "fixed", "exp" -> new Distribution(type, Double.parseDouble(params), 0);
+                case "uniform" -> {
+                    String[] range = params.split("-");
+                    yield new Distribution(type, Double.parseDouble(range[0]), Double.parseDouble(range[1]));
+                }
+                case "lognormal" -> {
+                    String[] parts = params.split(",");
+                    yield new Distribution(type, Double.parseDouble(parts[0]),
+                            parts.length > 1 ? Double.parseDouble(parts[1]) : 0.5);
+                }
+                default -> throw new IllegalArgumentException("不支持的分布: " + spec);
+            };
+        }
+
+        long sample() {
+            Random random = ThreadLocalRandom.current();
+            double value = switch (type) {
+                case "uniform" -> a + random.nextDouble() * (b - a);
+                case "exp" -> -a * Math.log(1 - random.nextDouble());
+                case "lognormal" -> a * Math.exp(b * random.nextGaussian());
+                default -> a;
+            };
+            return Math.max(0, Math.round(value));
+        }
+
+        @Override
+        public String toString() {
+            return switch (type) {
+                case "uniform" -> String.format("uniform:%.0f-%.0f", a, b);
+                case "lognormal" -> String.format("lognormal:%.0f,%.2f", a, b);
+                default -> String.format("%s:%.0f", type, a);
+            };
+        }
+    }
+}
@@ -4,6 +4,12 @@ import lombok.Data;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * ComfyUI 配置
  * 从 application.yml 中读取配置
@@ -18,6 +24,16 @@ public class ComfyUIConfig {
      */
     private ApiConfig api = new ApiConfig();
 
+    /**
+     * 多服务器负载均衡配置
+     */
+    private BalancerConfig balancer = new BalancerConfig();
+
+    /**
+     * 任务调度配置
+     */
+    private SchedulerConfig scheduler = new SchedulerConfig();
+
     /**
      * 工作流配置
      */
@@ -28,6 +44,81 @@ public class ComfyUIConfig {
      */
     private QwenConfig qwen = new QwenConfig();
 
+    /**
+     * WebSocket 配置
+     */
+    private WebSocketConfig websocket = new WebSocketConfig();
+
+    /**
+     * HTTP 连接池配置
+     */
+    private HttpConfig http = new HttpConfig();
+
+    /**
+     * 异步任务配置
+     */
+    private JobConfig job = new JobConfig();
+
+    /**
+     * 上传去重缓存配置
+     */
+    private UploadCacheConfig uploadCache = new UploadCacheConfig();
+
+    /**
+     * 结果缓存配置
+     */
+    private ResultCacheConfig resultCache = new ResultCacheConfig();
+
+    /**
+     * 结果图片本地镜像配置
+     */
+    private MirrorConfig mirror = new MirrorConfig();
+
+    /**
+     * 批量任务拆分执行配置
+     */
+    private BatchConfig batch = new BatchConfig();
+
+    /**
+     * 批量 URL 预检配置
+     */
+    private UrlCheckConfig urlCheck = new UrlCheckConfig();
+
+    /**
+     * Prompt 日志配置（重启后取回未完成的 Prompt）
+     */
+    private JournalConfig journal = new JournalConfig();
+
+    /**
+     * 单图请求合并执行配置
+     */
+    private CoalesceConfig coalesce = new CoalesceConfig();
+
+    /**
+     * 上传前图片预缩小配置
+     */
+    private PreScaleConfig preScale = new PreScaleConfig();
+
+    /**
+     * 执行结果（/history）读取配置
+     */
+    private HistoryConfig history = new HistoryConfig();
+
+    /**
+     * 任务截止时间配置
+     */
+    private DeadlineConfig deadline = new DeadlineConfig();
+
+    /**
+     * 模型预热配置
+     */
+    private WarmupConfig warmup = new WarmupConfig();
+
+    /**
+     * Excel 产品拼接配置
+     */
+    private CollageConfig collage = new CollageConfig();
+
     @Data
     public static class ApiConfig {
         /**
@@ -46,6 +137,110 @@ public class ComfyUIConfig {
         private int readTimeout = 300000;
     }
 
+    @Data
+    public static class BalancerConfig {
+        /**
+         * ComfyUI 服务器列表，为空时只使用 api.base-url
+         */
+        private List<BackendConfig> backends = new ArrayList<>();
+
+        /**
+         * 路由策略
+         */
+        private RoutingStrategy strategy = RoutingStrategy.LEAST_QUEUE;
+
+        /**
+         * 健康检查间隔（毫秒）
+         */
+        private long healthCheckInterval = 5000;
+
+        /**
+         * 健康检查超时（毫秒）
+         */
+        private long healthCheckTimeout = 3000;
+
+        /**
+         * 连续失败多少次后移出轮换
+         */
+        private int failureThreshold = 2;
+
+        /**
+         * 亲和路由：服务器执行过某个工作流后，在该时间内（毫秒）视为模型仍在显存中
+         */
+        private long affinityTtl = 600000;
+
+        /**
+         * 亲和路由：亲和服务器的负载最多比最空闲的服务器多出多少个任务时仍优先选择
+         */
+        private int affinitySlack = 2;
+    }
+
+    @Data
+    public static class BackendConfig {
+        /**
+         * 服务器地址
+         */
+        private String url;
+
+        /**
+         * 权重（按 GPU 算力配置，用于加权轮询和负载比较）
+         */
+        private int weight = 1;
+    }
+
+    /**
+     * 路由策略
+     */
+    public enum RoutingStrategy {
+        /**
+         * 选择排队任务最少的服务器（按权重折算）
+         */
+        LEAST_QUEUE,
+
+        /**
+         * 平滑加权轮询
+         */
+        ROUND_ROBIN,
+
+        /**
+         * 优先选择近期执行过相同工作流（模型已加载）的服务器
+         */
+        AFFINITY
+    }
+
+    @Data
+    public static class SchedulerConfig {
+        /**
+         * 每台 ComfyUI 服务器同时执行的最大任务数（超出的任务在本服务中按优先级排队）
+         */
+        private int maxInFlightPerBackend = 2;
+
+        /**
+         * 按工作流限制同时执行的任务数（工作流名称 -> 上限），未配置的工作流不单独限制
+         */
+        private Map<String, Integer> workflowLimits = new HashMap<>();
+
+        /**
+         * 交互式任务最大排队数
+         */
+        private int interactiveQueueCapacity = 200;
+
+        /**
+         * 批量任务最大排队数
+         */
+        private int batchQueueCapacity = 50;
+
+        /**
+         * 最长排队时间（毫秒）
+         */
+        private long maxWait = 600000;
+
+        /**
+         * 拒绝任务时建议客户端的重试间隔（秒，Retry-After）
+         */
+        private int retryAfter = 10;
+    }
+
     @Data
     public static class WorkflowConfig {
         /**
@@ -57,6 +252,12 @@ public class ComfyUIConfig {
          * 默认工作流文件名
          */
         private String defaultWorkflow = "sam_mask_matting_api.json";
+
+        /**
+         * 工作流热更新目录（文件系统路径，可选）
+         * 配置后启动时加载该目录下的工作流并覆盖 classpath 中的同名文件，文件变更时自动重新加载
+         */
+        private String watchDirectory = "";
     }
 
     @Data
@@ -66,4 +267,382 @@ public class ComfyUIConfig {
          */
         private String apiKey = "";
     }
+
+    @Data
+    public static class WebSocketConfig {
+        /**
+         * 是否通过 WebSocket 监听执行完成事件
+         */
+        private boolean enabled = true;
+
+        /**
+         * 断线重连间隔（毫秒）
+         */
+        private long reconnectInterval = 5000;
+
+        /**
+         * WebSocket 不可用时轮询 /history 的间隔（毫秒）
+         */
+        private long pollInterval = 5000;
+
+        /**
+         * WebSocket 可用时的兜底检查间隔（毫秒），防止重连期间丢失事件
+         */
+        private long safetyPollInterval = 30000;
+    }
+
+    @Data
+    public static class HttpConfig {
+        /**
+         * 连接池最大连接数
+         */
+        private int maxTotal = 200;
+
+        /**
+         * 每个目标主机的最大连接数
+         */
+        private int maxPerRoute = 50;
+
+        /**
+         * 服务端未声明 Keep-Alive 时的默认保活时间（毫秒）
+         */
+        private long keepAlive = 30000;
+
+        /**
+         * 从连接池获取连接的超时（毫秒）
+         */
+        private long connectionRequestTimeout = 10000;
+
+        /**
+         * 空闲连接回收时间（毫秒）
+         */
+        private long idleEvictTime = 60000;
+    }
+
+    @Data
+    public static class MirrorConfig {
+        /**
+         * 是否在任务完成后把结果图片下载到本地，通过 /output/mirror/** 提供访问
+         */
+        private boolean enabled = true;
+
+        /**
+         * 镜像目录（output 目录下的子目录）
+         */
+        private String subdirectory = "mirror";
+
+        /**
+         * 同时下载的图片数量
+         */
+        private int concurrency = 4;
+
+        /**
+         * 镜像目录最大占用空间（MB），超出时优先删除最久未访问的文件
+         */
+        private long maxSizeMb = 10240;
+
+        /**
+         * 镜像文件最长保留时间（毫秒）
+         */
+        private long maxAge = 604800000;
+
+        /**
+         * 访问尚未下载完成的镜像时最长等待时间（毫秒），超时后重定向到 ComfyUI
+         */
+        private long fetchWait = 30000;
+    }
+
+    @Data
+    public static class BatchConfig {
+        /**
+         * 请求未指定时是否默认拆分执行（URL 列表 / 压缩包中的图片拆成多个小 Prompt 并行提交）
+         */
+        private boolean fanOut = false;
+
+        /**
+         * 请求未指定时每个 Prompt 处理的图片数
+         */
+        private int chunkSize = 1;
+
+        /**
+         * 单个批量任务同时执行的 Prompt 数（实际提交仍受 scheduler 限制）
+         */
+        private int concurrency = 8;
+
+        /**
+         * 拆分执行时单个批量任务最多处理的图片数
+         */
+        private int maxItems = 1000;
+
+        /**
+         * 拆分执行时压缩包中单张图片解压后的最大字节数
+         */
+        private long maxEntryBytes = 50L * 1024 * 1024;
+
+        /**
+         * 拆分执行时压缩包解压后的最大总字节数
+         */
+        private long maxTotalBytes = 2L * 1024 * 1024 * 1024;
+    }
+
+    @Data
+    public static class UrlCheckConfig {
+        /**
+         * 是否在提交 URL 批量任务前预检每个 URL
+         */
+        private boolean enabled = true;
+
+        /**
+         * 同时预检的 URL 数量
+         */
+        private int concurrency = 16;
+
+        /**
+         * 单个 URL 的连接 / 响应超时（毫秒）
+         */
+        private long timeout = 5000;
+
+        /**
+         * 预检结果缓存时间（毫秒），同一 URL 在此时间内不重复请求
+         */
+        private long cacheTtl = 60000;
+    }
+
+    @Data
+    public static class JobConfig {
+        /**
+         * 最多保留的已结束任务数量
+         */
+        private int maxRetained = 10000;
+
+        /**
+         * 已结束任务的保留时间（毫秒）
+         */
+        private long retention = 3600000;
+
+        /**
+         * SSE 订阅超时时间（毫秒）
+         */
+        private long sseTimeout = 600000;
+
+        /**
+         * SSE 心跳间隔（毫秒），用于及时发现已断开的订阅者
+         */
+        private long heartbeatInterval = 15000;
+
+        /**
+         * 异步任务的订阅者全部断开后，超过该时间（毫秒）没有重新订阅则取消任务；0 为不因断开而取消
+         */
+        private long disconnectGrace = 30000;
+    }
+
+    @Data
+    public static class UploadCacheConfig {
+        /**
+         * 是否启用（按内容 SHA-256 复用已上传到 ComfyUI 的图片）
+         */
+        private boolean enabled = true;
+
+        /**
+         * 最多缓存的图片数量
+         */
+        private int maxEntries = 10000;
+
+        /**
+         * 缓存有效期（毫秒），超过后重新上传
+         */
+        private long ttl = 86400000;
+    }
+
+    @Data
+    public static class ResultCacheConfig {
+        /**
+         * 是否启用（相同工作流和输入直接返回已有结果）
+         */
+        private boolean enabled = true;
+
+        /**
+         * 内存中最多缓存的结果数量
+         */
+        private int maxEntries = 1000;
+
+        /**
+         * 缓存有效期（毫秒），应短于 ComfyUI 输出目录的清理周期
+         */
+        private long ttl = 86400000;
+
+        /**
+         * 磁盘缓存目录，为空时只使用内存缓存
+         */
+        private String diskDirectory = "";
+    }
+
+    @Data
+    public static class JournalConfig {
+        /**
+         * 是否记录已提交的 Prompt，重启后继续等待未完成的 Prompt 并复用其结果
+         */
+        private boolean enabled = true;
+
+        /**
+         * 日志目录
+         */
+        private String directory = "journal";
+
+        /**
+         * 单个段文件的大小上限（字节），超过后压缩为只含未完成 Prompt 的新段
+         */
+        private long segmentSize = 4 * 1024 * 1024;
+
+        /**
+         * 批量写入间隔（毫秒），进程崩溃时最多丢失这段时间内的记录
+         */
+        private long flushInterval = 200;
+
+        /**
+         * 每批写入后是否 fsync
+         */
+        private boolean fsync = true;
+
+        /**
+         * 未完成的 Prompt 最长保留时间（毫秒），超过后不再取回
+         */
+        private long maxAge = 21600000;
+
+        /**
+         * 取回的结果供重新提交的请求复用的时间（毫秒）
+         */
+        private long recoveryRetention = 3600000;
+    }
+
+    @Data
+    public static class CoalesceConfig {
+        /**
+         * 是否合并同参数的单图请求（/api/matting/execute、批量抠图的单图模式）
+         */
+        private boolean enabled = false;
+
+        /**
+         * 收集窗口（毫秒）：第一个请求到达后等待这么久，期间到达的同参数请求合并为一个 Prompt
+         */
+        private long window = 20;
+
+        /**
+         * 单个 Prompt 最多合并的请求数，达到后立即提交
+         */
+        private int maxBatchSize = 4;
+    }
+
+    @Data
+    public static class PreScaleConfig {
+        /**
+         * 是否在上传前按工作流的处理分辨率缩小图片（只对工作流本身会缩小输入图片的批量抠图、Qwen 编辑生效）
+         */
+        private boolean enabled = false;
+
+        /**
+         * 原图至少是处理尺寸的多少倍时才预缩小，差距不大时缩小省下的传输不抵解码和编码的开销
+         */
+        private double minRatio = 1.5;
+
+        /**
+         * 超过该像素数的图片不预缩小，直接上传（解码后每像素占 3~4 字节堆内存）
+         */
+        private long maxPixels = 100_000_000L;
+
+        /**
+         * 同时解码的图片数
+         */
+        private int concurrency = 2;
+
+        /**
+         * 重采样线程数，0 为 CPU 核数
+         */
+        private int parallelism = 0;
+    }
+
+    @Data
+    public static class HistoryConfig {
+        /**
+         * 是否记录完整的 /history 响应（包含提交的完整工作流，输出多时有数 MB）
+         */
+        private boolean logPayload = false;
+
+        /**
+         * 记录完整响应的比例（0~1）
+         */
+        private double logSampleRate = 0.01;
+    }
+
+    @Data
+    public static class DeadlineConfig {
+        /**
+         * 请求没有指定 timeout 时任务的截止时间（毫秒，从收到请求开始计算）
+         */
+        private long defaultTimeout = 1800000;
+
+        /**
+         * 请求可以指定的最长 timeout（毫秒）
+         */
+        private long maxTimeout = 7200000;
+
+        /**
+         * 单个 Prompt 提交后的最长等待时间（毫秒），超时后从 ComfyUI 队列删除或中断执行
+         */
+        private long promptTimeout = 300000;
+
+        /**
+         * 工作流名称 -> 单个 Prompt 的最长等待时间（毫秒），覆盖 promptTimeout
+         */
+        private Map<String, Long> workflowTimeouts = new HashMap<>();
+    }
+
+    @Data
+    public static class WarmupConfig {
+        /**
+         * 是否启用模型预热：启动后、服务器恢复后以及工作流空闲一段时间后，向每台服务器提交使用小尺寸合成图片的 Prompt，
+         * 提前加载模型，交互式请求不再承担冷启动的模型加载时间
+         */
+        private boolean enabled = false;
+
+        /**
+         * 检查间隔（毫秒）
+         */
+        private long checkInterval = 60000;
+
+        /**
+         * 工作流名称 -> 在某台服务器上空闲多久（毫秒）后重新预热；0 为只在启动和服务器恢复后预热
+         * 只支持以 LoadImage 读取上传图片的工作流
+         */
+        private Map<String, Long> workflows = new LinkedHashMap<>();
+
+        /**
+         * 合成输入图片的边长（像素）
+         */
+        private int imageSize = 64;
+
+        /**
+         * 单次预热的最长等待时间（毫秒），冷启动加载大模型可能需要数分钟
+         */
+        private long timeout = 600000;
+    }
+
+    @Data
+    public static class CollageConfig {
+        /**
+         * 请求未指定时是否默认拆分执行：在本服务解析 Excel，每个组合 SKU 提交一个 Prompt 并行执行
+         * （只支持 by_combined_sku 输出模式和 .xlsx / .xlsm 文件，其他情况整表提交一个 Prompt）
+         */
+        private boolean fanOut = true;
+
+        /**
+         * 单个拼接任务同时执行的 Prompt 数（实际提交仍受 scheduler 限制）
+         */
+        private int concurrency = 8;
+
+        /**
+         * 组合 SKU 超过此数量时不拆分，整表提交一个 Prompt
+         */
+        private int maxGroups = 1000;
+    }
 }
@@ -0,0 +1,73 @@
+package com.yimeil.comfyui.config;
+
+import com.yimeil.comfyui.service.Deadline;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
+
+/**
+ * 为每个 API 请求绑定截止时间
+ * 客户端可通过 timeout 参数或 Request-Timeout 头（秒）告知自己愿意等待多久，超过后不再为该请求占用 ComfyUI；
+ * 没有指定时使用 comfyui.deadline.default-timeout。异步任务沿用提交请求的截止时间
+ * <p>
+ * 处理器开始异步处理（如 SSE）时容器线程不会调用 afterCompletion，在 afterConcurrentHandlingStarted 中同样解除绑定
+ */
+@Component
+@Slf4j
+public class RequestDeadlineInterceptor implements AsyncHandlerInterceptor {
+
+    /**
+     * 请求头名称
+     */
+    public static final String HEADER = "Request-Timeout";
+
+    /**
+     * 请求参数名称
+     */
+    public static final String PARAMETER = "timeout";
+
+    @Autowired
+    private ComfyUIConfig config;
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        Deadline.bind(Deadline.after(timeout(request)));
+        return true;
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler,
+                                Exception ex) {
+        Deadline.bind(null);
+    }
+
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response,
+                                               Object handler) {
+        Deadline.bind(null);
+    }
+
+    private long timeout(HttpServletRequest request) {
+        ComfyUIConfig.DeadlineConfig deadline = config.getDeadline();
+        String value = request.getParameter(PARAMETER);
+        if (value == null || value.isBlank()) {
+            value = request.getHeader(HEADER);
+        }
+        if (value == null || value.isBlank()) {
+            return deadline.getDefaultTimeout();
+        }
+        try {
+            long millis = Math.round(Double.parseDouble(value.trim()) * 1000);
+            if (millis > 0) {
+                return Math.min(millis, deadline.getMaxTimeout());
+            }
+        } catch (NumberFormatException e) {
+            // 按未指定处理
+        }
+        log.warn("忽略无效的请求超时时间: {}", value);
+        return deadline.getDefaultTimeout();
+    }
+}
@@ -0,0 +1,48 @@
+package com.yimeil.comfyui.controller;
+
+import com.yimeil.comfyui.model.ApiResponse;
+import com.yimeil.comfyui.model.BackendStatus;
+import com.yimeil.comfyui.service.ComfyUIBackend;
+import com.yimeil.comfyui.service.ComfyUIBackendPool;
+import com.yimeil.comfyui.service.ComfyUIWebSocketService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ComfyUI 服务器池 API 控制器
+ */
+@RestController
+@RequestMapping("/api/backends")
+public class BackendController {
+
+    @Autowired
+    private ComfyUIBackendPool backendPool;
+
+    @Autowired
+    private ComfyUIWebSocketService webSocketService;
+
+    /**
+     * 查询所有服务器的健康状态和队列深度
+     */
+    @GetMapping
+    public ApiResponse<List<BackendStatus>> listBackends() {
+        List<BackendStatus> statuses = new ArrayList<>();
+        for (ComfyUIBackend backend : backendPool.getBackends()) {
+            BackendStatus status = new BackendStatus();
+            status.setUrl(backend.getUrl());
+            status.setWeight(backend.getWeight());
+            status.setHealthy(backend.isHealthy());
+            status.setWebsocketConnected(webSocketService.isConnected(backend.getUrl()));
+            status.setQueueRunning(backend.getQueueRunning());
+            status.setQueuePending(backend.getQueuePending());
+            status.setInFlight(backend.getInFlight());
+            statuses.add(status);
+        }
+        return ApiResponse.success(statuses);
+    }
+}
@@ -3,22 +3,17 @@ package com.yimeil.comfyui.controller;
 import com.yimeil.comfyui.model.ApiResponse;
 import com.yimeil.comfyui.model.CollageRequest;
 import com.yimeil.comfyui.model.CollageResult;
+import com.yimeil.comfyui.model.JobInfo;
 import com.yimeil.comfyui.service.ComfyUIService;
+import com.yimeil.comfyui.service.JobService;
+import com.yimeil.comfyui.service.PromptScheduler;
+import com.yimeil.comfyui.service.QueueFullException;
+import com.yimeil.comfyui.service.SpooledMultipartFile;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.hc.client5.http.classic.methods.HttpGet;
-import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
-import org.apache.hc.client5.http.impl.classic.CloseableHttpResponse;
-import org.apache.hc.client5.http.impl.classic.HttpClients;
-import org.apache.hc.core5.http.io.entity.EntityUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 
-import java.io.ByteArrayInputStream;
-import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
-
 /**
  * Excel产品拼接 API 控制器
  */
@@ -30,31 +25,34 @@ public class CollageController {
     @Autowired
     private ComfyUIService comfyUIService;
 
+    @Autowired
+    private JobService jobService;
+
+    @Autowired
+    private PromptScheduler promptScheduler;
+
     /**
      * 执行Excel产品拼接
+     * 提供 Excel URL 时由服务端下载并直接转发到 ComfyUI
      */
     @PostMapping("/execute")
     public ApiResponse<CollageResult> executeCollage(@ModelAttribute CollageRequest collageRequest) {
+        // 排队已满时直接返回 429，不再上传到 ComfyUI
+        promptScheduler.checkAdmission(PromptScheduler.Priority.BATCH);
         try {
             // 处理 Excel 文件输入
-            MultipartFile finalExcelFile = collageRequest.getExcelFile();
+            MultipartFile excelFile = collageRequest.getExcelFile();
 
-            if (finalExcelFile == null || finalExcelFile.isEmpty()) {
-                // 如果没有上传文件，尝试从 URL 下载
+            if (excelFile != null && !excelFile.isEmpty()) {
+                log.info("收到Excel产品拼接请求: {}", excelFile.getOriginalFilename());
+            } else {
                 String excelUrl = collageRequest.getExcelUrl();
-                if (excelUrl != null && !excelUrl.trim().isEmpty()) {
-                    log.info("从URL下载Excel文件: {}", excelUrl);
-                    finalExcelFile = downloadExcelFromUrl(excelUrl.trim());
-                } else {
+                if (excelUrl == null || excelUrl.trim().isEmpty()) {
                     return ApiResponse.error("请上传Excel文件或提供Excel文件URL");
                 }
+                log.info("收到Excel产品拼接请求，从URL下载Excel文件: {}", excelUrl);
             }
 
-            log.info("收到Excel产品拼接请求: {}", finalExcelFile.getOriginalFilename());
-
-            // 设置最终的Excel文件到请求对象
-            collageRequest.setExcelFile(finalExcelFile);
-
             // 执行拼接
             CollageResult result = comfyUIService.runCollage(collageRequest);
 
@@ -66,6 +64,9 @@ public class CollageController {
                 return ApiResponse.error(result.getErrorMessage());
             }
 
+        } catch (QueueFullException e) {
+            // 通过准入检查后队列才满，同样返回 429
+            throw e;
         } catch (Exception e) {
             log.error("Excel产品拼接执行异常", e);
             return ApiResponse.error("Excel产品拼接失败: " + e.getMessage());
@@ -73,85 +74,26 @@ public class CollageController {
     }
 
     /**
-     * 从URL下载Excel文件
+     * 提交异步Excel产品拼接任务，立即返回任务 ID
+     * 使用 Excel URL 时在任务中下载
      */
-    private MultipartFile downloadExcelFromUrl(String url) throws IOException {
-        try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
-            HttpGet httpGet = new HttpGet(url);
-
-            try (CloseableHttpResponse response = httpClient.execute(httpGet)) {
-                int statusCode = response.getCode();
-                if (statusCode != 200) {
-                    throw new IOException("下载Excel文件失败，HTTP状态码: " + statusCode);
-                }
-
-                byte[] fileBytes = EntityUtils.toByteArray(response.getEntity());
-
-                // 从URL提取文件名
-                String filename = "downloaded.xlsx";
-                if (url.contains("/")) {
-                    String lastPart = url.substring(url.lastIndexOf("/") + 1);
-                    if (lastPart.contains("?")) {
-                        lastPart = lastPart.substring(0, lastPart.indexOf("?"));
-                    }
-                    if (lastPart.endsWith(".xlsx") || lastPart.endsWith(".xls")) {
-                        filename = lastPart;
-                    }
-                }
-
-                // 确定content type
-                String contentType = "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet";
-                if (filename.endsWith(".xls")) {
-                    contentType = "application/vnd.ms-excel";
-                }
-
-                log.info("Excel文件下载成功: {} ({} bytes)", filename, fileBytes.length);
-
-                // 创建 MultipartFile 实现
-                final String finalFilename = filename;
-                final String finalContentType = contentType;
-                return new MultipartFile() {
-                    @Override
-                    public String getName() {
-                        return "excelFile";
-                    }
-
-                    @Override
-                    public String getOriginalFilename() {
-                        return finalFilename;
-                    }
-
-                    @Override
-                    public String getContentType() {
-                        return finalContentType;
-                    }
-
-                    @Override
-                    public boolean isEmpty() {
-                        return fileBytes.length == 0;
-                    }
-
-                    @Override
-                    public long getSize() {
-                        return fileBytes.length;
-                    }
-
-                    @Override
-                    public byte[] getBytes() throws IOException {
-                        return fileBytes;
-                    }
-
-                    @Override
-                    public InputStream getInputStream() throws IOException {
-                        return new ByteArrayInputStream(fileBytes);
-                    }
-
-                    @Override
-                    public void transferTo(File dest) throws IOException, IllegalStateException {
-                        java.nio.file.Files.write(dest.toPath(), fileBytes);
-                    }
-                };
+    @PostMapping("/execute/async")
+    public ApiResponse<JobInfo> submitCollage(@ModelAttribute CollageRequest collageRequest) {
+        // 排队已满时直接返回 429，不再上传到 ComfyUI
+        promptScheduler.checkAdmission(PromptScheduler.Priority.BATCH);
+        try {
+            SpooledMultipartFile excelFile = SpooledMultipartFile.copyOf(collageRequest.getExcelFile());
+            String excelUrl = collageRequest.getExcelUrl();
+            if (excelFile == null && (excelUrl == null || excelUrl.trim().isEmpty())) {
+                return ApiResponse.error("请上传Excel文件或提供Excel文件URL");
             }
+            collageRequest.setExcelFile(excelFile);
+
+            return ApiResponse.success(jobService.submit("collage",
+                    () -> comfyUIService.runCollage(collageRequest), excelFile));
+        } catch (Exception e) {
+            log.error("提交Excel产品拼接任务失败", e);
+            return ApiResponse.error("提交Excel产品拼接任务失败: " + e.getMessage());
         }
     }
 }
@@ -0,0 +1,31 @@
+package com.yimeil.comfyui.controller;
+
+import com.yimeil.comfyui.config.ComfyUIConfig;
+import com.yimeil.comfyui.model.ApiResponse;
+import com.yimeil.comfyui.service.QueueFullException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.RestControllerAdvice;
+
+/**
+ * 全局异常处理
+ */
+@RestControllerAdvice
+public class GlobalExceptionHandler {
+
+    @Autowired
+    private ComfyUIConfig config;
+
+    /**
+     * 调度队列已满：返回 429 并通过 Retry-After 提示客户端稍后重试
+     */
+    @ExceptionHandler(QueueFullException.class)
+    public ResponseEntity<ApiResponse<Void>> handleQueueFull(QueueFullException e) {
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(config.getScheduler().getRetryAfter()))
+                .body(ApiResponse.error(HttpStatus.TOO_MANY_REQUESTS.value(), e.getMessage()));
+    }
+}
@@ -0,0 +1,80 @@
+package com.yimeil.comfyui.controller;
+
+import com.yimeil.comfyui.model.ApiResponse;
+import com.yimeil.comfyui.model.JobInfo;
+import com.yimeil.comfyui.service.JobService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+/**
+ * 异步任务 API 控制器
+ */
+@RestController
+@RequestMapping("/api/jobs")
+@Slf4j
+public class JobController {
+
+    @Autowired
+    private JobService jobService;
+
+    /**
+     * 查询任务状态
+     */
+    @GetMapping("/{jobId}")
+    public ApiResponse<JobInfo> getJob(@PathVariable String jobId) {
+        JobInfo job = jobService.getJob(jobId);
+        if (job == null) {
+            return ApiResponse.error(404, "任务不存在或已过期: " + jobId);
+        }
+        return ApiResponse.success(job);
+    }
+
+    /**
+     * 获取任务结果
+     * 任务未结束时返回 202
+     */
+    @GetMapping("/{jobId}/result")
+    public ApiResponse<Object> getResult(@PathVariable String jobId) {
+        JobInfo job = jobService.getJob(jobId);
+        if (job == null) {
+            return ApiResponse.error(404, "任务不存在或已过期: " + jobId);
+        }
+        if (!job.getStatus().isFinished()) {
+            return ApiResponse.error(202, "任务尚未完成: " + job.getStatus());
+        }
+        if (job.getErrorMessage() != null) {
+            return ApiResponse.error(job.getErrorMessage());
+        }
+        return ApiResponse.success(job.getResult());
+    }
+
+    /**
+     * 取消任务
+     * 排队中的 Prompt 从 ComfyUI 队列删除，执行中的 Prompt 被中断；任务已结束时不做任何事
+     */
+    @PostMapping("/{jobId}/cancel")
+    public ApiResponse<JobInfo> cancel(@PathVariable String jobId) {
+        JobInfo job = jobService.cancel(jobId);
+        if (job == null) {
+            return ApiResponse.error(404, "任务不存在或已过期: " + jobId);
+        }
+        return ApiResponse.success(job);
+    }
+
+    /**
+     * 订阅任务状态（Server-Sent Events）
+     */
+    @GetMapping(value = "/{jobId}/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter subscribe(@PathVariable String jobId) {
+        SseEmitter emitter = jobService.subscribe(jobId);
+        if (emitter == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "任务不存在或已过期: " + jobId);
+        }
+        return emitter;
+    }
+}
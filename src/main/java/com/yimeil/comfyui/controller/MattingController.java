@@ -3,15 +3,36 @@ package com.yimeil.comfyui.controller;
 import com.yimeil.comfyui.model.ApiResponse;
 import com.yimeil.comfyui.model.BatchMattingRequest;
 import com.yimeil.comfyui.model.BatchMattingResult;
+import com.yimeil.comfyui.model.JobInfo;
 import com.yimeil.comfyui.model.KeywordMattingRequest;
 import com.yimeil.comfyui.model.MattingRequest;
 import com.yimeil.comfyui.model.MattingResult;
 import com.yimeil.comfyui.service.ComfyUIService;
+import com.yimeil.comfyui.service.FileSender;
+import com.yimeil.comfyui.service.JobService;
+import com.yimeil.comfyui.service.PromptScheduler;
+import com.yimeil.comfyui.service.QueueFullException;
+import com.yimeil.comfyui.service.ResultMirror;
+import com.yimeil.comfyui.service.SpooledMultipartFile;
+import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpResponse;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpEntity;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.*;
 
+import java.io.InputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+
 /**
  * 抠图 API 控制器
  */
@@ -20,14 +41,43 @@ import org.springframework.web.bind.annotation.*;
 @Slf4j
 public class MattingController {
 
+    /**
+     * 下载代理转发给 ComfyUI 的请求头
+     */
+    private static final List<String> PROXY_REQUEST_HEADERS = List.of(
+            HttpHeaders.RANGE, HttpHeaders.IF_RANGE, HttpHeaders.IF_NONE_MATCH, HttpHeaders.IF_MODIFIED_SINCE);
+
+    /**
+     * 下载代理返回给浏览器的 ComfyUI 响应头
+     */
+    private static final List<String> PROXY_RESPONSE_HEADERS = List.of(
+            HttpHeaders.ETAG, HttpHeaders.LAST_MODIFIED, HttpHeaders.ACCEPT_RANGES, HttpHeaders.CONTENT_RANGE);
+
     @Autowired
     private ComfyUIService comfyUIService;
 
+    @Autowired
+    private JobService jobService;
+
+    @Autowired
+    private PromptScheduler promptScheduler;
+
+    @Autowired
+    private ResultMirror resultMirror;
+
+    @Autowired
+    private FileSender fileSender;
+
+    @Autowired
+    private CloseableHttpClient httpClient;
+
     /**
      * 执行抠图
      */
     @PostMapping("/execute")
     public ApiResponse<MattingResult> executeMatting(@ModelAttribute MattingRequest request) {
+        // 排队已满时直接返回 429，不再上传到 ComfyUI
+        promptScheduler.checkAdmission(PromptScheduler.Priority.INTERACTIVE);
         try {
             log.info("收到抠图请求: {}", request.getImage().getOriginalFilename());
 
@@ -40,6 +90,9 @@ public class MattingController {
                 return ApiResponse.error(result.getErrorMessage());
             }
 
+        } catch (QueueFullException e) {
+            // 通过准入检查后队列才满，同样返回 429
+            throw e;
         } catch (Exception e) {
             log.error("抠图失败", e);
             return ApiResponse.error("抠图失败: " + e.getMessage());
@@ -51,6 +104,8 @@ public class MattingController {
      */
     @PostMapping("/keyword")
     public ApiResponse<MattingResult> executeKeywordMatting(@ModelAttribute KeywordMattingRequest request) {
+        // 排队已满时直接返回 429，不再上传到 ComfyUI
+        promptScheduler.checkAdmission(PromptScheduler.Priority.INTERACTIVE);
         try {
             log.info("收到关键字抠图请求: {}, 关键字: {}",
                     request.getImage().getOriginalFilename(), request.getKeyword());
@@ -66,6 +121,8 @@ public class MattingController {
                 return ApiResponse.error(result.getErrorMessage());
             }
 
+        } catch (QueueFullException e) {
+            throw e;
         } catch (Exception e) {
             log.error("关键字抠图执行异常", e);
             return ApiResponse.error("关键字抠图失败: " + e.getMessage());
@@ -77,33 +134,16 @@ public class MattingController {
      */
     @PostMapping("/batch")
     public ApiResponse<BatchMattingResult> executeBatchMatting(@ModelAttribute BatchMattingRequest request) {
+        // 排队已满时直接返回 429，不再上传到 ComfyUI
+        promptScheduler.checkAdmission(PromptScheduler.Priority.BATCH);
         try {
             String inputMode = request.getInputMode() != null ? request.getInputMode() : "image";
             log.info("收到BiRefNet批量抠图请求: 模式={}", inputMode);
 
             // 根据输入模式验证参数
-            switch (inputMode) {
-                case "urls":
-                    if (request.getImageUrls() == null || request.getImageUrls().trim().isEmpty()) {
-                        return ApiResponse.error("请提供图片URL地址");
-                    }
-                    log.info("URL模式 - 地址数量: {}", request.getImageUrls().split("\n").length);
-                    break;
-
-                case "zip":
-                    if (request.getZipFile() == null || request.getZipFile().isEmpty()) {
-                        return ApiResponse.error("请上传压缩文件");
-                    }
-                    log.info("ZIP模式 - 文件名: {}", request.getZipFile().getOriginalFilename());
-                    break;
-
-                case "image":
-                default:
-                    if (request.getImageFile() == null || request.getImageFile().isEmpty()) {
-                        return ApiResponse.error("请上传图片文件");
-                    }
-                    log.info("图片上传模式 - 文件名: {}", request.getImageFile().getOriginalFilename());
-                    break;
+            String validationError = validateBatchRequest(request, inputMode);
+            if (validationError != null) {
+                return ApiResponse.error(validationError);
             }
 
             // 执行批量抠图
@@ -114,15 +154,119 @@ public class MattingController {
                 return ApiResponse.success(result);
             } else {
                 log.error("BiRefNet批量抠图执行失败: {}", result.getErrorMessage());
-                return ApiResponse.error(result.getErrorMessage());
+                // 失败时同样返回结果，URL 模式下包含每个 URL 的预检状态
+                ApiResponse<BatchMattingResult> response = ApiResponse.error(result.getErrorMessage());
+                response.setData(result);
+                return response;
             }
 
+        } catch (QueueFullException e) {
+            throw e;
         } catch (Exception e) {
             log.error("BiRefNet批量抠图执行异常", e);
             return ApiResponse.error("BiRefNet批量抠图失败: " + e.getMessage());
         }
     }
 
+    /**
+     * 提交异步抠图任务，立即返回任务 ID
+     */
+    @PostMapping("/execute/async")
+    public ApiResponse<JobInfo> submitMatting(@ModelAttribute MattingRequest request) {
+        // 排队已满时直接返回 429，不再上传到 ComfyUI
+        promptScheduler.checkAdmission(PromptScheduler.Priority.INTERACTIVE);
+        try {
+            if (request.getImage() == null || request.getImage().isEmpty()) {
+                return ApiResponse.error("请上传图片文件");
+            }
+            SpooledMultipartFile image = SpooledMultipartFile.copyOf(request.getImage());
+            request.setImage(image);
+            return ApiResponse.success(jobService.submit("matting",
+                    () -> comfyUIService.runMatting(image, request), image));
+        } catch (Exception e) {
+            log.error("提交抠图任务失败", e);
+            return ApiResponse.error("提交抠图任务失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 提交异步关键字抠图任务，立即返回任务 ID
+     */
+    @PostMapping("/keyword/async")
+    public ApiResponse<JobInfo> submitKeywordMatting(@ModelAttribute KeywordMattingRequest request) {
+        // 排队已满时直接返回 429，不再上传到 ComfyUI
+        promptScheduler.checkAdmission(PromptScheduler.Priority.INTERACTIVE);
+        try {
+            if (request.getImage() == null || request.getImage().isEmpty()) {
+                return ApiResponse.error("请上传图片文件");
+            }
+            SpooledMultipartFile image = SpooledMultipartFile.copyOf(request.getImage());
+            request.setImage(image);
+            return ApiResponse.success(jobService.submit("keyword",
+                    () -> comfyUIService.runKeywordMatting(request), image));
+        } catch (Exception e) {
+            log.error("提交关键字抠图任务失败", e);
+            return ApiResponse.error("提交关键字抠图任务失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 提交异步BiRefNet批量抠图任务，立即返回任务 ID
+     */
+    @PostMapping("/batch/async")
+    public ApiResponse<JobInfo> submitBatchMatting(@ModelAttribute BatchMattingRequest request) {
+        // 排队已满时直接返回 429，不再上传到 ComfyUI
+        promptScheduler.checkAdmission(PromptScheduler.Priority.BATCH);
+        try {
+            String inputMode = request.getInputMode() != null ? request.getInputMode() : "image";
+            String validationError = validateBatchRequest(request, inputMode);
+            if (validationError != null) {
+                return ApiResponse.error(validationError);
+            }
+            SpooledMultipartFile imageFile = SpooledMultipartFile.copyOf(request.getImageFile());
+            SpooledMultipartFile zipFile = SpooledMultipartFile.copyOf(request.getZipFile());
+            request.setImageFile(imageFile);
+            request.setZipFile(zipFile);
+            return ApiResponse.success(jobService.submit("batch",
+                    () -> comfyUIService.runBatchMatting(request), imageFile, zipFile));
+        } catch (Exception e) {
+            log.error("提交BiRefNet批量抠图任务失败", e);
+            return ApiResponse.error("提交BiRefNet批量抠图任务失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 根据输入模式验证批量抠图参数
+     *
+     * @return 错误信息，验证通过时返回 null
+     */
+    private String validateBatchRequest(BatchMattingRequest request, String inputMode) {
+        switch (inputMode) {
+            case "urls":
+                if (request.getImageUrls() == null || request.getImageUrls().trim().isEmpty()) {
+                    return "请提供图片URL地址";
+                }
+                log.info("URL模式 - 地址数量: {}", request.getImageUrls().split("\n").length);
+                break;
+
+            case "zip":
+                if (request.getZipFile() == null || request.getZipFile().isEmpty()) {
+                    return "请上传压缩文件";
+                }
+                log.info("ZIP模式 - 文件名: {}", request.getZipFile().getOriginalFilename());
+                break;
+
+            case "image":
+            default:
+                if (request.getImageFile() == null || request.getImageFile().isEmpty()) {
+                    return "请上传图片文件";
+                }
+                log.info("图片上传模式 - 文件名: {}", request.getImageFile().getOriginalFilename());
+                break;
+        }
+        return null;
+    }
+
     /**
      * 检查服务器状态
      */
@@ -138,56 +282,69 @@ public class MattingController {
 
     /**
      * 代理下载图片（解决前端跨域问题）
+     * 优先使用本地镜像；否则通过连接池流式转发 ComfyUI 响应，内存占用与图片大小无关
      */
     @GetMapping("/download")
-    public void downloadImage(@RequestParam String url,
-                              @RequestParam String filename, HttpServletResponse response) {
-        java.io.InputStream inputStream = null;
-        java.net.HttpURLConnection connection = null;
-
+    public void downloadImage(@RequestParam String url, @RequestParam String filename,
+                              HttpServletRequest request, HttpServletResponse response) {
         try {
             log.info("代理下载图片: url={}, filename={}", url, filename);
 
-            // 使用 java.net.URL 来处理 URL（更宽松的 URL 解析）
-            java.net.URL imageUrl = new java.net.URL(url);
-            connection = (java.net.HttpURLConnection) imageUrl.openConnection();
-            connection.setRequestMethod("GET");
-            connection.setConnectTimeout(10000);
-            connection.setReadTimeout(30000);
-
-            // 读取图片数据
-            inputStream = connection.getInputStream();
-            byte[] imageBytes = inputStream.readAllBytes();
-
             // 设置响应头，处理中文文件名编码
-            response.setContentType("application/octet-stream");
-            String encodedFilename = java.net.URLEncoder.encode(filename, "UTF-8")
+            String encodedFilename = URLEncoder.encode(filename, StandardCharsets.UTF_8)
                     .replaceAll("\\+", "%20");
-            response.setHeader("Content-Disposition",
+            response.setHeader(HttpHeaders.CONTENT_DISPOSITION,
                     "attachment; filename*=UTF-8''" + encodedFilename);
-            response.setContentLength(imageBytes.length);
 
-            // 写入响应
-            response.getOutputStream().write(imageBytes);
-            response.getOutputStream().flush();
+            Path localFile = resultMirror.findLocal(url);
+            if (localFile != null) {
+                resultMirror.touch(localFile);
+                fileSender.send(request, response, localFile, resultMirror.isMirrorFile(localFile),
+                        MediaType.APPLICATION_OCTET_STREAM_VALUE);
+                log.info("图片下载成功（本地副本）: {}", filename);
+                return;
+            }
+
+            HttpGet httpGet = new HttpGet(url);
+            // 透传条件请求和断点续传头
+            for (String name : PROXY_REQUEST_HEADERS) {
+                String value = request.getHeader(name);
+                if (value != null) {
+                    httpGet.setHeader(name, value);
+                }
+            }
+
+            try (CloseableHttpResponse upstream = httpClient.execute(httpGet)) {
+                response.setStatus(upstream.getCode());
+                for (String name : PROXY_RESPONSE_HEADERS) {
+                    Header header = upstream.getFirstHeader(name);
+                    if (header != null) {
+                        response.setHeader(name, header.getValue());
+                    }
+                }
+                HttpEntity entity = upstream.getEntity();
+                if (entity == null) {
+                    return;
+                }
+                response.setCharacterEncoding((String) null);
+                response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+                if (entity.getContentLength() >= 0) {
+                    response.setContentLengthLong(entity.getContentLength());
+                }
+                // 固定大小缓冲区边读边写
+                try (InputStream inputStream = entity.getContent()) {
+                    inputStream.transferTo(response.getOutputStream());
+                }
+                response.flushBuffer();
+            }
 
             log.info("图片下载成功: {}", filename);
 
         } catch (Exception e) {
             log.error("代理下载图片失败", e);
-            try {
+            if (!response.isCommitted()) {
+                response.reset();
                 response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-            } catch (Exception ignored) {
-            }
-        } finally {
-            // 关闭资源
-            try {
-                if (inputStream != null) inputStream.close();
-            } catch (Exception ignored) {
-            }
-            try {
-                if (connection != null) connection.disconnect();
-            } catch (Exception ignored) {
             }
         }
     }
@@ -0,0 +1,68 @@
+package com.yimeil.comfyui.controller;
+
+import com.yimeil.comfyui.service.FileSender;
+import com.yimeil.comfyui.service.ResultMirror;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.GetMapping;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * output 目录文件访问（ETag / Range / sendfile 见 {@link FileSender}）
+ */
+@Controller
+public class OutputController {
+
+    private static final String URL_PREFIX = "/output/";
+
+    @Autowired
+    private ResultMirror resultMirror;
+
+    @Autowired
+    private FileSender fileSender;
+
+    @GetMapping(URL_PREFIX + "**")
+    public void serve(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String uri = request.getRequestURI().substring(request.getContextPath().length());
+        String relativePath = URLDecoder.decode(uri.substring(URL_PREFIX.length()), StandardCharsets.UTF_8);
+
+        Path file = resultMirror.resolveOutput(relativePath);
+        // 防止 ../ 访问 output 目录之外的文件
+        if (file == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        boolean mirrorFile = resultMirror.isMirrorFile(file);
+        if (mirrorFile && !Files.isRegularFile(file)) {
+            // 镜像还在下载中、之前下载失败或已被淘汰：（重新）下载并稍等片刻，仍未完成则临时重定向到 ComfyUI
+            try {
+                String remoteUrl = resultMirror.await(file);
+                if (remoteUrl != null) {
+                    response.sendRedirect(remoteUrl);
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                return;
+            }
+        }
+        if (!Files.isRegularFile(file)) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        if (mirrorFile) {
+            resultMirror.touch(file);
+        }
+        fileSender.send(request, response, file, mirrorFile, null);
+    }
+}
@@ -1,10 +1,15 @@
 package com.yimeil.comfyui.controller;
 
 import com.yimeil.comfyui.model.ApiResponse;
+import com.yimeil.comfyui.model.JobInfo;
 import com.yimeil.comfyui.model.MattingResult;
 import com.yimeil.comfyui.model.QwenEditRequest;
 import com.yimeil.comfyui.model.QwenTranslateRequest;
 import com.yimeil.comfyui.service.ComfyUIService;
+import com.yimeil.comfyui.service.JobService;
+import com.yimeil.comfyui.service.PromptScheduler;
+import com.yimeil.comfyui.service.QueueFullException;
+import com.yimeil.comfyui.service.SpooledMultipartFile;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.*;
@@ -20,12 +25,20 @@ public class QwenController {
     @Autowired
     private ComfyUIService comfyUIService;
 
+    @Autowired
+    private JobService jobService;
+
+    @Autowired
+    private PromptScheduler promptScheduler;
+
     /**
      * 执行Qwen多角度编辑
      * 使用工作流: qwen-Edit-Multiple-angles-api.json
      */
     @PostMapping("/edit-angles")
     public ApiResponse<MattingResult> editMultipleAngles(@ModelAttribute QwenEditRequest request) {
+        // 排队已满时直接返回 429，不再上传到 ComfyUI
+        promptScheduler.checkAdmission(PromptScheduler.Priority.INTERACTIVE);
         try {
             log.info("收到Qwen多角度编辑请求: {}, 编辑指令: {}",
                     request.getImage().getOriginalFilename(), request.getEditInstruction());
@@ -46,6 +59,9 @@ public class QwenController {
                 return ApiResponse.error(result.getErrorMessage());
             }
 
+        } catch (QueueFullException e) {
+            // 通过准入检查后队列才满，同样返回 429
+            throw e;
         } catch (Exception e) {
             log.error("Qwen多角度编辑执行异常", e);
             return ApiResponse.error("Qwen多角度编辑失败: " + e.getMessage());
@@ -58,6 +74,8 @@ public class QwenController {
      */
     @PostMapping("/translate-image")
     public ApiResponse<MattingResult> translateImage(@ModelAttribute QwenTranslateRequest request) {
+        // 排队已满时直接返回 429，不再上传到 ComfyUI
+        promptScheduler.checkAdmission(PromptScheduler.Priority.INTERACTIVE);
         try {
             log.info("收到Qwen图像翻译请求: {}, 源语言: {}, 目标语言: {}",
                     request.getImage() != null ? request.getImage().getOriginalFilename() : "URL",
@@ -84,12 +102,62 @@ public class QwenController {
                 return ApiResponse.error(result.getErrorMessage());
             }
 
+        } catch (QueueFullException e) {
+            throw e;
         } catch (Exception e) {
             log.error("Qwen图像翻译执行异常", e);
             return ApiResponse.error("Qwen图像翻译失败: " + e.getMessage());
         }
     }
 
+    /**
+     * 提交异步Qwen多角度编辑任务，立即返回任务 ID
+     */
+    @PostMapping("/edit-angles/async")
+    public ApiResponse<JobInfo> submitEditMultipleAngles(@ModelAttribute QwenEditRequest request) {
+        // 排队已满时直接返回 429，不再上传到 ComfyUI
+        promptScheduler.checkAdmission(PromptScheduler.Priority.INTERACTIVE);
+        try {
+            if (request.getImage() == null || request.getImage().isEmpty()) {
+                return ApiResponse.error("请上传图片文件");
+            }
+            SpooledMultipartFile image = SpooledMultipartFile.copyOf(request.getImage());
+            request.setImage(image);
+            return ApiResponse.success(jobService.submit("qwen-edit",
+                    () -> comfyUIService.runQwenEdit(request), image));
+        } catch (Exception e) {
+            log.error("提交Qwen多角度编辑任务失败", e);
+            return ApiResponse.error("提交Qwen多角度编辑任务失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 提交异步Qwen图像翻译任务，立即返回任务 ID
+     */
+    @PostMapping("/translate-image/async")
+    public ApiResponse<JobInfo> submitTranslateImage(@ModelAttribute QwenTranslateRequest request) {
+        // 排队已满时直接返回 429，不再上传到 ComfyUI
+        promptScheduler.checkAdmission(PromptScheduler.Priority.INTERACTIVE);
+        try {
+            if ((request.getImage() == null || request.getImage().isEmpty()) &&
+                    (request.getImageUrl() == null || request.getImageUrl().trim().isEmpty())) {
+                return ApiResponse.error("请上传图片文件或提供图片URL");
+            }
+
+            if (request.getApiKey() == null || request.getApiKey().trim().isEmpty()) {
+                return ApiResponse.error("请提供Qwen API密钥");
+            }
+
+            SpooledMultipartFile image = SpooledMultipartFile.copyOf(request.getImage());
+            request.setImage(image);
+            return ApiResponse.success(jobService.submit("qwen-translate",
+                    () -> comfyUIService.runQwenTranslate(request), image));
+        } catch (Exception e) {
+            log.error("提交Qwen图像翻译任务失败", e);
+            return ApiResponse.error("提交Qwen图像翻译任务失败: " + e.getMessage());
+        }
+    }
+
     /**
      * 检查服务器状态
      */
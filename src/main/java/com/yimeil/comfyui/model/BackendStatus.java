@@ -0,0 +1,45 @@
+package com.yimeil.comfyui.model;
+
+import lombok.Data;
+
+/**
+ * ComfyUI 服务器状态
+ */
+@Data
+public class BackendStatus {
+
+    /**
+     * 服务器地址
+     */
+    private String url;
+
+    /**
+     * 权重
+     */
+    private int weight;
+
+    /**
+     * 是否在轮换中（健康检查通过）
+     */
+    private boolean healthy;
+
+    /**
+     * WebSocket 是否已连接
+     */
+    private boolean websocketConnected;
+
+    /**
+     * 正在执行的任务数（上次健康检查时）
+     */
+    private int queueRunning;
+
+    /**
+     * 排队中的任务数（上次健康检查时）
+     */
+    private int queuePending;
+
+    /**
+     * 分配到该服务器、尚未结束的任务数（含在本服务中排队的任务）
+     */
+    private int inFlight;
+}
@@ -34,6 +34,17 @@ public class BatchMattingRequest {
      */
     private MultipartFile zipFile;
 
+    /**
+     * 是否拆分执行（urls / zip 模式）：每个 Prompt 只处理 chunkSize 张图片，并行提交，
+     * 未指定时使用 comfyui.batch.fan-out
+     */
+    private Boolean fanOut;
+
+    /**
+     * 拆分执行时每个 Prompt 处理的图片数，未指定时使用 comfyui.batch.chunk-size
+     */
+    private Integer chunkSize;
+
     // ========== 模型配置 ==========
 
     /**
@@ -8,7 +8,7 @@ import java.util.List;
  * BiRefNet批量抠图结果
  */
 @Data
-public class BatchMattingResult {
+public class BatchMattingResult implements JobResult {
     /**
      * 是否成功
      */
@@ -29,6 +29,11 @@ public class BatchMattingResult {
      */
     private long executionTime;
 
+    /**
+     * 各阶段耗时
+     */
+    private StageTimings stages;
+
     /**
      * 生成的图片数量
      */
@@ -39,6 +44,21 @@ public class BatchMattingResult {
      */
     private List<ImageInfo> images;
 
+    /**
+     * URL 模式下每个 URL 的预检结果
+     */
+    private List<UrlCheckResult> urlChecks;
+
+    /**
+     * 拆分执行时每个分片的结果
+     */
+    private List<ItemResult> items;
+
+    /**
+     * 拆分执行时失败的分片数
+     */
+    private int failedCount;
+
     /**
      * 图片信息
      */
@@ -46,6 +66,30 @@ public class BatchMattingResult {
     public static class ImageInfo {
         private String filename;
         private String remoteUrl;
+        private String outputUrl;
         private String subfolder;
     }
+
+    /**
+     * 分片结果
+     */
+    @Data
+    public static class ItemResult {
+        /**
+         * 分片中第一张图片的序号（URL 行号或压缩包内的图片顺序，从 0 开始）
+         */
+        private int index;
+
+        /**
+         * 分片包含的图片（URL 或压缩包内的文件名）
+         */
+        private List<String> sources;
+
+        private boolean success;
+        private String errorMessage;
+        private String promptId;
+        private long executionTime;
+        private StageTimings stages;
+        private List<ImageInfo> images;
+    }
 }
@@ -56,6 +56,12 @@ public class CollageRequest {
      */
     private String filterCombinedSku = "";
 
+    /**
+     * 是否拆分执行：在服务端解析 Excel，每个组合 SKU 提交一个 Prompt 并行执行，
+     * 未指定时使用 comfyui.collage.fan-out
+     */
+    private Boolean fanOut;
+
     // ========== 拼接参数 ==========
 
     /**
@@ -8,7 +8,7 @@ import java.util.List;
  * Excel产品拼接结果
  */
 @Data
-public class CollageResult {
+public class CollageResult implements JobResult {
     /**
      * 是否成功
      */
@@ -29,6 +29,11 @@ public class CollageResult {
      */
     private long executionTime;
 
+    /**
+     * 各阶段耗时
+     */
+    private StageTimings stages;
+
     /**
      * 生成的图片数量
      */
@@ -39,6 +44,16 @@ public class CollageResult {
      */
     private List<ImageInfo> images;
 
+    /**
+     * 拆分执行时每个组合 SKU 的结果，按在表中出现的顺序排列
+     */
+    private List<ItemResult> items;
+
+    /**
+     * 拆分执行时失败的组合 SKU 数
+     */
+    private int failedCount;
+
     /**
      * 图片信息
      */
@@ -46,6 +61,35 @@ public class CollageResult {
     public static class ImageInfo {
         private String filename;
         private String remoteUrl;
+        private String outputUrl;
         private String subfolder;
     }
+
+    /**
+     * 单个组合 SKU 的执行结果
+     */
+    @Data
+    public static class ItemResult {
+        /**
+         * 组合 SKU 在表中出现的顺序（从 0 开始）
+         */
+        private int index;
+
+        /**
+         * 组合 SKU
+         */
+        private String combinedSku;
+
+        /**
+         * 该组合 SKU 的数据行数
+         */
+        private int rowCount;
+
+        private boolean success;
+        private String errorMessage;
+        private String promptId;
+        private long executionTime;
+        private StageTimings stages;
+        private List<ImageInfo> images;
+    }
 }
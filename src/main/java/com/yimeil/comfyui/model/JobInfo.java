@@ -0,0 +1,55 @@
+package com.yimeil.comfyui.model;
+
+import lombok.Data;
+
+/**
+ * 异步任务信息
+ */
+@Data
+public class JobInfo {
+
+    /**
+     * 任务 ID
+     */
+    private String jobId;
+
+    /**
+     * 任务类型（matting / keyword / batch / qwen-edit / qwen-translate / collage）
+     */
+    private String type;
+
+    /**
+     * 任务状态
+     */
+    private JobStatus status;
+
+    /**
+     * 提交时间（毫秒时间戳）
+     */
+    private long submittedAt;
+
+    /**
+     * 开始执行时间（毫秒时间戳）
+     */
+    private Long startedAt;
+
+    /**
+     * 结束时间（毫秒时间戳）
+     */
+    private Long finishedAt;
+
+    /**
+     * 截止时间（毫秒时间戳），超过后任务不再等待 ComfyUI
+     */
+    private long deadline;
+
+    /**
+     * 错误信息
+     */
+    private String errorMessage;
+
+    /**
+     * 执行结果（任务结束后可用）
+     */
+    private Object result;
+}
@@ -0,0 +1,42 @@
+package com.yimeil.comfyui.model;
+
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * 异步任务的执行进度事件（由 ComfyUI 的 progress / executing / executed 事件转换）
+ */
+@Data
+public class JobProgressEvent {
+    /**
+     * Prompt ID（拆分执行的批量任务包含多个 Prompt）
+     */
+    private String promptId;
+
+    /**
+     * 节点 ID，executing 事件为 null 表示该 Prompt 执行结束
+     */
+    private String node;
+
+    /**
+     * 节点类型（class_type），如 KSampler、SaveImage
+     */
+    private String nodeType;
+
+    /**
+     * 当前步数（progress 事件）
+     */
+    private Integer value;
+
+    /**
+     * 总步数（progress 事件）
+     */
+    private Integer max;
+
+    /**
+     * 节点输出的图片（executed 事件），与任务结果中的图片结构相同：
+     * 批量任务为 BatchMattingResult.ImageInfo，拼接任务为 CollageResult.ImageInfo，其他为 MattingResult.ImageOutput
+     */
+    private List<?> images;
+}
@@ -0,0 +1,17 @@
+package com.yimeil.comfyui.model;
+
+/**
+ * 可作为异步任务结果的执行结果
+ */
+public interface JobResult {
+
+    /**
+     * 是否成功
+     */
+    boolean isSuccess();
+
+    /**
+     * 错误信息
+     */
+    String getErrorMessage();
+}
@@ -0,0 +1,35 @@
+package com.yimeil.comfyui.model;
+
+/**
+ * 异步任务状态
+ */
+public enum JobStatus {
+    /**
+     * 已提交，等待执行
+     */
+    PENDING,
+
+    /**
+     * 执行中
+     */
+    RUNNING,
+
+    /**
+     * 执行成功
+     */
+    SUCCEEDED,
+
+    /**
+     * 执行失败
+     */
+    FAILED,
+
+    /**
+     * 已取消（调用取消接口或客户端断开）
+     */
+    CANCELLED;
+
+    public boolean isFinished() {
+        return this == SUCCEEDED || this == FAILED || this == CANCELLED;
+    }
+}
@@ -7,7 +7,7 @@ import java.util.List;
  * 抠图结果
  */
 @Data
-public class MattingResult {
+public class MattingResult implements JobResult {
 
     /**
      * 是否成功
@@ -24,6 +24,11 @@ public class MattingResult {
      */
     private String remoteUrl;
 
+    /**
+     * 输出图片本地镜像 URL（/output/mirror/...，未启用镜像时为空）
+     */
+    private String outputUrl;
+
     /**
      * 多张输出图片（批次生成场景）
      */
@@ -39,6 +44,11 @@ public class MattingResult {
      */
     private long executionTime;
 
+    /**
+     * 各阶段耗时
+     */
+    private StageTimings stages;
+
     /**
      * 错误消息
      */
@@ -58,5 +68,10 @@ public class MattingResult {
          * 远程URL
          */
         private String remoteUrl;
+
+        /**
+         * 本地镜像URL
+         */
+        private String outputUrl;
     }
 }
@@ -0,0 +1,60 @@
+package com.yimeil.comfyui.model;
+
+import lombok.Data;
+
+/**
+ * 任务各阶段耗时（毫秒）
+ * 一个任务提交多个 Prompt 时（拆分执行的批量任务）为各 Prompt 的累计值
+ */
+@Data
+public class StageTimings {
+    /**
+     * 加载工作流模板
+     */
+    private long workflowLoad;
+
+    /**
+     * 绑定工作流参数
+     */
+    private long binding;
+
+    /**
+     * 上传图片 / 文件到 ComfyUI
+     */
+    private long upload;
+
+    /**
+     * 本地调度队列等待（PromptScheduler）
+     */
+    private long localQueue;
+
+    /**
+     * 提交 Prompt（POST /prompt）
+     */
+    private long submit;
+
+    /**
+     * ComfyUI 队列等待（提交后到开始执行）
+     */
+    private long remoteQueue;
+
+    /**
+     * ComfyUI 执行
+     */
+    private long remoteExecution;
+
+    /**
+     * 完成检测延迟（执行结束到发现完成，取决于 WebSocket 事件或轮询间隔）
+     */
+    private long completionDetection;
+
+    /**
+     * 读取结果（GET /history）
+     */
+    private long resultFetch;
+
+    /**
+     * 是否命中结果缓存（命中时没有提交 Prompt）
+     */
+    private boolean cacheHit;
+}
@@ -0,0 +1,39 @@
+package com.yimeil.comfyui.model;
+
+import lombok.Data;
+
+/**
+ * 单个图片 URL 的预检结果
+ */
+@Data
+public class UrlCheckResult {
+    /**
+     * 在 URL 列表中的行号（从 0 开始）
+     */
+    private int index;
+
+    /**
+     * URL
+     */
+    private String url;
+
+    /**
+     * 是否可访问
+     */
+    private boolean reachable;
+
+    /**
+     * HTTP 状态码（连接失败时为 0）
+     */
+    private int statusCode;
+
+    /**
+     * 失败原因
+     */
+    private String message;
+
+    /**
+     * 预检耗时（毫秒，命中缓存时为 0）
+     */
+    private long elapsedTime;
+}
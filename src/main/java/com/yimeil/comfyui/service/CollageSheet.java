@@ -0,0 +1,577 @@
+package com.yimeil.comfyui.service;
+
+import com.yimeil.comfyui.model.CollageRequest;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * 在本服务中读取拼接 Excel（.xlsx / .xlsm），按组合 SKU 分组
+ * 与 ExcelSKULoader 节点使用相同的参数：sheetName、combinedSkuCol / skuCol / pcsCol / urlCol、startRow、filterCombinedSku；
+ * 组合 SKU 为空的行（合并单元格）归入上一个组合 SKU
+ * <p>
+ * 以 StAX 事件流逐行读取工作表，只保留配置的四列；共享字符串表在读完工作表后再读取，只保留被这四列引用的字符串，
+ * 几十万行的商品表也不会整表载入内存
+ * <p>
+ * 拆分执行时每个组合 SKU 的行另写为一个小工作簿（{@link #write}），ComfyUI 上的 ExcelSKULoader 不必为每个 Prompt 重新解析整表
+ */
+final class CollageSheet {
+
+    private static final XMLInputFactory XML = XMLInputFactory.newFactory();
+    private static final XMLOutputFactory XML_OUTPUT = XMLOutputFactory.newFactory();
+
+    static {
+        XML.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XML.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    private static final String WORKBOOK = "xl/workbook.xml";
+    private static final String WORKBOOK_RELS = "xl/_rels/workbook.xml.rels";
+    private static final String SHARED_STRINGS = "xl/sharedStrings.xml";
+    private static final String SHEET = "xl/worksheets/sheet1.xml";
+
+    private static final String MAIN_NS = "http://schemas.openxmlformats.org/spreadsheetml/2006/main";
+    private static final String RELATIONSHIPS_NS = "http://schemas.openxmlformats.org/package/2006/relationships";
+    private static final String DOCUMENT_RELATIONSHIPS_NS =
+            "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+
+    /**
+     * 写出的工作簿中所有条目使用固定的修改时间，相同内容得到相同文件（按内容命名上传并复用结果缓存）
+     */
+    private static final long ENTRY_TIME = 315532800000L;
+
+    /**
+     * 四列在 RawRow 中的位置
+     */
+    private static final int COMBINED_SKU = 0;
+    private static final int SKU = 1;
+    private static final int PCS = 2;
+    private static final int URL = 3;
+
+    private CollageSheet() {
+    }
+
+    /**
+     * 一行数据
+     */
+    record Row(String sku, String pcs, String url) {
+    }
+
+    /**
+     * 一个组合 SKU 及其数据行
+     */
+    record Group(String combinedSku, List<Row> rows) {
+    }
+
+    /**
+     * 读取 Excel 并按组合 SKU 分组，组合 SKU 按在表中第一次出现的顺序排列
+     */
+    static List<Group> read(Path file, CollageRequest request) throws IOException {
+        int[] columns = {
+                columnIndex(request.getCombinedSkuCol()),
+                columnIndex(request.getSkuCol()),
+                columnIndex(request.getPcsCol()),
+                columnIndex(request.getUrlCol())
+        };
+        int startRow = request.getStartRow() != null ? request.getStartRow() : 1;
+
+        try (ZipFile zip = new ZipFile(file.toFile())) {
+            Map<String, String> targets = readRelationships(zip);
+            String sheetPath = targets.get(findSheet(zip, request.getSheetName()));
+            if (sheetPath == null || zip.getEntry(sheetPath) == null) {
+                throw new IOException("Excel 中找不到工作表 " + request.getSheetName() + " 的内容");
+            }
+
+            List<RawRow> rawRows = readSheet(zip, sheetPath, columns, startRow);
+            Set<Integer> indexes = new HashSet<>();
+            for (RawRow row : rawRows) {
+                row.collectSharedIndexes(indexes);
+            }
+            Map<Integer, String> strings = indexes.isEmpty() ? Map.of() :
+                    readSharedStrings(zip, targets.getOrDefault(SHARED_STRINGS, SHARED_STRINGS), indexes);
+            return group(rawRows, strings, parseFilter(request.getFilterCombinedSku()));
+        } catch (XMLStreamException e) {
+            throw new IOException("解析 Excel 失败: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 把一个组合 SKU 的行写为只含这些行的工作簿
+     * 工作表名、四列位置和起始行与请求相同，ExcelSKULoader 按原参数读取；组合 SKU 写在每一行（不使用合并单元格），
+     * 数量为整数时写为数字，其余写为内联字符串
+     */
+    static void write(Group group, CollageRequest request, Path file) throws IOException {
+        int[] columns = {
+                columnIndex(request.getCombinedSkuCol()),
+                columnIndex(request.getSkuCol()),
+                columnIndex(request.getPcsCol()),
+                columnIndex(request.getUrlCol())
+        };
+        int startRow = request.getStartRow() != null && request.getStartRow() > 0 ? request.getStartRow() : 1;
+        String sheetName = request.getSheetName() != null && !request.getSheetName().isBlank() ?
+                request.getSheetName() : "Sheet1";
+
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(file))) {
+            writeEntry(zip, "[Content_Types].xml", xml -> {
+                xml.writeStartElement("Types");
+                xml.writeDefaultNamespace("http://schemas.openxmlformats.org/package/2006/content-types");
+                writeEmpty(xml, "Default", "Extension", "rels",
+                        "ContentType", "application/vnd.openxmlformats-package.relationships+xml");
+                writeEmpty(xml, "Default", "Extension", "xml", "ContentType", "application/xml");
+                writeEmpty(xml, "Override", "PartName", "/" + WORKBOOK,
+                        "ContentType", "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet.main+xml");
+                writeEmpty(xml, "Override", "PartName", "/" + SHEET,
+                        "ContentType", "application/vnd.openxmlformats-officedocument.spreadsheetml.worksheet+xml");
+                xml.writeEndElement();
+            });
+            writeEntry(zip, "_rels/.rels", xml -> {
+                xml.writeStartElement("Relationships");
+                xml.writeDefaultNamespace(RELATIONSHIPS_NS);
+                writeEmpty(xml, "Relationship", "Id", "rId1",
+                        "Type", DOCUMENT_RELATIONSHIPS_NS + "/officeDocument", "Target", WORKBOOK);
+                xml.writeEndElement();
+            });
+            writeEntry(zip, WORKBOOK, xml -> {
+                xml.writeStartElement("workbook");
+                xml.writeDefaultNamespace(MAIN_NS);
+                xml.writeNamespace("r", DOCUMENT_RELATIONSHIPS_NS);
+                xml.writeStartElement("sheets");
+                xml.writeEmptyElement("sheet");
+                xml.writeAttribute("name", sheetName);
+                xml.writeAttribute("sheetId", "1");
+                xml.writeAttribute("r", DOCUMENT_RELATIONSHIPS_NS, "id", "rId1");
+                xml.writeEndElement();
+                xml.writeEndElement();
+            });
+            writeEntry(zip, WORKBOOK_RELS, xml -> {
+                xml.writeStartElement("Relationships");
+                xml.writeDefaultNamespace(RELATIONSHIPS_NS);
+                writeEmpty(xml, "Relationship", "Id", "rId1",
+                        "Type", DOCUMENT_RELATIONSHIPS_NS + "/worksheet", "Target", "worksheets/sheet1.xml");
+                xml.writeEndElement();
+            });
+            writeEntry(zip, SHEET, xml -> {
+                xml.writeStartElement("worksheet");
+                xml.writeDefaultNamespace(MAIN_NS);
+                xml.writeStartElement("sheetData");
+                int rowNumber = startRow;
+                for (Row row : group.rows()) {
+                    // 单元格需按列顺序写出；同一列配置为多个字段时后者生效，与读取时一致
+                    Map<Integer, String> cells = new TreeMap<>();
+                    String[] values = {group.combinedSku(), row.sku(), row.pcs(), row.url()};
+                    for (int i = 0; i < columns.length; i++) {
+                        cells.put(columns[i], values[i]);
+                    }
+                    xml.writeStartElement("row");
+                    xml.writeAttribute("r", String.valueOf(rowNumber));
+                    for (Map.Entry<Integer, String> cell : cells.entrySet()) {
+                        writeCell(xml, columnName(cell.getKey()) + rowNumber, cell.getValue(),
+                                cell.getKey() == columns[PCS]);
+                    }
+                    xml.writeEndElement();
+                    rowNumber++;
+                }
+                xml.writeEndElement();
+                xml.writeEndElement();
+            });
+        }
+    }
+
+    @FunctionalInterface
+    private interface XmlContent {
+        void write(XMLStreamWriter xml) throws XMLStreamException;
+    }
+
+    private static void writeEntry(ZipOutputStream zip, String name, XmlContent content) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setTime(ENTRY_TIME);
+        zip.putNextEntry(entry);
+        try {
+            // XMLStreamWriter.close() 不关闭底层流
+            XMLStreamWriter xml = XML_OUTPUT.createXMLStreamWriter((OutputStream) zip, StandardCharsets.UTF_8.name());
+            xml.writeStartDocument(StandardCharsets.UTF_8.name(), "1.0");
+            content.write(xml);
+            xml.writeEndDocument();
+            xml.close();
+        } catch (XMLStreamException e) {
+            throw new IOException("写入 Excel 失败: " + e.getMessage(), e);
+        }
+        zip.closeEntry();
+    }
+
+    private static void writeEmpty(XMLStreamWriter xml, String name, String... attributes) throws XMLStreamException {
+        xml.writeEmptyElement(name);
+        for (int i = 0; i < attributes.length; i += 2) {
+            xml.writeAttribute(attributes[i], attributes[i + 1]);
+        }
+    }
+
+    private static void writeCell(XMLStreamWriter xml, String reference, String value, boolean numeric)
+            throws XMLStreamException {
+        if (value.isEmpty()) {
+            return;
+        }
+        xml.writeStartElement("c");
+        xml.writeAttribute("r", reference);
+        if (numeric && value.matches("-?\\d{1,15}")) {
+            xml.writeStartElement("v");
+            xml.writeCharacters(value);
+            xml.writeEndElement();
+        } else {
+            xml.writeAttribute("t", "inlineStr");
+            xml.writeStartElement("is");
+            xml.writeStartElement("t");
+            xml.writeAttribute("xml", "http://www.w3.org/XML/1998/namespace", "space", "preserve");
+            xml.writeCharacters(value);
+            xml.writeEndElement();
+            xml.writeEndElement();
+        }
+        xml.writeEndElement();
+    }
+
+    private static List<Group> group(List<RawRow> rawRows, Map<Integer, String> strings, Set<String> filter) {
+        Map<String, List<Row>> groups = new LinkedHashMap<>();
+        String current = null;
+        for (RawRow raw : rawRows) {
+            String combinedSku = raw.value(COMBINED_SKU, strings);
+            if (!combinedSku.isEmpty()) {
+                current = combinedSku;
+            }
+            String sku = raw.value(SKU, strings);
+            String url = raw.value(URL, strings);
+            // 空行，或第一个组合 SKU 之前的行
+            if (sku.isEmpty() && url.isEmpty() || current == null) {
+                continue;
+            }
+            if (!filter.isEmpty() && !filter.contains(current)) {
+                continue;
+            }
+            groups.computeIfAbsent(current, key -> new ArrayList<>())
+                    .add(new Row(sku, raw.value(PCS, strings), url));
+        }
+        List<Group> result = new ArrayList<>(groups.size());
+        groups.forEach((combinedSku, rows) -> result.add(new Group(combinedSku, rows)));
+        return result;
+    }
+
+    /**
+     * 筛选条件中的组合 SKU，可用逗号、分号或换行分隔多个；为空时不筛选
+     */
+    private static Set<String> parseFilter(String filter) {
+        Set<String> values = new HashSet<>();
+        if (filter != null) {
+            for (String value : filter.split("[,，;；\\s]+")) {
+                if (!value.isEmpty()) {
+                    values.add(value);
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * 按名称查找工作表的关系 ID，名称为空时取第一个工作表
+     */
+    private static String findSheet(ZipFile zip, String sheetName) throws IOException, XMLStreamException {
+        boolean first = sheetName == null || sheetName.isBlank();
+        try (InputStream in = open(zip, WORKBOOK)) {
+            XMLStreamReader reader = XML.createXMLStreamReader(in);
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT && "sheet".equals(reader.getLocalName())
+                            && (first || sheetName.equals(reader.getAttributeValue(null, "name")))) {
+                        // r:id 的命名空间在 Transitional 和 Strict 格式中不同，按本地名称查找
+                        for (int i = 0; i < reader.getAttributeCount(); i++) {
+                            String namespace = reader.getAttributeNamespace(i);
+                            if ("id".equals(reader.getAttributeLocalName(i))
+                                    && namespace != null && !namespace.isEmpty()) {
+                                return reader.getAttributeValue(i);
+                            }
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        throw new IOException(first ? "Excel 中没有工作表" : "Excel 中没有名为 " + sheetName + " 的工作表");
+    }
+
+    /**
+     * 读取工作簿的关系：关系 ID -> 压缩包内路径，另以 xl/sharedStrings.xml 为键记录共享字符串表的实际路径
+     */
+    private static Map<String, String> readRelationships(ZipFile zip) throws IOException, XMLStreamException {
+        Map<String, String> targets = new HashMap<>();
+        try (InputStream in = open(zip, WORKBOOK_RELS)) {
+            XMLStreamReader reader = XML.createXMLStreamReader(in);
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT
+                            && "Relationship".equals(reader.getLocalName())) {
+                        String target = reader.getAttributeValue(null, "Target");
+                        String type = reader.getAttributeValue(null, "Type");
+                        if (target == null) {
+                            continue;
+                        }
+                        target = target.startsWith("/") ? target.substring(1) : "xl/" + target;
+                        targets.put(reader.getAttributeValue(null, "Id"), target);
+                        if (type != null && type.endsWith("/sharedStrings")) {
+                            targets.put(SHARED_STRINGS, target);
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return targets;
+    }
+
+    /**
+     * 逐行读取工作表，只保留 startRow 及之后的行中配置的四列
+     */
+    private static List<RawRow> readSheet(ZipFile zip, String sheetPath, int[] columns, int startRow)
+            throws IOException, XMLStreamException {
+        List<RawRow> rows = new ArrayList<>();
+        try (InputStream in = open(zip, sheetPath)) {
+            XMLStreamReader reader = XML.createXMLStreamReader(in);
+            try {
+                RawRow row = null;
+                int rowNumber = 0;
+                int column = -1;
+                boolean wanted = false;
+                String type = null;
+                String value = null;
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        switch (reader.getLocalName()) {
+                            case "row" -> {
+                                String r = reader.getAttributeValue(null, "r");
+                                rowNumber = r != null ? Integer.parseInt(r) : rowNumber + 1;
+                                row = rowNumber >= startRow ? new RawRow(columns) : null;
+                                column = -1;
+                            }
+                            case "c" -> {
+                                String r = reader.getAttributeValue(null, "r");
+                                column = r != null ? columnIndex(r) : column + 1;
+                                wanted = row != null && row.wants(column);
+                                type = reader.getAttributeValue(null, "t");
+                                value = null;
+                            }
+                            case "v" -> {
+                                if (wanted) {
+                                    value = reader.getElementText();
+                                }
+                            }
+                            // 内联字符串 <is><t>..</t></is>，富文本时有多个 <t>
+                            case "t" -> {
+                                if (wanted) {
+                                    value = (value != null ? value : "") + reader.getElementText();
+                                }
+                            }
+                            case "rPh" -> skipElement(reader);
+                            default -> {
+                            }
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT) {
+                        if ("c".equals(reader.getLocalName())) {
+                            if (wanted && value != null) {
+                                row.set(column, type, value);
+                            }
+                            wanted = false;
+                        } else if ("row".equals(reader.getLocalName()) && row != null) {
+                            rows.add(row);
+                            row = null;
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * 读取共享字符串表中被引用的字符串（富文本拼接各段，跳过注音）
+     */
+    private static Map<Integer, String> readSharedStrings(ZipFile zip, String path, Set<Integer> indexes)
+            throws IOException, XMLStreamException {
+        Map<Integer, String> strings = new HashMap<>();
+        try (InputStream in = open(zip, path)) {
+            XMLStreamReader reader = XML.createXMLStreamReader(in);
+            try {
+                int index = -1;
+                StringBuilder text = null;
+                while (reader.hasNext() && strings.size() < indexes.size()) {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        switch (reader.getLocalName()) {
+                            case "si" -> text = indexes.contains(++index) ? new StringBuilder() : null;
+                            case "t" -> {
+                                if (text != null) {
+                                    text.append(reader.getElementText());
+                                }
+                            }
+                            case "rPh" -> skipElement(reader);
+                            default -> {
+                            }
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT && "si".equals(reader.getLocalName())
+                            && text != null) {
+                        strings.put(index, text.toString());
+                        text = null;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return strings;
+    }
+
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    private static InputStream open(ZipFile zip, String name) throws IOException {
+        ZipEntry entry = zip.getEntry(name);
+        if (entry == null) {
+            throw new IOException("不是有效的 xlsx 文件，缺少 " + name);
+        }
+        return zip.getInputStream(entry);
+    }
+
+    /**
+     * 列字母（A、AB）或单元格引用（AB12）转换为从 0 开始的列序号
+     */
+    private static int columnIndex(String reference) throws IOException {
+        if (reference == null) {
+            throw new IOException("列名不能为空");
+        }
+        int index = 0;
+        int letters = 0;
+        for (char ch : reference.trim().toUpperCase().toCharArray()) {
+            if (ch < 'A' || ch > 'Z') {
+                break;
+            }
+            index = index * 26 + (ch - 'A' + 1);
+            letters++;
+        }
+        if (letters == 0 || letters > 3) {
+            throw new IOException("无效的列名: " + reference);
+        }
+        return index - 1;
+    }
+
+    /**
+     * 从 0 开始的列序号转换为列字母
+     */
+    private static String columnName(int index) {
+        StringBuilder name = new StringBuilder();
+        for (int n = index + 1; n > 0; n = (n - 1) / 26) {
+            name.insert(0, (char) ('A' + (n - 1) % 26));
+        }
+        return name.toString();
+    }
+
+    /**
+     * 工作表中一行的四列原始值，共享字符串在读完工作表后再解析
+     */
+    private static final class RawRow {
+        private final int[] columns;
+        private final String[] values = new String[4];
+        private final String[] types = new String[4];
+
+        RawRow(int[] columns) {
+            this.columns = columns;
+        }
+
+        boolean wants(int column) {
+            for (int c : columns) {
+                if (c == column) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void set(int column, String type, String value) {
+            // 同一列可以同时配置为多个字段
+            for (int i = 0; i < columns.length; i++) {
+                if (columns[i] == column) {
+                    values[i] = value;
+                    types[i] = type;
+                }
+            }
+        }
+
+        void collectSharedIndexes(Set<Integer> indexes) {
+            for (int i = 0; i < values.length; i++) {
+                if ("s".equals(types[i]) && values[i] != null) {
+                    indexes.add(Integer.parseInt(values[i].trim()));
+                }
+            }
+        }
+
+        String value(int field, Map<Integer, String> strings) {
+            String value = values[field];
+            if (value == null) {
+                return "";
+            }
+            String type = types[field];
+            if (type == null || "n".equals(type)) {
+                value = normalizeNumber(value);
+            } else if ("s".equals(type)) {
+                value = strings.getOrDefault(Integer.parseInt(value.trim()), "");
+            } else if ("b".equals(type)) {
+                value = "1".equals(value.trim()) ? "TRUE" : "FALSE";
+            } else if ("e".equals(type)) {
+                value = "";
+            }
+            return value.trim();
+        }
+
+        /**
+         * 数字单元格去掉小数部分末尾的 0（SKU 12345 在文件中可能存为 12345.0 或 1.2345E4）
+         */
+        private static String normalizeNumber(String value) {
+            try {
+                return new BigDecimal(value.trim()).stripTrailingZeros().toPlainString();
+            } catch (NumberFormatException e) {
+                return value;
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.yimeil.comfyui.service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 一台 ComfyUI 服务器及其运行状态
+ * 同一个任务的上传、提交、完成跟踪和结果地址都固定在同一台服务器上
+ */
+public class ComfyUIBackend {
+
+    private final String url;
+    private final int weight;
+
+    /**
+     * 分配到该服务器、尚未结束的任务数（含排队、上传中的任务）
+     */
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * 已提交到该服务器 /prompt、尚未完成的 Prompt 数量
+     */
+    private final AtomicInteger submitted = new AtomicInteger();
+
+    /**
+     * 工作流名称 -> 最近一次在该服务器上执行的时间
+     */
+    private final Map<String, Long> recentWorkflows = new ConcurrentHashMap<>();
+
+    private volatile boolean healthy = true;
+    private volatile int consecutiveFailures;
+    private volatile int queueRunning;
+    private volatile int queuePending;
+
+    /**
+     * 上次健康检查时队列中不属于本服务的任务数
+     */
+    private volatile int externalQueue;
+
+    /**
+     * 平滑加权轮询的当前权重，由 ComfyUIBackendPool 加锁访问
+     */
+    int currentWeight;
+
+    public ComfyUIBackend(String url, int weight) {
+        this.url = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+        this.weight = Math.max(1, weight);
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    public int getQueueRunning() {
+        return queueRunning;
+    }
+
+    public int getQueuePending() {
+        return queuePending;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * 按权重折算的负载：其他来源的排队任务 + 分配到该服务器的未结束任务
+     */
+    public double getLoad() {
+        return (externalQueue + inFlight.get()) / (double) weight;
+    }
+
+    /**
+     * 近期是否执行过该工作流
+     */
+    public boolean hasRecentlyRun(String workflowName, long ttl) {
+        Long lastRun = recentWorkflows.get(workflowName);
+        return lastRun != null && System.currentTimeMillis() - lastRun <= ttl;
+    }
+
+    /**
+     * 最近一次在该服务器上执行该工作流的时间，没有执行过时返回 null
+     */
+    public Long getLastRun(String workflowName) {
+        return recentWorkflows.get(workflowName);
+    }
+
+    void recordWorkflow(String workflowName) {
+        recentWorkflows.put(workflowName, System.currentTimeMillis());
+    }
+
+    /**
+     * 服务器恢复后模型可能已随 ComfyUI 重启被卸载，清空执行记录
+     */
+    void forgetWorkflows() {
+        recentWorkflows.clear();
+    }
+
+    void assigned() {
+        inFlight.incrementAndGet();
+    }
+
+    void released() {
+        inFlight.decrementAndGet();
+    }
+
+    void promptSubmitted() {
+        submitted.incrementAndGet();
+    }
+
+    void promptFinished() {
+        submitted.decrementAndGet();
+    }
+
+    /**
+     * 记录一次成功的健康检查
+     */
+    void healthCheckSucceeded(int running, int pending) {
+        queueRunning = running;
+        queuePending = pending;
+        externalQueue = Math.max(0, running + pending - submitted.get());
+        consecutiveFailures = 0;
+        healthy = true;
+    }
+
+    /**
+     * 记录一次失败的健康检查，返回是否仍然健康
+     */
+    boolean healthCheckFailed(int failureThreshold) {
+        consecutiveFailures++;
+        if (consecutiveFailures >= failureThreshold) {
+            healthy = false;
+        }
+        return healthy;
+    }
+
+    @Override
+    public String toString() {
+        return url;
+    }
+}
@@ -0,0 +1,189 @@
+package com.yimeil.comfyui.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.yimeil.comfyui.config.ComfyUIConfig;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpResponse;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.apache.hc.core5.util.Timeout;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * ComfyUI 服务器池
+ * 定期通过 /queue 检查各服务器的健康状态和队列深度，按配置的策略为新任务选择服务器
+ */
+@Service
+@Slf4j
+public class ComfyUIBackendPool {
+
+    @Autowired
+    private ComfyUIConfig config;
+
+    @Autowired
+    private CloseableHttpClient httpClient;
+
+    @Autowired
+    private ResultCache resultCache;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private List<ComfyUIBackend> backends;
+
+    @PostConstruct
+    public void init() {
+        List<ComfyUIBackend> list = new ArrayList<>();
+        for (ComfyUIConfig.BackendConfig backend : config.getBalancer().getBackends()) {
+            list.add(new ComfyUIBackend(backend.getUrl(), backend.getWeight()));
+        }
+        if (list.isEmpty()) {
+            list.add(new ComfyUIBackend(config.getApi().getBaseUrl(), 1));
+        }
+        backends = List.copyOf(list);
+        log.info("ComfyUI 服务器: {}，路由策略: {}", backends, config.getBalancer().getStrategy());
+    }
+
+    public List<ComfyUIBackend> getBackends() {
+        return backends;
+    }
+
+    /**
+     * 按地址查找服务器，不存在时返回 null
+     */
+    public ComfyUIBackend find(String url) {
+        for (ComfyUIBackend backend : backends) {
+            if (backend.getUrl().equals(url)) {
+                return backend;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 为新任务选择服务器，任务结束后必须调用 release
+     * 所有服务器都不健康时仍在全部服务器中选择，由实际请求返回错误
+     *
+     * @param workflowName 任务使用的工作流，用于亲和路由
+     */
+    public ComfyUIBackend select(String workflowName) {
+        List<ComfyUIBackend> candidates = backends.stream().filter(ComfyUIBackend::isHealthy).toList();
+        if (candidates.isEmpty()) {
+            log.warn("没有健康的 ComfyUI 服务器，尝试使用全部服务器");
+            candidates = backends;
+        }
+
+        ComfyUIBackend selected;
+        if (candidates.size() == 1) {
+            selected = candidates.get(0);
+        } else {
+            selected = switch (config.getBalancer().getStrategy()) {
+                case ROUND_ROBIN -> selectRoundRobin(candidates);
+                case AFFINITY -> selectByAffinity(candidates, workflowName);
+                default -> selectLeastQueue(candidates);
+            };
+        }
+
+        // 选中即计入负载，避免同时到达的任务都选中同一台"空闲"服务器
+        selected.assigned();
+        selected.recordWorkflow(workflowName);
+        if (backends.size() > 1) {
+            log.info("任务 {} 路由到服务器: {}", workflowName, selected);
+        }
+        return selected;
+    }
+
+    /**
+     * 任务结束，释放 select 时计入的负载
+     */
+    public void release(ComfyUIBackend backend) {
+        if (backend != null) {
+            backend.released();
+        }
+    }
+
+    private ComfyUIBackend selectLeastQueue(List<ComfyUIBackend> candidates) {
+        return candidates.stream().min(Comparator.comparingDouble(ComfyUIBackend::getLoad)).orElseThrow();
+    }
+
+    /**
+     * 平滑加权轮询（与 nginx 相同的算法），权重高的服务器被均匀地分散选中
+     */
+    private synchronized ComfyUIBackend selectRoundRobin(List<ComfyUIBackend> candidates) {
+        int totalWeight = 0;
+        ComfyUIBackend best = null;
+        for (ComfyUIBackend backend : candidates) {
+            backend.currentWeight += backend.getWeight();
+            totalWeight += backend.getWeight();
+            if (best == null || backend.currentWeight > best.currentWeight) {
+                best = backend;
+            }
+        }
+        best.currentWeight -= totalWeight;
+        return best;
+    }
+
+    /**
+     * 亲和路由：近期执行过相同工作流的服务器大概率已加载对应模型，
+     * 在负载不明显高于最空闲服务器时优先选择，否则退化为最少排队
+     */
+    private ComfyUIBackend selectByAffinity(List<ComfyUIBackend> candidates, String workflowName) {
+        ComfyUIConfig.BalancerConfig balancer = config.getBalancer();
+        ComfyUIBackend leastLoaded = selectLeastQueue(candidates);
+
+        return candidates.stream()
+                .filter(backend -> backend.hasRecentlyRun(workflowName, balancer.getAffinityTtl()))
+                .filter(backend -> backend.getLoad() <= leastLoaded.getLoad() + balancer.getAffinitySlack())
+                .min(Comparator.comparingDouble(ComfyUIBackend::getLoad))
+                .orElse(leastLoaded);
+    }
+
+    /**
+     * 健康检查并刷新队列深度
+     */
+    @Scheduled(fixedDelayString = "${comfyui.balancer.health-check-interval:5000}")
+    public void checkHealth() {
+        for (ComfyUIBackend backend : backends) {
+            check(backend);
+        }
+    }
+
+    private void check(ComfyUIBackend backend) {
+        HttpGet httpGet = new HttpGet(backend.getUrl() + "/queue");
+        Timeout timeout = Timeout.ofMilliseconds(config.getBalancer().getHealthCheckTimeout());
+        httpGet.setConfig(RequestConfig.custom()
+                .setConnectionRequestTimeout(timeout)
+                .setResponseTimeout(timeout)
+                .build());
+
+        boolean wasHealthy = backend.isHealthy();
+        try (CloseableHttpResponse response = httpClient.execute(httpGet)) {
+            if (response.getCode() != 200) {
+                throw new IllegalStateException("HTTP状态码: " + response.getCode());
+            }
+            JsonNode queue = objectMapper.readTree(EntityUtils.toString(response.getEntity(), "UTF-8"));
+            backend.healthCheckSucceeded(queue.path("queue_running").size(), queue.path("queue_pending").size());
+            if (!wasHealthy) {
+                log.info("ComfyUI 服务器已恢复: {}", backend);
+                backend.forgetWorkflows();
+                resultCache.invalidateBackend(backend.getUrl());
+            }
+        } catch (Exception e) {
+            boolean healthy = backend.healthCheckFailed(config.getBalancer().getFailureThreshold());
+            if (wasHealthy && !healthy) {
+                log.warn("ComfyUI 服务器不可用，移出轮换: {} - {}", backend, e.getMessage());
+            } else {
+                log.debug("ComfyUI 服务器健康检查失败: {} - {}", backend, e.getMessage());
+            }
+        }
+    }
+}
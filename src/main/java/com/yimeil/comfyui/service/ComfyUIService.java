@@ -8,39 +8,65 @@ import com.yimeil.comfyui.model.BatchMattingRequest;
 import com.yimeil.comfyui.model.BatchMattingResult;
 import com.yimeil.comfyui.model.CollageRequest;
 import com.yimeil.comfyui.model.CollageResult;
+import com.yimeil.comfyui.model.JobProgressEvent;
+import com.yimeil.comfyui.model.JobResult;
 import com.yimeil.comfyui.model.KeywordMattingRequest;
 import com.yimeil.comfyui.model.MattingRequest;
 import com.yimeil.comfyui.model.MattingResult;
 import com.yimeil.comfyui.model.QwenEditRequest;
 import com.yimeil.comfyui.model.QwenTranslateRequest;
+import com.yimeil.comfyui.model.UrlCheckResult;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.io.FileUtils;
 import org.apache.hc.client5.http.classic.methods.HttpGet;
 import org.apache.hc.client5.http.classic.methods.HttpPost;
+import org.apache.hc.client5.http.entity.mime.InputStreamBody;
 import org.apache.hc.client5.http.entity.mime.MultipartEntityBuilder;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpResponse;
-import org.apache.hc.client5.http.impl.classic.HttpClients;
 import org.apache.hc.core5.http.ContentType;
 import org.apache.hc.core5.http.HttpEntity;
 import org.apache.hc.core5.http.ParseException;
 import org.apache.hc.core5.http.io.entity.EntityUtils;
 import org.apache.hc.core5.http.io.entity.StringEntity;
+import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.ClassPathResource;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 /**
  * ComfyUI 服务
@@ -50,60 +76,235 @@ import java.util.UUID;
 @Slf4j
 public class ComfyUIService {
 
+    /**
+     * 收到完成事件后 history 尚不可读时的重试间隔
+     */
+    private static final long HISTORY_RETRY_MILLIS = 200;
+
     @Autowired
     private ComfyUIConfig config;
 
+    @Autowired
+    private ComfyUIWebSocketService webSocketService;
+
+    @Autowired
+    private ComfyUIBackendPool backendPool;
+
+    @Autowired
+    private CloseableHttpClient httpClient;
+
+    @Autowired
+    private WorkflowTemplateCache workflowTemplateCache;
+
+    @Autowired
+    private UploadCache uploadCache;
+
+    @Autowired
+    private ResultCache resultCache;
+
+    @Autowired
+    private PromptScheduler promptScheduler;
+
+    @Autowired
+    private UrlPrecheckService urlPrecheckService;
+
+    @Autowired
+    private JobService jobService;
+
+    @Autowired
+    private ResultMirror resultMirror;
+
+    @Autowired
+    private StageMetrics stageMetrics;
+
+    @Autowired
+    private PromptJournal promptJournal;
+
+    @Autowired
+    private PromptCoalescer promptCoalescer;
+
+    @Autowired
+    private ImagePreScaler imagePreScaler;
+
     private final ObjectMapper objectMapper = new ObjectMapper();
-    private final String clientId = UUID.randomUUID().toString();
+
+    @FunctionalInterface
+    private interface ReUpload {
+        String upload() throws IOException, ParseException;
+    }
+
+    /**
+     * 一次执行中复用上传缓存得到的文件名 -> 重新上传该文件的方法
+     * ComfyUI 的 input 目录被清理后 /prompt 会拒绝这些文件，此时作废缓存记录并重新上传一次。
+     * 由执行工作流的方法创建，传给上传方法和 executeAndWait，随该次执行结束丢弃，不会在线程上留下请求的文件
+     */
+    private static final class Uploads {
+        private final Map<String, ReUpload> reused = new HashMap<>();
+
+        void reused(String uploadedName, ReUpload reUpload) {
+            reused.put(uploadedName, reUpload);
+        }
+
+        ReUpload take(String uploadedName) {
+            return reused.remove(uploadedName);
+        }
+    }
 
     /**
      * 从 resources/workflow 加载工作流
      * 类似 word2picture 的 loadWorkflowFromResource 方法
+     * 模板在启动时已解析，这里只返回一份深拷贝
      */
-    public JsonNode loadWorkflowFromResource(String workflowName) throws IOException {
+    public ObjectNode loadWorkflowFromResource(String workflowName) throws IOException {
         log.info("加载工作流: {}", workflowName);
+        long start = System.nanoTime();
+        try {
+            return workflowTemplateCache.instantiate(workflowName);
+        } finally {
+            StageTimer.record(StageTimer.Stage.WORKFLOW_LOAD, start);
+        }
+    }
 
-        String workflowPath = config.getWorkflow().getDirectory() + "/" + workflowName;
-        ClassPathResource resource = new ClassPathResource(workflowPath);
+    /**
+     * 上传图片到 ComfyUI 服务器
+     */
+    public String uploadImage(ComfyUIBackend backend, MultipartFile file) throws IOException, ParseException {
+        log.info("上传图片: {}", file.getOriginalFilename());
+        long start = System.nanoTime();
+        try {
+            return uploadImageContent(backend, file, null);
+        } finally {
+            StageTimer.record(StageTimer.Stage.UPLOAD, start);
+        }
+    }
 
-        if (!resource.exists()) {
-            throw new IOException("工作流文件不存在: " + workflowPath);
+    /**
+     * 上传图片，复用已上传的文件时记录到 uploads，/prompt 拒绝该文件时重新上传
+     */
+    private String uploadImage(ComfyUIBackend backend, MultipartFile file, Uploads uploads)
+            throws IOException, ParseException {
+        log.info("上传图片: {}", file.getOriginalFilename());
+        long start = System.nanoTime();
+        try {
+            return uploadImageContent(backend, file, uploads);
+        } finally {
+            StageTimer.record(StageTimer.Stage.UPLOAD, start);
         }
+    }
 
-        try (InputStream inputStream = resource.getInputStream()) {
-            return objectMapper.readTree(inputStream);
+    /**
+     * 以固定文件名上传图片（覆盖同名文件），不按内容命名、不经过上传缓存
+     * 用于每次内容不同、用完即弃的输入（如预热图片），不在 ComfyUI 的 input 目录中累积文件
+     */
+    public String uploadImage(ComfyUIBackend backend, MultipartFile file, String filename)
+            throws IOException, ParseException {
+        try (InputStream inputStream = file.getInputStream()) {
+            return upload(backend, inputStream, filename, file.getSize(), null);
         }
     }
 
     /**
-     * 上传图片到 ComfyUI 服务器
+     * 上传图片并写入工作流的图片输入
+     * 绑定计划声明了预缩小、且工作流本身会把图片缩小到处理分辨率时，先在本地缩小再上传；
+     * 工作流中读取原图尺寸的节点改为原图尺寸常量，输出尺寸不变
+     *
+     * @param workflow 已绑定参数的工作流实例
+     * @param uploads  记录复用的上传文件
      */
-    public String uploadImage(MultipartFile file) throws IOException, ParseException {
+    private String uploadImage(ComfyUIBackend backend, MultipartFile file, WorkflowBinding<?> binding,
+                               ObjectNode workflow, Uploads uploads) throws IOException, ParseException {
         log.info("上传图片: {}", file.getOriginalFilename());
+        long start = System.nanoTime();
+        try {
+            ImagePreScaler.Plan plan = imagePreScaler.plan(file, binding, workflow);
+            String uploadedName = plan != null ? uploadScaled(backend, file, plan, uploads) : null;
+            if (uploadedName != null) {
+                plan.pinOriginalSize(workflow);
+            } else {
+                uploadedName = uploadImageContent(backend, file, uploads);
+            }
+            binding.applyFile(workflow, uploadedName);
+            return uploadedName;
+        } finally {
+            StageTimer.record(StageTimer.Stage.UPLOAD, start);
+        }
+    }
 
-        String url = config.getApi().getBaseUrl() + "/upload/image";
-
-        try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
-            HttpPost httpPost = new HttpPost(url);
+    /**
+     * 上传缩小后的图片，缩小失败时返回 null 由调用方上传原图
+     * 上传记录以原图内容和目标尺寸为键，相同图片再次提交时不再解码
+     */
+    private String uploadScaled(ComfyUIBackend backend, MultipartFile file, ImagePreScaler.Plan plan,
+                                Uploads uploads) throws IOException, ParseException {
+        String baseUrl = backend.getUrl();
+        String key = UploadCache.sha256(file) + "@" + plan.targetWidth() + "x" + plan.targetHeight();
+        if (uploadCache.isEnabled()) {
+            String cachedName = uploadCache.get(baseUrl, key);
+            if (cachedName != null) {
+                log.info("缩小后的图片已上传过，复用: {}", cachedName);
+                if (uploads != null) {
+                    uploads.reused(cachedName, () -> {
+                        uploadCache.invalidate(baseUrl, key);
+                        String uploadedName = uploadScaled(backend, file, plan, null);
+                        return uploadedName != null ? uploadedName : uploadImageContent(backend, file, null);
+                    });
+                }
+                return cachedName;
+            }
+        }
 
-            // 构建 multipart 请求
-            HttpEntity entity = MultipartEntityBuilder.create()
-                    .addBinaryBody("image", file.getInputStream(),
-                            ContentType.APPLICATION_OCTET_STREAM,
-                            file.getOriginalFilename())
-                    .addTextBody("overwrite", "true")
-                    .build();
+        SpooledMultipartFile scaled;
+        try {
+            scaled = imagePreScaler.scale(file, plan);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("图片预缩小被中断", e);
+        } catch (IOException | RuntimeException e) {
+            log.warn("图片预缩小失败，上传原图 {}: {}", file.getOriginalFilename(), e.getMessage());
+            return null;
+        }
 
-            httpPost.setEntity(entity);
+        try (scaled; InputStream inputStream = scaled.getInputStream()) {
+            String uploadedName = upload(backend, inputStream,
+                    UploadCache.contentAddressedName(UploadCache.sha256(scaled), scaled.getOriginalFilename()),
+                    scaled.getSize(), null);
+            if (uploadCache.isEnabled()) {
+                uploadCache.put(baseUrl, key, uploadedName);
+            }
+            log.info("图片上传成功: {}", uploadedName);
+            return uploadedName;
+        }
+    }
 
-            try (CloseableHttpResponse response = httpClient.execute(httpPost)) {
-                String responseBody = EntityUtils.toString(response.getEntity(), "UTF-8");
-                JsonNode jsonNode = objectMapper.readTree(responseBody);
-                String uploadedName = jsonNode.get("name").asText();
+    private String uploadImageContent(ComfyUIBackend backend, MultipartFile file, Uploads uploads)
+            throws IOException, ParseException {
+        // 始终按内容命名：结果缓存以工作流中的文件名代表图片内容
+        String baseUrl = backend.getUrl();
+        String hash = UploadCache.sha256(file);
+
+        // 相同内容的图片已上传过时直接复用，避免重复传输
+        if (uploadCache.isEnabled()) {
+            String cachedName = uploadCache.get(baseUrl, hash);
+            if (cachedName != null) {
+                log.info("图片内容已上传过，复用: {}", cachedName);
+                if (uploads != null) {
+                    uploads.reused(cachedName, () -> {
+                        uploadCache.invalidate(baseUrl, hash);
+                        return uploadImageContent(backend, file, null);
+                    });
+                }
+                return cachedName;
+            }
+        }
 
-                log.info("图片上传成功: {}", uploadedName);
-                return uploadedName;
+        try (InputStream inputStream = file.getInputStream()) {
+            String uploadedName = upload(backend, inputStream,
+                    UploadCache.contentAddressedName(hash, file.getOriginalFilename()), file.getSize(), null);
+            if (uploadCache.isEnabled()) {
+                uploadCache.put(baseUrl, hash, uploadedName);
             }
+            log.info("图片上传成功: {}", uploadedName);
+            return uploadedName;
         }
     }
 
@@ -123,10 +324,15 @@ public class ComfyUIService {
                     inputsObj.put(paramName, (String) paramValue);
                 } else if (paramValue instanceof Integer) {
                     inputsObj.put(paramName, (Integer) paramValue);
-                } else if (paramValue instanceof Double) {
-                    inputsObj.put(paramName, (Double) paramValue);
+                } else if (paramValue instanceof Long) {
+                    inputsObj.put(paramName, (Long) paramValue);
+                } else if (paramValue instanceof Number) {
+                    inputsObj.put(paramName, ((Number) paramValue).doubleValue());
                 } else if (paramValue instanceof Boolean) {
                     inputsObj.put(paramName, (Boolean) paramValue);
+                } else if (paramValue != null) {
+                    log.warn("不支持的工作流参数类型: 节点{} -> {} ({})",
+                            nodeId, paramName, paramValue.getClass().getSimpleName());
                 }
             }
         }
@@ -137,161 +343,668 @@ public class ComfyUIService {
     /**
      * 执行工作流
      */
-    public String executeWorkflow(JsonNode workflow) throws IOException, ParseException {
-        log.info("提交工作流执行...");
+    public String executeWorkflow(ComfyUIBackend backend, JsonNode workflow) throws IOException, ParseException {
+        log.info("提交工作流执行: {}", backend);
+
+        String url = backend.getUrl() + "/prompt";
+
+        HttpPost httpPost = new HttpPost(url);
+        httpPost.setEntity(promptEntity(workflow));
+
+        try (CloseableHttpResponse response = httpClient.execute(httpPost)) {
+            String responseBody = EntityUtils.toString(response.getEntity(), "UTF-8");
+            log.info("ComfyUI API 响应: {}", responseBody);
+
+            JsonNode jsonNode = objectMapper.readTree(responseBody);
+
+            // 检查是否有错误响应
+            if (jsonNode.has("error")) {
+                JsonNode errorNode = jsonNode.get("error");
+                String errorType = errorNode.get("type").asText();
+                String errorMessage = errorNode.get("message").asText();
+
+                // 提取详细的节点错误信息，记录出错的 LoadImage 节点读取的文件
+                StringBuilder detailsBuilder = new StringBuilder();
+                Set<String> rejectedFiles = new HashSet<>();
+                if (jsonNode.has("node_errors")) {
+                    JsonNode nodeErrors = jsonNode.get("node_errors");
+                    nodeErrors.fields().forEachRemaining(entry -> {
+                        String nodeId = entry.getKey();
+                        JsonNode nodeError = entry.getValue();
+                        JsonNode node = workflow.path(nodeId);
+                        if ("LoadImage".equals(node.path("class_type").asText())
+                                && node.path("inputs").path("image").isTextual()) {
+                            rejectedFiles.add(node.path("inputs").path("image").asText());
+                        }
+                        if (nodeError.has("errors") && nodeError.get("errors").isArray()) {
+                            nodeError.get("errors").forEach(err -> {
+                                String details = err.has("details") ? err.get("details").asText() : "";
+                                detailsBuilder.append(String.format("\n节点 %s: %s", nodeId, details));
+                            });
+                        }
+                    });
+                }
+
+                String fullError = String.format("ComfyUI 错误 [%s]: %s%s",
+                        errorType, errorMessage, detailsBuilder.toString());
+                log.error(fullError);
+                throw new PromptRejectedException(fullError, rejectedFiles);
+            }
 
-        String url = config.getApi().getBaseUrl() + "/prompt";
+            // 检查响应中是否包含 prompt_id
+            if (!jsonNode.has("prompt_id")) {
+                log.error("API 响应中没有 prompt_id 字段，完整响应: {}", responseBody);
+                throw new IOException("API 响应格式错误: 缺少 prompt_id 字段");
+            }
+
+            String promptId = jsonNode.get("prompt_id").asText();
+
+            log.info("工作流已提交，Prompt ID: {}", promptId);
+            return promptId;
+        }
+    }
 
-        // 构建请求 payload
+    /**
+     * 构建 /prompt 请求体（包内可见，供基准测试使用）
+     */
+    HttpEntity promptEntity(JsonNode workflow) throws IOException {
         ObjectNode payload = objectMapper.createObjectNode();
         payload.set("prompt", workflow);
-        payload.put("client_id", clientId);
+        payload.put("client_id", webSocketService.getClientId());
+        return new StringEntity(objectMapper.writeValueAsString(payload), ContentType.APPLICATION_JSON);
+    }
 
-        try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
-            HttpPost httpPost = new HttpPost(url);
-            httpPost.setEntity(new StringEntity(objectMapper.writeValueAsString(payload), ContentType.APPLICATION_JSON));
+    /**
+     * 等待执行完成并获取结果
+     * 优先通过 WebSocket 完成事件唤醒，WebSocket 不可用时退化为 /history 轮询
+     * 最长等待该工作流的 Prompt 超时时间，且不超过当前任务的截止时间；超时或任务被取消时
+     * 把 Prompt 从 ComfyUI 队列删除或中断执行，不再占用 GPU
+     */
+    public JsonNode waitForCompletion(ComfyUIBackend backend, String workflowName, String promptId)
+            throws IOException, InterruptedException, ParseException {
+        return waitForCompletion(backend, workflowName, promptId, true);
+    }
 
-            try (CloseableHttpResponse response = httpClient.execute(httpPost)) {
-                String responseBody = EntityUtils.toString(response.getEntity(), "UTF-8");
-                log.info("ComfyUI API 响应: {}", responseBody);
-
-                JsonNode jsonNode = objectMapper.readTree(responseBody);
-
-                // 检查是否有错误响应
-                if (jsonNode.has("error")) {
-                    JsonNode errorNode = jsonNode.get("error");
-                    String errorType = errorNode.get("type").asText();
-                    String errorMessage = errorNode.get("message").asText();
-
-                    // 提取详细的节点错误信息
-                    StringBuilder detailsBuilder = new StringBuilder();
-                    if (jsonNode.has("node_errors")) {
-                        JsonNode nodeErrors = jsonNode.get("node_errors");
-                        nodeErrors.fields().forEachRemaining(entry -> {
-                            String nodeId = entry.getKey();
-                            JsonNode nodeError = entry.getValue();
-                            if (nodeError.has("errors") && nodeError.get("errors").isArray()) {
-                                nodeError.get("errors").forEach(err -> {
-                                    String details = err.has("details") ? err.get("details").asText() : "";
-                                    detailsBuilder.append(String.format("\n节点 %s: %s", nodeId, details));
-                                });
-                            }
-                        });
+    /**
+     * @param eventsExpected 该 Prompt 是否以本服务当前的 client_id 提交；重启前提交的 Prompt 收不到 WebSocket 事件，按轮询间隔检查
+     */
+    private JsonNode waitForCompletion(ComfyUIBackend backend, String workflowName, String promptId,
+                                       boolean eventsExpected)
+            throws IOException, InterruptedException, ParseException {
+        log.info("等待工作流执行完成，Prompt ID: {}", promptId);
+
+        long waitStart = System.nanoTime();
+        long submittedAt = System.currentTimeMillis();
+        long deadline = submittedAt + promptTimeout(workflowName);
+        Deadline jobDeadline = Deadline.current();
+        if (jobDeadline != null) {
+            deadline = Math.min(deadline, jobDeadline.getExpiresAt());
+        }
+        ComfyUIConfig.WebSocketConfig wsConfig = config.getWebsocket();
+
+        // 先登记再查询 history，避免完成事件在两者之间到达而丢失
+        CompletableFuture<JsonNode> completion = webSocketService.register(promptId);
+        // 任务取消时同样唤醒
+        CompletableFuture<?> wakeup = jobDeadline != null ?
+                CompletableFuture.anyOf(completion, jobDeadline.cancellation()) : completion;
+        try {
+            while (true) {
+                long fetchStart = System.nanoTime();
+                PromptHistory history = fetchHistory(backend, promptId);
+                if (history != null) {
+                    StageTimer.record(StageTimer.Stage.RESULT_FETCH, fetchStart);
+                    recordRemoteStages(promptId, history, waitStart, submittedAt, fetchStart);
+                    return history.outputs();
+                }
+
+                long remaining = deadline - System.currentTimeMillis();
+                if (jobDeadline != null && (jobDeadline.isCancelled() || remaining <= 0 && jobDeadline.isOver())) {
+                    log.info("任务已取消或超过截止时间，取消 Prompt {}", promptId);
+                    cancelPrompt(backend, promptId);
+                    throw jobDeadline.exception();
+                }
+                if (remaining <= 0) {
+                    break;
+                }
+
+                if (completion.isDone()) {
+                    // 已收到完成事件但 history 尚未可读，短暂等待后重试
+                    Thread.sleep(Math.min(HISTORY_RETRY_MILLIS, remaining));
+                    continue;
+                }
+
+                long waitMillis = eventsExpected && webSocketService.isConnected(backend.getUrl()) ?
+                        wsConfig.getSafetyPollInterval() : wsConfig.getPollInterval();
+                try {
+                    wakeup.get(Math.min(waitMillis, remaining), TimeUnit.MILLISECONDS);
+                    JsonNode error = completion.getNow(null);
+                    if (error != null) {
+                        log.error("工作流执行出错: {}", objectMapper.writeValueAsString(error));
                     }
+                } catch (TimeoutException e) {
+                    // 未收到事件，下一轮检查 history
+                } catch (ExecutionException e) {
+                    log.warn("等待完成事件异常: {}", e.getMessage());
+                }
+            }
+        } finally {
+            webSocketService.release(promptId);
+        }
 
-                    String fullError = String.format("ComfyUI 错误 [%s]: %s%s",
-                            errorType, errorMessage, detailsBuilder.toString());
-                    log.error(fullError);
-                    throw new IOException(fullError);
+        log.warn("Prompt {} 超过 {} 的最长等待时间，取消执行", promptId, workflowName);
+        cancelPrompt(backend, promptId);
+        throw new IOException("工作流执行超时");
+    }
+
+    /**
+     * 单个 Prompt 的最长等待时间（毫秒）
+     */
+    private long promptTimeout(String workflowName) {
+        ComfyUIConfig.DeadlineConfig deadline = config.getDeadline();
+        Long timeout = workflowName != null ? deadline.getWorkflowTimeouts().get(workflowName) : null;
+        return timeout != null && timeout > 0 ? timeout : deadline.getPromptTimeout();
+    }
+
+    /**
+     * 把提交完成到读取结果之间的时间拆分为 ComfyUI 排队、执行和完成检测三段
+     * 优先使用本机收到 WebSocket 事件的时间；没有时使用 history 中的 execution_start / execution_success 时间戳
+     * （执行耗时同一时钟，准确；排队耗时跨主机比较，依赖时钟同步）
+     */
+    private void recordRemoteStages(String promptId, PromptHistory history, long waitStart, long submittedAt,
+                                    long fetchStart) {
+        long span = fetchStart - waitStart;
+        long queue = 0;
+        long execution = span;
+
+        long[] local = webSocketService.getExecutionTimes(promptId);
+        if (local != null && local[0] > 0 && local[1] > 0) {
+            queue = local[0] - waitStart;
+            execution = local[1] - local[0];
+        } else {
+            long startedAt = 0;
+            long finishedAt = 0;
+            for (JsonNode message : history.messages()) {
+                String name = message.path(0).asText();
+                long timestamp = message.path(1).path("timestamp").asLong();
+                if ("execution_start".equals(name)) {
+                    startedAt = timestamp;
+                } else if (name.startsWith("execution_") && !"execution_cached".equals(name)) {
+                    finishedAt = timestamp;
                 }
+            }
+            if (startedAt > 0 && finishedAt >= startedAt) {
+                queue = TimeUnit.MILLISECONDS.toNanos(startedAt - submittedAt);
+                execution = TimeUnit.MILLISECONDS.toNanos(finishedAt - startedAt);
+            }
+        }
 
-                // 检查响应中是否包含 prompt_id
-                if (!jsonNode.has("prompt_id")) {
-                    log.error("API 响应中没有 prompt_id 字段，完整响应: {}", responseBody);
-                    throw new IOException("API 响应格式错误: 缺少 prompt_id 字段");
+        execution = Math.max(0, Math.min(execution, span));
+        queue = Math.max(0, Math.min(queue, span - execution));
+        StageTimer.add(StageTimer.Stage.REMOTE_QUEUE, queue);
+        StageTimer.add(StageTimer.Stage.REMOTE_EXECUTION, execution);
+        StageTimer.add(StageTimer.Stage.COMPLETION_DETECTION, span - queue - execution);
+    }
+
+    /**
+     * 查询 /history/{promptId}，返回该 Prompt 的执行状态和输出图片，未完成时返回 null
+     * 响应中包含提交的完整工作流，输出多时有数 MB，直接从响应流中只取需要的部分；
+     * 开启 history.log-payload 时按采样率记录完整响应
+     */
+    private PromptHistory fetchHistory(ComfyUIBackend backend, String promptId) throws IOException, ParseException {
+        String url = backend.getUrl() + "/history/" + promptId;
+
+        HttpGet httpGet = new HttpGet(url);
+
+        try (CloseableHttpResponse response = httpClient.execute(httpGet)) {
+            HttpEntity entity = response.getEntity();
+            PromptHistory history;
+            if (samplePayload()) {
+                byte[] body = EntityUtils.toByteArray(entity);
+                history = PromptHistory.parse(objectMapper, new ByteArrayInputStream(body), promptId);
+                if (history != null) {
+                    log.info("完整的 history 响应 ({}): {}", promptId, new String(body, StandardCharsets.UTF_8));
+                }
+            } else {
+                // 关闭响应流时读完剩余内容，连接可以复用
+                try (InputStream content = entity.getContent()) {
+                    history = PromptHistory.parse(objectMapper, content, promptId);
                 }
+            }
 
-                String promptId = jsonNode.get("prompt_id").asText();
+            if (history == null) {
+                return null;
+            }
 
-                log.info("工作流已提交，Prompt ID: {}", promptId);
-                return promptId;
+            log.info("工作流执行完成，状态: {}，{} 个输出节点，{} 张图片",
+                    history.statusStr(), history.outputs().size(), history.imageCount());
+            if (!history.completed()) {
+                log.error("工作流未完成");
             }
+            // 没有输出时记录执行消息（包含错误信息）
+            if (history.outputs().isEmpty() && !history.messages().isEmpty()) {
+                log.error("执行消息: {}", history.messages());
+            }
+            log.debug("输出节点数据: {}", history.outputs());
+            return history;
         }
     }
 
+    private boolean samplePayload() {
+        ComfyUIConfig.HistoryConfig historyConfig = config.getHistory();
+        return historyConfig.isLogPayload()
+                && ThreadLocalRandom.current().nextDouble() < historyConfig.getLogSampleRate();
+    }
+
     /**
-     * 等待执行完成并获取结果
+     * 执行工作流并等待输出
+     * 相同工作流（含输入内容）已有结果时直接返回缓存的输出，不再提交到 ComfyUI；
+     * 否则先在 PromptScheduler 中按优先级排队，获得许可后再提交
+     *
+     * @param workflowName 工作流名称，用于按工作流限制并发
+     * @param priority     调度优先级
+     * @param uploads     本次执行上传图片时复用的文件，/prompt 拒绝时重新上传；没有上传图片时为 null
+     * @param cacheable   输入内容是否完全由工作流和 inputHashes 确定（URL 输入的内容可能变化，不能缓存）
+     * @param inputHashes 文件名不能代表内容的输入（如按原名上传的压缩包、Excel）的内容哈希
      */
-    public JsonNode waitForCompletion(String promptId) throws IOException, InterruptedException, ParseException {
-        log.info("等待工作流执行完成，Prompt ID: {}", promptId);
+    private ResultCache.Entry executeAndWait(ComfyUIBackend backend, String workflowName,
+                                             PromptScheduler.Priority priority, ObjectNode workflow,
+                                             Uploads uploads, boolean cacheable, String... inputHashes)
+            throws IOException, InterruptedException, ParseException {
+        return executeAndWait(backend, workflowName, priority, workflow, uploads, null, cacheable, inputHashes);
+    }
 
-        String url = config.getApi().getBaseUrl() + "/history/" + promptId;
+    /**
+     * @param coalesceInput 不为 null 且启用了请求合并时，与其他只有该输入文件不同的请求合并为一个 Prompt 执行
+     */
+    private ResultCache.Entry executeAndWait(ComfyUIBackend backend, String workflowName,
+                                             PromptScheduler.Priority priority, ObjectNode workflow,
+                                             Uploads uploads, WorkflowBinding.FileInput coalesceInput,
+                                             boolean cacheable, String... inputHashes)
+            throws IOException, InterruptedException, ParseException {
+        String cacheKey = null;
+        if (cacheable && resultCache.isEnabled()) {
+            cacheKey = resultCache.key(workflow, inputHashes);
+            ResultCache.Entry cached = resultCache.get(cacheKey);
+            // 结果图片只存在于执行它的服务器上，该服务器不可用时重新执行
+            ComfyUIBackend owner = cached != null ? backendPool.find(cached.baseUrl()) : null;
+            if (owner != null && owner.isHealthy()) {
+                log.info("命中结果缓存，复用 Prompt {} 的输出 ({})", cached.promptId(), owner);
+                stageMetrics.record(workflowName, owner, "cache_hit");
+                return cached;
+            }
+        }
 
-        // 轮询检查执行状态（最多等待 5 分钟）
-        int maxAttempts = 60;
-        int attempt = 0;
+        // 与重启前已提交、正在取回的 Prompt 相同时直接等待其结果
+        String journalKey = null;
+        if (promptJournal.isEnabled()) {
+            journalKey = cacheKey != null ? cacheKey : resultCache.key(workflow, inputHashes);
+            ResultCache.Entry recovered = awaitRecovery(journalKey);
+            if (recovered != null) {
+                // 按执行该 Prompt 的服务器记录，而不是本次请求选中的服务器
+                stageMetrics.record(workflowName, backendPool.find(recovered.baseUrl()), "cache_hit");
+                return recovered;
+            }
+        }
 
-        while (attempt < maxAttempts) {
-            Thread.sleep(5000); // 每 5 秒检查一次
+        ResultCache.Entry execution;
+        try {
+            if (coalesceInput != null && promptCoalescer.isEnabled()) {
+                // 合并后的 Prompt 由批次中的一个线程提交，各阶段耗时在该线程记录后分摊给每个请求
+                PromptCoalescer.Result coalesced = promptCoalescer.execute(backend, workflowName, workflow,
+                        coalesceInput, (batch, subscribers) -> submitAndWait(backend, workflowName, priority, batch,
+                                null, false, subscribers));
+                stageMetrics.record(workflowName, backend, "coalesced");
+                StageTimer.addAll(coalesced.stages());
+                execution = coalesced.entry();
+            } else {
+                execution = submitAndWait(backend, workflowName, priority, workflow, journalKey, cacheable);
+            }
+        } catch (PromptRejectedException e) {
+            // 复用的上传文件已不在 ComfyUI 中：重新上传后再提交一次
+            if (uploads == null || !reuploadRejected(workflow, e.getRejectedFiles(), uploads)) {
+                throw e;
+            }
+            execution = submitAndWait(backend, workflowName, priority, workflow, journalKey, cacheable);
+        }
 
-            try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
-                HttpGet httpGet = new HttpGet(url);
+        if (cacheKey != null && execution.outputs() != null && execution.outputs().size() > 0) {
+            resultCache.put(cacheKey, execution.promptId(), execution.baseUrl(), execution.outputs());
+        }
+        return execution;
+    }
 
-                try (CloseableHttpResponse response = httpClient.execute(httpGet)) {
-                    String responseBody = EntityUtils.toString(response.getEntity(), "UTF-8");
-                    JsonNode history = objectMapper.readTree(responseBody);
-
-                    if (history.has(promptId)) {
-                        log.info("工作流执行完成");
-                        JsonNode promptData = history.get(promptId);
-                        log.info("完整的 Prompt 数据: {}", objectMapper.writeValueAsString(promptData));
-
-                        // 检查是否有执行错误
-                        if (promptData.has("status")) {
-                            JsonNode status = promptData.get("status");
-                            if (status.has("status_str")) {
-                                String statusStr = status.get("status_str").asText();
-                                log.info("工作流执行状态: {}", statusStr);
-                            }
-                            if (status.has("completed") && status.get("completed").asBoolean() == false) {
-                                log.error("工作流未完成");
-                            }
-                        }
+    /**
+     * 重新上传 /prompt 拒绝的、由上传缓存复用的文件（每个文件只重试一次），并更新工作流中的文件名
+     *
+     * @return 是否重新上传了文件
+     */
+    private boolean reuploadRejected(ObjectNode workflow, Set<String> rejectedFiles, Uploads uploads)
+            throws IOException, ParseException {
+        boolean reuploaded = false;
+        for (String rejected : rejectedFiles) {
+            ReUpload reUpload = uploads.take(rejected);
+            if (reUpload == null) {
+                continue;
+            }
+            log.warn("复用的上传文件 {} 已不在 ComfyUI 中，重新上传", rejected);
+            String uploadedName = reUpload.upload();
+            workflow.fields().forEachRemaining(entry -> {
+                JsonNode inputs = entry.getValue().path("inputs");
+                if ("LoadImage".equals(entry.getValue().path("class_type").asText())
+                        && rejected.equals(inputs.path("image").asText())) {
+                    ((ObjectNode) inputs).put("image", uploadedName);
+                }
+            });
+            reuploaded = true;
+        }
+        return reuploaded;
+    }
 
-                        // 检查执行错误信息
-                        if (promptData.has("outputs") && promptData.get("outputs").isObject() &&
-                            promptData.get("outputs").size() == 0 && promptData.has("status")) {
-                            JsonNode status = promptData.get("status");
-                            if (status.has("messages")) {
-                                log.error("执行消息: {}", objectMapper.writeValueAsString(status.get("messages")));
-                            }
-                        }
+    /**
+     * 在 PromptScheduler 中排队，获得许可后提交并等待完成；异步任务中把执行进度转发给当前任务的订阅者
+     *
+     * @param journalKey 不为 null 时写入 Prompt 日志，重启后继续取回
+     */
+    private ResultCache.Entry submitAndWait(ComfyUIBackend backend, String workflowName,
+                                            PromptScheduler.Priority priority, ObjectNode workflow,
+                                            String journalKey, boolean cacheable)
+            throws IOException, InterruptedException, ParseException {
+        JobService.JobEvents events = jobService.currentEvents();
+        return submitAndWait(backend, workflowName, priority, workflow, journalKey, cacheable,
+                events != null ? List.of(new PromptCoalescer.Subscriber(events, null)) : List.of());
+    }
+
+    /**
+     * @param subscribers 接收执行进度的请求（合并执行时每个请求只收到属于自己的节点的进度）
+     */
+    private ResultCache.Entry submitAndWait(ComfyUIBackend backend, String workflowName,
+                                            PromptScheduler.Priority priority, ObjectNode workflow,
+                                            String journalKey, boolean cacheable,
+                                            List<PromptCoalescer.Subscriber> subscribers)
+            throws IOException, InterruptedException, ParseException {
+        JsonNode outputs;
+        String promptId;
+        boolean completed = false;
+        long queueStart = System.nanoTime();
+        try (PromptScheduler.Permit permit = promptScheduler.acquire(backend, workflowName, priority)) {
+            StageTimer.record(StageTimer.Stage.LOCAL_QUEUE, queueStart);
+            backend.promptSubmitted();
+            try {
+                // 排队期间任务可能已被取消
+                Deadline.checkCurrent();
+                long submitStart = System.nanoTime();
+                promptId = executeWorkflow(backend, workflow);
+                StageTimer.record(StageTimer.Stage.SUBMIT, submitStart);
+                if (journalKey != null) {
+                    promptJournal.submitted(promptId, backend.getUrl(), workflowName, journalKey, cacheable);
+                }
+                // 异步任务中把该 Prompt 的执行进度转发给 SSE 订阅者
+                if (!subscribers.isEmpty()) {
+                    webSocketService.addListener(promptId, event -> subscribers.forEach(subscriber ->
+                            forwardProgress(subscriber, backend, workflow, event)));
+                }
+                try {
+                    outputs = waitForCompletion(backend, workflowName, promptId);
+                    completed = true;
+                } catch (IOException | ParseException e) {
+                    promptJournal.completed(promptId);
+                    throw e;
+                } finally {
+                    webSocketService.removeListener(promptId);
+                }
+                // 被中断（服务关闭）时不标记完成，重启后继续取回
+                promptJournal.completed(promptId);
+            } finally {
+                backend.promptFinished();
+            }
+        } finally {
+            stageMetrics.record(workflowName, backend, completed ? "success" : "failure");
+        }
+        return new ResultCache.Entry(promptId, backend.getUrl(), outputs, System.currentTimeMillis());
+    }
+
+    /**
+     * 等待与 journalKey 相同的重启前 Prompt 的结果，没有或取回失败时返回 null
+     * 最长等待到当前任务的截止时间，任务被取消时立即放弃等待（重启前的 Prompt 继续为其他请求取回）
+     */
+    private ResultCache.Entry awaitRecovery(String journalKey) throws IOException, InterruptedException {
+        CompletableFuture<ResultCache.Entry> recovery = promptJournal.findRecovery(journalKey);
+        if (recovery == null) {
+            return null;
+        }
+        Deadline deadline = Deadline.current();
+        try {
+            if (deadline != null) {
+                CompletableFuture.anyOf(recovery, deadline.cancellation())
+                        .get(deadline.remaining(), TimeUnit.MILLISECONDS);
+                if (!recovery.isDone()) {
+                    throw deadline.exception();
+                }
+            }
+            ResultCache.Entry entry = recovery.get();
+            if (entry.outputs() != null && entry.outputs().size() > 0) {
+                log.info("复用重启前提交的 Prompt {} 的结果", entry.promptId());
+                return entry;
+            }
+        } catch (TimeoutException e) {
+            throw deadline.exception();
+        } catch (ExecutionException e) {
+            log.debug("重启前提交的 Prompt 取回失败，重新提交: {}", e.getCause().getMessage());
+        }
+        return null;
+    }
 
-                        JsonNode outputs = promptData.get("outputs");
-                        log.info("输出节点数据: {}", objectMapper.writeValueAsString(outputs));
-                        return outputs;
+    /**
+     * 启动后继续等待 Prompt 日志中重启前未完成的 Prompt，结果写入结果缓存并供重新提交的相同请求复用
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void resumeJournaledPrompts() {
+        for (PromptJournal.Record record : promptJournal.takeRecovered()) {
+            ComfyUIBackend backend = backendPool.find(record.baseUrl());
+            if (backend == null) {
+                log.warn("重启前的 Prompt {} 所在服务器 {} 已不在配置中，放弃取回", record.promptId(), record.baseUrl());
+                promptJournal.completed(record.promptId());
+                continue;
+            }
+            CompletableFuture<ResultCache.Entry> future = promptJournal.recovering(record);
+            Thread.ofVirtual().name("prompt-resume-" + record.promptId()).start(() -> resume(backend, record, future));
+        }
+    }
+
+    private void resume(ComfyUIBackend backend, PromptJournal.Record record,
+                        CompletableFuture<ResultCache.Entry> future) {
+        String promptId = record.promptId();
+        backend.promptSubmitted();
+        try {
+            // ComfyUI 也重启过时 Prompt 既不在队列也不在 history 中，不必等到超时
+            if (fetchHistory(backend, promptId) == null && queueState(backend, promptId) == null) {
+                throw new IOException("ComfyUI 中已没有该 Prompt");
+            }
+            log.info("继续等待重启前提交的 Prompt {} ({}, {})", promptId, record.workflow(), backend);
+            JsonNode outputs = waitForCompletion(backend, record.workflow(), promptId, false);
+            if (record.cacheable() && resultCache.isEnabled() && outputs != null && outputs.size() > 0) {
+                resultCache.put(record.key(), promptId, backend.getUrl(), outputs);
+            }
+            future.complete(new ResultCache.Entry(promptId, backend.getUrl(), outputs, System.currentTimeMillis()));
+            promptJournal.completed(promptId);
+            log.info("已取回重启前提交的 Prompt {} 的结果", promptId);
+        } catch (InterruptedException e) {
+            future.completeExceptionally(e);
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.warn("取回重启前提交的 Prompt {} 失败: {}", promptId, e.getMessage());
+            future.completeExceptionally(e);
+            promptJournal.completed(promptId);
+        } finally {
+            backend.promptFinished();
+        }
+    }
+
+    /**
+     * Prompt 在 ComfyUI 队列中的位置
+     *
+     * @return queue_running（执行中）、queue_pending（等待中），不在队列中时返回 null
+     */
+    private String queueState(ComfyUIBackend backend, String promptId) throws IOException, ParseException {
+        try (CloseableHttpResponse response = httpClient.execute(new HttpGet(backend.getUrl() + "/queue"))) {
+            JsonNode queue = objectMapper.readTree(EntityUtils.toString(response.getEntity(), "UTF-8"));
+            for (String name : new String[]{"queue_running", "queue_pending"}) {
+                for (JsonNode item : queue.path(name)) {
+                    if (promptId.equals(item.path(1).asText())) {
+                        return name;
                     }
                 }
             }
+            return null;
+        }
+    }
 
-            attempt++;
+    /**
+     * 取消已提交的 Prompt：仍在等待时从 ComfyUI 队列删除，正在执行时中断
+     * 中断请求带 prompt_id，ComfyUI 只在该 Prompt 仍在执行时中断，不会误伤其他 Prompt
+     */
+    private void cancelPrompt(ComfyUIBackend backend, String promptId) {
+        try {
+            String state = queueState(backend, promptId);
+            if (state == null) {
+                return;
+            }
+            ObjectNode payload = objectMapper.createObjectNode();
+            String path;
+            if ("queue_pending".equals(state)) {
+                path = "/queue";
+                payload.putArray("delete").add(promptId);
+            } else {
+                path = "/interrupt";
+                payload.put("prompt_id", promptId);
+            }
+            HttpPost httpPost = new HttpPost(backend.getUrl() + path);
+            httpPost.setEntity(new StringEntity(objectMapper.writeValueAsString(payload), ContentType.APPLICATION_JSON));
+            try (CloseableHttpResponse response = httpClient.execute(httpPost)) {
+                EntityUtils.consume(response.getEntity());
+                log.info("已{} Prompt {} ({}, HTTP {})", "queue_pending".equals(state) ? "从队列删除" : "中断",
+                        promptId, backend, response.getCode());
+            }
+        } catch (Exception e) {
+            log.warn("取消 Prompt {} 失败: {}", promptId, e.getMessage());
         }
+    }
 
-        throw new IOException("工作流执行超时");
+    /**
+     * 把 ComfyUI 的 progress / executing / executed 事件转换为任务进度事件
+     * 在 WebSocket 读线程上调用，只做转换和入队
+     */
+    private void forwardProgress(PromptCoalescer.Subscriber subscriber, ComfyUIBackend backend,
+                                 JsonNode workflow, JsonNode event) {
+        String type = event.path("type").asText();
+        JsonNode data = event.path("data");
+        JobService.JobEvents events = subscriber.events();
+
+        JobProgressEvent progress = new JobProgressEvent();
+        progress.setPromptId(data.path("prompt_id").asText());
+        String node = data.path("node").asText(null);
+        if (node != null) {
+            progress.setNodeType(workflow.path(node).path("class_type").asText(null));
+            if (subscriber.nodeIds() != null) {
+                // 合并执行：只转发属于该请求的节点，并还原为原节点 ID
+                node = subscriber.nodeIds().get(node);
+                if (node == null) {
+                    return;
+                }
+            }
+        }
+        progress.setNode(node);
+
+        switch (type) {
+            case "progress":
+                progress.setValue(data.path("value").asInt());
+                progress.setMax(data.path("max").asInt());
+                // 进度事件频率很高，订阅者跟不上时同一节点只发送最新的
+                events.send(type, progress, "progress:" + progress.getPromptId() + ":" + node);
+                break;
+            case "executed":
+                progress.setImages(progressImages(events.getJobType(), backend.getUrl(), progress.getPromptId(),
+                        data.path("output").path("images")));
+                events.send(type, progress, null);
+                break;
+            default:
+                events.send(type, progress, null);
+                break;
+        }
+    }
+
+    /**
+     * 节点输出的图片，按任务类型使用与最终结果相同的结构
+     */
+    private List<?> progressImages(String jobType, String baseUrl, String promptId, JsonNode images) {
+        List<Object> result = new ArrayList<>();
+        for (JsonNode image : images) {
+            String filename = image.path("filename").asText();
+            String subfolder = image.path("subfolder").asText("");
+            String type = image.path("type").asText("output");
+            String remoteUrl = baseUrl + "/view?filename=" + filename;
+            if (!subfolder.isEmpty()) {
+                remoteUrl += "&subfolder=" + subfolder;
+            }
+            remoteUrl += "&type=" + type;
+            String outputUrl = resultMirror.prefetch(baseUrl, promptId, filename, subfolder, type);
+
+            if ("batch".equals(jobType)) {
+                BatchMattingResult.ImageInfo info = new BatchMattingResult.ImageInfo();
+                info.setFilename(filename);
+                info.setSubfolder(subfolder);
+                info.setRemoteUrl(remoteUrl);
+                info.setOutputUrl(outputUrl);
+                result.add(info);
+            } else if ("collage".equals(jobType)) {
+                CollageResult.ImageInfo info = new CollageResult.ImageInfo();
+                info.setFilename(filename);
+                info.setSubfolder(subfolder);
+                info.setRemoteUrl(remoteUrl);
+                info.setOutputUrl(outputUrl);
+                result.add(info);
+            } else {
+                MattingResult.ImageOutput output = new MattingResult.ImageOutput();
+                output.setFilename(filename);
+                output.setRemoteUrl(remoteUrl);
+                output.setOutputUrl(outputUrl);
+                result.add(output);
+            }
+        }
+        return result;
     }
 
     /**
      * 下载输出图片
      */
-    public File downloadImage(String filename, String subfolder, String type, String outputDir) throws IOException {
+    public File downloadImage(ComfyUIBackend backend, String filename, String subfolder, String type,
+                              String outputDir) throws IOException {
         log.info("下载图片: filename={}, subfolder={}, type={}, outputDir={}", filename, subfolder, type, outputDir);
 
         // 修复：添加 /api 前缀，调整参数顺序为 filename&type&subfolder
-        String url = config.getApi().getBaseUrl() + "/api/view"
+        String url = backend.getUrl() + "/api/view"
                 + "?filename=" + filename
                 + "&type=" + (type != null ? type : "output")
                 + "&subfolder=" + (subfolder != null ? subfolder : "");
 
         log.info("下载URL: {}", url);
 
-        try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
-            HttpGet httpGet = new HttpGet(url);
+        HttpGet httpGet = new HttpGet(url);
 
-            try (CloseableHttpResponse response = httpClient.execute(httpGet)) {
-                byte[] imageBytes = EntityUtils.toByteArray(response.getEntity());
+        try (CloseableHttpResponse response = httpClient.execute(httpGet)) {
+            byte[] imageBytes = EntityUtils.toByteArray(response.getEntity());
 
-                // 保存到输出目录
-                Path outputPath = Paths.get(outputDir);
-                if (!Files.exists(outputPath)) {
-                    Files.createDirectories(outputPath);
-                }
+            // 保存到输出目录
+            Path outputPath = Paths.get(outputDir);
+            if (!Files.exists(outputPath)) {
+                Files.createDirectories(outputPath);
+            }
 
-                File outputFile = new File(outputPath.toFile(), filename);
-                FileUtils.writeByteArrayToFile(outputFile, imageBytes);
+            File outputFile = new File(outputPath.toFile(), filename);
+            FileUtils.writeByteArrayToFile(outputFile, imageBytes);
 
-                log.info("图片已保存: {}", outputFile.getAbsolutePath());
-                return outputFile;
-            }
+            log.info("图片已保存: {}", outputFile.getAbsolutePath());
+            return outputFile;
         }
     }
 
@@ -302,42 +1015,34 @@ public class ComfyUIService {
     public MattingResult runMatting(MultipartFile imageFile, MattingRequest request) {
         MattingResult result = new MattingResult();
         long startTime = System.currentTimeMillis();
+        StageTimer stageTimer = StageTimer.start();
+        ComfyUIBackend backend = null;
 
         try {
             // 1. 加载工作流
             String workflowName = request.getWorkflowName() != null ?
                     request.getWorkflowName() : config.getWorkflow().getDefaultWorkflow();
-            JsonNode workflow = loadWorkflowFromResource(workflowName);
+            ObjectNode workflow = loadWorkflowFromResource(workflowName);
+            backend = backendPool.select(workflowName);
 
             // 2. 上传图片
-            String uploadedName = uploadImage(imageFile);
+            Uploads uploads = new Uploads();
+            String uploadedName = uploadImage(backend, imageFile, uploads);
 
-            // 3. 更新工作流参数 - 节点 2 是 LoadImage 节点
-            workflow = updateWorkflowParams(workflow, "2", "image", uploadedName);
-
-            // 应用自定义参数
-            // 节点 10 (SAMDetectorSegmented) 的 threshold 参数
-            if (request.getThreshold() != null) {
-                workflow = updateWorkflowParams(workflow, "10", "threshold", request.getThreshold());
-            }
-
-            // 节点 23 (GrowMaskWithBlur) 的边缘优化参数
-            if (request.getAlphaMatting() != null && request.getAlphaMatting()) {
-                // 调整边缘模糊参数
-                if (request.getAlphaMattingErodeSize() != null) {
-                    workflow = updateWorkflowParams(workflow, "23", "expand", -request.getAlphaMattingErodeSize());
-                }
-            }
+            // 3. 更新工作流参数 - 节点 2 是 LoadImage 节点，节点 10/23 为阈值和边缘参数
+            WorkflowBindings.SAM_MATTING.apply(workflow, request, uploadedName);
 
-            // 4. 执行工作流
+            // 4. 执行工作流并等待完成
             log.debug("runMatting - 更新后的工作流: {}", objectMapper.writeValueAsString(workflow));
-            String promptId = executeWorkflow(workflow);
-            result.setPromptId(promptId);
-
-            // 5. 等待完成
-            JsonNode outputs = waitForCompletion(promptId);
-
-            // 6. 下载结果
+            // 内置工作流的同参数请求可以合并执行
+            WorkflowBinding.FileInput coalesceInput = WorkflowBindings.SAM_MATTING.getWorkflowName().equals(workflowName) ?
+                    WorkflowBindings.SAM_MATTING.getFileInput() : null;
+            ResultCache.Entry execution = executeAndWait(backend, workflowName, PromptScheduler.Priority.INTERACTIVE,
+                    workflow, uploads, coalesceInput, true);
+            result.setPromptId(execution.promptId());
+            JsonNode outputs = execution.outputs();
+
+            // 5. 下载结果
             String outputFilename = null;
             for (JsonNode nodeOutput : outputs) {
                 if (nodeOutput.has("images")) {
@@ -351,7 +1056,7 @@ public class ComfyUIService {
                                 firstImage.get("type").asText() : "output";
 
                         // 构建 ComfyUI 远程 URL
-                        String remoteUrl = config.getApi().getBaseUrl() + "/view?filename=" + filename;
+                        String remoteUrl = execution.baseUrl() + "/view?filename=" + filename;
                         if (!subfolder.isEmpty()) {
                             remoteUrl += "&subfolder=" + subfolder;
                         }
@@ -360,6 +1065,8 @@ public class ComfyUIService {
                         result.setSuccess(true);
                         result.setOutputFilename(filename);
                         result.setRemoteUrl(remoteUrl);
+                        result.setOutputUrl(resultMirror.prefetch(execution.baseUrl(), execution.promptId(),
+                                filename, subfolder, type));
                         break;
                     }
                 }
@@ -370,13 +1077,19 @@ public class ComfyUIService {
                 result.setErrorMessage("未找到输出图片");
             }
 
+        } catch (QueueFullException e) {
+            // 通过准入检查后队列才满：交给 GlobalExceptionHandler 返回 429
+            throw e;
         } catch (Exception e) {
             log.error("抠图失败", e);
             result.setSuccess(false);
             result.setErrorMessage(e.getMessage());
+        } finally {
+            backendPool.release(backend);
         }
 
         result.setExecutionTime(System.currentTimeMillis() - startTime);
+        result.setStages(stageTimer.finish());
         return result;
     }
 
@@ -389,52 +1102,36 @@ public class ComfyUIService {
     public MattingResult runKeywordMatting(KeywordMattingRequest request) {
         MattingResult result = new MattingResult();
         long startTime = System.currentTimeMillis();
+        StageTimer stageTimer = StageTimer.start();
+        ComfyUIBackend backend = null;
 
         try {
             // 1. 加载关键字抠图工作流
-            JsonNode workflow = loadWorkflowFromResource("matting_keyword_api.json");
+            ObjectNode workflow = loadWorkflowFromResource("matting_keyword_api.json");
+            backend = backendPool.select("matting_keyword_api.json");
 
             // 2. 上传图片
-            String uploadedName = uploadImage(request.getImage());
+            Uploads uploads = new Uploads();
+            String uploadedName = uploadImage(backend, request.getImage(), uploads);
 
             // 3. 更新工作流参数 - 根据 matting_keyword_api.json 的节点结构
-            // 节点 1: LoadImage - 加载图片
-            workflow = updateWorkflowParams(workflow, "1", "image", uploadedName);
-
-            // 节点 4: ArgosTranslateTextNode - 翻译关键字
+            // 节点 1: LoadImage，节点 4: ArgosTranslateTextNode，节点 2: SegmentAnythingUltra V2
             log.info("关键字抠图 - 关键字: '{}', 翻译方向: {} -> english",
                     request.getKeyword(), request.getTranslateFrom());
-
-            workflow = updateWorkflowParams(workflow, "4", "from_translate", request.getTranslateFrom());
-            workflow = updateWorkflowParams(workflow, "4", "to_translate", "english");
-            workflow = updateWorkflowParams(workflow, "4", "text", request.getKeyword());
-
-            // 节点 2: LayerMask: SegmentAnythingUltra V2 - SAM + Grounding DINO
             log.info("关键字抠图 - SAM参数: model={}, dino={}, threshold={}",
                     request.getSamModel(), request.getDinoModel(), request.getThreshold());
+            WorkflowBindings.KEYWORD_MATTING.apply(workflow, request, uploadedName);
 
-            workflow = updateWorkflowParams(workflow, "2", "sam_model", request.getSamModel());
-            workflow = updateWorkflowParams(workflow, "2", "grounding_dino_model", request.getDinoModel());
-            workflow = updateWorkflowParams(workflow, "2", "threshold", request.getThreshold());
-            workflow = updateWorkflowParams(workflow, "2", "detail_method", request.getDetailMethod());
-            workflow = updateWorkflowParams(workflow, "2", "detail_erode", request.getDetailErode());
-            workflow = updateWorkflowParams(workflow, "2", "detail_dilate", request.getDetailDilate());
-            workflow = updateWorkflowParams(workflow, "2", "black_point", request.getBlackPoint());
-            workflow = updateWorkflowParams(workflow, "2", "white_point", request.getWhitePoint());
-            workflow = updateWorkflowParams(workflow, "2", "max_megapixels", request.getMaxMegapixels());
-            workflow = updateWorkflowParams(workflow, "2", "device", request.getDevice());
-
-            // 4. 执行工作流
+            // 4. 执行工作流并等待完成
             log.info("runKeywordMatting - 准备提交工作流，节点数: {}",
                      workflow.isObject() ? ((ObjectNode)workflow).size() : 0);
 
-            String promptId = executeWorkflow(workflow);
-            result.setPromptId(promptId);
+            ResultCache.Entry execution = executeAndWait(backend, "matting_keyword_api.json", PromptScheduler.Priority.INTERACTIVE,
+                    workflow, uploads, true);
+            result.setPromptId(execution.promptId());
+            JsonNode outputs = execution.outputs();
 
-            // 5. 等待完成
-            JsonNode outputs = waitForCompletion(promptId);
-
-            // 6. 下载结果
+            // 5. 下载结果
             String outputFilename = null;
             for (JsonNode nodeOutput : outputs) {
                 if (nodeOutput.has("images")) {
@@ -448,7 +1145,7 @@ public class ComfyUIService {
                                 firstImage.get("type").asText() : "output";
 
                         // 构建 ComfyUI 远程 URL
-                        String remoteUrl = config.getApi().getBaseUrl() + "/view?filename=" + filename;
+                        String remoteUrl = execution.baseUrl() + "/view?filename=" + filename;
                         if (!subfolder.isEmpty()) {
                             remoteUrl += "&subfolder=" + subfolder;
                         }
@@ -457,6 +1154,8 @@ public class ComfyUIService {
                         result.setSuccess(true);
                         result.setOutputFilename(filename);
                         result.setRemoteUrl(remoteUrl);
+                        result.setOutputUrl(resultMirror.prefetch(execution.baseUrl(), execution.promptId(),
+                                filename, subfolder, type));
                         break;
                     }
                 }
@@ -467,126 +1166,385 @@ public class ComfyUIService {
                 result.setErrorMessage("未找到输出图片");
             }
 
+        } catch (QueueFullException e) {
+            throw e;
         } catch (Exception e) {
             log.error("关键字抠图失败", e);
             result.setSuccess(false);
             result.setErrorMessage(e.getMessage());
+        } finally {
+            backendPool.release(backend);
         }
 
         result.setExecutionTime(System.currentTimeMillis() - startTime);
+        result.setStages(stageTimer.finish());
         return result;
     }
 
+    /**
+     * 从URL提取Excel文件名，无法识别时使用 downloaded.xlsx
+     */
+    private static String excelFilenameFromUrl(String url) {
+        String filename = "downloaded.xlsx";
+        if (url.contains("/")) {
+            String lastPart = url.substring(url.lastIndexOf("/") + 1);
+            if (lastPart.contains("?")) {
+                lastPart = lastPart.substring(0, lastPart.indexOf("?"));
+            }
+            if (lastPart.endsWith(".xlsx") || lastPart.endsWith(".xls")) {
+                filename = lastPart;
+            }
+        }
+        return filename;
+    }
+
     /**
      * 执行Excel产品拼接
+     * 拆分执行时先在本服务读取 Excel，有多个组合 SKU 时每个组合 SKU 提交一个 Prompt 并行执行；
+     * 不拆分、只有一个组合 SKU 或本地读取失败时整表提交一个 Prompt，由 ExcelSKULoader 逐行处理
      *
      * @param request 拼接请求参数
      * @return 拼接结果
      */
     public CollageResult runCollage(CollageRequest request) {
+        boolean fanOut = request.getFanOut() != null ? request.getFanOut() : config.getCollage().isFanOut();
+        if (!fanOut || !"by_combined_sku".equals(request.getOutputMode())) {
+            return runCollagePrompt(request, null);
+        }
+
+        // 拆分需要在本地读取 Excel：上传的文件直接使用，URL 先下载到临时文件（之后按内容哈希缓存结果）
+        SpooledMultipartFile excel = null;
+        boolean temporary = false;
+        try {
+            try {
+                MultipartFile file = request.getExcelFile();
+                if (file != null && !file.isEmpty()) {
+                    if (file instanceof SpooledMultipartFile spooled) {
+                        excel = spooled;
+                    } else {
+                        excel = SpooledMultipartFile.copyOf(file);
+                        temporary = true;
+                    }
+                } else if (request.getExcelUrl() != null && !request.getExcelUrl().trim().isEmpty()) {
+                    excel = downloadExcel(request.getExcelUrl().trim());
+                    temporary = true;
+                }
+                if (excel != null && isXlsx(excel.getOriginalFilename())) {
+                    List<CollageSheet.Group> groups = CollageSheet.read(excel.getPath(), request);
+                    int maxGroups = config.getCollage().getMaxGroups();
+                    if (groups.size() > 1 && groups.size() <= maxGroups) {
+                        return runCollageFanOut(request, excel, groups);
+                    }
+                    log.info("runCollage - {} 个组合SKU（上限 {}），整表提交", groups.size(), maxGroups);
+                }
+            } catch (Exception e) {
+                // 由 ExcelSKULoader 读取整表并报告具体错误
+                log.warn("runCollage - 本地读取Excel失败，整表提交: {}", e.getMessage());
+            }
+            return runCollagePrompt(request, excel);
+        } finally {
+            if (temporary) {
+                deleteQuietly(excel);
+            }
+        }
+    }
+
+    /**
+     * 整表提交一个拼接 Prompt
+     *
+     * @param excel 已在本地的 Excel 文件，为 null 时使用请求中的文件或 URL
+     */
+    private CollageResult runCollagePrompt(CollageRequest request, SpooledMultipartFile excel) {
         CollageResult result = new CollageResult();
         long startTime = System.currentTimeMillis();
+        StageTimer stageTimer = StageTimer.start();
+        ComfyUIBackend backend = null;
 
         try {
             // 1. 加载拼接工作流
-            JsonNode workflow = loadWorkflowFromResource("collage-excel-v-api.json");
+            ObjectNode workflow = loadWorkflowFromResource("collage-excel-v-api.json");
+            backend = backendPool.select("collage-excel-v-api.json");
 
             // 2. 上传Excel文件到ComfyUI（不指定subfolder，直接上传到input根目录）
-            String uploadedExcelName = uploadFile(request.getExcelFile(), null);
+            // 未上传文件时从 URL 下载并直接转发
+            // Excel 按原名上传，结果缓存需要额外的内容哈希；URL 的内容可能变化，不缓存
+            String uploadedExcelName;
+            String excelHash = null;
+            if (excel != null) {
+                uploadedExcelName = uploadFile(backend, excel, null);
+                excelHash = UploadCache.sha256(excel);
+            } else if (request.getExcelFile() != null && !request.getExcelFile().isEmpty()) {
+                uploadedExcelName = uploadFile(backend, request.getExcelFile(), null);
+                excelHash = UploadCache.sha256(request.getExcelFile());
+            } else if (request.getExcelUrl() != null && !request.getExcelUrl().trim().isEmpty()) {
+                String excelUrl = request.getExcelUrl().trim();
+                uploadedExcelName = uploadFromUrl(backend, excelUrl, excelFilenameFromUrl(excelUrl), null);
+            } else {
+                throw new IOException("请上传Excel文件或提供Excel文件URL");
+            }
             log.info("Excel文件上传完成，返回文件名: {}", uploadedExcelName);
 
             // 3. 更新工作流参数
-            // 节点 34: ExcelSKULoader - 主要的Excel加载节点
-            workflow = updateWorkflowParams(workflow, "34", "excel_file", uploadedExcelName);
-            workflow = updateWorkflowParams(workflow, "34", "sheet_name", request.getSheetName());
-            workflow = updateWorkflowParams(workflow, "34", "combined_sku_col", request.getCombinedSkuCol());
-            workflow = updateWorkflowParams(workflow, "34", "sku_col", request.getSkuCol());
-            workflow = updateWorkflowParams(workflow, "34", "pcs_col", request.getPcsCol());
-            workflow = updateWorkflowParams(workflow, "34", "url_col", request.getUrlCol());
-            workflow = updateWorkflowParams(workflow, "34", "start_row", request.getStartRow());
-            workflow = updateWorkflowParams(workflow, "34", "use_cache", request.getUseCache());
-            workflow = updateWorkflowParams(workflow, "34", "cache_size", request.getCacheSize());
-            workflow = updateWorkflowParams(workflow, "34", "label_format", request.getLabelFormat());
-            workflow = updateWorkflowParams(workflow, "34", "output_mode", request.getOutputMode());
-            workflow = updateWorkflowParams(workflow, "34", "filename_prefix", request.getFilenamePrefix());
-            workflow = updateWorkflowParams(workflow, "34", "filter_combined_sku", request.getFilterCombinedSku());
-
-            // 节点 12: SmartProductCollageBatch - 拼接节点
-            workflow = updateWorkflowParams(workflow, "12", "images_per_collage", request.getImagesPerCollage());
-            workflow = updateWorkflowParams(workflow, "12", "layout", request.getLayout());
-            workflow = updateWorkflowParams(workflow, "12", "output_width", request.getOutputWidth());
-            workflow = updateWorkflowParams(workflow, "12", "output_height", request.getOutputHeight());
-            workflow = updateWorkflowParams(workflow, "12", "spacing", request.getSpacing());
-            workflow = updateWorkflowParams(workflow, "12", "min_spacing", request.getMinSpacing());
-            workflow = updateWorkflowParams(workflow, "12", "outer_padding", request.getOuterPadding());
-            // productScale: 前端传百分比(10-100)，需要转换为比例值(0.1-1.0)
-            double productScale = request.getProductScale() / 100.0;
-            workflow = updateWorkflowParams(workflow, "12", "product_scale", productScale);
-            workflow = updateWorkflowParams(workflow, "12", "crop_margin", request.getCropMargin());
-            workflow = updateWorkflowParams(workflow, "12", "skip_empty", request.getSkipEmpty());
-            workflow = updateWorkflowParams(workflow, "12", "label_font_size", request.getLabelFontSize());
-            workflow = updateWorkflowParams(workflow, "12", "label_position", request.getLabelPosition());
-            workflow = updateWorkflowParams(workflow, "12", "label_margin", request.getLabelMargin());
-            workflow = updateWorkflowParams(workflow, "12", "hide_pcs_one", request.getHidePcsOne());
-            workflow = updateWorkflowParams(workflow, "12", "adaptive_direction", request.getAdaptiveDirection());
-
-            // 4. 执行工作流
+            // 节点 34: ExcelSKULoader，节点 12: SmartProductCollageBatch
+            WorkflowBindings.COLLAGE.apply(workflow, request, uploadedExcelName);
+
+            // 4. 执行工作流并等待完成
             log.info("runCollage - 准备提交工作流");
-            String promptId = executeWorkflow(workflow);
-            result.setPromptId(promptId);
+            ResultCache.Entry execution = executeAndWait(backend, "collage-excel-v-api.json", PromptScheduler.Priority.BATCH,
+                    workflow, null, excelHash != null, excelHash);
+            result.setPromptId(execution.promptId());
+
+            // 5. 收集所有结果图片
+            List<CollageResult.ImageInfo> imageInfoList = collectCollageImages(execution);
+
+            if (!imageInfoList.isEmpty()) {
+                result.setSuccess(true);
+                result.setImages(imageInfoList);
+                result.setImageCount(imageInfoList.size());
+            } else {
+                result.setSuccess(false);
+                result.setErrorMessage("未找到输出图片");
+            }
+
+        } catch (QueueFullException e) {
+            throw e;
+        } catch (Exception e) {
+            log.error("Excel产品拼接失败", e);
+            result.setSuccess(false);
+            result.setErrorMessage(e.getMessage());
+        } finally {
+            backendPool.release(backend);
+        }
+
+        result.setExecutionTime(System.currentTimeMillis() - startTime);
+        result.setStages(stageTimer.finish());
+        return result;
+    }
+
+    /**
+     * 按组合 SKU 拆分执行拼接
+     * 每个组合 SKU 的行写为一个只含这些行的小工作簿，按内容命名上传后作为一个 Prompt 并行提交，ExcelSKULoader
+     * 不再为每个 Prompt 解析整表；商品图片的下载和拼接分散到多个 Prompt（多服务器时分散到各服务器）。
+     * 子 Prompt 属于已准入的拼接任务，排队时不受队列容量和 max-wait 限制，只受任务截止时间约束。
+     * 每完成一个组合 SKU 立即合并到结果中，异步任务可通过 /api/jobs/{jobId} 提前拿到已完成的图片；
+     * 重新提交同一文件时已成功的组合 SKU 命中结果缓存
+     */
+    private CollageResult runCollageFanOut(CollageRequest request, SpooledMultipartFile excel,
+                                           List<CollageSheet.Group> groups) {
+        CollageResult result = new CollageResult();
+        long startTime = System.currentTimeMillis();
+
+        Semaphore permits = new Semaphore(Math.max(1, config.getCollage().getConcurrency()));
+        Consumer<JobResult> progress = jobService.progressListener();
+        List<CollageResult.ItemResult> items = new ArrayList<>();
+        log.info("runCollageFanOut - {} 个组合SKU", groups.size());
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < groups.size(); i++) {
+                // 任务取消或超时后不再提交剩余的组合 SKU
+                Deadline.checkCurrent();
+                permits.acquire();
+                int index = i;
+                CollageSheet.Group group = groups.get(i);
+                executor.submit(() -> {
+                    try {
+                        CollageResult.ItemResult item = runCollageGroup(request, excel, index, group);
+                        CollageResult snapshot;
+                        synchronized (items) {
+                            items.add(item);
+                            snapshot = mergeCollageItems(items);
+                        }
+                        progress.accept(snapshot);
+                    } finally {
+                        permits.release();
+                    }
+                });
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.setErrorMessage("任务被中断");
+        } catch (Exception e) {
+            // 已提交的组合 SKU 仍会执行完，结果照常合并
+            log.error("Excel产品拼接拆分失败", e);
+            result.setErrorMessage(e.getMessage());
+        }
+
+        CollageResult merged;
+        synchronized (items) {
+            merged = mergeCollageItems(items);
+        }
+        result.setItems(merged.getItems());
+        result.setImages(merged.getImages());
+        result.setImageCount(merged.getImageCount());
+        result.setFailedCount(merged.getFailedCount());
+        result.setSuccess(result.getErrorMessage() == null && merged.isSuccess());
+        if (result.getErrorMessage() == null) {
+            result.setErrorMessage(merged.getErrorMessage());
+        }
+        result.setExecutionTime(System.currentTimeMillis() - startTime);
+        result.setStages(StageTimer.sum(result.getItems().stream()
+                .map(CollageResult.ItemResult::getStages).toList()));
+        log.info("Excel产品拼接完成，{} 个组合SKU，{} 个失败，生成 {} 张图片，耗时 {} ms",
+                result.getItems().size(), result.getFailedCount(), result.getImageCount(), result.getExecutionTime());
+        return result;
+    }
 
-            // 5. 等待完成
-            JsonNode outputs = waitForCompletion(promptId);
+    /**
+     * 执行一个组合 SKU 的拼接 Prompt
+     */
+    private CollageResult.ItemResult runCollageGroup(CollageRequest request, SpooledMultipartFile excel,
+                                                     int index, CollageSheet.Group group) {
+        CollageResult.ItemResult item = new CollageResult.ItemResult();
+        item.setIndex(index);
+        item.setCombinedSku(group.combinedSku());
+        item.setRowCount(group.rows().size());
+        long startTime = System.currentTimeMillis();
+        StageTimer stageTimer = StageTimer.start();
+
+        ComfyUIBackend backend = null;
+        SpooledMultipartFile groupExcel = null;
+        try (PromptScheduler.Scope admitted = PromptScheduler.admitted()) {
+            ObjectNode workflow = loadWorkflowFromResource("collage-excel-v-api.json");
+            backend = backendPool.select("collage-excel-v-api.json");
+
+            // 只含该组合 SKU 的工作簿按内容命名，相同内容的组合 SKU 再次提交时命中结果缓存
+            Path path = Files.createTempFile("collage-", ".xlsx");
+            groupExcel = new SpooledMultipartFile(excel.getName(), "collage.xlsx", excel.getContentType(), path);
+            CollageSheet.write(group, request, path);
+            String uploadedExcelName = uploadFile(backend, new SpooledMultipartFile(groupExcel.getName(),
+                    UploadCache.contentAddressedName(UploadCache.sha256(groupExcel), groupExcel.getOriginalFilename()),
+                    groupExcel.getContentType(), path), null);
+
+            // 节点 34: ExcelSKULoader 只处理该组合 SKU 的行
+            WorkflowBindings.COLLAGE.apply(workflow, collageGroupRequest(request, group), uploadedExcelName);
+
+            ResultCache.Entry execution = executeAndWait(backend, "collage-excel-v-api.json",
+                    PromptScheduler.Priority.BATCH, workflow, null, true);
+            item.setPromptId(execution.promptId());
+            List<CollageResult.ImageInfo> images = collectCollageImages(execution);
+            item.setImages(images);
+            item.setSuccess(!images.isEmpty());
+            if (images.isEmpty()) {
+                item.setErrorMessage("未找到输出图片");
+            }
+        } catch (Exception e) {
+            log.error("组合SKU {} 拼接失败", group.combinedSku(), e);
+            item.setSuccess(false);
+            item.setErrorMessage(e.getMessage());
+        } finally {
+            backendPool.release(backend);
+            deleteQuietly(groupExcel);
+        }
 
-            // 6. 下载所有结果图片
-            List<CollageResult.ImageInfo> imageInfoList = new ArrayList<>();
+        item.setExecutionTime(System.currentTimeMillis() - startTime);
+        item.setStages(stageTimer.finish());
+        return item;
+    }
 
-            for (JsonNode nodeOutput : outputs) {
-                if (nodeOutput.has("images")) {
-                    JsonNode images = nodeOutput.get("images");
-                    if (images.isArray()) {
-                        for (JsonNode imageNode : images) {
-                            String filename = imageNode.get("filename").asText();
-                            String subfolder = imageNode.has("subfolder") ?
-                                    imageNode.get("subfolder").asText() : "";
-                            String type = imageNode.has("type") ?
-                                    imageNode.get("type").asText() : "output";
+    /**
+     * 组合 SKU 子 Prompt 的请求参数：与原请求相同，filter_combined_sku 只筛选该组合 SKU
+     */
+    private static CollageRequest collageGroupRequest(CollageRequest request, CollageSheet.Group group) {
+        CollageRequest groupRequest = new CollageRequest();
+        BeanUtils.copyProperties(request, groupRequest);
+        groupRequest.setFilterCombinedSku(group.combinedSku());
+        return groupRequest;
+    }
 
-                            CollageResult.ImageInfo imageInfo = new CollageResult.ImageInfo();
-                            imageInfo.setFilename(filename);
-                            imageInfo.setSubfolder(subfolder);
+    /**
+     * 按组合 SKU 顺序合并结果；至少一个组合 SKU 成功即视为成功，失败的记录在 items 和 failedCount 中
+     */
+    private CollageResult mergeCollageItems(List<CollageResult.ItemResult> items) {
+        List<CollageResult.ItemResult> sorted = new ArrayList<>(items);
+        sorted.sort(Comparator.comparingInt(CollageResult.ItemResult::getIndex));
+
+        CollageResult merged = new CollageResult();
+        List<CollageResult.ImageInfo> images = new ArrayList<>();
+        int failed = 0;
+        String firstError = null;
+        for (CollageResult.ItemResult item : sorted) {
+            if (item.isSuccess()) {
+                images.addAll(item.getImages());
+            } else {
+                failed++;
+                if (firstError == null) {
+                    firstError = item.getErrorMessage();
+                }
+            }
+        }
+        merged.setItems(sorted);
+        merged.setImages(images);
+        merged.setImageCount(images.size());
+        merged.setFailedCount(failed);
+        merged.setSuccess(!images.isEmpty());
+        if (failed > 0) {
+            merged.setErrorMessage(String.format("%d 个组合SKU失败: %s", failed, firstError));
+        }
+        return merged;
+    }
 
-                            // 构建 ComfyUI 远程 URL
-                            String remoteUrl = config.getApi().getBaseUrl() + "/view?filename=" + filename;
-                            if (!subfolder.isEmpty()) {
-                                remoteUrl += "&subfolder=" + subfolder;
-                            }
-                            remoteUrl += "&type=" + type;
-                            imageInfo.setRemoteUrl(remoteUrl);
+    /**
+     * 收集拼接工作流所有节点输出的图片
+     */
+    private List<CollageResult.ImageInfo> collectCollageImages(ResultCache.Entry execution) {
+        List<CollageResult.ImageInfo> imageInfoList = new ArrayList<>();
+
+        for (JsonNode nodeOutput : execution.outputs()) {
+            if (nodeOutput.has("images")) {
+                JsonNode images = nodeOutput.get("images");
+                if (images.isArray()) {
+                    for (JsonNode imageNode : images) {
+                        String filename = imageNode.get("filename").asText();
+                        String subfolder = imageNode.has("subfolder") ?
+                                imageNode.get("subfolder").asText() : "";
+                        String type = imageNode.has("type") ?
+                                imageNode.get("type").asText() : "output";
+
+                        CollageResult.ImageInfo imageInfo = new CollageResult.ImageInfo();
+                        imageInfo.setFilename(filename);
+                        imageInfo.setSubfolder(subfolder);
 
-                            imageInfoList.add(imageInfo);
+                        // 构建 ComfyUI 远程 URL
+                        String remoteUrl = execution.baseUrl() + "/view?filename=" + filename;
+                        if (!subfolder.isEmpty()) {
+                            remoteUrl += "&subfolder=" + subfolder;
                         }
+                        remoteUrl += "&type=" + type;
+                        imageInfo.setRemoteUrl(remoteUrl);
+                        imageInfo.setOutputUrl(resultMirror.prefetch(execution.baseUrl(), execution.promptId(),
+                                filename, subfolder, type));
+
+                        imageInfoList.add(imageInfo);
                     }
                 }
             }
+        }
+        return imageInfoList;
+    }
 
-            if (!imageInfoList.isEmpty()) {
-                result.setSuccess(true);
-                result.setImages(imageInfoList);
-                result.setImageCount(imageInfoList.size());
-            } else {
-                result.setSuccess(false);
-                result.setErrorMessage("未找到输出图片");
+    /**
+     * 下载 Excel 到临时文件，供本地读取后再上传到 ComfyUI
+     */
+    private SpooledMultipartFile downloadExcel(String url) throws IOException {
+        log.info("下载Excel文件: {}", url);
+        Path path = Files.createTempFile("collage-", ".xlsx");
+        try (CloseableHttpResponse response = httpClient.execute(new HttpGet(url))) {
+            if (response.getCode() != 200) {
+                throw new IOException("下载文件失败，HTTP状态码: " + response.getCode());
             }
-
-        } catch (Exception e) {
-            log.error("Excel产品拼接失败", e);
-            result.setSuccess(false);
-            result.setErrorMessage(e.getMessage());
+            try (InputStream inputStream = response.getEntity().getContent()) {
+                Files.copy(inputStream, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(path);
+            throw e;
         }
+        return new SpooledMultipartFile("excelFile", excelFilenameFromUrl(url), null, path);
+    }
 
-        result.setExecutionTime(System.currentTimeMillis() - startTime);
-        return result;
+    private static boolean isXlsx(String filename) {
+        String name = filename != null ? filename.toLowerCase() : "";
+        return name.endsWith(".xlsx") || name.endsWith(".xlsm");
     }
 
     /**
@@ -596,30 +1554,45 @@ public class ComfyUIService {
      * @return 批量抠图结果
      */
     public BatchMattingResult runBatchMatting(BatchMattingRequest request) {
+        String mode = request.getInputMode() != null ? request.getInputMode() : "image";
+        boolean fanOut = request.getFanOut() != null ? request.getFanOut() : config.getBatch().isFanOut();
+        if (fanOut && ("urls".equals(mode) || "zip".equals(mode))) {
+            return runBatchFanOut(request, mode);
+        }
+
         BatchMattingResult result = new BatchMattingResult();
         long startTime = System.currentTimeMillis();
+        StageTimer stageTimer = StageTimer.start();
+        ComfyUIBackend backend = null;
 
         try {
             String inputMode = request.getInputMode() != null ? request.getInputMode() : "image";
-            JsonNode workflow;
+            String workflowName;
+            ObjectNode workflow;
             String uploadedFileName = null;
+            String zipHash = null;
 
             // 1. 根据输入模式加载不同的工作流
             switch (inputMode) {
                 case "urls":
                     // HTTP地址列表模式 - 使用 matting_img_from_url_api.json
-                    workflow = loadWorkflowFromResource("matting_img_from_url_api.json");
+                    workflowName = "matting_img_from_url_api.json";
+                    workflow = loadWorkflowFromResource(workflowName);
+                    backend = backendPool.select(workflowName);
                     log.info("runBatchMatting - 使用URL模式，工作流: matting_img_from_url_api.json");
                     break;
 
                 case "zip":
                     // 压缩文件上传模式 - 使用 zip-birefnet-matting-api.json
-                    workflow = loadWorkflowFromResource("zip-birefnet-matting-api.json");
+                    workflowName = "zip-birefnet-matting-api.json";
+                    workflow = loadWorkflowFromResource(workflowName);
+                    backend = backendPool.select(workflowName);
                     log.info("runBatchMatting - 使用ZIP模式，工作流: zip-birefnet-matting-api.json");
 
                     // 上传压缩文件
                     if (request.getZipFile() != null && !request.getZipFile().isEmpty()) {
-                        uploadedFileName = uploadFile(request.getZipFile(), "input");
+                        uploadedFileName = uploadFile(backend, request.getZipFile(), "input");
+                        zipHash = UploadCache.sha256(request.getZipFile());
                         log.info("压缩文件上传成功: {}", uploadedFileName);
                     } else {
                         throw new IOException("ZIP模式下未提供压缩文件");
@@ -629,20 +1602,20 @@ public class ComfyUIService {
                 case "image":
                 default:
                     // 单张图片上传模式 - 使用 batch_matting_api.json
-                    workflow = loadWorkflowFromResource("batch_matting_api.json");
+                    workflowName = "batch_matting_api.json";
+                    workflow = loadWorkflowFromResource(workflowName);
+                    backend = backendPool.select(workflowName);
                     log.info("runBatchMatting - 使用图片上传模式，工作流: batch_matting_api.json");
 
-                    // 上传图片文件
-                    if (request.getImageFile() != null && !request.getImageFile().isEmpty()) {
-                        uploadedFileName = uploadImage(request.getImageFile());
-                        log.info("图片上传成功: {}", uploadedFileName);
-                    } else {
+                    // 图片在绑定参数后上传（按处理分辨率预缩小）
+                    if (request.getImageFile() == null || request.getImageFile().isEmpty()) {
                         throw new IOException("图片上传模式下未提供图片文件");
                     }
                     break;
             }
 
             // 2. 根据模式更新不同的输入参数
+            Uploads uploads = new Uploads();
             if ("urls".equals(inputMode)) {
                 // URL模式 - 节点 17: LoadImageFromUrl
                 String imageUrls = request.getImageUrls();
@@ -652,105 +1625,36 @@ public class ComfyUIService {
 
                 log.info("URL模式 - 原始URL列表:\n{}", imageUrls);
 
-                // 验证并记录每个URL
-                String[] urls = imageUrls.split("\n");
-                log.info("URL模式 - 解析到 {} 个URL", urls.length);
-                for (int i = 0; i < urls.length; i++) {
-                    String url = urls[i].trim();
-                    if (!url.isEmpty()) {
-                        log.info("URL[{}]: {}", i, url);
-                        // 基本格式验证
-                        if (!url.startsWith("http://") && !url.startsWith("https://")) {
-                            log.warn("URL[{}] 格式可能不正确（不是http/https）: {}", i, url);
-                        }
-
-                        // 可选：预检URL是否可访问（HEAD请求）
-                        try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
-                            HttpGet headRequest = new HttpGet(url);
-                            headRequest.setHeader("User-Agent", "Mozilla/5.0");
-                            try (CloseableHttpResponse response = httpClient.execute(headRequest)) {
-                                int statusCode = response.getCode();
-                                if (statusCode >= 200 && statusCode < 300) {
-                                    log.info("URL[{}] 可访问 (状态码: {})", i, statusCode);
-                                } else {
-                                    log.error("URL[{}] 访问异常 (状态码: {})", i, statusCode);
-                                    throw new IOException(String.format("URL[%d] 返回错误状态码 %d: %s", i, statusCode, url));
-                                }
-                            }
-                        } catch (Exception e) {
-                            log.error("URL[{}] 预检失败: {}", i, e.getMessage());
-                            throw new IOException(String.format("URL[%d] 无法访问: %s - %s", i, url, e.getMessage()));
-                        }
-                    }
+                // 并发预检每个URL，失败时返回每个URL的检查结果
+                List<String> urls = List.of(imageUrls.split("\n"));
+                log.info("URL模式 - 解析到 {} 个URL", urls.size());
+                if (urlPrecheckService.isEnabled()) {
+                    precheckUrls(urls, result);
                 }
 
-                workflow = updateWorkflowParams(workflow, "17", "image", imageUrls);
-
-                // URL模式的其他节点
-                workflow = updateWorkflowParams(workflow, "12", "model_version", request.getModelVersion());
-                workflow = updateWorkflowParams(workflow, "12", "device", request.getDevice());
-                workflow = updateWorkflowParams(workflow, "7", "background_color", request.getBackgroundColor());
-                workflow = updateWorkflowParams(workflow, "7", "use_refine", request.getUseRefine());
-                workflow = updateWorkflowParams(workflow, "16", "height", request.getProcessHeight());
-                workflow = updateWorkflowParams(workflow, "5", "expand", request.getMaskExpand());
-                workflow = updateWorkflowParams(workflow, "5", "blur_radius", request.getBlurRadius());
-                workflow = updateWorkflowParams(workflow, "5", "tapered_corners", request.getTaperedCorners());
-                workflow = updateWorkflowParams(workflow, "5", "fill_holes", request.getFillHoles());
-                workflow = updateWorkflowParams(workflow, "5", "lerp_alpha", request.getLerpAlpha());
-                workflow = updateWorkflowParams(workflow, "5", "decay_factor", request.getDecayFactor());
-                workflow = updateWorkflowParams(workflow, "11", "model_name", request.getUpscaleModel());
-                workflow = updateWorkflowParams(workflow, "14", "filename_prefix", request.getFilenamePrefix());
+                WorkflowBindings.BATCH_URLS.apply(workflow, request, imageUrls);
 
             } else if ("zip".equals(inputMode)) {
-                // ZIP模式 - 节点 3: CompressedFileLoader
-                workflow = updateWorkflowParams(workflow, "3", "archive_file", uploadedFileName);
-
-                // ZIP模式的其他节点
-                workflow = updateWorkflowParams(workflow, "23", "model_version", request.getModelVersion());
-                workflow = updateWorkflowParams(workflow, "23", "device", request.getDevice());
-                workflow = updateWorkflowParams(workflow, "18", "background_color", request.getBackgroundColor());
-                workflow = updateWorkflowParams(workflow, "18", "use_refine", request.getUseRefine());
-                workflow = updateWorkflowParams(workflow, "27", "height", request.getProcessHeight());
-                workflow = updateWorkflowParams(workflow, "16", "expand", request.getMaskExpand());
-                workflow = updateWorkflowParams(workflow, "16", "blur_radius", request.getBlurRadius());
-                workflow = updateWorkflowParams(workflow, "16", "tapered_corners", request.getTaperedCorners());
-                workflow = updateWorkflowParams(workflow, "16", "fill_holes", request.getFillHoles());
-                workflow = updateWorkflowParams(workflow, "16", "lerp_alpha", request.getLerpAlpha());
-                workflow = updateWorkflowParams(workflow, "16", "decay_factor", request.getDecayFactor());
-                workflow = updateWorkflowParams(workflow, "22", "model_name", request.getUpscaleModel());
-                workflow = updateWorkflowParams(workflow, "25", "filename_prefix", request.getFilenamePrefix());
+                // ZIP模式 - 节点 31: CompressedFileLoader，压缩包上传在 input 子目录下
+                WorkflowBindings.BATCH_ZIP.apply(workflow, request, "input/" + uploadedFileName);
 
             } else {
                 // 图片上传模式 - 节点 3: LoadImage
-                workflow = updateWorkflowParams(workflow, "3", "image", uploadedFileName);
-
-                // 图片上传模式的其他节点
-                workflow = updateWorkflowParams(workflow, "148", "model_version", request.getModelVersion());
-                workflow = updateWorkflowParams(workflow, "148", "device", request.getDevice());
-                workflow = updateWorkflowParams(workflow, "147", "background_color", request.getBackgroundColor());
-                workflow = updateWorkflowParams(workflow, "147", "use_refine", request.getUseRefine());
-                workflow = updateWorkflowParams(workflow, "101", "height", request.getProcessHeight());
-                workflow = updateWorkflowParams(workflow, "86", "expand", request.getMaskExpand());
-                workflow = updateWorkflowParams(workflow, "86", "blur_radius", request.getBlurRadius());
-                workflow = updateWorkflowParams(workflow, "86", "tapered_corners", request.getTaperedCorners());
-                workflow = updateWorkflowParams(workflow, "86", "fill_holes", request.getFillHoles());
-                workflow = updateWorkflowParams(workflow, "86", "lerp_alpha", request.getLerpAlpha());
-                workflow = updateWorkflowParams(workflow, "86", "decay_factor", request.getDecayFactor());
-                workflow = updateWorkflowParams(workflow, "145", "model_name", request.getUpscaleModel());
-                workflow = updateWorkflowParams(workflow, "152", "filename_prefix", request.getFilenamePrefix());
-            }
-
-            // 3. 执行工作流
-            log.info("runBatchMatting - 准备提交工作流，模式: {}", inputMode);
-            String promptId = executeWorkflow(workflow);
-            result.setPromptId(promptId);
-
-            // 4. 等待完成
-            JsonNode outputs = waitForCompletion(promptId);
-
-            // 5. 收集所有结果图片 - 只收集 SaveImage 节点的输出
-            List<BatchMattingResult.ImageInfo> imageInfoList = new ArrayList<>();
+                WorkflowBindings.BATCH_IMAGE.apply(workflow, request, null);
+                uploadImage(backend, request.getImageFile(), WorkflowBindings.BATCH_IMAGE, workflow, uploads);
+            }
 
+            // 3. 执行工作流并等待完成
+            log.info("runBatchMatting - 准备提交工作流，模式: {}", inputMode);
+            // 单图模式的同参数请求可以合并执行
+            WorkflowBinding.FileInput coalesceInput = "batch_matting_api.json".equals(workflowName) ?
+                    WorkflowBindings.BATCH_IMAGE.getFileInput() : null;
+            ResultCache.Entry execution = executeAndWait(backend, workflowName, PromptScheduler.Priority.BATCH,
+                    workflow, uploads, coalesceInput, !"urls".equals(inputMode), zipHash);
+            result.setPromptId(execution.promptId());
+            JsonNode outputs = execution.outputs();
+
+            // 4. 收集所有结果图片 - 只收集 SaveImage 节点的输出
             // 根据不同模式，确定 SaveImage 节点的 ID
             String saveImageNodeId;
             switch (inputMode) {
@@ -766,44 +1670,8 @@ public class ComfyUIService {
                     break;
             }
 
-            // 只处理 SaveImage 节点的输出
-            if (outputs.has(saveImageNodeId)) {
-                JsonNode saveImageOutput = outputs.get(saveImageNodeId);
-                if (saveImageOutput.has("images")) {
-                    JsonNode images = saveImageOutput.get("images");
-                    if (images.isArray()) {
-                        for (JsonNode imageNode : images) {
-                            String filename = imageNode.get("filename").asText();
-                            String subfolder = imageNode.has("subfolder") ?
-                                    imageNode.get("subfolder").asText() : "";
-                            String type = imageNode.has("type") ?
-                                    imageNode.get("type").asText() : "output";
-
-                            // 过滤掉临时文件（TempImageFromUrl 等）
-                            if (filename.contains("TempImageFromUrl") || "temp".equals(type)) {
-                                log.debug("跳过临时文件: {}", filename);
-                                continue;
-                            }
-
-                            BatchMattingResult.ImageInfo imageInfo = new BatchMattingResult.ImageInfo();
-                            imageInfo.setFilename(filename);
-                            imageInfo.setSubfolder(subfolder);
-
-                            // 构建 ComfyUI 远程 URL
-                            String remoteUrl = config.getApi().getBaseUrl() + "/view?filename=" + filename;
-                            if (!subfolder.isEmpty()) {
-                                remoteUrl += "&subfolder=" + subfolder;
-                            }
-                            remoteUrl += "&type=" + type;
-                            imageInfo.setRemoteUrl(remoteUrl);
-
-                            imageInfoList.add(imageInfo);
-                        }
-                    }
-                }
-            } else {
-                log.warn("未找到 SaveImage 节点({})的输出", saveImageNodeId);
-            }
+            List<BatchMattingResult.ImageInfo> imageInfoList =
+                    collectBatchImages(outputs, saveImageNodeId, execution.baseUrl(), execution.promptId());
 
             if (!imageInfoList.isEmpty()) {
                 result.setSuccess(true);
@@ -815,51 +1683,547 @@ public class ComfyUIService {
                 result.setErrorMessage("未找到输出图片");
             }
 
+        } catch (QueueFullException e) {
+            throw e;
         } catch (Exception e) {
             log.error("BiRefNet批量抠图失败", e);
             result.setSuccess(false);
             result.setErrorMessage(e.getMessage());
+        } finally {
+            backendPool.release(backend);
+        }
+
+        result.setExecutionTime(System.currentTimeMillis() - startTime);
+        result.setStages(stageTimer.finish());
+        return result;
+    }
+
+    /**
+     * 拆分执行批量抠图
+     * URL 列表或压缩包中的图片按 chunkSize 拆成多个小 Prompt 并行提交（多服务器时分散到各服务器），
+     * 每完成一个分片立即合并到结果中，异步任务可通过 /api/jobs/{jobId} 提前拿到已完成的图片
+     */
+    private BatchMattingResult runBatchFanOut(BatchMattingRequest request, String inputMode) {
+        BatchMattingResult result = new BatchMattingResult();
+        long startTime = System.currentTimeMillis();
+
+        ComfyUIConfig.BatchConfig batchConfig = config.getBatch();
+        int chunkSize = request.getChunkSize() != null && request.getChunkSize() > 0 ?
+                request.getChunkSize() : Math.max(1, batchConfig.getChunkSize());
+        Semaphore permits = new Semaphore(Math.max(1, batchConfig.getConcurrency()));
+        Consumer<JobResult> progress = jobService.progressListener();
+        List<BatchMattingResult.ItemResult> items = new ArrayList<>();
+        log.info("runBatchFanOut - 模式: {}，每个 Prompt {} 张图片", inputMode, chunkSize);
+
+        // 分片完成后合并到 items，并把当前进度推送给异步任务订阅者
+        Consumer<BatchMattingResult.ItemResult> collect = item -> {
+            BatchMattingResult snapshot;
+            synchronized (items) {
+                items.add(item);
+                snapshot = mergeBatchItems(items);
+            }
+            progress.accept(snapshot);
+        };
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            if ("urls".equals(inputMode)) {
+                if (request.getImageUrls() == null) {
+                    throw new IOException("URL模式下未提供图片地址");
+                }
+                List<String> lines = List.of(request.getImageUrls()
+                        .replace("\r\n", "\n").replace("\r", "\n").split("\n"));
+                // 提交任何分片之前检查数量，超过上限时整个批量任务直接失败
+                long total = lines.stream().filter(line -> !line.isBlank()).count();
+                if (total == 0) {
+                    throw new IOException("URL模式下未提供图片地址");
+                }
+                if (total > batchConfig.getMaxItems()) {
+                    throw new IOException("图片数量 " + total + " 超过上限 " + batchConfig.getMaxItems());
+                }
+                Set<String> unreachable = new HashSet<>();
+                if (urlPrecheckService.isEnabled()) {
+                    List<UrlCheckResult> checks = urlPrecheckService.check(lines);
+                    result.setUrlChecks(checks);
+                    for (UrlCheckResult check : checks) {
+                        if (!check.isReachable()) {
+                            // 无法访问的 URL 直接记为失败，其余 URL 照常处理
+                            unreachable.add(check.getUrl());
+                            collect.accept(failedItem(check.getIndex(), check.getUrl(), check.getMessage()));
+                        }
+                    }
+                }
+
+                List<String> chunk = new ArrayList<>();
+                int chunkIndex = 0;
+                for (int i = 0; i < lines.size(); i++) {
+                    String url = lines.get(i).trim();
+                    if (url.isEmpty() || unreachable.contains(url)) {
+                        continue;
+                    }
+                    if (chunk.isEmpty()) {
+                        chunkIndex = i;
+                    }
+                    chunk.add(url);
+                    if (chunk.size() == chunkSize) {
+                        submitBatchChunk(executor, permits, collect, request, chunkIndex, chunk, null);
+                        chunk = new ArrayList<>();
+                    }
+                }
+                if (!chunk.isEmpty()) {
+                    submitBatchChunk(executor, permits, collect, request, chunkIndex, chunk, null);
+                }
+
+            } else {
+                MultipartFile upload = request.getZipFile();
+                if (upload == null || upload.isEmpty()) {
+                    throw new IOException("ZIP模式下未提供压缩文件");
+                }
+                SpooledMultipartFile copy = upload instanceof SpooledMultipartFile ? null :
+                        SpooledMultipartFile.copyOf(upload);
+                Path zipPath = copy != null ? copy.getPath() : ((SpooledMultipartFile) upload).getPath();
+                List<SpooledMultipartFile> chunk = new ArrayList<>();
+                // 未设置 UTF-8 标志的文件名（Windows 下打包的压缩包）按 GBK 解码
+                try (copy; ZipFile zip = new ZipFile(zipPath.toFile(), Charset.forName("GBK"))) {
+                    List<? extends ZipEntry> entries = zip.stream()
+                            .filter(entry -> !entry.isDirectory() && isImageEntry(entry.getName()))
+                            .toList();
+                    checkZipEntries(entries, batchConfig);
+
+                    int chunkIndex = 0;
+                    long extracted = 0;
+                    for (int i = 0; i < entries.size(); i++) {
+                        ZipEntry entry = entries.get(i);
+                        if (chunk.isEmpty()) {
+                            chunkIndex = i;
+                        }
+
+                        String entryName = entry.getName();
+                        String filename = entryName.substring(entryName.lastIndexOf('/') + 1);
+                        Path path = Files.createTempFile("batch-", ".tmp");
+                        chunk.add(new SpooledMultipartFile("image", filename, null, path));
+                        // 目录中记录的大小可能与实际内容不符，解压时按实际字节数再限制一次
+                        long limit = Math.min(batchConfig.getMaxEntryBytes(), batchConfig.getMaxTotalBytes() - extracted);
+                        try (InputStream inputStream = zip.getInputStream(entry)) {
+                            extracted += copyLimited(inputStream, path, limit, entryName);
+                        }
+                        if (chunk.size() == chunkSize) {
+                            submitBatchChunk(executor, permits, collect, request, chunkIndex, null, chunk);
+                            chunk = new ArrayList<>();
+                        }
+                    }
+                    if (!chunk.isEmpty()) {
+                        submitBatchChunk(executor, permits, collect, request, chunkIndex, null, chunk);
+                    }
+                } catch (Exception e) {
+                    // 读取压缩包失败时删除尚未提交的临时文件
+                    chunk.forEach(this::deleteQuietly);
+                    throw e;
+                }
+            }
+        } catch (Exception e) {
+            // 已提交的分片仍会执行完，结果照常合并
+            log.error("BiRefNet批量抠图拆分失败", e);
+            result.setErrorMessage(e.getMessage());
         }
 
+        BatchMattingResult merged;
+        synchronized (items) {
+            merged = mergeBatchItems(items);
+        }
+        result.setItems(merged.getItems());
+        result.setImages(merged.getImages());
+        result.setImageCount(merged.getImageCount());
+        result.setFailedCount(merged.getFailedCount());
+        result.setSuccess(result.getErrorMessage() == null && merged.isSuccess());
+        if (result.getErrorMessage() == null) {
+            result.setErrorMessage(merged.getErrorMessage());
+        }
         result.setExecutionTime(System.currentTimeMillis() - startTime);
+        result.setStages(StageTimer.sum(result.getItems().stream()
+                .map(BatchMattingResult.ItemResult::getStages).toList()));
+        log.info("BiRefNet批量抠图完成，{} 个分片，{} 个失败，生成 {} 张图片，耗时 {} ms",
+                result.getItems().size(), result.getFailedCount(), result.getImageCount(), result.getExecutionTime());
         return result;
     }
 
+    /**
+     * 提交任何分片之前按压缩包目录检查图片数量和解压后的大小，超过上限时整个批量任务直接失败
+     */
+    private static void checkZipEntries(List<? extends ZipEntry> entries, ComfyUIConfig.BatchConfig batchConfig)
+            throws IOException {
+        if (entries.isEmpty()) {
+            throw new IOException("压缩包中没有图片");
+        }
+        if (entries.size() > batchConfig.getMaxItems()) {
+            throw new IOException("压缩包中的图片数量 " + entries.size() + " 超过上限 " + batchConfig.getMaxItems());
+        }
+        long totalBytes = 0;
+        for (ZipEntry entry : entries) {
+            if (entry.getSize() > batchConfig.getMaxEntryBytes()) {
+                throw new IOException("压缩包中的图片 " + entry.getName() + " 超过单张大小上限 "
+                        + batchConfig.getMaxEntryBytes() + " 字节");
+            }
+            totalBytes += Math.max(0, entry.getSize());
+        }
+        if (totalBytes > batchConfig.getMaxTotalBytes()) {
+            throw new IOException("压缩包解压后大小 " + totalBytes + " 字节超过上限 "
+                    + batchConfig.getMaxTotalBytes() + " 字节");
+        }
+    }
+
+    /**
+     * 复制输入流到文件，超过 limit 字节时抛出异常
+     *
+     * @return 实际写入的字节数
+     */
+    private static long copyLimited(InputStream inputStream, Path path, long limit, String name) throws IOException {
+        long written = 0;
+        try (OutputStream outputStream = Files.newOutputStream(path)) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                written += read;
+                if (written > limit) {
+                    throw new IOException("压缩包中的 " + name + " 解压后超过大小上限");
+                }
+                outputStream.write(buffer, 0, read);
+            }
+        }
+        return written;
+    }
+
+    /**
+     * 等待空闲名额后在虚拟线程中执行一个分片，限制同一批量任务同时排队 / 执行的 Prompt 数
+     */
+    private void submitBatchChunk(ExecutorService executor, Semaphore permits,
+                                  Consumer<BatchMattingResult.ItemResult> collect, BatchMattingRequest request,
+                                  int index, List<String> urls, List<SpooledMultipartFile> files)
+            throws InterruptedException {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            if (files != null) {
+                files.forEach(this::deleteQuietly);
+            }
+            throw e;
+        }
+        executor.submit(() -> {
+            try {
+                collect.accept(runBatchChunk(request, index, urls, files));
+            } finally {
+                permits.release();
+            }
+        });
+    }
+
+    /**
+     * 执行一个分片：URL 分片使用 URL 工作流；单张图片使用图片上传工作流；多张图片重新打包后使用 ZIP 工作流
+     */
+    private BatchMattingResult.ItemResult runBatchChunk(BatchMattingRequest request, int index,
+                                                        List<String> urls, List<SpooledMultipartFile> files) {
+        BatchMattingResult.ItemResult item = new BatchMattingResult.ItemResult();
+        item.setIndex(index);
+        item.setSources(urls != null ? urls :
+                files.stream().map(SpooledMultipartFile::getOriginalFilename).toList());
+        long startTime = System.currentTimeMillis();
+        StageTimer stageTimer = StageTimer.start();
+
+        ComfyUIBackend backend = null;
+        SpooledMultipartFile archive = null;
+        // 分片属于已准入的批量任务，排队时不受队列容量和 max-wait 限制
+        try (PromptScheduler.Scope admitted = PromptScheduler.admitted()) {
+            String workflowName;
+            String saveImageNodeId;
+            ObjectNode workflow;
+            ResultCache.Entry execution;
+            if (urls != null) {
+                workflowName = "matting_img_from_url_api.json";
+                saveImageNodeId = "14";
+                workflow = loadWorkflowFromResource(workflowName);
+                backend = backendPool.select(workflowName);
+                WorkflowBindings.BATCH_URLS.apply(workflow, request, String.join("\n", urls));
+                execution = executeAndWait(backend, workflowName, PromptScheduler.Priority.BATCH, workflow, null, false);
+            } else if (files.size() == 1) {
+                workflowName = "batch_matting_api.json";
+                saveImageNodeId = "152";
+                workflow = loadWorkflowFromResource(workflowName);
+                backend = backendPool.select(workflowName);
+                WorkflowBindings.BATCH_IMAGE.apply(workflow, request, null);
+                Uploads uploads = new Uploads();
+                uploadImage(backend, files.get(0), WorkflowBindings.BATCH_IMAGE, workflow, uploads);
+                execution = executeAndWait(backend, workflowName, PromptScheduler.Priority.BATCH, workflow, uploads, true);
+            } else {
+                workflowName = "zip-birefnet-matting-api.json";
+                saveImageNodeId = "25";
+                archive = zipChunk(files);
+                workflow = loadWorkflowFromResource(workflowName);
+                backend = backendPool.select(workflowName);
+                String uploadedName = uploadFile(backend, archive, "input");
+                WorkflowBindings.BATCH_ZIP.apply(workflow, request, "input/" + uploadedName);
+                execution = executeAndWait(backend, workflowName, PromptScheduler.Priority.BATCH, workflow, null, true);
+            }
+
+            item.setPromptId(execution.promptId());
+            List<BatchMattingResult.ImageInfo> images =
+                    collectBatchImages(execution.outputs(), saveImageNodeId, execution.baseUrl(),
+                            execution.promptId());
+            item.setImages(images);
+            item.setSuccess(!images.isEmpty());
+            if (images.isEmpty()) {
+                item.setErrorMessage("未找到输出图片");
+            }
+        } catch (Exception e) {
+            log.error("批量抠图分片 {} 失败", index, e);
+            item.setSuccess(false);
+            item.setErrorMessage(e.getMessage());
+        } finally {
+            backendPool.release(backend);
+            deleteQuietly(archive);
+            if (files != null) {
+                files.forEach(this::deleteQuietly);
+            }
+        }
+
+        item.setExecutionTime(System.currentTimeMillis() - startTime);
+        item.setStages(stageTimer.finish());
+        return item;
+    }
+
+    /**
+     * 把多张图片打包成一个压缩包，按内容命名，相同分片可以命中结果缓存
+     */
+    private SpooledMultipartFile zipChunk(List<SpooledMultipartFile> files) throws IOException {
+        Path path = Files.createTempFile("batch-", ".zip");
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(path))) {
+            // 图片本身已压缩，只打包不再压缩
+            zip.setLevel(Deflater.NO_COMPRESSION);
+            Set<String> names = new HashSet<>();
+            for (int i = 0; i < files.size(); i++) {
+                String name = files.get(i).getOriginalFilename();
+                zip.putNextEntry(new ZipEntry(names.add(name) ? name : i + "_" + name));
+                Files.copy(files.get(i).getPath(), zip);
+                zip.closeEntry();
+            }
+        }
+        SpooledMultipartFile archive = new SpooledMultipartFile("zipFile", "chunk.zip", "application/zip", path);
+        String hash = UploadCache.sha256(archive);
+        return new SpooledMultipartFile("zipFile", UploadCache.contentAddressedName(hash, "chunk.zip"),
+                "application/zip", path);
+    }
+
+    private static boolean isImageEntry(String entryName) {
+        String name = entryName.toLowerCase();
+        String filename = name.substring(name.lastIndexOf('/') + 1);
+        if (filename.startsWith(".") || name.startsWith("__macosx/")) {
+            return false;
+        }
+        return name.endsWith(".png") || name.endsWith(".jpg") || name.endsWith(".jpeg")
+                || name.endsWith(".webp") || name.endsWith(".bmp");
+    }
+
+    private BatchMattingResult.ItemResult failedItem(int index, String source, String errorMessage) {
+        BatchMattingResult.ItemResult item = new BatchMattingResult.ItemResult();
+        item.setIndex(index);
+        item.setSources(List.of(source));
+        item.setSuccess(false);
+        item.setErrorMessage(errorMessage);
+        return item;
+    }
+
+    /**
+     * 按序号合并分片结果；至少一个分片成功即视为成功，失败的分片记录在 items 和 failedCount 中
+     */
+    private BatchMattingResult mergeBatchItems(List<BatchMattingResult.ItemResult> items) {
+        List<BatchMattingResult.ItemResult> sorted = new ArrayList<>(items);
+        sorted.sort(Comparator.comparingInt(BatchMattingResult.ItemResult::getIndex));
+
+        BatchMattingResult merged = new BatchMattingResult();
+        List<BatchMattingResult.ImageInfo> images = new ArrayList<>();
+        int failed = 0;
+        String firstError = null;
+        for (BatchMattingResult.ItemResult item : sorted) {
+            if (item.isSuccess()) {
+                images.addAll(item.getImages());
+            } else {
+                failed++;
+                if (firstError == null) {
+                    firstError = item.getErrorMessage();
+                }
+            }
+        }
+        merged.setItems(sorted);
+        merged.setImages(images);
+        merged.setImageCount(images.size());
+        merged.setFailedCount(failed);
+        merged.setSuccess(!images.isEmpty());
+        if (failed > 0) {
+            merged.setErrorMessage(String.format("%d 个分片失败: %s", failed, firstError));
+        }
+        return merged;
+    }
+
+    private void deleteQuietly(SpooledMultipartFile file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            file.close();
+        } catch (IOException e) {
+            log.warn("删除临时文件失败: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 收集 SaveImage 节点输出的图片，跳过临时文件（包内可见，供基准测试使用）
+     */
+    List<BatchMattingResult.ImageInfo> collectBatchImages(JsonNode outputs, String saveImageNodeId,
+                                                          String baseUrl, String promptId) {
+        List<BatchMattingResult.ImageInfo> imageInfoList = new ArrayList<>();
+        if (outputs.has(saveImageNodeId)) {
+            JsonNode saveImageOutput = outputs.get(saveImageNodeId);
+            if (saveImageOutput.has("images")) {
+                JsonNode images = saveImageOutput.get("images");
+                if (images.isArray()) {
+                    for (JsonNode imageNode : images) {
+                        String filename = imageNode.get("filename").asText();
+                        String subfolder = imageNode.has("subfolder") ?
+                                imageNode.get("subfolder").asText() : "";
+                        String type = imageNode.has("type") ?
+                                imageNode.get("type").asText() : "output";
+
+                        // 过滤掉临时文件（TempImageFromUrl 等）
+                        if (filename.contains("TempImageFromUrl") || "temp".equals(type)) {
+                            log.debug("跳过临时文件: {}", filename);
+                            continue;
+                        }
+
+                        BatchMattingResult.ImageInfo imageInfo = new BatchMattingResult.ImageInfo();
+                        imageInfo.setFilename(filename);
+                        imageInfo.setSubfolder(subfolder);
+
+                        // 构建 ComfyUI 远程 URL
+                        String remoteUrl = baseUrl + "/view?filename=" + filename;
+                        if (!subfolder.isEmpty()) {
+                            remoteUrl += "&subfolder=" + subfolder;
+                        }
+                        remoteUrl += "&type=" + type;
+                        imageInfo.setRemoteUrl(remoteUrl);
+                        imageInfo.setOutputUrl(resultMirror.prefetch(baseUrl, promptId, filename, subfolder, type));
+
+                        imageInfoList.add(imageInfo);
+                    }
+                }
+            }
+        } else {
+            log.warn("未找到 SaveImage 节点({})的输出", saveImageNodeId);
+        }
+        return imageInfoList;
+    }
+
+    /**
+     * 预检批量 URL，结果写入 result；有 URL 无法访问时抛出异常，不再提交工作流
+     */
+    private void precheckUrls(List<String> urls, BatchMattingResult result) throws IOException, InterruptedException {
+        long startTime = System.currentTimeMillis();
+        List<UrlCheckResult> checks = urlPrecheckService.check(urls);
+        result.setUrlChecks(checks);
+
+        List<UrlCheckResult> failed = checks.stream().filter(check -> !check.isReachable()).toList();
+        log.info("URL模式 - 预检 {} 个URL，{} 个无法访问，耗时 {} ms",
+                checks.size(), failed.size(), System.currentTimeMillis() - startTime);
+        if (!failed.isEmpty()) {
+            StringBuilder message = new StringBuilder(String.format("%d 个URL无法访问", failed.size()));
+            for (UrlCheckResult check : failed.subList(0, Math.min(5, failed.size()))) {
+                message.append(String.format("; URL[%d] %s - %s", check.getIndex(), check.getUrl(), check.getMessage()));
+            }
+            if (failed.size() > 5) {
+                message.append("; ...");
+            }
+            throw new IOException(message.toString());
+        }
+    }
+
     /**
      * 上传文件到ComfyUI指定目录
      */
-    public String uploadFile(MultipartFile file, String subfolder) throws IOException, ParseException {
+    public String uploadFile(ComfyUIBackend backend, MultipartFile file, String subfolder)
+            throws IOException, ParseException {
         log.info("上传文件: {} 到目录: {}", file.getOriginalFilename(), subfolder);
 
-        String url = config.getApi().getBaseUrl() + "/upload/image";
+        long start = System.nanoTime();
+        try (InputStream inputStream = file.getInputStream()) {
+            return upload(backend, inputStream, file.getOriginalFilename(), file.getSize(), subfolder);
+        } finally {
+            StageTimer.record(StageTimer.Stage.UPLOAD, start);
+        }
+    }
+
+    /**
+     * 从远程地址下载文件并直接转发到 ComfyUI 服务器
+     * 下载流直接作为上传请求体，文件内容不在内存中整体缓存
+     *
+     * @param url      远程文件地址
+     * @param filename 上传到 ComfyUI 的文件名
+     */
+    public String uploadFromUrl(ComfyUIBackend backend, String url, String filename, String subfolder)
+            throws IOException, ParseException {
+        log.info("转发远程文件: {} -> {}", url, filename);
 
-        try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
-            HttpPost httpPost = new HttpPost(url);
+        HttpGet httpGet = new HttpGet(url);
 
-            // 构建 multipart 请求
-            MultipartEntityBuilder builder = MultipartEntityBuilder.create()
-                    .addBinaryBody("image", file.getInputStream(),
-                            ContentType.APPLICATION_OCTET_STREAM,
-                            file.getOriginalFilename())
-                    .addTextBody("overwrite", "true");
+        long start = System.nanoTime();
+        try (CloseableHttpResponse response = httpClient.execute(httpGet)) {
+            int statusCode = response.getCode();
+            if (statusCode != 200) {
+                throw new IOException("下载文件失败，HTTP状态码: " + statusCode);
+            }
 
-            if (subfolder != null && !subfolder.isEmpty()) {
-                builder.addTextBody("subfolder", subfolder);
+            HttpEntity entity = response.getEntity();
+            try (InputStream inputStream = entity.getContent()) {
+                return upload(backend, inputStream, filename, entity.getContentLength(), subfolder);
             }
+        } finally {
+            StageTimer.record(StageTimer.Stage.UPLOAD, start);
+        }
+    }
+
+    /**
+     * 以流的方式上传文件到 ComfyUI 的 /upload/image
+     * 已知长度时带 Content-Length 发送，否则使用分块传输；内容按缓冲区边读边写，内存占用与文件大小无关
+     *
+     * @param size 文件大小，未知时传 -1
+     */
+    private String upload(ComfyUIBackend backend, InputStream content, String filename, long size, String subfolder)
+            throws IOException, ParseException {
+        String url = backend.getUrl() + "/upload/image";
 
-            httpPost.setEntity(builder.build());
+        HttpPost httpPost = new HttpPost(url);
 
-            try (CloseableHttpResponse response = httpClient.execute(httpPost)) {
-                String responseBody = EntityUtils.toString(response.getEntity(), "UTF-8");
-                log.info("文件上传响应: {}", responseBody);
+        // 构建 multipart 请求
+        MultipartEntityBuilder builder = MultipartEntityBuilder.create()
+                .addPart("image", new InputStreamBody(content,
+                        ContentType.APPLICATION_OCTET_STREAM, filename, size))
+                .addTextBody("overwrite", "true");
+
+        if (subfolder != null && !subfolder.isEmpty()) {
+            builder.addTextBody("subfolder", subfolder);
+        }
 
-                JsonNode jsonNode = objectMapper.readTree(responseBody);
-                String uploadedName = jsonNode.get("name").asText();
-                String uploadedSubfolder = jsonNode.has("subfolder") ? jsonNode.get("subfolder").asText() : "";
+        httpPost.setEntity(builder.build());
 
-                log.info("文件上传成功: name={}, subfolder={}", uploadedName, uploadedSubfolder);
-                return uploadedName;
+        try (CloseableHttpResponse response = httpClient.execute(httpPost)) {
+            String responseBody = EntityUtils.toString(response.getEntity(), "UTF-8");
+            if (response.getCode() != 200) {
+                throw new IOException("上传文件失败，HTTP状态码: " + response.getCode() + " - " + responseBody);
             }
+            log.debug("文件上传响应: {}", responseBody);
+
+            JsonNode jsonNode = objectMapper.readTree(responseBody);
+            String uploadedName = jsonNode.get("name").asText();
+            String uploadedSubfolder = jsonNode.has("subfolder") ? jsonNode.get("subfolder").asText() : "";
+
+            log.info("文件上传成功: name={}, subfolder={}", uploadedName, uploadedSubfolder);
+            return uploadedName;
         }
     }
 
@@ -873,37 +2237,30 @@ public class ComfyUIService {
     public MattingResult runQwenEdit(QwenEditRequest request) {
         MattingResult result = new MattingResult();
         long startTime = System.currentTimeMillis();
+        StageTimer stageTimer = StageTimer.start();
+        ComfyUIBackend backend = null;
 
         try {
             // 1. 加载Qwen编辑工作流
-            JsonNode workflow = loadWorkflowFromResource("qwen-Edit-Multiple-angles-api.json");
-
-            // 2. 上传图片
-            String uploadedName = uploadImage(request.getImage());
+            ObjectNode workflow = loadWorkflowFromResource("qwen-Edit-Multiple-angles-api.json");
+            backend = backendPool.select("qwen-Edit-Multiple-angles-api.json");
 
-            // 3. 更新工作流参数 - 仅配置必要参数
-            // 节点 9: LoadImage - 加载输入图片
-            workflow = updateWorkflowParams(workflow, "9", "image", uploadedName);
+            // 2. 更新工作流参数 - 仅配置必要参数
+            // 节点 9: LoadImage，节点 30: 用户编辑指令，节点 35: RepeatLatentBatch
+            WorkflowBindings.QWEN_EDIT.apply(workflow, request, null);
 
-            // 节点 30: Text Multiline - 用户编辑指令
-            if (request.getEditInstruction() != null && !request.getEditInstruction().isEmpty()) {
-                workflow = updateWorkflowParams(workflow, "30", "text", request.getEditInstruction());
-            }
-
-            // 节点 35: RepeatLatentBatch - 重复批次
-            if (request.getRepeatAmount() != null) {
-                workflow = updateWorkflowParams(workflow, "35", "amount", request.getRepeatAmount());
-            }
+            // 3. 上传图片（按节点 45 的处理宽度预缩小）
+            Uploads uploads = new Uploads();
+            uploadImage(backend, request.getImage(), WorkflowBindings.QWEN_EDIT, workflow, uploads);
 
-            // 4. 执行工作流
+            // 4. 执行工作流并等待完成
             log.debug("runQwenEdit - 更新后的工作流: {}", objectMapper.writeValueAsString(workflow));
-            String promptId = executeWorkflow(workflow);
-            result.setPromptId(promptId);
-
-            // 5. 等待完成
-            JsonNode outputs = waitForCompletion(promptId);
+            ResultCache.Entry execution = executeAndWait(backend, "qwen-Edit-Multiple-angles-api.json", PromptScheduler.Priority.INTERACTIVE,
+                    workflow, uploads, true);
+            result.setPromptId(execution.promptId());
+            JsonNode outputs = execution.outputs();
 
-            // 6. 解析输出 - 节点 18 (PreviewImage) 或节点 33 (ImageUpscaleWithModel)
+            // 5. 解析输出 - 节点 18 (PreviewImage) 或节点 33 (ImageUpscaleWithModel)
             boolean foundOutput = false;
             List<MattingResult.ImageOutput> imageOutputs = new ArrayList<>();
 
@@ -921,7 +2278,7 @@ public class ComfyUIService {
                                     imageNode.get("type").asText() : "output";
 
                             // 构建 ComfyUI 远程 URL
-                            String remoteUrl = config.getApi().getBaseUrl() + "/view?filename=" + filename;
+                            String remoteUrl = execution.baseUrl() + "/view?filename=" + filename;
                             if (!subfolder.isEmpty()) {
                                 remoteUrl += "&subfolder=" + subfolder;
                             }
@@ -931,6 +2288,8 @@ public class ComfyUIService {
                             MattingResult.ImageOutput imageOutput = new MattingResult.ImageOutput();
                             imageOutput.setFilename(filename);
                             imageOutput.setRemoteUrl(remoteUrl);
+                            imageOutput.setOutputUrl(resultMirror.prefetch(execution.baseUrl(), execution.promptId(),
+                                    filename, subfolder, type));
                             imageOutputs.add(imageOutput);
 
                             log.info("Qwen编辑完成，输出文件 {}/{}: {}", i + 1, images.size(), filename);
@@ -948,19 +2307,25 @@ public class ComfyUIService {
                 // 兼容旧版，第一张图片作为默认值
                 result.setOutputFilename(imageOutputs.get(0).getFilename());
                 result.setRemoteUrl(imageOutputs.get(0).getRemoteUrl());
+                result.setOutputUrl(imageOutputs.get(0).getOutputUrl());
                 log.info("Qwen编辑完成，共生成 {} 张图片", imageOutputs.size());
             } else {
                 result.setSuccess(false);
                 result.setErrorMessage("未找到输出图片");
             }
 
+        } catch (QueueFullException e) {
+            throw e;
         } catch (Exception e) {
             log.error("Qwen多角度编辑失败", e);
             result.setSuccess(false);
             result.setErrorMessage(e.getMessage());
+        } finally {
+            backendPool.release(backend);
         }
 
         result.setExecutionTime(System.currentTimeMillis() - startTime);
+        result.setStages(stageTimer.finish());
         return result;
     }
 
@@ -974,16 +2339,22 @@ public class ComfyUIService {
     public MattingResult runQwenTranslate(QwenTranslateRequest request) {
         MattingResult result = new MattingResult();
         long startTime = System.currentTimeMillis();
+        StageTimer stageTimer = StageTimer.start();
+        ComfyUIBackend backend = null;
 
         try {
             // 1. 加载Qwen翻译工作流
-            JsonNode workflow = loadWorkflowFromResource("qwen-img-translate-api.json");
+            ObjectNode workflow = loadWorkflowFromResource("qwen-img-translate-api.json");
+            backend = backendPool.select("qwen-img-translate-api.json");
 
             // 2. 处理图片输入（支持上传或URL）
+            Uploads uploads = new Uploads();
             String imageName = "";
+            boolean imageUploaded = false;
             if (request.getImage() != null && !request.getImage().isEmpty()) {
                 // 上传图片
-                imageName = uploadImage(request.getImage());
+                imageName = uploadImage(backend, request.getImage(), uploads);
+                imageUploaded = true;
                 log.info("图片已上传: {}", imageName);
             } else if (request.getImageUrl() != null && !request.getImageUrl().isEmpty()) {
                 // 使用URL
@@ -992,16 +2363,8 @@ public class ComfyUIService {
             }
 
             // 3. 更新工作流参数
-            // 节点 2: LoadImage - 加载输入图片
-            workflow = updateWorkflowParams(workflow, "2", "image", imageName);
-
-            // 节点 1: QwenImageTranslate - 仅配置必要参数
-            if (request.getSourceLang() != null) {
-                workflow = updateWorkflowParams(workflow, "1", "source_lang", request.getSourceLang());
-            }
-            if (request.getTargetLang() != null) {
-                workflow = updateWorkflowParams(workflow, "1", "target_lang", request.getTargetLang());
-            }
+            // 节点 2: LoadImage，节点 1: QwenImageTranslate - 仅配置必要参数
+            WorkflowBindings.QWEN_TRANSLATE.apply(workflow, request, imageName);
 
             // API Key 优先使用请求中的，如果没有则从配置文件读取
             String apiKey = request.getApiKey();
@@ -1009,20 +2372,19 @@ public class ComfyUIService {
                 apiKey = config.getQwen().getApiKey();
             }
             if (apiKey != null && !apiKey.isEmpty()) {
-                workflow = updateWorkflowParams(workflow, "1", "api_key", apiKey);
+                updateWorkflowParams(workflow, "1", "api_key", apiKey);
             } else {
                 throw new RuntimeException("Qwen API密钥未配置，请在 application.yml 中配置 comfyui.qwen.api-key");
             }
 
-            // 4. 执行工作流
+            // 4. 执行工作流并等待完成
             log.debug("runQwenTranslate - 更新后的工作流: {}", objectMapper.writeValueAsString(workflow));
-            String promptId = executeWorkflow(workflow);
-            result.setPromptId(promptId);
-
-            // 5. 等待完成
-            JsonNode outputs = waitForCompletion(promptId);
+            ResultCache.Entry execution = executeAndWait(backend, "qwen-img-translate-api.json", PromptScheduler.Priority.INTERACTIVE,
+                    workflow, uploads, imageUploaded);
+            result.setPromptId(execution.promptId());
+            JsonNode outputs = execution.outputs();
 
-            // 6. 解析输出 - 节点 3 (PreviewImage)
+            // 5. 解析输出 - 节点 3 (PreviewImage)
             boolean foundOutput = false;
             for (JsonNode nodeOutput : outputs) {
                 if (nodeOutput.has("images")) {
@@ -1036,7 +2398,7 @@ public class ComfyUIService {
                                 firstImage.get("type").asText() : "output";
 
                         // 构建 ComfyUI 远程 URL
-                        String remoteUrl = config.getApi().getBaseUrl() + "/view?filename=" + filename;
+                        String remoteUrl = execution.baseUrl() + "/view?filename=" + filename;
                         if (!subfolder.isEmpty()) {
                             remoteUrl += "&subfolder=" + subfolder;
                         }
@@ -1045,6 +2407,8 @@ public class ComfyUIService {
                         result.setSuccess(true);
                         result.setOutputFilename(filename);
                         result.setRemoteUrl(remoteUrl);
+                        result.setOutputUrl(resultMirror.prefetch(execution.baseUrl(), execution.promptId(),
+                                filename, subfolder, type));
                         foundOutput = true;
                         log.info("Qwen翻译完成，输出文件: {}", filename);
                         break;
@@ -1057,33 +2421,40 @@ public class ComfyUIService {
                 result.setErrorMessage("未找到输出图片");
             }
 
+        } catch (QueueFullException e) {
+            throw e;
         } catch (Exception e) {
             log.error("Qwen图像翻译失败", e);
             result.setSuccess(false);
             result.setErrorMessage(e.getMessage());
+        } finally {
+            backendPool.release(backend);
         }
 
         result.setExecutionTime(System.currentTimeMillis() - startTime);
+        result.setStages(stageTimer.finish());
         return result;
     }
 
     /**
-     * 检查 ComfyUI 服务器状态
+     * 检查 ComfyUI 服务器状态，任意一台服务器可用即返回 true
      */
     public boolean checkServerStatus() {
-        try {
-            String url = config.getApi().getBaseUrl() + "/system_stats";
+        for (ComfyUIBackend backend : backendPool.getBackends()) {
+            try {
+                String url = backend.getUrl() + "/system_stats";
 
-            try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
                 HttpGet httpGet = new HttpGet(url);
 
                 try (CloseableHttpResponse response = httpClient.execute(httpGet)) {
-                    return response.getCode() == 200;
+                    if (response.getCode() == 200) {
+                        return true;
+                    }
                 }
+            } catch (Exception e) {
+                log.error("检查服务器状态失败: {}", backend, e);
             }
-        } catch (Exception e) {
-            log.error("检查服务器状态失败", e);
-            return false;
         }
+        return false;
     }
 }
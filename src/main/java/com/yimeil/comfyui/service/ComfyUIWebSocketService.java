@@ -0,0 +1,250 @@
+package com.yimeil.comfyui.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.yimeil.comfyui.config.ComfyUIConfig;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.handshake.ServerHandshake;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * ComfyUI WebSocket 事件服务
+ * 与每台 ComfyUI 服务器维护一条共享的 /ws?clientId= 连接，将 executing / execution_error 等事件分发给等待中的 Prompt，
+ * 并将 progress / executing / executed 事件转发给登记的监听器（异步任务的 SSE 进度）
+ */
+@Service
+@Slf4j
+public class ComfyUIWebSocketService {
+
+    @Autowired
+    private ComfyUIConfig config;
+
+    @Autowired
+    private ComfyUIBackendPool backendPool;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final String clientId = UUID.randomUUID().toString();
+
+    /**
+     * 等待中的 Prompt：promptId -> 完成信号（执行出错时携带 execution_error 数据）
+     */
+    private final Map<String, CompletableFuture<JsonNode>> pending = new ConcurrentHashMap<>();
+
+    /**
+     * 已收到 execution_error 但尚未收到结束事件的 Prompt
+     */
+    private final Map<String, JsonNode> errors = new ConcurrentHashMap<>();
+
+    /**
+     * 等待中的 Prompt 在本机观察到的开始 / 结束时间（System.nanoTime()），用于拆分排队和执行耗时
+     */
+    private final Map<String, long[]> executionTimes = new ConcurrentHashMap<>();
+
+    /**
+     * Prompt ID -> 执行进度监听器，在 WebSocket 读线程上调用，不能阻塞
+     */
+    private final Map<String, Consumer<JsonNode>> listeners = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService reconnectExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "comfyui-ws-reconnect");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * 服务器地址 -> 当前连接
+     */
+    private final Map<String, WebSocketClient> clients = new ConcurrentHashMap<>();
+
+    private volatile boolean shutdown = false;
+
+    @PostConstruct
+    public void start() {
+        if (!config.getWebsocket().isEnabled()) {
+            log.info("WebSocket 完成通知已禁用，使用 /history 轮询");
+            return;
+        }
+        for (ComfyUIBackend backend : backendPool.getBackends()) {
+            connect(backend.getUrl());
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        shutdown = true;
+        reconnectExecutor.shutdownNow();
+        clients.values().forEach(WebSocketClient::close);
+    }
+
+    /**
+     * 提交 Prompt 时使用的 client_id，必须与 WebSocket 连接一致才能收到该 Prompt 的事件
+     * 所有服务器使用同一个 client_id，Prompt ID 全局唯一，不会混淆
+     */
+    public String getClientId() {
+        return clientId;
+    }
+
+    /**
+     * 与指定服务器的 WebSocket 当前是否可用
+     */
+    public boolean isConnected(String baseUrl) {
+        WebSocketClient current = clients.get(baseUrl);
+        return current != null && current.isOpen();
+    }
+
+    /**
+     * 登记等待某个 Prompt 的完成信号
+     * 必须在检查 /history 之前调用，避免完成事件在登记前到达而丢失
+     */
+    public CompletableFuture<JsonNode> register(String promptId) {
+        return pending.computeIfAbsent(promptId, id -> new CompletableFuture<>());
+    }
+
+    /**
+     * 取消登记
+     */
+    public void release(String promptId) {
+        pending.remove(promptId);
+        errors.remove(promptId);
+        executionTimes.remove(promptId);
+    }
+
+    /**
+     * 本机收到 execution_start 和结束事件的时间（System.nanoTime()），未收到的为 0
+     * 只记录已登记等待的 Prompt，取消登记后清除
+     */
+    public long[] getExecutionTimes(String promptId) {
+        long[] times = executionTimes.get(promptId);
+        return times != null ? times.clone() : null;
+    }
+
+    /**
+     * 登记 Prompt 的执行进度监听器，收到该 Prompt 的 progress / executing / executed 事件时回调（参数为完整事件）
+     */
+    public void addListener(String promptId, Consumer<JsonNode> listener) {
+        listeners.put(promptId, listener);
+    }
+
+    public void removeListener(String promptId) {
+        listeners.remove(promptId);
+    }
+
+    private void connect(String baseUrl) {
+        if (shutdown) {
+            return;
+        }
+        try {
+            URI uri = buildWebSocketUri(baseUrl);
+            log.info("连接 ComfyUI WebSocket: {}", uri);
+            WebSocketClient newClient = new WebSocketClient(uri) {
+                @Override
+                public void onOpen(ServerHandshake handshake) {
+                    log.info("ComfyUI WebSocket 已连接: {}", baseUrl);
+                }
+
+                @Override
+                public void onMessage(String message) {
+                    handleMessage(message);
+                }
+
+                @Override
+                public void onClose(int code, String reason, boolean remote) {
+                    log.warn("ComfyUI WebSocket 已断开: {} code={}, reason={}", baseUrl, code, reason);
+                    scheduleReconnect(baseUrl);
+                }
+
+                @Override
+                public void onError(Exception ex) {
+                    log.warn("ComfyUI WebSocket 错误: {} - {}", baseUrl, ex.getMessage());
+                }
+            };
+            clients.put(baseUrl, newClient);
+            newClient.connect();
+        } catch (Exception e) {
+            log.warn("ComfyUI WebSocket 连接失败: {} - {}", baseUrl, e.getMessage());
+            scheduleReconnect(baseUrl);
+        }
+    }
+
+    private void scheduleReconnect(String baseUrl) {
+        if (shutdown) {
+            return;
+        }
+        try {
+            reconnectExecutor.schedule(() -> connect(baseUrl),
+                    config.getWebsocket().getReconnectInterval(), TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            log.debug("WebSocket 重连调度失败: {}", e.getMessage());
+        }
+    }
+
+    private URI buildWebSocketUri(String baseUrl) {
+        String wsBase = baseUrl.startsWith("https://") ? "wss://" + baseUrl.substring("https://".length())
+                : "ws://" + baseUrl.replaceFirst("^http://", "");
+        return URI.create(wsBase + "/ws?clientId=" + clientId);
+    }
+
+    /**
+     * 处理 ComfyUI 推送的事件
+     * executing 且 node 为 null 表示该 Prompt 已结束（此时 history 已写入）
+     */
+    private void handleMessage(String message) {
+        try {
+            JsonNode event = objectMapper.readTree(message);
+            String type = event.path("type").asText();
+            JsonNode data = event.path("data");
+            String promptId = data.path("prompt_id").asText(null);
+            if (promptId == null) {
+                return;
+            }
+
+            Consumer<JsonNode> listener = listeners.get(promptId);
+            if (listener != null && ("progress".equals(type) || "executing".equals(type) || "executed".equals(type))) {
+                listener.accept(event);
+            }
+
+            switch (type) {
+                case "execution_start":
+                    if (pending.containsKey(promptId)) {
+                        executionTimes.computeIfAbsent(promptId, id -> new long[2])[0] = System.nanoTime();
+                    }
+                    break;
+                case "execution_error":
+                case "execution_interrupted":
+                    log.warn("Prompt {} 执行异常: {}", promptId, data.path("exception_message").asText(type));
+                    errors.put(promptId, data);
+                    break;
+                case "executing":
+                    if (data.path("node").isNull()) {
+                        if (pending.containsKey(promptId)) {
+                            executionTimes.computeIfAbsent(promptId, id -> new long[2])[1] = System.nanoTime();
+                        }
+                        JsonNode error = errors.remove(promptId);
+                        CompletableFuture<JsonNode> future = pending.get(promptId);
+                        if (future != null) {
+                            future.complete(error);
+                        }
+                    }
+                    break;
+                default:
+                    break;
+            }
+        } catch (Exception e) {
+            log.debug("解析 WebSocket 消息失败: {}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.yimeil.comfyui.service;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 任务截止时间与取消信号
+ * 每个请求 / 异步任务在执行线程上绑定一个 Deadline（任务中创建的子线程同样可见），
+ * 调度排队、等待 ComfyUI 完成的代码据此决定最长等待时间；取消时等待中的线程立即被唤醒，
+ * 由等待方把已提交的 Prompt 从 ComfyUI 队列删除或中断执行
+ */
+public final class Deadline {
+
+    private static final InheritableThreadLocal<Deadline> CURRENT = new InheritableThreadLocal<>();
+
+    /**
+     * 截止时间（毫秒时间戳）
+     */
+    private final long expiresAt;
+
+    /**
+     * 取消时以取消原因完成
+     */
+    private final CompletableFuture<String> cancellation = new CompletableFuture<>();
+
+    private Deadline(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * 从现在起 timeoutMillis 毫秒后截止
+     */
+    public static Deadline after(long timeoutMillis) {
+        return new Deadline(System.currentTimeMillis() + timeoutMillis);
+    }
+
+    /**
+     * 合并执行多个任务时使用：截止时间取最晚的一个，所有任务都取消后才取消
+     *
+     * @return 任一任务没有截止时间时返回 null
+     */
+    static Deadline latest(List<Deadline> deadlines) {
+        long expiresAt = 0;
+        for (Deadline deadline : deadlines) {
+            if (deadline == null) {
+                return null;
+            }
+            expiresAt = Math.max(expiresAt, deadline.expiresAt);
+        }
+        Deadline combined = new Deadline(expiresAt);
+        CompletableFuture.allOf(deadlines.stream().map(d -> d.cancellation).toArray(CompletableFuture[]::new))
+                .thenRun(() -> combined.cancel("合并执行的请求均已取消"));
+        return combined;
+    }
+
+    /**
+     * 当前线程的截止时间，没有时返回 null
+     */
+    public static Deadline current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * 绑定到当前线程，传 null 解除绑定
+     */
+    public static void bind(Deadline deadline) {
+        if (deadline != null) {
+            CURRENT.set(deadline);
+        } else {
+            CURRENT.remove();
+        }
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * 取消任务，只有第一次调用的原因生效
+     */
+    public void cancel(String reason) {
+        cancellation.complete(reason);
+    }
+
+    public boolean isCancelled() {
+        return cancellation.isDone();
+    }
+
+    /**
+     * 已取消或已过截止时间
+     */
+    public boolean isOver() {
+        return isCancelled() || System.currentTimeMillis() >= expiresAt;
+    }
+
+    /**
+     * 剩余时间（毫秒），已取消时为 0
+     */
+    public long remaining() {
+        return isCancelled() ? 0 : Math.max(0, expiresAt - System.currentTimeMillis());
+    }
+
+    /**
+     * 取消信号，供等待中的代码与其他 Future 一起等待
+     */
+    public CompletableFuture<String> cancellation() {
+        return cancellation;
+    }
+
+    /**
+     * 已取消或已过截止时间时抛出 JobCancelledException
+     */
+    public void check() throws JobCancelledException {
+        if (isOver()) {
+            throw exception();
+        }
+    }
+
+    /**
+     * 当前线程的任务已取消或已过截止时间时抛出 JobCancelledException
+     */
+    public static void checkCurrent() throws JobCancelledException {
+        Deadline deadline = CURRENT.get();
+        if (deadline != null) {
+            deadline.check();
+        }
+    }
+
+    JobCancelledException exception() {
+        String reason = cancellation.getNow(null);
+        return reason != null ? new JobCancelledException(reason) : new JobCancelledException("任务已超过截止时间");
+    }
+}
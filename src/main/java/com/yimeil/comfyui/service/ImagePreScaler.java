@@ -0,0 +1,508 @@
+package com.yimeil.comfyui.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.IntNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.yimeil.comfyui.config.ComfyUIConfig;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+import org.w3c.dom.NodeList;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * 上传前图片预缩小
+ * 工作流会先把输入图片缩小到处理分辨率（批量抠图的 processHeight、Qwen 编辑的 1024 宽）时，
+ * 在本地按相同的比例和 Lanczos 滤波缩小后再上传：传输的字节数和 GPU 机器上的缩放时间都大幅减少，工作流看到的图片不变
+ * <p>
+ * 先只读文件头取得尺寸，工作流不会缩小（原图不大于处理分辨率）时不解码；
+ * 重采样按输出行分块，在专用线程池上并行，每块只需要一行的中间结果
+ */
+@Service
+@Slf4j
+public class ImagePreScaler {
+
+    /**
+     * 每块输出的行数
+     */
+    private static final int BAND_ROWS = 32;
+
+    /**
+     * Lanczos 窗口半径
+     */
+    private static final int LANCZOS_RADIUS = 3;
+
+    /**
+     * EXIF 方向标签
+     */
+    private static final int EXIF_ORIENTATION = 0x0112;
+
+    @Autowired
+    private ComfyUIConfig config;
+
+    private ForkJoinPool pool;
+
+    private Semaphore permits;
+
+    /**
+     * 预缩小计划
+     *
+     * @param preScale     绑定计划中的预缩小声明
+     * @param width        原图宽度
+     * @param height       原图高度
+     * @param targetWidth  缩小后的宽度
+     * @param targetHeight 缩小后的高度
+     */
+    public record Plan(WorkflowBinding.PreScale preScale, int width, int height, int targetWidth, int targetHeight) {
+
+        /**
+         * 上传缩小后的图片时，工作流中读取原图尺寸的连线改为原图尺寸常量，结果仍放大回原尺寸
+         */
+        public void pinOriginalSize(ObjectNode workflow) {
+            if (preScale.sizeNode() == null) {
+                return;
+            }
+            for (JsonNode node : workflow) {
+                JsonNode inputs = node.path("inputs");
+                if (!inputs.isObject()) {
+                    continue;
+                }
+                var fields = inputs.fields();
+                while (fields.hasNext()) {
+                    Map.Entry<String, JsonNode> field = fields.next();
+                    JsonNode value = field.getValue();
+                    if (value.isArray() && value.size() == 2 && preScale.sizeNode().equals(value.get(0).asText())) {
+                        // GetImageSize+ 的输出依次为宽、高、批次大小（上传的始终是单张图片）
+                        field.setValue(IntNode.valueOf(switch (value.get(1).asInt()) {
+                            case 0 -> width;
+                            case 1 -> height;
+                            default -> 1;
+                        }));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 文件头信息
+     *
+     * @param orientation EXIF 方向，没有时为 1
+     * @param bitDepth    每个分量的位数，无法确定时为 0
+     */
+    record Probe(int width, int height, int orientation, int bitDepth) {
+    }
+
+    @PostConstruct
+    public void init() {
+        ComfyUIConfig.PreScaleConfig preScaleConfig = config.getPreScale();
+        int parallelism = preScaleConfig.getParallelism() > 0 ?
+                preScaleConfig.getParallelism() : Runtime.getRuntime().availableProcessors();
+        pool = new ForkJoinPool(parallelism, p -> {
+            var thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            thread.setName("image-prescale-" + thread.getPoolIndex());
+            thread.setDaemon(true);
+            return thread;
+        }, null, false);
+        permits = new Semaphore(Math.max(1, preScaleConfig.getConcurrency()));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    public boolean isEnabled() {
+        return config.getPreScale().isEnabled();
+    }
+
+    /**
+     * 计算预缩小计划，不需要或不能预缩小时返回 null
+     *
+     * @param workflow 已绑定参数的工作流实例（处理分辨率从缩小节点读取）
+     */
+    public Plan plan(MultipartFile file, WorkflowBinding<?> binding, ObjectNode workflow) {
+        WorkflowBinding.PreScale preScale = binding.getPreScale();
+        if (!isEnabled() || preScale == null) {
+            return null;
+        }
+        String unsupported = binding.checkPreScale(workflow);
+        if (unsupported != null) {
+            log.debug("{} 不能预缩小: {}", binding.getWorkflowName(), unsupported);
+            return null;
+        }
+
+        JsonNode resizeInputs = workflow.path(preScale.resizeNode()).path("inputs");
+        JsonNode width = resizeInputs.path("width");
+        JsonNode height = resizeInputs.path("height");
+        if (!width.isIntegralNumber() || !height.isIntegralNumber()) {
+            return null;
+        }
+
+        Probe probe;
+        try {
+            probe = probe(file);
+        } catch (IOException e) {
+            log.debug("读取图片文件头失败 {}: {}", file.getOriginalFilename(), e.getMessage());
+            return null;
+        }
+        // 无法识别的格式、带旋转方向的照片（ComfyUI 按 EXIF 旋转）和高位深图片直接上传原图
+        if (probe == null || probe.orientation() != 1 || probe.bitDepth() > 8
+                || (long) probe.width() * probe.height() > config.getPreScale().getMaxPixels()) {
+            return null;
+        }
+
+        int[] target = keepProportion(probe.width(), probe.height(), width.asInt(), height.asInt());
+        if (target == null || Math.max((double) probe.width() / target[0], (double) probe.height() / target[1])
+                < config.getPreScale().getMinRatio()) {
+            return null;
+        }
+        return new Plan(preScale, probe.width(), probe.height(), target[0], target[1]);
+    }
+
+    /**
+     * 按计划缩小图片并编码为 PNG，调用方负责关闭返回的临时文件
+     */
+    public SpooledMultipartFile scale(MultipartFile file, Plan plan) throws IOException, InterruptedException {
+        permits.acquire();
+        long start = System.nanoTime();
+        try {
+            BufferedImage source = decode(file);
+            if (source.getWidth() != plan.width() || source.getHeight() != plan.height()) {
+                throw new IOException("解码后的尺寸与文件头不一致");
+            }
+            BufferedImage scaled = resample(source, plan.targetWidth(), plan.targetHeight());
+
+            Path path = Files.createTempFile("comfyui-prescale-", ".png");
+            try (OutputStream out = Files.newOutputStream(path)) {
+                if (!ImageIO.write(scaled, "png", out)) {
+                    throw new IOException("没有可用的 PNG 编码器");
+                }
+            } catch (IOException e) {
+                Files.deleteIfExists(path);
+                throw e;
+            }
+            SpooledMultipartFile result = new SpooledMultipartFile(file.getName(),
+                    pngName(file.getOriginalFilename()), "image/png", path);
+            log.info("图片预缩小: {} {}x{} ({} KB) -> {}x{} ({} KB)，耗时 {} ms", file.getOriginalFilename(),
+                    plan.width(), plan.height(), file.getSize() / 1024, plan.targetWidth(), plan.targetHeight(),
+                    result.getSize() / 1024, (System.nanoTime() - start) / 1_000_000);
+            return result;
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * 按 ImageResize+ 的 keep proportion 规则计算缩放后的尺寸（0 表示该边不限制），不会缩小时返回 null。
+     * Python 的 round() 是四舍六入五成双，对应 Math.rint 而不是 Math.round
+     */
+    static int[] keepProportion(int width, int height, int maxWidth, int maxHeight) {
+        double ratio = Math.min(maxWidth > 0 ? (double) maxWidth / width : Double.MAX_VALUE,
+                maxHeight > 0 ? (double) maxHeight / height : Double.MAX_VALUE);
+        if (ratio >= 1) {
+            return null;
+        }
+        return new int[]{Math.max(1, (int) Math.rint(width * ratio)), Math.max(1, (int) Math.rint(height * ratio))};
+    }
+
+    // ==================== 文件头 ====================
+
+    /**
+     * 只读取文件头：尺寸、EXIF 方向和位深，不解码像素。无法识别的格式返回 null
+     */
+    Probe probe(MultipartFile file) throws IOException {
+        try (ImageInputStream input = open(file)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, false);
+                int orientation = 1;
+                if ("jpeg".equalsIgnoreCase(reader.getFormatName())) {
+                    orientation = jpegOrientation(reader.getImageMetadata(0));
+                }
+                int bitDepth = 0;
+                ImageTypeSpecifier type = reader.getRawImageType(0);
+                if (type != null) {
+                    for (int size : type.getSampleModel().getSampleSize()) {
+                        bitDepth = Math.max(bitDepth, size);
+                    }
+                }
+                return new Probe(reader.getWidth(0), reader.getHeight(0), orientation, bitDepth);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * 从 JPEG 的 APP1 (Exif) 段读取方向标签
+     */
+    private static int jpegOrientation(IIOMetadata metadata) {
+        if (metadata == null) {
+            return 1;
+        }
+        IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree("javax_imageio_jpeg_image_1.0");
+        NodeList markers = root.getElementsByTagName("unknown");
+        for (int i = 0; i < markers.getLength(); i++) {
+            IIOMetadataNode marker = (IIOMetadataNode) markers.item(i);
+            if ("225".equals(marker.getAttribute("MarkerTag")) && marker.getUserObject() instanceof byte[] data) {
+                int orientation = exifOrientation(data);
+                if (orientation > 0) {
+                    return orientation;
+                }
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * 解析 Exif 段中 IFD0 的方向标签，不是 Exif 段或没有方向时返回 0
+     */
+    static int exifOrientation(byte[] segment) {
+        if (segment.length < 14 || segment[0] != 'E' || segment[1] != 'x' || segment[2] != 'i' || segment[3] != 'f') {
+            return 0;
+        }
+        ByteBuffer tiff = ByteBuffer.wrap(segment, 6, segment.length - 6).slice();
+        try {
+            tiff.order(tiff.get(0) == 'I' ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+            int ifd = tiff.getInt(4);
+            int entries = tiff.getShort(ifd) & 0xffff;
+            for (int i = 0; i < entries; i++) {
+                int entry = ifd + 2 + i * 12;
+                if ((tiff.getShort(entry) & 0xffff) == EXIF_ORIENTATION) {
+                    return tiff.getShort(entry + 8) & 0xffff;
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            // 损坏的 Exif 段按没有方向处理
+        }
+        return 0;
+    }
+
+    // ==================== 解码与重采样 ====================
+
+    private static ImageInputStream open(MultipartFile file) throws IOException {
+        // 落盘的文件直接读取，其他情况只在内存中缓存读到的部分（ImageIO 默认会复制到临时文件）
+        if (file instanceof SpooledMultipartFile spooled) {
+            return new FileImageInputStream(spooled.getPath().toFile());
+        }
+        return new MemoryCacheImageInputStream(file.getInputStream());
+    }
+
+    private static BufferedImage decode(MultipartFile file) throws IOException {
+        try (ImageInputStream input = open(file)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw new IOException("无法识别的图片格式");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                return reader.read(0);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * 可分离的 Lanczos3 缩小（与 ComfyUI 中 ImageResize+ 的 lanczos 相同的滤波），按输出行分块并行
+     * 每个输出行先把窗口内的源行垂直滤波成一行，再水平滤波写入输出，分块之间没有重复计算
+     */
+    BufferedImage resample(BufferedImage source, int targetWidth, int targetHeight) throws IOException {
+        BufferedImage src = interleaved(source);
+        int channels = src.getType() == BufferedImage.TYPE_4BYTE_ABGR ? 4 : 3;
+        int srcWidth = src.getWidth();
+        byte[] in = ((DataBufferByte) src.getRaster().getDataBuffer()).getData();
+
+        BufferedImage dst = new BufferedImage(targetWidth, targetHeight, src.getType());
+        byte[] out = ((DataBufferByte) dst.getRaster().getDataBuffer()).getData();
+
+        Kernel horizontal = Kernel.of(srcWidth, targetWidth);
+        Kernel vertical = Kernel.of(src.getHeight(), targetHeight);
+
+        List<Callable<Void>> bands = new ArrayList<>();
+        for (int y0 = 0; y0 < targetHeight; y0 += BAND_ROWS) {
+            int bandStart = y0;
+            int bandEnd = Math.min(targetHeight, y0 + BAND_ROWS);
+            bands.add(() -> {
+                resampleBand(in, srcWidth, channels, out, targetWidth, horizontal, vertical, bandStart, bandEnd);
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> band : pool.invokeAll(bands)) {
+                band.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("图片缩小被中断", e);
+        } catch (ExecutionException e) {
+            throw new IOException("图片缩小失败: " + e.getCause().getMessage(), e.getCause());
+        }
+        return dst;
+    }
+
+    private static void resampleBand(byte[] in, int srcWidth, int channels, byte[] out, int dstWidth,
+                                     Kernel horizontal, Kernel vertical, int bandStart, int bandEnd) {
+        int srcStride = srcWidth * channels;
+        float[] column = new float[srcStride];
+        int dstStride = dstWidth * channels;
+        for (int y = bandStart; y < bandEnd; y++) {
+            // 垂直滤波：窗口内的源行按权重累加成一行（整行连续访问，JIT 可以向量化）
+            Arrays.fill(column, 0);
+            int weightOffset = y * vertical.taps;
+            for (int k = 0; k < vertical.length[y]; k++) {
+                float weight = vertical.weights[weightOffset + k];
+                int row = (vertical.start[y] + k) * srcStride;
+                for (int i = 0; i < srcStride; i++) {
+                    column[i] += (in[row + i] & 0xff) * weight;
+                }
+            }
+
+            // 水平滤波：每个输出像素的所有通道在同一遍窗口中计算
+            int dstRow = y * dstStride;
+            for (int x = 0; x < dstWidth; x++) {
+                int pixel = horizontal.start[x] * channels;
+                int length = horizontal.length[x];
+                int hOffset = x * horizontal.taps;
+                float c0 = 0;
+                float c1 = 0;
+                float c2 = 0;
+                float c3 = 0;
+                for (int k = 0; k < length; k++) {
+                    float weight = horizontal.weights[hOffset + k];
+                    c0 += column[pixel] * weight;
+                    c1 += column[pixel + 1] * weight;
+                    c2 += column[pixel + 2] * weight;
+                    if (channels == 4) {
+                        c3 += column[pixel + 3] * weight;
+                    }
+                    pixel += channels;
+                }
+                int target = dstRow + x * channels;
+                out[target] = clamp(c0);
+                out[target + 1] = clamp(c1);
+                out[target + 2] = clamp(c2);
+                if (channels == 4) {
+                    out[target + 3] = clamp(c3);
+                }
+            }
+        }
+    }
+
+    private static byte clamp(float value) {
+        int rounded = Math.round(value);
+        return (byte) (rounded < 0 ? 0 : Math.min(rounded, 255));
+    }
+
+    /**
+     * 转换为按字节交错存储的 BGR / ABGR（ImageIO 解码 JPEG、PNG 的常见类型可以直接使用）
+     */
+    private static BufferedImage interleaved(BufferedImage image) {
+        int type = image.getType();
+        boolean direct = (type == BufferedImage.TYPE_3BYTE_BGR || type == BufferedImage.TYPE_4BYTE_ABGR)
+                && image.getRaster().getParent() == null
+                && image.getRaster().getDataBuffer().getSize()
+                == image.getWidth() * image.getHeight() * (type == BufferedImage.TYPE_4BYTE_ABGR ? 4 : 3);
+        if (direct) {
+            return image;
+        }
+        BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(),
+                image.getColorModel().hasAlpha() ? BufferedImage.TYPE_4BYTE_ABGR : BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D graphics = converted.createGraphics();
+        try {
+            graphics.drawImage(image, 0, 0, null);
+        } finally {
+            graphics.dispose();
+        }
+        return converted;
+    }
+
+    /**
+     * 一个方向上每个输出像素的滤波窗口：起始源像素、源像素数和归一化后的权重
+     */
+    private record Kernel(int[] start, int[] length, float[] weights, int taps) {
+
+        static Kernel of(int srcSize, int dstSize) {
+            double scale = (double) srcSize / dstSize;
+            double support = LANCZOS_RADIUS * Math.max(1.0, scale);
+            int taps = (int) Math.ceil(support) * 2 + 1;
+            int[] start = new int[dstSize];
+            int[] length = new int[dstSize];
+            float[] weights = new float[dstSize * taps];
+            double filterScale = Math.max(1.0, scale);
+
+            for (int i = 0; i < dstSize; i++) {
+                double center = (i + 0.5) * scale;
+                int min = Math.max(0, (int) (center - support + 0.5));
+                int max = Math.min(srcSize, (int) (center + support + 0.5));
+                double total = 0;
+                double[] w = new double[max - min];
+                for (int j = min; j < max; j++) {
+                    w[j - min] = lanczos((j - center + 0.5) / filterScale);
+                    total += w[j - min];
+                }
+                start[i] = min;
+                length[i] = max - min;
+                for (int k = 0; k < w.length; k++) {
+                    weights[i * taps + k] = (float) (total != 0 ? w[k] / total : 0);
+                }
+            }
+            return new Kernel(start, length, weights, taps);
+        }
+
+        private static double lanczos(double x) {
+            if (x == 0) {
+                return 1;
+            }
+            if (x <= -LANCZOS_RADIUS || x >= LANCZOS_RADIUS) {
+                return 0;
+            }
+            double px = Math.PI * x;
+            return LANCZOS_RADIUS * Math.sin(px) * Math.sin(px / LANCZOS_RADIUS) / (px * px);
+        }
+    }
+
+    private static String pngName(String originalFilename) {
+        if (originalFilename == null || originalFilename.isEmpty()) {
+            return "image.png";
+        }
+        int dot = originalFilename.lastIndexOf('.');
+        return (dot > 0 ? originalFilename.substring(0, dot) : originalFilename) + ".png";
+    }
+}
@@ -0,0 +1,13 @@
+package com.yimeil.comfyui.service;
+
+import java.io.IOException;
+
+/**
+ * 任务已取消或已超过截止时间，不再继续执行
+ */
+public class JobCancelledException extends IOException {
+
+    public JobCancelledException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,402 @@
+package com.yimeil.comfyui.service;
+
+import com.yimeil.comfyui.config.ComfyUIConfig;
+import com.yimeil.comfyui.model.JobInfo;
+import com.yimeil.comfyui.model.JobResult;
+import com.yimeil.comfyui.model.JobStatus;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * 异步任务服务
+ * 提交后立即返回任务 ID，任务在虚拟线程中执行，等待 ComfyUI 期间不占用 Tomcat 线程
+ * <p>
+ * SSE 推送：每个任务的事件按顺序排队，由虚拟线程逐条发给订阅者，订阅连接本身不占用线程；
+ * 发送跟不上时同一节点的 progress 事件只保留最新一条
+ * <p>
+ * 取消：每个任务带有提交请求的截止时间（{@link Deadline}），调用取消接口或订阅者全部断开超过
+ * disconnect-grace 时取消任务，等待中的 Prompt 随之从 ComfyUI 队列删除或被中断
+ */
+@Service
+@Slf4j
+public class JobService {
+
+    @Autowired
+    private ComfyUIConfig config;
+
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    /**
+     * 当前线程正在执行的任务，任务中创建的子线程（如批量拆分执行）同样可见
+     */
+    private final InheritableThreadLocal<Job> currentJob = new InheritableThreadLocal<>();
+
+    /**
+     * 异步任务的事件通道，由任务执行过程中的代码推送进度事件
+     */
+    public final class JobEvents {
+        private final Job job;
+
+        private JobEvents(Job job) {
+            this.job = job;
+        }
+
+        public String getJobType() {
+            return job.type;
+        }
+
+        /**
+         * 推送事件给当前订阅者，没有订阅者时直接丢弃
+         *
+         * @param name        SSE 事件名
+         * @param data        事件数据
+         * @param coalesceKey 不为 null 时，队列末尾相同 key 的未发送事件被这条替换（用于高频的进度事件）
+         */
+        public void send(String name, Object data, String coalesceKey) {
+            enqueue(job, name, data, coalesceKey);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 提交异步任务
+     *
+     * @param type      任务类型
+     * @param task      任务内容
+     * @param resources 任务结束后需要释放的资源（如临时上传文件），可包含 null
+     * @return 任务信息
+     */
+    public JobInfo submit(String type, Callable<? extends JobResult> task, AutoCloseable... resources) {
+        Deadline deadline = Deadline.current();
+        if (deadline == null) {
+            deadline = Deadline.after(config.getDeadline().getDefaultTimeout());
+        }
+        Job job = new Job(UUID.randomUUID().toString(), type, deadline);
+        jobs.put(job.jobId, job);
+        log.info("提交异步任务: {} ({})", job.jobId, type);
+
+        executor.submit(() -> run(job, task, resources));
+        return job.toInfo();
+    }
+
+    /**
+     * 查询任务
+     */
+    public JobInfo getJob(String jobId) {
+        Job job = jobs.get(jobId);
+        return job != null ? job.toInfo() : null;
+    }
+
+    /**
+     * 取消任务：排队中的 Prompt 从 ComfyUI 队列删除，执行中的 Prompt 被中断
+     * 任务线程收到取消信号后结束，状态变为 CANCELLED
+     *
+     * @return 任务信息，任务不存在时返回 null
+     */
+    public JobInfo cancel(String jobId) {
+        Job job = jobs.get(jobId);
+        if (job == null) {
+            return null;
+        }
+        cancel(job, "任务已取消");
+        return job.toInfo();
+    }
+
+    private void cancel(Job job, String reason) {
+        if (!job.status.isFinished() && !job.deadline.isCancelled()) {
+            log.info("取消异步任务: {} ({})", job.jobId, reason);
+            job.deadline.cancel(reason);
+        }
+    }
+
+    /**
+     * 订阅任务状态变化（SSE）
+     * 连接建立后立即推送当前状态，任务结束后自动关闭
+     */
+    public SseEmitter subscribe(String jobId) {
+        Job job = jobs.get(jobId);
+        if (job == null) {
+            return null;
+        }
+
+        SseEmitter emitter = new SseEmitter(config.getJob().getSseTimeout());
+        job.emitters.add(emitter);
+        job.disconnectedAt = 0;
+        emitter.onCompletion(() -> unsubscribe(job, emitter));
+        emitter.onTimeout(() -> unsubscribe(job, emitter));
+        emitter.onError(e -> unsubscribe(job, emitter));
+
+        JobInfo info = job.toInfo();
+        send(job, emitter, "status", info);
+        if (info.getStatus().isFinished()) {
+            emitter.complete();
+        }
+        return emitter;
+    }
+
+    /**
+     * 当前任务的进度回调：任务结束前公开部分结果（如批量任务已完成的图片），并推送给订阅者
+     * 需在任务线程中获取，获取后可以交给子线程调用；不在异步任务中时返回空操作
+     */
+    public Consumer<JobResult> progressListener() {
+        Job job = currentJob.get();
+        if (job == null) {
+            return partial -> {
+            };
+        }
+        return partial -> {
+            if (!job.status.isFinished()) {
+                job.result = partial;
+                publish(job);
+            }
+        };
+    }
+
+    /**
+     * 当前线程所属异步任务的事件通道，不在异步任务中时返回 null
+     */
+    public JobEvents currentEvents() {
+        Job job = currentJob.get();
+        return job != null ? new JobEvents(job) : null;
+    }
+
+    private void run(Job job, Callable<? extends JobResult> task, AutoCloseable... resources) {
+        job.status = JobStatus.RUNNING;
+        job.startedAt = System.currentTimeMillis();
+        publish(job);
+
+        JobStatus finalStatus;
+        currentJob.set(job);
+        Deadline.bind(job.deadline);
+        try {
+            JobResult result = task.call();
+            job.result = result;
+            if (result != null && result.isSuccess()) {
+                finalStatus = JobStatus.SUCCEEDED;
+            } else {
+                job.errorMessage = result != null ? result.getErrorMessage() : "任务未返回结果";
+                finalStatus = job.deadline.isCancelled() ? JobStatus.CANCELLED : JobStatus.FAILED;
+            }
+        } catch (JobCancelledException e) {
+            job.errorMessage = e.getMessage();
+            finalStatus = job.deadline.isCancelled() ? JobStatus.CANCELLED : JobStatus.FAILED;
+        } catch (Exception e) {
+            log.error("异步任务执行失败: {}", job.jobId, e);
+            job.errorMessage = e.getMessage();
+            finalStatus = JobStatus.FAILED;
+        } finally {
+            currentJob.remove();
+            Deadline.bind(null);
+            for (AutoCloseable resource : resources) {
+                closeQuietly(resource);
+            }
+        }
+
+        // 先写结束时间再切换状态，保证已结束的任务一定有 finishedAt
+        job.finishedAt = System.currentTimeMillis();
+        job.status = finalStatus;
+
+        log.info("异步任务结束: {} -> {} ({} ms)", job.jobId, job.status, job.finishedAt - job.startedAt);
+        publish(job);
+    }
+
+    /**
+     * 推送任务状态给所有订阅者
+     * 运行中的状态（含部分结果）可被后续状态替换，结束状态一定送达
+     */
+    private void publish(Job job) {
+        JobInfo info = job.toInfo();
+        enqueue(job, "status", info, info.getStatus().isFinished() ? null : "status");
+    }
+
+    private void enqueue(Job job, String name, Object data, String coalesceKey) {
+        if (job.emitters.isEmpty()) {
+            return;
+        }
+        synchronized (job.events) {
+            JobEvent last = job.events.peekLast();
+            if (coalesceKey != null && last != null && coalesceKey.equals(last.coalesceKey())) {
+                job.events.pollLast();
+            }
+            job.events.addLast(new JobEvent(name, data, coalesceKey));
+            if (job.draining) {
+                return;
+            }
+            job.draining = true;
+        }
+        executor.submit(() -> drain(job));
+    }
+
+    /**
+     * 按顺序发送排队的事件，每个任务同一时间最多一个发送线程
+     */
+    private void drain(Job job) {
+        while (true) {
+            JobEvent event;
+            synchronized (job.events) {
+                event = job.events.pollFirst();
+                if (event == null) {
+                    job.draining = false;
+                    return;
+                }
+            }
+
+            boolean finished = event.data() instanceof JobInfo info && info.getStatus().isFinished();
+            for (SseEmitter emitter : job.emitters) {
+                send(job, emitter, event.name(), event.data());
+                if (finished) {
+                    emitter.complete();
+                }
+            }
+        }
+    }
+
+    private void send(Job job, SseEmitter emitter, String name, Object data) {
+        try {
+            // 没有事件名的是心跳，以注释发送，客户端不会收到事件
+            emitter.send(name != null ? SseEmitter.event().name(name).data(data) : SseEmitter.event().comment(""));
+        } catch (IOException | IllegalStateException e) {
+            unsubscribe(job, emitter);
+        }
+    }
+
+    /**
+     * 移除订阅者，最后一个订阅者断开时记录断开时间
+     */
+    private void unsubscribe(Job job, SseEmitter emitter) {
+        if (job.emitters.remove(emitter) && job.emitters.isEmpty()) {
+            job.disconnectedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * 向运行中任务的订阅者发送心跳
+     * 客户端断开后 Tomcat 只有在写入时才能发现，心跳让断开的订阅者及时被移除；
+     * 订阅者全部断开超过 disconnect-grace 且没有重新订阅的任务视为已被放弃，取消执行
+     */
+    @Scheduled(fixedDelayString = "${comfyui.job.heartbeat-interval:15000}")
+    public void heartbeat() {
+        long grace = config.getJob().getDisconnectGrace();
+        long now = System.currentTimeMillis();
+        for (Job job : jobs.values()) {
+            if (job.status.isFinished()) {
+                continue;
+            }
+            if (!job.emitters.isEmpty()) {
+                enqueue(job, null, null, "heartbeat");
+            } else if (grace > 0 && job.disconnectedAt > 0 && now - job.disconnectedAt >= grace) {
+                cancel(job, "客户端已断开连接");
+            }
+        }
+    }
+
+    private void closeQuietly(AutoCloseable resource) {
+        if (resource == null) {
+            return;
+        }
+        try {
+            resource.close();
+        } catch (Exception e) {
+            log.warn("释放任务资源失败: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 清理过期的已结束任务
+     * 超过保留时间或超过最大保留数量时，优先清理最早结束的任务
+     */
+    @Scheduled(fixedDelay = 60000)
+    public void evictFinishedJobs() {
+        ComfyUIConfig.JobConfig jobConfig = config.getJob();
+        long expireBefore = System.currentTimeMillis() - jobConfig.getRetention();
+
+        jobs.values().removeIf(job -> job.status.isFinished() && job.finishedAt < expireBefore);
+
+        List<Job> finished = jobs.values().stream()
+                .filter(job -> job.status.isFinished())
+                .sorted(Comparator.comparingLong(job -> job.finishedAt))
+                .toList();
+        int overflow = finished.size() - jobConfig.getMaxRetained();
+        for (int i = 0; i < overflow; i++) {
+            jobs.remove(finished.get(i).jobId);
+        }
+    }
+
+    /**
+     * 待发送的 SSE 事件
+     */
+    private record JobEvent(String name, Object data, String coalesceKey) {
+    }
+
+    /**
+     * 任务运行时状态
+     */
+    private static class Job {
+        private final String jobId;
+        private final String type;
+        private final long submittedAt = System.currentTimeMillis();
+        private final Deadline deadline;
+        private final List<SseEmitter> emitters = new CopyOnWriteArrayList<>();
+
+        /**
+         * 最后一个订阅者断开的时间，有订阅者或从未订阅时为 0
+         */
+        private volatile long disconnectedAt;
+
+        /**
+         * 待发送的事件，访问需持有该队列的锁
+         */
+        private final Deque<JobEvent> events = new ArrayDeque<>();
+        private boolean draining;
+
+        private volatile JobStatus status = JobStatus.PENDING;
+        private volatile Long startedAt;
+        private volatile Long finishedAt;
+        private volatile String errorMessage;
+        private volatile Object result;
+
+        private Job(String jobId, String type, Deadline deadline) {
+            this.jobId = jobId;
+            this.type = type;
+            this.deadline = deadline;
+        }
+
+        private JobInfo toInfo() {
+            JobInfo info = new JobInfo();
+            info.setJobId(jobId);
+            info.setType(type);
+            info.setStatus(status);
+            info.setSubmittedAt(submittedAt);
+            info.setStartedAt(startedAt);
+            info.setFinishedAt(finishedAt);
+            info.setDeadline(deadline.getExpiresAt());
+            info.setErrorMessage(errorMessage);
+            info.setResult(result);
+            return info;
+        }
+    }
+}
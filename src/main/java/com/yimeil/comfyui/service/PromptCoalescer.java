@@ -0,0 +1,374 @@
+package com.yimeil.comfyui.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.yimeil.comfyui.config.ComfyUIConfig;
+import com.yimeil.comfyui.model.StageTimings;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 单图请求合并执行
+ * 同一服务器上工作流和参数完全相同、只有输入图片不同的请求，在 window 毫秒内到达的合并为一个 Prompt：
+ * 不依赖输入图片的节点（模型加载等）共用一份，从 LoadImage 开始的下游节点按图片复制，
+ * ComfyUI 只调度一次、只加载一次模型。执行完成后按节点 ID 把 outputs 拆回各请求
+ * <p>
+ * 合并的 Prompt 执行失败时逐个单独重试，避免一张坏图拖累同批的其他请求
+ * <p>
+ * 请求被取消或超过截止时间时不再等待；合并的 Prompt 只有在所有请求都取消后才从 ComfyUI 取消
+ * <p>
+ * 批次在共享线程上执行，不继承创建线程的任务上下文：截止时间和异步任务的事件通道在加入批次时记录，
+ * 执行时显式传递，合并 Prompt 的进度按节点 ID 分发给各自的请求
+ */
+@Service
+@Slf4j
+public class PromptCoalescer {
+
+    @Autowired
+    private ComfyUIConfig config;
+
+    @Autowired
+    private ResultCache resultCache;
+
+    @Autowired
+    private JobService jobService;
+
+    /**
+     * 尚在收集请求的批次：合并键 -> 批次，访问需持有对象锁
+     */
+    private final Map<String, Batch> open = new HashMap<>();
+
+    private final ExecutorService executor = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("prompt-coalescer-", 0).inheritInheritableThreadLocals(false).factory());
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("prompt-coalescer").daemon().inheritInheritableThreadLocals(false).factory());
+
+    /**
+     * 执行一个（可能已合并的）工作流
+     */
+    @FunctionalInterface
+    public interface BatchExecutor {
+        /**
+         * @param subscribers 需要接收该 Prompt 执行进度的请求
+         */
+        ResultCache.Entry execute(ObjectNode workflow, List<Subscriber> subscribers) throws Exception;
+    }
+
+    /**
+     * 接收执行进度的请求
+     *
+     * @param events  请求所属异步任务的事件通道
+     * @param nodeIds 合并后的节点 ID -> 原节点 ID，不属于该请求的节点不在其中；未合并时为 null
+     */
+    public record Subscriber(JobService.JobEvents events, Map<String, String> nodeIds) {
+    }
+
+    /**
+     * 合并执行的结果
+     *
+     * @param entry     拆分后属于该请求的输出
+     * @param stages    所在 Prompt 的各阶段耗时（由执行批次的线程记录）
+     * @param batchSize 合并的请求数
+     */
+    public record Result(ResultCache.Entry entry, StageTimings stages, int batchSize) {
+    }
+
+    private record Member(String file, Deadline deadline, JobService.JobEvents events,
+                          CompletableFuture<Result> future) {
+    }
+
+    private final class Batch {
+        private final String key;
+        private final ObjectNode template;
+        private final WorkflowBinding.FileInput input;
+        private final BatchExecutor batchExecutor;
+        private final List<Member> members = new ArrayList<>();
+        private boolean closed;
+        private long dispatchedAt;
+
+        private Batch(String key, ObjectNode template, WorkflowBinding.FileInput input, BatchExecutor batchExecutor) {
+            this.key = key;
+            this.template = template;
+            this.input = input;
+            this.batchExecutor = batchExecutor;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        timer.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    public boolean isEnabled() {
+        return config.getCoalesce().isEnabled() && config.getCoalesce().getMaxBatchSize() > 1;
+    }
+
+    /**
+     * 加入合并批次并等待结果
+     *
+     * @param workflow      已绑定参数和输入文件名的工作流
+     * @param input         输入文件名所在的节点输入
+     * @param batchExecutor 提交并等待工作流（只由批次中的一个线程调用）
+     */
+    public Result execute(ComfyUIBackend backend, String workflowName, ObjectNode workflow,
+                          WorkflowBinding.FileInput input, BatchExecutor batchExecutor)
+            throws IOException, InterruptedException {
+        ObjectNode template = workflow.deepCopy();
+        ObjectNode inputs = (ObjectNode) template.path(input.nodeId()).path("inputs");
+        String file = inputs.path(input.input()).asText();
+        inputs.put(input.input(), "");
+        String key = workflowName + "|" + backend.getUrl() + "|" + resultCache.key(template);
+
+        Member member = new Member(file, Deadline.current(), jobService.currentEvents(), new CompletableFuture<>());
+        long waitStart = System.nanoTime();
+        Batch batch;
+        synchronized (this) {
+            batch = open.get(key);
+            if (batch == null) {
+                batch = new Batch(key, template, input, batchExecutor);
+                open.put(key, batch);
+                Batch created = batch;
+                timer.schedule(() -> close(created), config.getCoalesce().getWindow(), TimeUnit.MILLISECONDS);
+            }
+            batch.members.add(member);
+            if (batch.members.size() >= config.getCoalesce().getMaxBatchSize()) {
+                close(batch);
+            }
+        }
+
+        try {
+            Result result = await(member);
+            StageTimer.add(StageTimer.Stage.LOCAL_QUEUE, batch.dispatchedAt - waitStart);
+            return result;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            }
+            if (cause instanceof QueueFullException queueFull) {
+                throw queueFull;
+            }
+            throw new IOException(cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * 等待批次结果，请求被取消或超过截止时间时抛出 JobCancelledException（批次继续为其他请求执行）
+     */
+    private Result await(Member member) throws InterruptedException, ExecutionException, JobCancelledException {
+        Deadline deadline = member.deadline();
+        if (deadline == null) {
+            return member.future().get();
+        }
+        try {
+            CompletableFuture.anyOf(member.future(), deadline.cancellation())
+                    .get(deadline.remaining(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            // 以 member.future() 的状态为准
+        }
+        if (!member.future().isDone()) {
+            throw deadline.exception();
+        }
+        return member.future().get();
+    }
+
+    private synchronized void close(Batch batch) {
+        if (batch.closed) {
+            return;
+        }
+        batch.closed = true;
+        batch.dispatchedAt = System.nanoTime();
+        open.remove(batch.key, batch);
+        executor.execute(() -> run(batch));
+    }
+
+    private void run(Batch batch) {
+        List<Member> members = batch.members;
+        if (members.size() == 1) {
+            runSingle(batch, members.get(0));
+            return;
+        }
+
+        StageTimer stageTimer = StageTimer.start();
+        Deadline.bind(Deadline.latest(members.stream().map(Member::deadline).toList()));
+        try {
+            List<String> files = members.stream().map(Member::file).toList();
+            List<Map<String, String>> idMaps = new ArrayList<>();
+            ObjectNode merged = merge(batch.template, batch.input, files, idMaps);
+            log.info("合并 {} 个请求为一个 Prompt ({} 个节点)", members.size(), merged.size());
+
+            List<Subscriber> subscribers = new ArrayList<>();
+            for (int i = 0; i < members.size(); i++) {
+                if (members.get(i).events() != null) {
+                    subscribers.add(new Subscriber(members.get(i).events(), idMaps.get(i)));
+                }
+            }
+            ResultCache.Entry entry = batch.batchExecutor.execute(merged, subscribers);
+            StageTimings stages = stageTimer.finish();
+            List<Member> failed = new ArrayList<>();
+            for (int i = 0; i < members.size(); i++) {
+                JsonNode outputs = split(entry.outputs(), idMaps.get(i));
+                if (outputs.isEmpty()) {
+                    failed.add(members.get(i));
+                    continue;
+                }
+                members.get(i).future().complete(new Result(
+                        new ResultCache.Entry(entry.promptId(), entry.baseUrl(), outputs, entry.createdAt()),
+                        stages, members.size()));
+            }
+            // 执行出错时 ComfyUI 只保留已完成节点的输出，没有输出的请求单独重试
+            if (!failed.isEmpty()) {
+                log.warn("合并执行的 Prompt {} 中有 {} 个请求没有输出，改为单独执行", entry.promptId(), failed.size());
+                failed.forEach(member -> executor.execute(() -> runSingle(batch, member)));
+            }
+        } catch (JobCancelledException e) {
+            stageTimer.finish();
+            members.forEach(member -> member.future().completeExceptionally(e));
+        } catch (Exception e) {
+            stageTimer.finish();
+            log.warn("合并执行失败，{} 个请求改为逐个执行: {}", members.size(), e.getMessage());
+            for (Member member : members) {
+                executor.execute(() -> runSingle(batch, member));
+            }
+        } finally {
+            Deadline.bind(null);
+        }
+    }
+
+    private void runSingle(Batch batch, Member member) {
+        StageTimer stageTimer = StageTimer.start();
+        Deadline.bind(member.deadline());
+        try {
+            ObjectNode workflow = batch.template.deepCopy();
+            ((ObjectNode) workflow.path(batch.input.nodeId()).path("inputs")).put(batch.input.input(), member.file());
+            List<Subscriber> subscribers = member.events() != null ?
+                    List.of(new Subscriber(member.events(), null)) : List.of();
+            ResultCache.Entry entry = batch.batchExecutor.execute(workflow, subscribers);
+            member.future().complete(new Result(entry, stageTimer.finish(), 1));
+        } catch (Exception e) {
+            stageTimer.finish();
+            member.future().completeExceptionally(e);
+        } finally {
+            Deadline.bind(null);
+        }
+    }
+
+    /**
+     * 构建合并后的工作流
+     * 第 0 个请求沿用原节点 ID，第 i 个请求复制的节点 ID 为 "原ID_i"；不依赖输入文件的节点所有请求共用
+     *
+     * @param idMaps 输出参数，每个请求一项：合并后的节点 ID -> 原节点 ID
+     */
+    static ObjectNode merge(ObjectNode template, WorkflowBinding.FileInput input, List<String> files,
+                            List<Map<String, String>> idMaps) {
+        Set<String> downstream = downstream(template, input.nodeId());
+        ObjectNode merged = template.deepCopy();
+        ((ObjectNode) merged.path(input.nodeId()).path("inputs")).put(input.input(), files.get(0));
+
+        Map<String, String> shared = new LinkedHashMap<>();
+        template.fieldNames().forEachRemaining(id -> {
+            if (!downstream.contains(id)) {
+                shared.put(id, id);
+            }
+        });
+
+        for (int i = 0; i < files.size(); i++) {
+            Map<String, String> ids = new LinkedHashMap<>(shared);
+            for (String id : downstream) {
+                if (i == 0) {
+                    ids.put(id, id);
+                    continue;
+                }
+                String suffix = "_" + i;
+                String cloneId = id + suffix;
+                ObjectNode clone = template.get(id).deepCopy();
+                ObjectNode inputs = (ObjectNode) clone.path("inputs");
+                for (JsonNode value : inputs) {
+                    if (isLink(value) && downstream.contains(value.get(0).asText())) {
+                        ((ArrayNode) value).set(0, value.get(0).asText() + suffix);
+                    }
+                }
+                if (id.equals(input.nodeId())) {
+                    inputs.put(input.input(), files.get(i));
+                }
+                merged.set(cloneId, clone);
+                ids.put(cloneId, id);
+            }
+            idMaps.add(ids);
+        }
+        return merged;
+    }
+
+    /**
+     * 依赖 start 节点（直接或间接以其输出为输入）的所有节点，含 start 本身
+     */
+    static Set<String> downstream(ObjectNode workflow, String start) {
+        Set<String> result = new LinkedHashSet<>();
+        result.add(start);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            var nodes = workflow.fields();
+            while (nodes.hasNext()) {
+                var node = nodes.next();
+                if (result.contains(node.getKey())) {
+                    continue;
+                }
+                for (JsonNode value : node.getValue().path("inputs")) {
+                    if (isLink(value) && result.contains(value.get(0).asText())) {
+                        result.add(node.getKey());
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 按节点 ID 映射取出属于一个请求的 outputs，并还原为原节点 ID
+     */
+    static JsonNode split(JsonNode outputs, Map<String, String> ids) {
+        ObjectNode result = JsonNodeFactory.instance.objectNode();
+        if (outputs == null) {
+            return result;
+        }
+        outputs.fields().forEachRemaining(entry -> {
+            String original = ids.get(entry.getKey());
+            if (original != null) {
+                result.set(original, entry.getValue());
+            }
+        });
+        return result;
+    }
+
+    /**
+     * 节点连线在 API 格式中表示为 ["源节点ID", 输出序号]
+     */
+    private static boolean isLink(JsonNode value) {
+        return value.isArray() && value.size() == 2 && value.get(0).isTextual() && value.get(1).isIntegralNumber();
+    }
+}
@@ -0,0 +1,150 @@
+package com.yimeil.comfyui.service;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * /history/{promptId} 中一个 Prompt 的执行记录
+ * 从响应流中只取出执行状态和各节点的 images[] 描述（filename / subfolder / type），
+ * 提交的完整工作流（prompt）、meta 以及节点的其他输出直接跳过，不构建完整的 JSON 树
+ *
+ * @param statusStr 执行状态（success / error），没有时为 null
+ * @param completed 是否执行完成
+ * @param messages  执行消息（execution_start、execution_error 等），没有时为空数组
+ * @param outputs   节点 ID -> {"images": [...]}，只包含有图片输出的节点
+ */
+public record PromptHistory(String statusStr, boolean completed, JsonNode messages, ObjectNode outputs) {
+
+    private static final JsonNodeFactory NODES = JsonNodeFactory.instance;
+
+    /**
+     * 输出图片描述中保留的字段
+     */
+    private static final String[] IMAGE_FIELDS = {"filename", "subfolder", "type"};
+
+    /**
+     * 流式解析 /history/{promptId} 响应，响应中没有该 Prompt（尚未完成）时返回 null
+     */
+    public static PromptHistory parse(ObjectMapper objectMapper, InputStream content, String promptId)
+            throws IOException {
+        try (JsonParser parser = objectMapper.createParser(content)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("history 响应不是 JSON 对象");
+            }
+            PromptHistory history = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.currentName();
+                parser.nextToken();
+                if (promptId.equals(name) && parser.currentToken() == JsonToken.START_OBJECT) {
+                    history = readEntry(parser);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return history;
+        }
+    }
+
+    /**
+     * 输出中的图片总数
+     */
+    public int imageCount() {
+        int count = 0;
+        for (JsonNode output : outputs) {
+            count += output.path("images").size();
+        }
+        return count;
+    }
+
+    private static PromptHistory readEntry(JsonParser parser) throws IOException {
+        String statusStr = null;
+        boolean completed = false;
+        JsonNode messages = NODES.arrayNode();
+        ObjectNode outputs = NODES.objectNode();
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.currentName();
+            JsonToken token = parser.nextToken();
+            if ("outputs".equals(name) && token == JsonToken.START_OBJECT) {
+                readOutputs(parser, outputs);
+            } else if ("status".equals(name) && token == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.currentName();
+                    JsonToken value = parser.nextToken();
+                    switch (field) {
+                        case "status_str" -> statusStr = value == JsonToken.VALUE_NULL ? null : parser.getValueAsString();
+                        case "completed" -> completed = parser.getValueAsBoolean();
+                        // 执行消息只有几条，异常时带堆栈，保留完整内容用于日志和阶段计时
+                        case "messages" -> messages = parser.readValueAsTree();
+                        default -> parser.skipChildren();
+                    }
+                }
+            } else {
+                // prompt（提交的完整工作流）和 meta 占响应的大部分，不需要
+                parser.skipChildren();
+            }
+        }
+        return new PromptHistory(statusStr, completed, messages, outputs);
+    }
+
+    private static void readOutputs(JsonParser parser, ObjectNode outputs) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String nodeId = parser.currentName();
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                continue;
+            }
+            ArrayNode images = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.currentName();
+                if (parser.nextToken() == JsonToken.START_ARRAY && "images".equals(name)) {
+                    images = NODES.arrayNode();
+                    JsonToken element;
+                    while ((element = parser.nextToken()) != JsonToken.END_ARRAY && element != null) {
+                        if (element == JsonToken.START_OBJECT) {
+                            images.add(readImage(parser));
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            if (images != null) {
+                outputs.putObject(nodeId).set("images", images);
+            }
+        }
+    }
+
+    private static ObjectNode readImage(JsonParser parser) throws IOException {
+        ObjectNode image = NODES.objectNode();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if (value == JsonToken.VALUE_STRING && isImageField(name)) {
+                image.put(name, parser.getText());
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return image;
+    }
+
+    private static boolean isImageField(String name) {
+        for (String field : IMAGE_FIELDS) {
+            if (field.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
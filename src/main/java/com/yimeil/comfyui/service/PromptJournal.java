@@ -0,0 +1,355 @@
+package com.yimeil.comfyui.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.yimeil.comfyui.config.ComfyUIConfig;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prompt 日志
+ * 以追加方式记录已提交到 ComfyUI 的 Prompt（服务器、Prompt ID、工作流键）及其完成情况。
+ * 服务重启后回放日志，重新等待重启前未完成的 Prompt；客户端重新提交相同的请求时直接复用其结果，GPU 不会重复执行
+ * <p>
+ * 调用线程只把记录放入队列，由后台线程批量写入当前段文件并 fsync，不增加提交耗时；
+ * 段文件超过 segment-size 时切换到新段，新段开头写入仍未完成的 Prompt，随后删除旧段
+ */
+@Service
+@Slf4j
+public class PromptJournal {
+
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    @Autowired
+    private ComfyUIConfig config;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    /**
+     * 已提交、尚未完成的 Prompt：promptId -> 记录
+     */
+    private final Map<String, Record> outstanding = new ConcurrentHashMap<>();
+
+    /**
+     * 待写入的日志行，由写入线程取出
+     */
+    private final LinkedBlockingQueue<String> queue = new LinkedBlockingQueue<>();
+
+    /**
+     * 启动时回放出的未完成 Prompt，由 {@link #takeRecovered()} 取走
+     */
+    private List<Record> recovered = List.of();
+
+    /**
+     * 正在取回或已取回的重启前 Prompt：工作流键 -> 结果
+     */
+    private final Map<String, Recovery> recoveries = new ConcurrentHashMap<>();
+
+    private Path directory;
+    private FileChannel channel;
+    private long segmentNumber;
+    private Thread writer;
+    private volatile boolean shutdown;
+
+    /**
+     * 一条已提交的 Prompt
+     *
+     * @param promptId    ComfyUI Prompt ID
+     * @param baseUrl     执行该 Prompt 的服务器
+     * @param workflow    工作流名称
+     * @param key         工作流键（已绑定参数的工作流 + 输入内容哈希），用于匹配重新提交的相同请求
+     * @param cacheable   结果能否写入结果缓存
+     * @param submittedAt 提交时间
+     */
+    public record Record(String promptId, String baseUrl, String workflow, String key, boolean cacheable,
+                         long submittedAt) {
+    }
+
+    private record Recovery(CompletableFuture<ResultCache.Entry> future, long startedAt) {
+    }
+
+    public boolean isEnabled() {
+        return config.getJournal().isEnabled();
+    }
+
+    @PostConstruct
+    public void init() {
+        if (!isEnabled()) {
+            return;
+        }
+        directory = Paths.get(config.getJournal().getDirectory()).toAbsolutePath().normalize();
+        try {
+            Files.createDirectories(directory);
+            List<Path> segments = listSegments();
+            replay(segments);
+            segmentNumber = segments.isEmpty() ? 0 : segmentNumber(segments.get(segments.size() - 1));
+            // 回放后立即压缩：新段只包含仍未完成的 Prompt
+            roll();
+        } catch (IOException e) {
+            log.error("初始化 Prompt 日志失败，本次运行不记录: {}", e.getMessage());
+            directory = null;
+            return;
+        }
+
+        recovered = new ArrayList<>(outstanding.values());
+        if (!recovered.isEmpty()) {
+            log.info("Prompt 日志中有 {} 个重启前未完成的 Prompt", recovered.size());
+        }
+        writer = Thread.ofPlatform().daemon().name("prompt-journal").start(this::writeLoop);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (writer == null) {
+            return;
+        }
+        shutdown = true;
+        writer.interrupt();
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 记录已提交的 Prompt
+     */
+    public void submitted(String promptId, String baseUrl, String workflow, String key, boolean cacheable) {
+        if (directory == null) {
+            return;
+        }
+        Record record = new Record(promptId, baseUrl, workflow, key, cacheable, System.currentTimeMillis());
+        outstanding.put(promptId, record);
+        queue.add(toLine(record));
+    }
+
+    /**
+     * 记录 Prompt 已结束（成功、失败或放弃等待），重启后不再取回
+     */
+    public void completed(String promptId) {
+        if (directory == null || outstanding.remove(promptId) == null) {
+            return;
+        }
+        ObjectNode node = objectMapper.createObjectNode();
+        node.put("op", "done");
+        node.put("promptId", promptId);
+        queue.add(node.toString());
+    }
+
+    /**
+     * 取走启动时回放出的未完成 Prompt（只返回一次）
+     */
+    public synchronized List<Record> takeRecovered() {
+        List<Record> records = recovered;
+        recovered = List.of();
+        return records;
+    }
+
+    /**
+     * 登记一个正在取回的重启前 Prompt，取回后相同工作流键的请求直接使用其结果
+     */
+    public CompletableFuture<ResultCache.Entry> recovering(Record record) {
+        CompletableFuture<ResultCache.Entry> future = new CompletableFuture<>();
+        recoveries.put(record.key(), new Recovery(future, System.currentTimeMillis()));
+        return future;
+    }
+
+    /**
+     * 查询与工作流键相同的重启前 Prompt，没有时返回 null
+     */
+    public CompletableFuture<ResultCache.Entry> findRecovery(String key) {
+        Recovery recovery = recoveries.get(key);
+        return recovery != null ? recovery.future() : null;
+    }
+
+    /**
+     * 清理已取回超过保留时间的结果
+     */
+    @Scheduled(fixedDelay = 600000)
+    public void evictRecoveries() {
+        long expireBefore = System.currentTimeMillis() - config.getJournal().getRecoveryRetention();
+        recoveries.values().removeIf(recovery -> recovery.future().isDone() && recovery.startedAt() < expireBefore);
+    }
+
+    // ==================== 文件读写 ====================
+
+    private void writeLoop() {
+        ComfyUIConfig.JournalConfig journalConfig = config.getJournal();
+        List<String> batch = new ArrayList<>();
+        while (true) {
+            try {
+                String line = queue.poll(journalConfig.getFlushInterval(), TimeUnit.MILLISECONDS);
+                if (line != null) {
+                    batch.add(line);
+                }
+            } catch (InterruptedException e) {
+                // 关闭时写完剩余记录后退出
+            }
+            queue.drainTo(batch);
+            if (!batch.isEmpty()) {
+                try {
+                    append(batch);
+                    if (channel.size() > journalConfig.getSegmentSize()) {
+                        roll();
+                    }
+                } catch (IOException e) {
+                    log.warn("写入 Prompt 日志失败: {}", e.getMessage());
+                }
+                batch.clear();
+            }
+            if (shutdown && queue.isEmpty()) {
+                closeQuietly();
+                return;
+            }
+        }
+    }
+
+    /**
+     * 批量追加，多条记录共用一次 fsync
+     */
+    private void append(List<String> lines) throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (String line : lines) {
+            text.append(line).append('\n');
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        if (config.getJournal().isFsync()) {
+            channel.force(false);
+        }
+    }
+
+    /**
+     * 切换到新段：先写入仍未完成的 Prompt，再删除所有旧段
+     */
+    private void roll() throws IOException {
+        List<Path> oldSegments = listSegments();
+        Path segment = directory.resolve(String.format("%s%010d%s", SEGMENT_PREFIX, ++segmentNumber, SEGMENT_SUFFIX));
+        FileChannel newChannel = FileChannel.open(segment, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        FileChannel oldChannel = channel;
+        channel = newChannel;
+
+        List<String> live = new ArrayList<>();
+        long expireBefore = System.currentTimeMillis() - config.getJournal().getMaxAge();
+        outstanding.values().removeIf(record -> record.submittedAt() < expireBefore);
+        outstanding.values().forEach(record -> live.add(toLine(record)));
+        if (!live.isEmpty()) {
+            append(live);
+        } else if (config.getJournal().isFsync()) {
+            channel.force(true);
+        }
+
+        if (oldChannel != null) {
+            oldChannel.close();
+        }
+        for (Path old : oldSegments) {
+            Files.deleteIfExists(old);
+        }
+        log.debug("Prompt 日志切换到 {}，保留 {} 个未完成的 Prompt", segment.getFileName(), live.size());
+    }
+
+    /**
+     * 按顺序回放所有段；进程崩溃时最后一行可能不完整，解析失败的行直接跳过
+     */
+    private void replay(List<Path> segments) throws IOException {
+        Map<String, Record> records = new LinkedHashMap<>();
+        int skipped = 0;
+        for (Path segment : segments) {
+            try (BufferedReader reader = Files.newBufferedReader(segment, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isBlank()) {
+                        continue;
+                    }
+                    try {
+                        JsonNode node = objectMapper.readTree(line);
+                        String promptId = node.path("promptId").asText();
+                        if ("done".equals(node.path("op").asText())) {
+                            records.remove(promptId);
+                        } else {
+                            records.put(promptId, new Record(promptId, node.path("baseUrl").asText(),
+                                    node.path("workflow").asText(), node.path("key").asText(),
+                                    node.path("cacheable").asBoolean(), node.path("submittedAt").asLong()));
+                        }
+                    } catch (IOException e) {
+                        skipped++;
+                    }
+                }
+            }
+        }
+        if (skipped > 0) {
+            log.warn("Prompt 日志中有 {} 行无法解析，已跳过", skipped);
+        }
+
+        long expireBefore = System.currentTimeMillis() - config.getJournal().getMaxAge();
+        records.values().removeIf(record -> record.submittedAt() < expireBefore);
+        outstanding.putAll(records);
+    }
+
+    private List<Path> listSegments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            stream.forEach(segments::add);
+        }
+        segments.sort(null);
+        return segments;
+    }
+
+    private static long segmentNumber(Path segment) {
+        String name = segment.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private String toLine(Record record) {
+        ObjectNode node = objectMapper.createObjectNode();
+        node.put("op", "submit");
+        node.put("promptId", record.promptId());
+        node.put("baseUrl", record.baseUrl());
+        node.put("workflow", record.workflow());
+        node.put("key", record.key());
+        node.put("cacheable", record.cacheable());
+        node.put("submittedAt", record.submittedAt());
+        return node.toString();
+    }
+
+    private void closeQuietly() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.warn("关闭 Prompt 日志失败: {}", e.getMessage());
+        }
+    }
+}
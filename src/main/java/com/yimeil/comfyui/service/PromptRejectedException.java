@@ -0,0 +1,24 @@
+package com.yimeil.comfyui.service;
+
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * ComfyUI 校验工作流失败，/prompt 返回 node_errors
+ */
+public class PromptRejectedException extends IOException {
+
+    /**
+     * 出错的 LoadImage 节点读取的文件名（文件已不在 ComfyUI 的 input 目录时出现）
+     */
+    private final Set<String> rejectedFiles;
+
+    public PromptRejectedException(String message, Set<String> rejectedFiles) {
+        super(message);
+        this.rejectedFiles = rejectedFiles;
+    }
+
+    public Set<String> getRejectedFiles() {
+        return rejectedFiles;
+    }
+}
@@ -0,0 +1,338 @@
+package com.yimeil.comfyui.service;
+
+import com.yimeil.comfyui.config.ComfyUIConfig;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Prompt 调度器
+ * 控制每台服务器同时执行的 Prompt 数量，使 ComfyUI 内部队列保持很短，由这里按优先级决定执行顺序：
+ * 交互式单图任务优先于批量 / ZIP / 拼接任务；每个工作流可单独限制并发；排队已满时拒绝新任务
+ */
+@Service
+@Slf4j
+public class PromptScheduler {
+
+    /**
+     * 任务优先级，声明顺序即调度顺序
+     */
+    public enum Priority {
+        /**
+         * 交互式单图任务（抠图、关键字抠图、Qwen 编辑 / 翻译）
+         */
+        INTERACTIVE,
+
+        /**
+         * 批量任务（批量抠图、ZIP、Excel 拼接）
+         */
+        BATCH
+    }
+
+    /**
+     * 当前线程的 Prompt 属于已通过准入检查的任务，见 {@link #admitted()}
+     */
+    private static final ThreadLocal<Boolean> ADMITTED = new ThreadLocal<>();
+
+    @Autowired
+    private ComfyUIConfig config;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition dispatched = lock.newCondition();
+
+    /**
+     * 等待中的任务，按优先级排列，同一优先级内按提交顺序
+     */
+    private final List<Waiter> waiters = new ArrayList<>();
+
+    /**
+     * 工作流名称 -> 正在执行的 Prompt 数量
+     */
+    private final Map<String, Integer> runningByWorkflow = new HashMap<>();
+
+    /**
+     * 服务器 -> 正在执行的 Prompt 数量
+     */
+    private final Map<ComfyUIBackend, Integer> runningByBackend = new HashMap<>();
+
+    private final Map<Priority, Timer> waitTimers = new EnumMap<>(Priority.class);
+    private final Map<Priority, Counter> rejectedCounters = new EnumMap<>(Priority.class);
+
+    private int running;
+
+    /**
+     * 已获得执行许可的任务，执行结束后必须关闭
+     */
+    public final class Permit implements AutoCloseable {
+        private final ComfyUIBackend backend;
+        private final String workflowName;
+        private boolean released;
+
+        private Permit(ComfyUIBackend backend, String workflowName) {
+            this.backend = backend;
+            this.workflowName = workflowName;
+        }
+
+        @Override
+        public void close() {
+            lock.lock();
+            try {
+                if (!released) {
+                    released = true;
+                    release(backend, workflowName);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 已准入任务的作用域，关闭后恢复为普通排队
+     */
+    public interface Scope extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private static final class Waiter {
+        private final ComfyUIBackend backend;
+        private final String workflowName;
+        private final Priority priority;
+        private boolean granted;
+
+        private Waiter(ComfyUIBackend backend, String workflowName, Priority priority) {
+            this.backend = backend;
+            this.workflowName = workflowName;
+            this.priority = priority;
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        for (Priority priority : Priority.values()) {
+            String tag = priority.name().toLowerCase();
+            Gauge.builder("comfyui.scheduler.queue.depth", () -> getQueueDepth(priority))
+                    .description("等待提交到 ComfyUI 的任务数")
+                    .tag("priority", tag)
+                    .register(meterRegistry);
+            waitTimers.put(priority, Timer.builder("comfyui.scheduler.queue.wait")
+                    .description("任务在调度队列中的等待时间")
+                    .tag("priority", tag)
+                    .register(meterRegistry));
+            rejectedCounters.put(priority, Counter.builder("comfyui.scheduler.rejected")
+                    .description("因排队已满被拒绝的任务数")
+                    .tag("priority", tag)
+                    .register(meterRegistry));
+        }
+        Gauge.builder("comfyui.scheduler.running", this::getRunning)
+                .description("已提交到 ComfyUI、尚未完成的任务数")
+                .register(meterRegistry);
+    }
+
+    /**
+     * 准入检查：对应优先级的队列已满时抛出 QueueFullException
+     * 在接收请求时调用，尽早拒绝无法排上队的任务
+     */
+    public void checkAdmission(Priority priority) {
+        lock.lock();
+        try {
+            if (countWaiting(priority) >= capacity(priority)) {
+                reject(priority);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 把当前线程标记为已准入任务的一部分：acquire 不再检查排队容量，只按任务的截止时间等待（不受 max-wait 限制）
+     * 用于拆分执行的子 Prompt：父任务在接收请求时已通过准入检查，不应在执行途中因排队已满或排队超时而部分失败
+     */
+    public static Scope admitted() {
+        ADMITTED.set(Boolean.TRUE);
+        return ADMITTED::remove;
+    }
+
+    /**
+     * 等待执行许可
+     * 最长等待 max-wait，且不超过当前任务的截止时间；任务被取消时立即放弃排队
+     *
+     * @param backend      任务已选定的服务器
+     * @param workflowName 工作流名称，用于按工作流限制并发
+     * @param priority     任务优先级
+     * @return 执行许可，Prompt 执行结束后关闭
+     */
+    public Permit acquire(ComfyUIBackend backend, String workflowName, Priority priority) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        Deadline jobDeadline = Deadline.current();
+        boolean admitted = ADMITTED.get() != null;
+        long deadline = admitted && jobDeadline != null ? Long.MAX_VALUE :
+                start + TimeUnit.MILLISECONDS.toNanos(config.getScheduler().getMaxWait());
+        if (jobDeadline != null) {
+            jobDeadline.check();
+            deadline = Math.min(deadline, start + TimeUnit.MILLISECONDS.toNanos(jobDeadline.remaining()));
+            // 取消时唤醒等待线程
+            jobDeadline.cancellation().thenRun(this::signalWaiters);
+        }
+
+        lock.lock();
+        try {
+            if (!admitted && countWaiting(priority) >= capacity(priority)) {
+                reject(priority);
+            }
+
+            Waiter waiter = new Waiter(backend, workflowName, priority);
+            insert(waiter);
+            dispatch();
+
+            try {
+                while (!waiter.granted) {
+                    long remaining = deadline - System.nanoTime();
+                    if (jobDeadline != null && (jobDeadline.isCancelled() || remaining <= 0 && jobDeadline.isOver())) {
+                        waiters.remove(waiter);
+                        throw jobDeadline.exception();
+                    }
+                    if (remaining <= 0) {
+                        waiters.remove(waiter);
+                        throw new IOException("任务排队超时，请稍后重试");
+                    }
+                    dispatched.awaitNanos(remaining);
+                }
+            } catch (InterruptedException e) {
+                if (waiter.granted) {
+                    release(backend, workflowName);
+                } else {
+                    waiters.remove(waiter);
+                }
+                throw e;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        long waited = System.nanoTime() - start;
+        waitTimers.get(priority).record(waited, TimeUnit.NANOSECONDS);
+        if (waited > TimeUnit.SECONDS.toNanos(1)) {
+            log.info("任务 {} ({}) 排队 {} ms 后开始执行", workflowName, priority, TimeUnit.NANOSECONDS.toMillis(waited));
+        }
+        return new Permit(backend, workflowName);
+    }
+
+    public int getQueueDepth(Priority priority) {
+        lock.lock();
+        try {
+            return countWaiting(priority);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getRunning() {
+        lock.lock();
+        try {
+            return running;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void signalWaiters() {
+        lock.lock();
+        try {
+            dispatched.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void reject(Priority priority) {
+        rejectedCounters.get(priority).increment();
+        log.warn("{} 任务排队已满（{}），拒绝新任务", priority, capacity(priority));
+        throw new QueueFullException("服务繁忙，排队任务已满，请稍后重试");
+    }
+
+    private void release(ComfyUIBackend backend, String workflowName) {
+        running--;
+        runningByBackend.merge(backend, -1, Integer::sum);
+        runningByWorkflow.merge(workflowName, -1, Integer::sum);
+        dispatch();
+    }
+
+    /**
+     * 按优先级依次为等待中的任务分配许可
+     * 服务器或工作流达到并发上限时跳过该任务，不阻塞后面其他服务器、其他工作流的任务
+     */
+    private void dispatch() {
+        int maxPerBackend = Math.max(1, config.getScheduler().getMaxInFlightPerBackend());
+        boolean granted = false;
+
+        Iterator<Waiter> iterator = waiters.iterator();
+        while (iterator.hasNext()) {
+            Waiter waiter = iterator.next();
+            int backendRunning = runningByBackend.getOrDefault(waiter.backend, 0);
+            int workflowRunning = runningByWorkflow.getOrDefault(waiter.workflowName, 0);
+            if (backendRunning >= maxPerBackend || workflowRunning >= workflowLimit(waiter.workflowName)) {
+                continue;
+            }
+            iterator.remove();
+            waiter.granted = true;
+            running++;
+            runningByBackend.put(waiter.backend, backendRunning + 1);
+            runningByWorkflow.put(waiter.workflowName, workflowRunning + 1);
+            granted = true;
+        }
+
+        if (granted) {
+            dispatched.signalAll();
+        }
+    }
+
+    private void insert(Waiter waiter) {
+        int index = waiters.size();
+        while (index > 0 && waiters.get(index - 1).priority.compareTo(waiter.priority) > 0) {
+            index--;
+        }
+        waiters.add(index, waiter);
+    }
+
+    private int countWaiting(Priority priority) {
+        int count = 0;
+        for (Waiter waiter : waiters) {
+            if (waiter.priority == priority) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private int capacity(Priority priority) {
+        ComfyUIConfig.SchedulerConfig scheduler = config.getScheduler();
+        return priority == Priority.INTERACTIVE ?
+                scheduler.getInteractiveQueueCapacity() : scheduler.getBatchQueueCapacity();
+    }
+
+    private int workflowLimit(String workflowName) {
+        Integer limit = config.getScheduler().getWorkflowLimits().get(workflowName);
+        return limit != null && limit > 0 ? limit : Integer.MAX_VALUE;
+    }
+}
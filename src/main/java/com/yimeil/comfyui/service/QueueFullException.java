@@ -0,0 +1,11 @@
+package com.yimeil.comfyui.service;
+
+/**
+ * 调度队列已满，任务被拒绝
+ */
+public class QueueFullException extends RuntimeException {
+
+    public QueueFullException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,279 @@
+package com.yimeil.comfyui.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.yimeil.comfyui.config.ComfyUIConfig;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 工作流结果缓存
+ * 以"规范化后的工作流 JSON + 输入内容哈希"为键缓存 ComfyUI 的输出节点数据及其所在服务器，
+ * 相同请求直接返回已有的图片引用，不再提交到 /prompt
+ * <p>
+ * 内存层按 LRU 淘汰；配置 disk-directory 后同时写入磁盘，重启后仍可命中
+ * <p>
+ * 临时图片（PreviewImage，type=temp）不缓存：ComfyUI 重启时清空 temp 目录，缓存的引用会失效。
+ * 只缓存输出中保存到 output 目录的图片，只有临时图片的结果不缓存；服务器恢复后此前在该服务器上的结果全部作废
+ */
+@Service
+@Slf4j
+public class ResultCache {
+
+    @Autowired
+    private ComfyUIConfig config;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    /**
+     * 缓存键 -> 结果，按访问顺序排列（LRU），访问需持有对象锁
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * 服务器地址 -> 该服务器上的结果作废的时间，之前写入的缓存（含磁盘上的）不再命中
+     */
+    private final Map<String, Long> invalidatedAt = new ConcurrentHashMap<>();
+
+    /**
+     * 缓存的执行结果
+     *
+     * @param promptId  首次执行时的 Prompt ID
+     * @param baseUrl   执行该 Prompt 的服务器，输出图片只存在于这台服务器上
+     * @param outputs   /history 中的 outputs 节点（只读）
+     * @param createdAt 首次执行完成时间
+     */
+    public record Entry(String promptId, String baseUrl, JsonNode outputs, long createdAt) {
+    }
+
+    public boolean isEnabled() {
+        return config.getResultCache().isEnabled();
+    }
+
+    /**
+     * 计算缓存键
+     *
+     * @param workflow    已绑定参数的工作流实例
+     * @param inputHashes 工作流中文件名不能代表内容的输入（如按原名上传的压缩包）的内容哈希，null 元素忽略
+     */
+    public String key(JsonNode workflow, String... inputHashes) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try {
+            digest.update(objectMapper.writeValueAsBytes(canonicalize(workflow)));
+        } catch (IOException e) {
+            throw new IllegalStateException("工作流序列化失败", e);
+        }
+        for (String inputHash : inputHashes) {
+            if (inputHash == null) {
+                continue;
+            }
+            digest.update((byte) 0);
+            digest.update(inputHash.getBytes(StandardCharsets.UTF_8));
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * 查询缓存，未命中或已过期时返回 null
+     */
+    public Entry get(String key) {
+        long ttl = config.getResultCache().getTtl();
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (isValid(entry, ttl)) {
+                    return entry;
+                }
+                entries.remove(key);
+            }
+        }
+
+        Path file = diskFile(key);
+        if (file == null || !Files.exists(file)) {
+            return null;
+        }
+        try {
+            JsonNode node = objectMapper.readTree(file.toFile());
+            Entry entry = new Entry(node.path("promptId").asText(), node.path("baseUrl").asText(),
+                    node.path("outputs"), node.path("createdAt").asLong());
+            if (!isValid(entry, ttl)) {
+                Files.deleteIfExists(file);
+                return null;
+            }
+            putInMemory(key, entry);
+            return entry;
+        } catch (IOException e) {
+            log.warn("读取结果缓存失败: {} - {}", file, e.getMessage());
+            return null;
+        }
+    }
+
+    private boolean isValid(Entry entry, long ttl) {
+        return System.currentTimeMillis() - entry.createdAt() <= ttl
+                && entry.createdAt() > invalidatedAt.getOrDefault(entry.baseUrl(), 0L);
+    }
+
+    /**
+     * 作废某台服务器上的所有结果（服务器重启后输出可能已不存在）
+     */
+    public void invalidateBackend(String baseUrl) {
+        invalidatedAt.put(baseUrl, System.currentTimeMillis());
+        synchronized (this) {
+            entries.values().removeIf(entry -> entry.baseUrl().equals(baseUrl));
+        }
+    }
+
+    /**
+     * 写入缓存，临时图片不写入；没有其他图片时不缓存
+     */
+    public void put(String key, String promptId, String baseUrl, JsonNode outputs) {
+        outputs = withoutTemporaryImages(outputs);
+        if (outputs.isEmpty()) {
+            log.debug("Prompt {} 的输出只有临时图片，不写入结果缓存", promptId);
+            return;
+        }
+        Entry entry = new Entry(promptId, baseUrl, outputs, System.currentTimeMillis());
+        putInMemory(key, entry);
+
+        Path file = diskFile(key);
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.createDirectories(file.getParent());
+            ObjectNode node = objectMapper.createObjectNode();
+            node.put("promptId", promptId);
+            node.put("baseUrl", baseUrl);
+            node.put("createdAt", entry.createdAt());
+            node.set("outputs", outputs);
+
+            // 先写临时文件再替换，避免并发读取到写了一半的文件
+            Path tempFile = Files.createTempFile(file.getParent(), key, ".tmp");
+            objectMapper.writeValue(tempFile.toFile(), node);
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("写入结果缓存失败: {} - {}", file, e.getMessage());
+        }
+    }
+
+    /**
+     * 去掉 type=temp 图片后的输出，图片全部去掉的节点不保留
+     */
+    static ObjectNode withoutTemporaryImages(JsonNode outputs) {
+        ObjectNode result = JsonNodeFactory.instance.objectNode();
+        outputs.fields().forEachRemaining(entry -> {
+            ArrayNode images = JsonNodeFactory.instance.arrayNode();
+            for (JsonNode image : entry.getValue().path("images")) {
+                if (!"temp".equals(image.path("type").asText())) {
+                    images.add(image);
+                }
+            }
+            if (!images.isEmpty()) {
+                ObjectNode nodeOutput = entry.getValue().deepCopy();
+                nodeOutput.set("images", images);
+                result.set(entry.getKey(), nodeOutput);
+            }
+        });
+        return result;
+    }
+
+    private synchronized void putInMemory(String key, Entry entry) {
+        entries.put(key, entry);
+
+        int overflow = entries.size() - config.getResultCache().getMaxEntries();
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (overflow-- > 0 && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * 清理磁盘上已过期的缓存文件
+     */
+    @Scheduled(fixedDelay = 3600000)
+    public void evictExpiredFiles() {
+        String directory = config.getResultCache().getDiskDirectory();
+        if (directory == null || directory.isEmpty() || !Files.isDirectory(Paths.get(directory))) {
+            return;
+        }
+
+        long expireBefore = System.currentTimeMillis() - config.getResultCache().getTtl();
+        List<Path> expired = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(directory), "*.json")) {
+            for (Path file : stream) {
+                if (Files.getLastModifiedTime(file).toMillis() < expireBefore) {
+                    expired.add(file);
+                }
+            }
+            for (Path file : expired) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            log.warn("清理结果缓存失败: {}", e.getMessage());
+        }
+        if (!expired.isEmpty()) {
+            log.info("已清理 {} 个过期的结果缓存文件", expired.size());
+        }
+    }
+
+    private Path diskFile(String key) {
+        String directory = config.getResultCache().getDiskDirectory();
+        if (directory == null || directory.isEmpty()) {
+            return null;
+        }
+        return Paths.get(directory, key + ".json");
+    }
+
+    /**
+     * 按字段名排序后的副本，保证字段顺序不同但内容相同的工作流得到相同的键
+     */
+    private JsonNode canonicalize(JsonNode node) {
+        if (node.isObject()) {
+            List<String> names = new ArrayList<>();
+            node.fieldNames().forEachRemaining(names::add);
+            names.sort(null);
+
+            ObjectNode sorted = objectMapper.createObjectNode();
+            for (String name : names) {
+                sorted.set(name, canonicalize(node.get(name)));
+            }
+            return sorted;
+        }
+        if (node.isArray()) {
+            ArrayNode array = objectMapper.createArrayNode();
+            for (JsonNode element : node) {
+                array.add(canonicalize(element));
+            }
+            return array;
+        }
+        return node;
+    }
+}
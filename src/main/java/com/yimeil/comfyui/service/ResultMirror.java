@@ -0,0 +1,377 @@
+package com.yimeil.comfyui.service;
+
+import com.yimeil.comfyui.config.ComfyUIConfig;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
+
+/**
+ * 结果图片本地镜像
+ * 任务完成后在后台把 ComfyUI 输出图片下载到 output/mirror 下（按文件名前缀分两级子目录），
+ * 结果中的 outputUrl 指向本地副本，浏览器查看、重试都不再访问 GPU 服务器
+ * <p>
+ * 镜像文件名由"服务器 + Prompt ID + 输出文件"决定，写入后不再变化；超过保留时间或总大小超限时按最近访问时间淘汰
+ * <p>
+ * 记住每个镜像文件对应的 ComfyUI 地址：下载失败或文件已被淘汰后再次访问时重新下载，仍失败则由调用方重定向到 ComfyUI
+ */
+@Service
+@Slf4j
+public class ResultMirror {
+
+    /**
+     * 访问时刷新修改时间（用作最近访问时间）的最小间隔，避免每次访问都写文件元数据
+     */
+    private static final long TOUCH_INTERVAL_MILLIS = 3600000L;
+
+    /**
+     * 记住最近多少张结果图片的 ComfyUI 地址，供下载代理直接使用本地副本
+     */
+    private static final int RECENT_LIMIT = 4096;
+
+    /**
+     * 最多记住多少个镜像文件的 ComfyUI 地址
+     */
+    private static final int SOURCE_LIMIT = 65536;
+
+    @Autowired
+    private ComfyUIConfig config;
+
+    @Autowired
+    private CloseableHttpClient httpClient;
+
+    @Value("${output.directory:output}")
+    private String outputDirectory;
+
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    /**
+     * 镜像 key -> 下载中的任务
+     */
+    private final Map<String, Download> downloads = new ConcurrentHashMap<>();
+
+    /**
+     * 最近结果的 ComfyUI 地址 -> 镜像文件（按访问顺序淘汰）
+     */
+    private final Map<String, Path> recent = Collections.synchronizedMap(
+            new LinkedHashMap<>(256, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Path> eldest) {
+                    return size() > RECENT_LIMIT;
+                }
+            });
+
+    /**
+     * 镜像 key -> ComfyUI 地址（按访问顺序淘汰），下载失败或文件被淘汰后用于重新下载 / 重定向
+     */
+    private final Map<String, String> sources = Collections.synchronizedMap(
+            new LinkedHashMap<>(256, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                    return size() > SOURCE_LIMIT;
+                }
+            });
+
+    private Semaphore permits;
+
+    private record Download(String remoteUrl, CompletableFuture<Path> future) {
+    }
+
+    @PostConstruct
+    public void init() {
+        permits = new Semaphore(Math.max(1, config.getMirror().getConcurrency()));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public boolean isEnabled() {
+        return config.getMirror().isEnabled();
+    }
+
+    /**
+     * output 目录（/output/** 的根目录）
+     */
+    public Path getOutputRoot() {
+        return Paths.get(outputDirectory).toAbsolutePath().normalize();
+    }
+
+    public Path getMirrorRoot() {
+        return getOutputRoot().resolve(config.getMirror().getSubdirectory()).normalize();
+    }
+
+    /**
+     * 登记一张结果图片并在后台下载
+     *
+     * @return 本地访问路径（/output/mirror/...），未启用时返回 null
+     */
+    public String prefetch(String baseUrl, String promptId, String filename, String subfolder, String type) {
+        if (!isEnabled()) {
+            return null;
+        }
+        String key = key(baseUrl, promptId, filename, subfolder, type);
+        String relativePath = config.getMirror().getSubdirectory() + "/" + key.substring(0, 2) + "/"
+                + key.substring(2, 4) + "/" + key + extension(filename);
+        Path file = getOutputRoot().resolve(relativePath);
+        recent.put(viewUrl(baseUrl, filename, subfolder, type), file);
+
+        String remoteUrl = baseUrl + "/view?filename=" + encode(filename)
+                + "&subfolder=" + encode(subfolder != null ? subfolder : "")
+                + "&type=" + encode(type != null ? type : "output");
+        sources.put(key, remoteUrl);
+        if (!Files.exists(file)) {
+            startDownload(key, remoteUrl, file);
+        }
+        return "/output/" + relativePath;
+    }
+
+    private Download startDownload(String key, String remoteUrl, Path file) {
+        return downloads.computeIfAbsent(key, k -> {
+            CompletableFuture<Path> future = CompletableFuture.supplyAsync(() -> download(remoteUrl, file), executor);
+            future.whenComplete((path, error) -> downloads.remove(k));
+            return new Download(remoteUrl, future);
+        });
+    }
+
+    /**
+     * 把 /output/ 之后的相对路径解析为文件，超出 output 目录时返回 null
+     */
+    public Path resolveOutput(String relativePath) {
+        Path root = getOutputRoot();
+        Path file = root.resolve(relativePath).normalize();
+        return file.startsWith(root) && !file.equals(root) ? file : null;
+    }
+
+    /**
+     * 查找结果图片的本地副本：支持 /output/ 路径和最近结果的 ComfyUI 地址
+     * 镜像仍在下载时最多等待 fetch-wait
+     *
+     * @return 本地文件，没有可用副本时返回 null
+     */
+    public Path findLocal(String url) throws InterruptedException {
+        Path file = null;
+        if (url.startsWith("/output/")) {
+            file = resolveOutput(URLDecoder.decode(url.substring("/output/".length()), StandardCharsets.UTF_8));
+        } else if (isEnabled()) {
+            file = recent.get(url);
+        }
+        if (file == null) {
+            return null;
+        }
+        if (!Files.isRegularFile(file) && isMirrorFile(file)) {
+            await(file);
+        }
+        return Files.isRegularFile(file) ? file : null;
+    }
+
+    /**
+     * 是否为镜像文件（内容不会变化，可长期缓存）
+     */
+    public boolean isMirrorFile(Path file) {
+        return file.startsWith(getMirrorRoot());
+    }
+
+    /**
+     * 镜像文件尚未下载完成时等待下载；之前下载失败或文件已被淘汰时按记录的 ComfyUI 地址重新下载
+     *
+     * @return 下载完成返回 null；仍未完成或下载失败时返回 ComfyUI 地址，由调用方重定向；没有记录的地址时返回 null
+     */
+    public String await(Path file) throws InterruptedException {
+        String key = key(file);
+        Download download = downloads.get(key);
+        if (download == null) {
+            String remoteUrl = sources.get(key);
+            if (remoteUrl == null || Files.isRegularFile(file)) {
+                return null;
+            }
+            log.debug("镜像文件不存在，重新下载: {}", remoteUrl);
+            download = startDownload(key, remoteUrl, file);
+        }
+        try {
+            download.future().get(config.getMirror().getFetchWait(), TimeUnit.MILLISECONDS);
+            return null;
+        } catch (ExecutionException | TimeoutException e) {
+            return download.remoteUrl();
+        }
+    }
+
+    /**
+     * 记录一次访问：按修改时间淘汰，访问时刷新修改时间，使常用文件保留更久
+     */
+    public void touch(Path file) {
+        try {
+            long now = System.currentTimeMillis();
+            if (now - Files.getLastModifiedTime(file).toMillis() < TOUCH_INTERVAL_MILLIS) {
+                return;
+            }
+            Files.setLastModifiedTime(file, FileTime.fromMillis(now));
+        } catch (IOException e) {
+            log.debug("更新镜像文件访问时间失败: {}", e.getMessage());
+        }
+    }
+
+    private Path download(String remoteUrl, Path file) {
+        Path tempFile = null;
+        try {
+            permits.acquire();
+            try {
+                Files.createDirectories(file.getParent());
+                tempFile = Files.createTempFile(file.getParent(), key(file), ".tmp");
+                try (CloseableHttpResponse response = httpClient.execute(new HttpGet(remoteUrl))) {
+                    if (response.getCode() != 200) {
+                        throw new IOException("HTTP状态码: " + response.getCode());
+                    }
+                    try (InputStream inputStream = response.getEntity().getContent()) {
+                        Files.copy(inputStream, tempFile, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+                // 先写临时文件再替换，访问方不会读到写了一半的文件
+                Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                log.debug("结果图片已镜像: {} -> {}", remoteUrl, file);
+                return file;
+            } finally {
+                permits.release();
+            }
+        } catch (IOException e) {
+            log.warn("镜像结果图片失败: {} - {}", remoteUrl, e.getMessage());
+            throw new IllegalStateException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } finally {
+            if (tempFile != null) {
+                try {
+                    Files.deleteIfExists(tempFile);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * 淘汰过期文件，总大小超限时继续删除最久未访问的文件
+     */
+    @Scheduled(fixedDelay = 600000, initialDelay = 60000)
+    public void evict() {
+        Path root = getMirrorRoot();
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+
+        record MirrorFile(Path path, long size, long lastModified) {
+        }
+        List<MirrorFile> files = new ArrayList<>();
+        try (Stream<Path> stream = Files.walk(root)) {
+            for (Path path : (Iterable<Path>) stream.filter(Files::isRegularFile)::iterator) {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                files.add(new MirrorFile(path, attributes.size(), attributes.lastModifiedTime().toMillis()));
+            }
+        } catch (IOException e) {
+            log.warn("扫描镜像目录失败: {}", e.getMessage());
+            return;
+        }
+
+        ComfyUIConfig.MirrorConfig mirror = config.getMirror();
+        long expireBefore = System.currentTimeMillis() - mirror.getMaxAge();
+        long maxBytes = mirror.getMaxSizeMb() * 1024 * 1024;
+        long totalBytes = files.stream().mapToLong(MirrorFile::size).sum();
+        files.sort(Comparator.comparingLong(MirrorFile::lastModified));
+
+        int deleted = 0;
+        for (MirrorFile file : files) {
+            if (file.lastModified() >= expireBefore && totalBytes <= maxBytes) {
+                break;
+            }
+            try {
+                Files.deleteIfExists(file.path());
+                totalBytes -= file.size();
+                deleted++;
+            } catch (IOException e) {
+                log.warn("删除镜像文件失败: {} - {}", file.path(), e.getMessage());
+            }
+        }
+        if (deleted > 0) {
+            log.info("已淘汰 {} 个镜像文件，当前占用 {} MB", deleted, totalBytes / 1024 / 1024);
+        }
+    }
+
+    private static String key(String baseUrl, String promptId, String filename, String subfolder, String type) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        String source = String.join("\n", baseUrl, String.valueOf(promptId), String.valueOf(type),
+                String.valueOf(subfolder), filename);
+        return HexFormat.of().formatHex(digest.digest(source.getBytes(StandardCharsets.UTF_8))).substring(0, 32);
+    }
+
+    /**
+     * 镜像文件名（不含扩展名）即 key
+     */
+    private static String key(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.indexOf('.');
+        return dot >= 0 ? name.substring(0, dot) : name;
+    }
+
+    /**
+     * 与结果中 remoteUrl 相同格式的 ComfyUI 地址
+     */
+    private static String viewUrl(String baseUrl, String filename, String subfolder, String type) {
+        String url = baseUrl + "/view?filename=" + filename;
+        if (subfolder != null && !subfolder.isEmpty()) {
+            url += "&subfolder=" + subfolder;
+        }
+        return url + "&type=" + type;
+    }
+
+    private static String extension(String filename) {
+        int dot = filename.lastIndexOf('.');
+        String extension = dot >= 0 ? filename.substring(dot).toLowerCase() : "";
+        return extension.matches("\\.[a-z0-9]{1,8}") ? extension : ".png";
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8).replace("+", "%20");
+    }
+}
@@ -0,0 +1,60 @@
+package com.yimeil.comfyui.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按工作流和服务器导出 Prompt 各阶段耗时
+ * <ul>
+ *     <li>comfyui.prompt.stage：各阶段耗时直方图（stage / workflow / backend）</li>
+ *     <li>comfyui.prompt.completed：完成的 Prompt 数（workflow / backend / outcome = success、failure、cache_hit）</li>
+ * </ul>
+ * 通过 /actuator/metrics 或 /actuator/prometheus 查看
+ */
+@Service
+public class StageMetrics {
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    /**
+     * 记录一个 Prompt 的结果，并把当前线程计时器中属于该 Prompt 的阶段耗时导出
+     */
+    public void record(String workflowName, ComfyUIBackend backend, String outcome) {
+        String workflow = workflowName != null ? workflowName : "unknown";
+        String backendTag = backend != null ? backend.getUrl() : "unknown";
+
+        long[] nanos = StageTimer.drain("cache_hit".equals(outcome));
+        if (nanos != null) {
+            for (StageTimer.Stage stage : StageTimer.Stage.values()) {
+                long value = nanos[stage.ordinal()];
+                // 跳过未发生的阶段（如 URL 模式没有上传、命中缓存没有执行），避免 0 值拉低分位数
+                if (value == 0) {
+                    continue;
+                }
+                Timer.builder("comfyui.prompt.stage")
+                        .description("Prompt 各阶段耗时")
+                        .tag("stage", stage.tag())
+                        .tag("workflow", workflow)
+                        .tag("backend", backendTag)
+                        .publishPercentiles(0.5, 0.95, 0.99)
+                        .publishPercentileHistogram()
+                        .register(meterRegistry)
+                        .record(value, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        Counter.builder("comfyui.prompt.completed")
+                .description("完成的 Prompt 数")
+                .tag("workflow", workflow)
+                .tag("backend", backendTag)
+                .tag("outcome", outcome)
+                .register(meterRegistry)
+                .increment();
+    }
+}
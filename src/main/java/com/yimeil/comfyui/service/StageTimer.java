@@ -0,0 +1,162 @@
+package com.yimeil.comfyui.service;
+
+import com.yimeil.comfyui.model.StageTimings;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 任务分阶段计时
+ * 每个任务在执行线程上开始一个计时器，加载工作流、上传、提交、等待等步骤把耗时计入当前线程的计时器；
+ * 线程上没有计时器时记录操作不做任何事
+ */
+public final class StageTimer {
+
+    /**
+     * 任务阶段
+     */
+    public enum Stage {
+        WORKFLOW_LOAD,
+        BINDING,
+        UPLOAD,
+        LOCAL_QUEUE,
+        SUBMIT,
+        REMOTE_QUEUE,
+        REMOTE_EXECUTION,
+        COMPLETION_DETECTION,
+        RESULT_FETCH;
+
+        /**
+         * 指标标签值
+         */
+        public String tag() {
+            return name().toLowerCase();
+        }
+    }
+
+    private static final ThreadLocal<StageTimer> CURRENT = new ThreadLocal<>();
+
+    /**
+     * 尚未归属到某个 Prompt 的耗时（纳秒），提交 Prompt 结束时取出
+     */
+    private final long[] pending = new long[Stage.values().length];
+
+    /**
+     * 整个任务的累计耗时（纳秒）
+     */
+    private final long[] total = new long[Stage.values().length];
+
+    private boolean cacheHit;
+
+    private StageTimer() {
+    }
+
+    /**
+     * 在当前线程开始计时，任务结束时必须调用 {@link #finish()}
+     */
+    public static StageTimer start() {
+        StageTimer timer = new StageTimer();
+        CURRENT.set(timer);
+        return timer;
+    }
+
+    /**
+     * 记录从 startNanos（System.nanoTime()）到现在的耗时
+     */
+    public static void record(Stage stage, long startNanos) {
+        add(stage, System.nanoTime() - startNanos);
+    }
+
+    public static void add(Stage stage, long nanos) {
+        StageTimer timer = CURRENT.get();
+        if (timer != null && nanos > 0) {
+            timer.pending[stage.ordinal()] += nanos;
+        }
+    }
+
+    /**
+     * 把另一线程代为执行的 Prompt 的耗时（如合并执行的 Prompt）计入当前线程
+     */
+    static void addAll(StageTimings timings) {
+        add(Stage.WORKFLOW_LOAD, TimeUnit.MILLISECONDS.toNanos(timings.getWorkflowLoad()));
+        add(Stage.BINDING, TimeUnit.MILLISECONDS.toNanos(timings.getBinding()));
+        add(Stage.UPLOAD, TimeUnit.MILLISECONDS.toNanos(timings.getUpload()));
+        add(Stage.LOCAL_QUEUE, TimeUnit.MILLISECONDS.toNanos(timings.getLocalQueue()));
+        add(Stage.SUBMIT, TimeUnit.MILLISECONDS.toNanos(timings.getSubmit()));
+        add(Stage.REMOTE_QUEUE, TimeUnit.MILLISECONDS.toNanos(timings.getRemoteQueue()));
+        add(Stage.REMOTE_EXECUTION, TimeUnit.MILLISECONDS.toNanos(timings.getRemoteExecution()));
+        add(Stage.COMPLETION_DETECTION, TimeUnit.MILLISECONDS.toNanos(timings.getCompletionDetection()));
+        add(Stage.RESULT_FETCH, TimeUnit.MILLISECONDS.toNanos(timings.getResultFetch()));
+    }
+
+    /**
+     * 取出当前线程自上次取出以来的各阶段耗时（一个 Prompt 的耗时），计入任务累计值
+     *
+     * @return 按 {@link Stage} 顺序的耗时（纳秒），线程上没有计时器时返回 null
+     */
+    static long[] drain(boolean cacheHit) {
+        StageTimer timer = CURRENT.get();
+        if (timer == null) {
+            return null;
+        }
+        long[] drained = timer.pending.clone();
+        for (int i = 0; i < drained.length; i++) {
+            timer.total[i] += drained[i];
+            timer.pending[i] = 0;
+        }
+        timer.cacheHit |= cacheHit;
+        return drained;
+    }
+
+    /**
+     * 结束计时并返回整个任务的各阶段耗时
+     */
+    public StageTimings finish() {
+        if (CURRENT.get() == this) {
+            CURRENT.remove();
+        }
+        for (int i = 0; i < total.length; i++) {
+            total[i] += pending[i];
+            pending[i] = 0;
+        }
+        StageTimings timings = new StageTimings();
+        timings.setWorkflowLoad(millis(Stage.WORKFLOW_LOAD));
+        timings.setBinding(millis(Stage.BINDING));
+        timings.setUpload(millis(Stage.UPLOAD));
+        timings.setLocalQueue(millis(Stage.LOCAL_QUEUE));
+        timings.setSubmit(millis(Stage.SUBMIT));
+        timings.setRemoteQueue(millis(Stage.REMOTE_QUEUE));
+        timings.setRemoteExecution(millis(Stage.REMOTE_EXECUTION));
+        timings.setCompletionDetection(millis(Stage.COMPLETION_DETECTION));
+        timings.setResultFetch(millis(Stage.RESULT_FETCH));
+        timings.setCacheHit(cacheHit);
+        return timings;
+    }
+
+    /**
+     * 累加多个任务（如批量任务的各分片）的阶段耗时
+     */
+    public static StageTimings sum(Collection<StageTimings> parts) {
+        StageTimings sum = new StageTimings();
+        for (StageTimings part : parts) {
+            if (part == null) {
+                continue;
+            }
+            sum.setWorkflowLoad(sum.getWorkflowLoad() + part.getWorkflowLoad());
+            sum.setBinding(sum.getBinding() + part.getBinding());
+            sum.setUpload(sum.getUpload() + part.getUpload());
+            sum.setLocalQueue(sum.getLocalQueue() + part.getLocalQueue());
+            sum.setSubmit(sum.getSubmit() + part.getSubmit());
+            sum.setRemoteQueue(sum.getRemoteQueue() + part.getRemoteQueue());
+            sum.setRemoteExecution(sum.getRemoteExecution() + part.getRemoteExecution());
+            sum.setCompletionDetection(sum.getCompletionDetection() + part.getCompletionDetection());
+            sum.setResultFetch(sum.getResultFetch() + part.getResultFetch());
+            sum.setCacheHit(sum.isCacheHit() || part.isCacheHit());
+        }
+        return sum;
+    }
+
+    private long millis(Stage stage) {
+        return TimeUnit.NANOSECONDS.toMillis(total[stage.ordinal()]);
+    }
+}
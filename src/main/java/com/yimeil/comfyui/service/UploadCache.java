@@ -0,0 +1,117 @@
+package com.yimeil.comfyui.service;
+
+import com.yimeil.comfyui.config.ComfyUIConfig;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 上传去重缓存
+ * 记录每个 ComfyUI 服务器上已上传图片的内容哈希，相同内容再次上传时直接复用 ComfyUI 中的文件名
+ */
+@Service
+@Slf4j
+public class UploadCache {
+
+    @Autowired
+    private ComfyUIConfig config;
+
+    /**
+     * 服务器地址 + 内容哈希 -> 上传记录，按访问顺序排列（LRU），访问需持有对象锁
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private record Entry(String uploadedName, long uploadedAt) {
+    }
+
+    public boolean isEnabled() {
+        return config.getUploadCache().isEnabled();
+    }
+
+    /**
+     * 查询已上传的文件名，未上传或已过期时返回 null
+     */
+    public synchronized String get(String baseUrl, String hash) {
+        String key = key(baseUrl, hash);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - entry.uploadedAt() > config.getUploadCache().getTtl()) {
+            entries.remove(key);
+            return null;
+        }
+        return entry.uploadedName();
+    }
+
+    /**
+     * 记录上传结果，超过容量时淘汰最久未使用的记录
+     */
+    public synchronized void put(String baseUrl, String hash, String uploadedName) {
+        entries.put(key(baseUrl, hash), new Entry(uploadedName, System.currentTimeMillis()));
+
+        int overflow = entries.size() - config.getUploadCache().getMaxEntries();
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (overflow-- > 0 && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * 移除记录（ComfyUI 中的文件已失效时调用）
+     */
+    public synchronized void invalidate(String baseUrl, String hash) {
+        entries.remove(key(baseUrl, hash));
+    }
+
+    private static String key(String baseUrl, String hash) {
+        return baseUrl + "|" + hash;
+    }
+
+    /**
+     * 计算文件内容的 SHA-256（十六进制）
+     */
+    public static String sha256(MultipartFile file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        byte[] buffer = new byte[8192];
+        try (InputStream inputStream = file.getInputStream()) {
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * 按内容生成上传文件名，保证同名文件一定是相同内容，overwrite 不会覆盖其他图片
+     */
+    public static String contentAddressedName(String hash, String originalFilename) {
+        String extension = ".png";
+        if (originalFilename != null) {
+            int dot = originalFilename.lastIndexOf('.');
+            String candidate = dot >= 0 ? originalFilename.substring(dot).toLowerCase() : "";
+            if (candidate.matches("\\.[a-z0-9]{1,8}")) {
+                extension = candidate;
+            }
+        }
+        return "upload_" + hash.substring(0, 32) + extension;
+    }
+}
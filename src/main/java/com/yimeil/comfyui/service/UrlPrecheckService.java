@@ -0,0 +1,257 @@
+package com.yimeil.comfyui.service;
+
+import com.yimeil.comfyui.config.ComfyUIConfig;
+import com.yimeil.comfyui.model.UrlCheckResult;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.apache.hc.client5.http.classic.methods.HttpHead;
+import org.apache.hc.client5.http.classic.methods.HttpUriRequestBase;
+import org.apache.hc.client5.http.ConnectTimeoutException;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpResponse;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.util.Timeout;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * 批量 URL 预检
+ * 在虚拟线程上并发检查图片 URL 是否可访问，总耗时取决于最慢的 URL 而不是所有 URL 之和。
+ * 优先使用 HEAD，服务器不支持 HEAD 时改用只取 1 字节的 Range GET，不下载图片内容。
+ * <p>
+ * 短时间缓存检查结果：同一 URL 不重复请求；同一主机连接失败（拒绝连接、域名无法解析、连接超时）后
+ * 其余 URL 直接判定失败，不再逐个等待超时；记住不支持 HEAD 的主机，后续直接使用 Range GET
+ * <p>
+ * 使用独立的连接池，连接超时取 url-check.timeout，不占用访问 ComfyUI 的连接
+ */
+@Service
+@Slf4j
+public class UrlPrecheckService {
+
+    @Autowired
+    private ComfyUIConfig config;
+
+    private CloseableHttpClient httpClient;
+
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    /**
+     * URL -> 最近一次检查结果
+     */
+    private final Map<String, CachedCheck> urlResults = new ConcurrentHashMap<>();
+
+    /**
+     * 主机 -> 最近一次连接失败
+     */
+    private final Map<String, CachedCheck> unreachableHosts = new ConcurrentHashMap<>();
+
+    /**
+     * 不支持 HEAD 的主机 -> 记录时间
+     */
+    private final Map<String, Long> headUnsupportedHosts = new ConcurrentHashMap<>();
+
+    private record CachedCheck(int statusCode, String message, long checkedAt) {
+    }
+
+    @PostConstruct
+    public void init() {
+        ComfyUIConfig.UrlCheckConfig urlCheck = config.getUrlCheck();
+        Timeout timeout = Timeout.ofMilliseconds(urlCheck.getTimeout());
+        int concurrency = Math.max(1, urlCheck.getConcurrency());
+        httpClient = HttpClients.custom()
+                .setConnectionManager(PoolingHttpClientConnectionManagerBuilder.create()
+                        .setMaxConnTotal(concurrency)
+                        .setMaxConnPerRoute(concurrency)
+                        .setDefaultConnectionConfig(ConnectionConfig.custom()
+                                .setConnectTimeout(timeout)
+                                .setSocketTimeout(timeout)
+                                .build())
+                        .build())
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectionRequestTimeout(timeout)
+                        .setResponseTimeout(timeout)
+                        .build())
+                .evictExpiredConnections()
+                .build();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+        httpClient.close(CloseMode.IMMEDIATE);
+    }
+
+    public boolean isEnabled() {
+        return config.getUrlCheck().isEnabled();
+    }
+
+    /**
+     * 并发预检 URL 列表
+     *
+     * @param urls URL 列表，空行（null 或空白）跳过但保留行号
+     * @return 每个非空 URL 的检查结果，按行号排列
+     */
+    public List<UrlCheckResult> check(List<String> urls) throws InterruptedException {
+        ComfyUIConfig.UrlCheckConfig urlCheck = config.getUrlCheck();
+        evictExpired(urlCheck.getCacheTtl());
+
+        Semaphore permits = new Semaphore(Math.max(1, urlCheck.getConcurrency()));
+        List<Future<UrlCheckResult>> futures = new ArrayList<>();
+        for (int i = 0; i < urls.size(); i++) {
+            String url = urls.get(i) != null ? urls.get(i).trim() : "";
+            if (url.isEmpty()) {
+                continue;
+            }
+            int index = i;
+            futures.add(executor.submit(() -> {
+                permits.acquire();
+                try {
+                    return check(index, url);
+                } finally {
+                    permits.release();
+                }
+            }));
+        }
+
+        List<UrlCheckResult> results = new ArrayList<>();
+        try {
+            for (Future<UrlCheckResult> future : futures) {
+                results.add(future.get());
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("URL 预检失败", e.getCause());
+        } finally {
+            for (Future<UrlCheckResult> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return results;
+    }
+
+    private UrlCheckResult check(int index, String url) {
+        UrlCheckResult result = new UrlCheckResult();
+        result.setIndex(index);
+        result.setUrl(url);
+
+        CachedCheck cached = urlResults.get(url);
+        if (cached == null) {
+            cached = unreachableHosts.get(host(url));
+        }
+        if (cached != null) {
+            fill(result, cached);
+            return result;
+        }
+
+        long startTime = System.currentTimeMillis();
+        CachedCheck check = request(url);
+        result.setElapsedTime(System.currentTimeMillis() - startTime);
+        fill(result, check);
+        urlResults.put(url, check);
+
+        if (result.isReachable()) {
+            log.debug("URL[{}] 可访问 (状态码: {}, {} ms)", index, check.statusCode(), result.getElapsedTime());
+        } else {
+            log.warn("URL[{}] 预检失败: {} - {}", index, url, check.message());
+        }
+        return result;
+    }
+
+    /**
+     * 发送 HEAD；服务器不支持 HEAD（405 / 501）或拒绝 HEAD（403，如只对 GET 签名的对象存储链接）时改用 Range GET
+     */
+    private CachedCheck request(String url) {
+        String host = host(url);
+        if (!url.startsWith("http://") && !url.startsWith("https://")) {
+            return new CachedCheck(0, "不是 http/https 地址", System.currentTimeMillis());
+        }
+
+        try {
+            if (host == null || !headUnsupportedHosts.containsKey(host)) {
+                int statusCode = execute(new HttpHead(url));
+                if (statusCode == 405 || statusCode == 501) {
+                    if (host != null) {
+                        headUnsupportedHosts.put(host, System.currentTimeMillis());
+                    }
+                } else if (statusCode != 403) {
+                    return statusCheck(statusCode);
+                }
+            }
+
+            HttpGet rangeRequest = new HttpGet(url);
+            rangeRequest.setHeader("Range", "bytes=0-0");
+            return statusCheck(execute(rangeRequest));
+        } catch (IOException | IllegalArgumentException e) {
+            CachedCheck check = new CachedCheck(0, "无法访问: " + e.getMessage(), System.currentTimeMillis());
+            if (host != null && isHostUnreachable(e)) {
+                unreachableHosts.put(host, check);
+            }
+            return check;
+        }
+    }
+
+    /**
+     * 只有连接阶段的失败才说明整个主机不可达；读取超时、SSL 错误、连接被重置等只影响当前 URL
+     */
+    private static boolean isHostUnreachable(Exception e) {
+        return e instanceof ConnectException
+                || e instanceof UnknownHostException
+                || e instanceof ConnectTimeoutException;
+    }
+
+    /**
+     * 执行请求并返回状态码，不读取响应体（关闭未读完的响应会直接断开连接，不会下载剩余内容）
+     */
+    private int execute(HttpUriRequestBase request) throws IOException {
+        request.setHeader("User-Agent", "Mozilla/5.0");
+        try (CloseableHttpResponse response = httpClient.execute(request)) {
+            return response.getCode();
+        }
+    }
+
+    private CachedCheck statusCheck(int statusCode) {
+        String message = statusCode >= 200 && statusCode < 300 ? null : "返回错误状态码 " + statusCode;
+        return new CachedCheck(statusCode, message, System.currentTimeMillis());
+    }
+
+    private void fill(UrlCheckResult result, CachedCheck check) {
+        result.setStatusCode(check.statusCode());
+        result.setReachable(check.message() == null);
+        result.setMessage(check.message());
+    }
+
+    private void evictExpired(long ttl) {
+        long expireBefore = System.currentTimeMillis() - ttl;
+        urlResults.values().removeIf(check -> check.checkedAt() < expireBefore);
+        unreachableHosts.values().removeIf(check -> check.checkedAt() < expireBefore);
+        headUnsupportedHosts.values().removeIf(checkedAt -> checkedAt < expireBefore);
+    }
+
+    private static String host(String url) {
+        try {
+            URI uri = URI.create(url);
+            return uri.getHost() != null ? uri.getScheme() + "://" + uri.getAuthority() : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package com.yimeil.comfyui.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.yimeil.comfyui.config.ComfyUIConfig;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 模型预热
+ * ComfyUI 重启或模型被其他工作流挤出显存后，第一个请求要承担数秒到数十秒的模型加载（SAM vit_h、GroundingDINO、
+ * BiRefNet、Qwen 等）。这里定期检查每台服务器上各工作流的空闲时间，超过配置的间隔且服务器空闲时，
+ * 以 64×64 的合成图片提交一次该工作流，把模型重新加载进来
+ * <p>
+ * 预热只在服务器没有其他任务时进行，经 PromptScheduler 以批量优先级排队，不与交互式请求争抢；
+ * 输入图片每次随机生成，避免 ComfyUI 命中节点缓存而跳过模型加载（以固定文件名覆盖上传，不经过上传缓存）；SaveImage 改为 PreviewImage，不在输出目录留下文件
+ */
+@Service
+@Slf4j
+public class WarmupService {
+
+    @Autowired
+    private ComfyUIConfig config;
+
+    @Autowired
+    private ComfyUIBackendPool backendPool;
+
+    @Autowired
+    private ComfyUIService comfyUIService;
+
+    @Autowired
+    private WorkflowTemplateCache workflowTemplateCache;
+
+    @Autowired
+    private PromptScheduler promptScheduler;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    /**
+     * 正在预热的服务器，每台服务器同一时间只预热一个工作流
+     */
+    private final Set<ComfyUIBackend> warming = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 可以预热的工作流（配置中的工作流去掉不支持的）
+     */
+    private final List<String> workflows = new ArrayList<>();
+
+    @PostConstruct
+    public void init() {
+        ComfyUIConfig.WarmupConfig warmup = config.getWarmup();
+        if (!warmup.isEnabled()) {
+            return;
+        }
+        for (String workflowName : warmup.getWorkflows().keySet()) {
+            String error = checkWorkflow(workflowName);
+            if (error != null) {
+                log.warn("工作流 {} 不能预热: {}", workflowName, error);
+            } else {
+                workflows.add(workflowName);
+            }
+        }
+        log.info("模型预热已启用: {}", workflows);
+    }
+
+    /**
+     * 为空闲的服务器预热到期的工作流
+     */
+    @Scheduled(fixedDelayString = "${comfyui.warmup.check-interval:60000}", initialDelay = 10000)
+    public void warmUpIdleBackends() {
+        if (!config.getWarmup().isEnabled() || workflows.isEmpty()) {
+            return;
+        }
+        for (ComfyUIBackend backend : backendPool.getBackends()) {
+            if (isIdle(backend) && nextDue(backend) != null && warming.add(backend)) {
+                Thread.ofVirtual().name("warmup-" + backend.getUrl()).start(() -> warmUp(backend));
+            }
+        }
+    }
+
+    /**
+     * 依次预热该服务器上所有到期的工作流，服务器开始处理其他任务时停止
+     */
+    private void warmUp(ComfyUIBackend backend) {
+        try {
+            String workflowName;
+            while (isIdle(backend) && (workflowName = nextDue(backend)) != null) {
+                if (!warmUp(backend, workflowName)) {
+                    break;
+                }
+            }
+        } finally {
+            warming.remove(backend);
+        }
+    }
+
+    /**
+     * 提交一次预热 Prompt 并等待完成
+     *
+     * @return 是否成功
+     */
+    private boolean warmUp(ComfyUIBackend backend, String workflowName) {
+        long start = System.nanoTime();
+        boolean success = false;
+        Path image = null;
+        // 冷启动加载可能很慢，但不能无限等待；超时后 Prompt 会被中断
+        Deadline.bind(Deadline.after(config.getWarmup().getTimeout()));
+        backend.assigned();
+        try {
+            image = syntheticImage();
+            String uploadedName;
+            // 每台服务器固定一个文件名并覆盖上传，同一服务器的预热依次执行，不会互相覆盖
+            try (SpooledMultipartFile file = new SpooledMultipartFile("image", imageName(backend), "image/png", image)) {
+                uploadedName = comfyUIService.uploadImage(backend, file, file.getOriginalFilename());
+            }
+            ObjectNode workflow = syntheticWorkflow(workflowName, uploadedName);
+
+            try (PromptScheduler.Permit permit = promptScheduler.acquire(backend, workflowName,
+                    PromptScheduler.Priority.BATCH)) {
+                backend.promptSubmitted();
+                try {
+                    String promptId = comfyUIService.executeWorkflow(backend, workflow);
+                    JsonNode outputs = comfyUIService.waitForCompletion(backend, workflowName, promptId);
+                    success = outputs != null && !outputs.isEmpty();
+                } finally {
+                    backend.promptFinished();
+                }
+            }
+
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (success) {
+                backend.recordWorkflow(workflowName);
+                log.info("已预热 {} ({}), 耗时 {} ms", workflowName, backend, millis);
+            } else {
+                log.warn("预热 {} ({}) 没有产生输出，{} ms", workflowName, backend, millis);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.warn("预热 {} ({}) 失败: {}", workflowName, backend, e.getMessage());
+        } finally {
+            backend.released();
+            Deadline.bind(null);
+            deleteQuietly(image);
+            Timer.builder("comfyui.warmup")
+                    .description("模型预热 Prompt 的耗时")
+                    .tag("workflow", workflowName)
+                    .tag("outcome", success ? "success" : "failure")
+                    .register(meterRegistry)
+                    .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+        return success;
+    }
+
+    /**
+     * 服务器健康且没有任何任务（本服务分配的或其他来源提交到 ComfyUI 的）
+     */
+    private boolean isIdle(ComfyUIBackend backend) {
+        return backend.isHealthy() && backend.getLoad() == 0;
+    }
+
+    /**
+     * 该服务器上第一个需要预热的工作流：从未执行过（启动或服务器恢复后），或空闲时间超过配置的间隔
+     */
+    private String nextDue(ComfyUIBackend backend) {
+        Map<String, Long> intervals = config.getWarmup().getWorkflows();
+        long now = System.currentTimeMillis();
+        for (String workflowName : workflows) {
+            Long lastRun = backend.getLastRun(workflowName);
+            long idleAfter = intervals.getOrDefault(workflowName, 0L);
+            if (lastRun == null || idleAfter > 0 && now - lastRun >= idleAfter) {
+                return workflowName;
+            }
+        }
+        return null;
+    }
+
+    private String checkWorkflow(String workflowName) {
+        WorkflowBinding<?> binding = WorkflowBindings.forWorkflow(workflowName);
+        WorkflowBinding.FileInput fileInput = binding != null ? binding.getFileInput() : null;
+        if (fileInput == null) {
+            return "没有绑定上传文件的输入";
+        }
+        try {
+            JsonNode template = workflowTemplateCache.getTemplate(workflowName);
+            if (!"LoadImage".equals(template.path(fileInput.nodeId()).path("class_type").asText())) {
+                return "输入节点不是 LoadImage";
+            }
+        } catch (Exception e) {
+            return "加载工作流失败: " + e.getMessage();
+        }
+        return null;
+    }
+
+    /**
+     * 以模板默认参数构建预热工作流
+     * 输出节点改为 PreviewImage（只写入 ComfyUI 临时目录），采样步数减为 1：模型照常加载，计算量最小
+     */
+    private ObjectNode syntheticWorkflow(String workflowName, String uploadedName) throws Exception {
+        ObjectNode workflow = workflowTemplateCache.instantiate(workflowName);
+        WorkflowBindings.forWorkflow(workflowName).applyFile(workflow, uploadedName);
+        workflow.fields().forEachRemaining(entry -> {
+            JsonNode node = entry.getValue();
+            String classType = node.path("class_type").asText();
+            JsonNode inputs = node.path("inputs");
+            if (!inputs.isObject()) {
+                return;
+            }
+            if ("SaveImage".equals(classType)) {
+                ((ObjectNode) node).put("class_type", "PreviewImage");
+                ((ObjectNode) inputs).remove("filename_prefix");
+            } else if (classType.startsWith("KSampler") && inputs.path("steps").isInt()) {
+                ((ObjectNode) inputs).put("steps", 1);
+            }
+        });
+        return workflow;
+    }
+
+    /**
+     * 生成随机噪声图片，内容每次不同
+     */
+    /**
+     * 预热图片在该服务器上的文件名
+     */
+    private static String imageName(ComfyUIBackend backend) {
+        UUID id = UUID.nameUUIDFromBytes(backend.getUrl().getBytes(StandardCharsets.UTF_8));
+        return "warmup_" + id.toString().replace("-", "").substring(0, 12) + ".png";
+    }
+
+    private Path syntheticImage() throws Exception {
+        int size = Math.max(8, config.getWarmup().getImageSize());
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                image.setRGB(x, y, random.nextInt(0x1000000));
+            }
+        }
+        Path path = Files.createTempFile("comfyui-warmup-", ".png");
+        ImageIO.write(image, "png", path.toFile());
+        return path;
+    }
+
+    private void deleteQuietly(Path path) {
+        if (path == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(path);
+        } catch (Exception e) {
+            log.debug("删除预热图片失败: {}", e.getMessage());
+        }
+    }
+}
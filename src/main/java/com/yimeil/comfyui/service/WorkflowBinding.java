@@ -0,0 +1,296 @@
+package com.yimeil.comfyui.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * 工作流参数绑定计划
+ * 声明请求属性到工作流节点输入的映射，构建时按节点分组，应用时每个节点只查找一次 inputs
+ *
+ * @param <R> 请求类型
+ */
+public final class WorkflowBinding<R> {
+
+    /**
+     * 输入值类型
+     */
+    public enum ValueType {
+        STRING, INT, LONG, DOUBLE, BOOLEAN;
+
+        void write(ObjectNode inputs, String name, Object value) {
+            switch (this) {
+                case STRING -> inputs.put(name, (String) value);
+                case INT -> inputs.put(name, (Integer) value);
+                case LONG -> inputs.put(name, (Long) value);
+                case DOUBLE -> inputs.put(name, (Double) value);
+                case BOOLEAN -> inputs.put(name, (Boolean) value);
+            }
+        }
+
+        /**
+         * 模板中的默认值是否与该类型兼容
+         */
+        boolean accepts(JsonNode templateValue) {
+            return switch (this) {
+                case STRING -> templateValue.isTextual();
+                case INT, LONG -> templateValue.isIntegralNumber();
+                case DOUBLE -> templateValue.isNumber();
+                case BOOLEAN -> templateValue.isBoolean();
+            };
+        }
+    }
+
+    /**
+     * 单个输入绑定，getter 为 null 表示绑定文件名
+     */
+    private record Binding<R>(String input, ValueType type, Function<R, ?> getter) {
+    }
+
+    /**
+     * 同一节点的所有绑定
+     */
+    private record NodeBindings<R>(String nodeId, Binding<R>[] bindings) {
+    }
+
+    /**
+     * 文件名绑定的目标输入
+     */
+    public record FileInput(String nodeId, String input) {
+    }
+
+    /**
+     * 输入图片预缩小
+     *
+     * @param resizeNode 直接缩小输入图片的 ImageResize+ 节点（keep proportion），其 width/height 即处理分辨率
+     * @param sizeNode   读取原图尺寸的 GetImageSize+ 节点（用于把结果放大回原尺寸），没有时为 null
+     */
+    public record PreScale(String resizeNode, String sizeNode) {
+    }
+
+    /**
+     * 校验结果
+     */
+    public record Validation(List<String> errors, List<String> warnings) {
+    }
+
+    private final String workflowName;
+    private final NodeBindings<R>[] nodes;
+    private final PreScale preScale;
+
+    private WorkflowBinding(String workflowName, NodeBindings<R>[] nodes, PreScale preScale) {
+        this.workflowName = workflowName;
+        this.nodes = nodes;
+        this.preScale = preScale;
+    }
+
+    public static <R> Builder<R> builder(String workflowName) {
+        return new Builder<>(workflowName);
+    }
+
+    public String getWorkflowName() {
+        return workflowName;
+    }
+
+    /**
+     * 文件名绑定到的节点输入，没有文件绑定时返回 null
+     */
+    public FileInput getFileInput() {
+        for (NodeBindings<R> node : nodes) {
+            for (Binding<R> binding : node.bindings()) {
+                if (binding.getter() == null) {
+                    return new FileInput(node.nodeId(), binding.input());
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 输入图片预缩小声明，没有时返回 null
+     */
+    public PreScale getPreScale() {
+        return preScale;
+    }
+
+    /**
+     * 将请求参数写入工作流实例
+     * 值为 null 的属性保留模板默认值
+     *
+     * @param workflow 工作流实例（模板的拷贝）
+     * @param request  请求参数
+     * @param file     上传到 ComfyUI 的文件名或资源地址，没有时传 null
+     */
+    public ObjectNode apply(ObjectNode workflow, R request, String file) {
+        long start = System.nanoTime();
+        for (NodeBindings<R> node : nodes) {
+            JsonNode nodeObj = workflow.get(node.nodeId());
+            if (nodeObj == null) {
+                // 仅在使用自定义工作流时出现，内置工作流已在启动时校验
+                continue;
+            }
+            ObjectNode inputs = (ObjectNode) nodeObj.get("inputs");
+            for (Binding<R> binding : node.bindings()) {
+                Object value = binding.getter() != null ? binding.getter().apply(request) : file;
+                if (value != null) {
+                    binding.type().write(inputs, binding.input(), value);
+                }
+            }
+        }
+        StageTimer.record(StageTimer.Stage.BINDING, start);
+        return workflow;
+    }
+
+    /**
+     * 只写入文件名（参数已由 {@link #apply} 绑定，文件在绑定之后才上传时使用）
+     */
+    public ObjectNode applyFile(ObjectNode workflow, String file) {
+        FileInput fileInput = getFileInput();
+        JsonNode inputs = workflow.path(fileInput.nodeId()).path("inputs");
+        if (inputs.isObject()) {
+            ((ObjectNode) inputs).put(fileInput.input(), file);
+        }
+        return workflow;
+    }
+
+    /**
+     * 检查工作流是否满足预缩小的前提：输入图片只被缩小节点和读取尺寸节点使用，
+     * 否则预缩小会改变其他节点看到的分辨率。满足时返回 null，否则返回原因
+     */
+    public String checkPreScale(JsonNode workflow) {
+        FileInput fileInput = getFileInput();
+        if (preScale == null || fileInput == null) {
+            return "没有声明预缩小或没有文件绑定";
+        }
+        JsonNode resize = workflow.path(preScale.resizeNode());
+        if (!"ImageResize+".equals(resize.path("class_type").asText())
+                || !"keep proportion".equals(resize.path("inputs").path("method").asText())) {
+            return String.format("节点 %s 不是按比例缩放的 ImageResize+", preScale.resizeNode());
+        }
+        if (!fileInput.nodeId().equals(resize.path("inputs").path("image").path(0).asText())) {
+            return String.format("节点 %s 缩放的不是输入图片", preScale.resizeNode());
+        }
+        if (preScale.sizeNode() != null
+                && !"GetImageSize+".equals(workflow.path(preScale.sizeNode()).path("class_type").asText())) {
+            return String.format("节点 %s 不是 GetImageSize+", preScale.sizeNode());
+        }
+
+        var fields = workflow.fields();
+        while (fields.hasNext()) {
+            var node = fields.next();
+            if (node.getKey().equals(preScale.resizeNode()) || node.getKey().equals(preScale.sizeNode())) {
+                continue;
+            }
+            for (JsonNode value : node.getValue().path("inputs")) {
+                if (value.isArray() && value.size() == 2 && fileInput.nodeId().equals(value.get(0).asText())) {
+                    return String.format("节点 %s 直接使用输入图片，预缩小会改变其分辨率", node.getKey());
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 对照工作流模板校验绑定
+     * 节点或输入不存在、覆盖节点连线视为错误；与模板默认值类型不一致视为警告
+     */
+    public Validation validate(JsonNode template) {
+        List<String> errors = new ArrayList<>();
+        List<String> warnings = new ArrayList<>();
+
+        for (NodeBindings<R> node : nodes) {
+            JsonNode inputs = template.path(node.nodeId()).path("inputs");
+            if (!inputs.isObject()) {
+                errors.add(String.format("%s: 节点 %s 不存在", workflowName, node.nodeId()));
+                continue;
+            }
+            for (Binding<R> binding : node.bindings()) {
+                JsonNode current = inputs.get(binding.input());
+                if (current == null) {
+                    errors.add(String.format("%s: 节点 %s 没有输入 %s",
+                            workflowName, node.nodeId(), binding.input()));
+                } else if (current.isArray()) {
+                    errors.add(String.format("%s: 节点 %s 的输入 %s 是节点连线，不能绑定为常量",
+                            workflowName, node.nodeId(), binding.input()));
+                } else if (!binding.type().accepts(current)) {
+                    warnings.add(String.format("%s: 节点 %s 的输入 %s 绑定为 %s，模板默认值为 %s",
+                            workflowName, node.nodeId(), binding.input(), binding.type(), current));
+                }
+            }
+        }
+        if (preScale != null) {
+            String error = checkPreScale(template);
+            if (error != null) {
+                errors.add(workflowName + ": " + error);
+            }
+        }
+        return new Validation(errors, warnings);
+    }
+
+    public static final class Builder<R> {
+        private final String workflowName;
+        private final Map<String, List<Binding<R>>> nodes = new LinkedHashMap<>();
+        private PreScale preScale;
+
+        private Builder(String workflowName) {
+            this.workflowName = workflowName;
+        }
+
+        /**
+         * 绑定上传后的文件名（或 URL 等外部资源地址）
+         */
+        public Builder<R> file(String nodeId, String input) {
+            return add(nodeId, new Binding<>(input, ValueType.STRING, null));
+        }
+
+        public Builder<R> string(String nodeId, String input, Function<R, String> getter) {
+            return add(nodeId, new Binding<>(input, ValueType.STRING, getter));
+        }
+
+        public Builder<R> integer(String nodeId, String input, Function<R, Integer> getter) {
+            return add(nodeId, new Binding<>(input, ValueType.INT, getter));
+        }
+
+        public Builder<R> longValue(String nodeId, String input, Function<R, Long> getter) {
+            return add(nodeId, new Binding<>(input, ValueType.LONG, getter));
+        }
+
+        public Builder<R> decimal(String nodeId, String input, Function<R, Double> getter) {
+            return add(nodeId, new Binding<>(input, ValueType.DOUBLE, getter));
+        }
+
+        public Builder<R> bool(String nodeId, String input, Function<R, Boolean> getter) {
+            return add(nodeId, new Binding<>(input, ValueType.BOOLEAN, getter));
+        }
+
+        /**
+         * 声明输入图片可以在上传前按 resizeNode 的处理分辨率缩小
+         *
+         * @param sizeNode 读取原图尺寸的节点，没有时传 null
+         */
+        public Builder<R> preScale(String resizeNode, String sizeNode) {
+            this.preScale = new PreScale(resizeNode, sizeNode);
+            return this;
+        }
+
+        private Builder<R> add(String nodeId, Binding<R> binding) {
+            nodes.computeIfAbsent(nodeId, id -> new ArrayList<>()).add(binding);
+            return this;
+        }
+
+        @SuppressWarnings("unchecked")
+        public WorkflowBinding<R> build() {
+            NodeBindings<R>[] compiled = new NodeBindings[nodes.size()];
+            int i = 0;
+            for (Map.Entry<String, List<Binding<R>>> entry : nodes.entrySet()) {
+                compiled[i++] = new NodeBindings<>(entry.getKey(), entry.getValue().toArray(new Binding[0]));
+            }
+            return new WorkflowBinding<>(workflowName, compiled, preScale);
+        }
+    }
+}
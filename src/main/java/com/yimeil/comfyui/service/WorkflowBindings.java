@@ -0,0 +1,223 @@
+package com.yimeil.comfyui.service;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.yimeil.comfyui.model.BatchMattingRequest;
+import com.yimeil.comfyui.model.CollageRequest;
+import com.yimeil.comfyui.model.KeywordMattingRequest;
+import com.yimeil.comfyui.model.MattingRequest;
+import com.yimeil.comfyui.model.QwenEditRequest;
+import com.yimeil.comfyui.model.QwenTranslateRequest;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 内置工作流的参数绑定计划
+ * 启动时对照工作流模板校验，节点 ID 或输入名错误直接阻止启动
+ */
+@Component
+@Slf4j
+public class WorkflowBindings {
+
+    /**
+     * sam_mask_matting_api.json - SAM 抠图
+     * 节点 2: LoadImage，节点 10: SAMDetectorSegmented，节点 23: GrowMaskWithBlur
+     */
+    public static final WorkflowBinding<MattingRequest> SAM_MATTING =
+            WorkflowBinding.<MattingRequest>builder("sam_mask_matting_api.json")
+                    .file("2", "image")
+                    .decimal("10", "threshold", MattingRequest::getThreshold)
+                    // Alpha Matting 启用时按腐蚀大小收缩蒙版
+                    .integer("23", "expand", r -> Boolean.TRUE.equals(r.getAlphaMatting())
+                            && r.getAlphaMattingErodeSize() != null ? -r.getAlphaMattingErodeSize() : null)
+                    .build();
+
+    /**
+     * matting_keyword_api.json - 关键字抠图
+     * 节点 1: LoadImage，节点 4: ArgosTranslateTextNode，节点 2: SegmentAnythingUltra V2
+     */
+    public static final WorkflowBinding<KeywordMattingRequest> KEYWORD_MATTING =
+            WorkflowBinding.<KeywordMattingRequest>builder("matting_keyword_api.json")
+                    .file("1", "image")
+                    .string("4", "from_translate", KeywordMattingRequest::getTranslateFrom)
+                    .string("4", "to_translate", r -> "english")
+                    .string("4", "text", KeywordMattingRequest::getKeyword)
+                    .string("2", "sam_model", KeywordMattingRequest::getSamModel)
+                    .string("2", "grounding_dino_model", KeywordMattingRequest::getDinoModel)
+                    .decimal("2", "threshold", KeywordMattingRequest::getThreshold)
+                    .string("2", "detail_method", KeywordMattingRequest::getDetailMethod)
+                    .integer("2", "detail_erode", KeywordMattingRequest::getDetailErode)
+                    .integer("2", "detail_dilate", KeywordMattingRequest::getDetailDilate)
+                    .decimal("2", "black_point", KeywordMattingRequest::getBlackPoint)
+                    .decimal("2", "white_point", KeywordMattingRequest::getWhitePoint)
+                    .decimal("2", "max_megapixels", KeywordMattingRequest::getMaxMegapixels)
+                    .string("2", "device", KeywordMattingRequest::getDevice)
+                    .build();
+
+    /**
+     * collage-excel-v-api.json - Excel 产品拼接
+     * 节点 34: ExcelSKULoader，节点 12: SmartProductCollageBatch
+     */
+    public static final WorkflowBinding<CollageRequest> COLLAGE =
+            WorkflowBinding.<CollageRequest>builder("collage-excel-v-api.json")
+                    .file("34", "excel_file")
+                    .string("34", "sheet_name", CollageRequest::getSheetName)
+                    .string("34", "combined_sku_col", CollageRequest::getCombinedSkuCol)
+                    .string("34", "sku_col", CollageRequest::getSkuCol)
+                    .string("34", "pcs_col", CollageRequest::getPcsCol)
+                    .string("34", "url_col", CollageRequest::getUrlCol)
+                    .integer("34", "start_row", CollageRequest::getStartRow)
+                    .bool("34", "use_cache", CollageRequest::getUseCache)
+                    .integer("34", "cache_size", CollageRequest::getCacheSize)
+                    .string("34", "label_format", CollageRequest::getLabelFormat)
+                    .string("34", "output_mode", CollageRequest::getOutputMode)
+                    .string("34", "filename_prefix", CollageRequest::getFilenamePrefix)
+                    .string("34", "filter_combined_sku", CollageRequest::getFilterCombinedSku)
+                    .integer("12", "images_per_collage", CollageRequest::getImagesPerCollage)
+                    .string("12", "layout", CollageRequest::getLayout)
+                    .integer("12", "output_width", CollageRequest::getOutputWidth)
+                    .integer("12", "output_height", CollageRequest::getOutputHeight)
+                    .integer("12", "spacing", CollageRequest::getSpacing)
+                    .integer("12", "min_spacing", CollageRequest::getMinSpacing)
+                    .integer("12", "outer_padding", CollageRequest::getOuterPadding)
+                    // productScale: 前端传百分比(10-100)，需要转换为比例值(0.1-1.0)
+                    .decimal("12", "product_scale", r -> r.getProductScale() != null ? r.getProductScale() / 100.0 : null)
+                    .integer("12", "crop_margin", CollageRequest::getCropMargin)
+                    .bool("12", "skip_empty", CollageRequest::getSkipEmpty)
+                    .integer("12", "label_font_size", CollageRequest::getLabelFontSize)
+                    .string("12", "label_position", CollageRequest::getLabelPosition)
+                    .integer("12", "label_margin", CollageRequest::getLabelMargin)
+                    .bool("12", "hide_pcs_one", CollageRequest::getHidePcsOne)
+                    .string("12", "adaptive_direction", CollageRequest::getAdaptiveDirection)
+                    .build();
+
+    /**
+     * matting_img_from_url_api.json - BiRefNet URL 模式
+     * 节点 17: LoadImageFromUrl
+     */
+    public static final WorkflowBinding<BatchMattingRequest> BATCH_URLS =
+            batch("matting_img_from_url_api.json", "17", "image",
+                    "12", "7", "16", "5", "11", "14").build();
+
+    /**
+     * zip-birefnet-matting-api.json - BiRefNet ZIP 模式
+     * 节点 31: CompressedFileLoader
+     */
+    public static final WorkflowBinding<BatchMattingRequest> BATCH_ZIP =
+            batch("zip-birefnet-matting-api.json", "31", "archive_file",
+                    "23", "18", "27", "16", "22", "25").build();
+
+    /**
+     * batch_matting_api.json - BiRefNet 图片上传模式
+     * 节点 3: LoadImage；节点 101 把图片缩小到 processHeight，节点 102 按节点 103 读取的原图尺寸放大回去，可以预缩小
+     */
+    public static final WorkflowBinding<BatchMattingRequest> BATCH_IMAGE =
+            batch("batch_matting_api.json", "3", "image",
+                    "148", "147", "101", "86", "145", "152")
+                    .preScale("101", "103")
+                    .build();
+
+    /**
+     * qwen-Edit-Multiple-angles-api.json - Qwen 多角度编辑
+     * 节点 9: LoadImage，节点 30: 用户编辑指令，节点 35: RepeatLatentBatch
+     * 节点 45 把图片缩小到宽 1024 后才送入模型，可以预缩小
+     */
+    public static final WorkflowBinding<QwenEditRequest> QWEN_EDIT =
+            WorkflowBinding.<QwenEditRequest>builder("qwen-Edit-Multiple-angles-api.json")
+                    .file("9", "image")
+                    .string("30", "text", r -> r.getEditInstruction() != null && !r.getEditInstruction().isEmpty() ?
+                            r.getEditInstruction() : null)
+                    .integer("35", "amount", QwenEditRequest::getRepeatAmount)
+                    .preScale("45", null)
+                    .build();
+
+    /**
+     * qwen-img-translate-api.json - Qwen 图像翻译
+     * 节点 2: LoadImage，节点 1: QwenImageTranslate（api_key 需要回退到配置，由调用方单独设置）
+     */
+    public static final WorkflowBinding<QwenTranslateRequest> QWEN_TRANSLATE =
+            WorkflowBinding.<QwenTranslateRequest>builder("qwen-img-translate-api.json")
+                    .file("2", "image")
+                    .string("1", "source_lang", QwenTranslateRequest::getSourceLang)
+                    .string("1", "target_lang", QwenTranslateRequest::getTargetLang)
+                    .build();
+
+    private static final List<WorkflowBinding<?>> ALL = List.of(SAM_MATTING, KEYWORD_MATTING, COLLAGE,
+            BATCH_URLS, BATCH_ZIP, BATCH_IMAGE, QWEN_EDIT, QWEN_TRANSLATE);
+
+    @Autowired
+    private WorkflowTemplateCache workflowTemplateCache;
+
+    /**
+     * 按工作流名称查找绑定计划，没有时返回 null
+     */
+    public static WorkflowBinding<?> forWorkflow(String workflowName) {
+        for (WorkflowBinding<?> binding : ALL) {
+            if (binding.getWorkflowName().equals(workflowName)) {
+                return binding;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * BiRefNet 三种输入模式的工作流结构相同，只有节点 ID 不同
+     */
+    private static WorkflowBinding.Builder<BatchMattingRequest> batch(String workflowName, String inputNode, String inputName,
+                                                             String loaderNode, String rembgNode, String resizeNode,
+                                                             String maskNode, String upscaleNode, String saveNode) {
+        return WorkflowBinding.<BatchMattingRequest>builder(workflowName)
+                .file(inputNode, inputName)
+                .string(loaderNode, "model_version", BatchMattingRequest::getModelVersion)
+                .string(loaderNode, "device", BatchMattingRequest::getDevice)
+                .string(rembgNode, "background_color", BatchMattingRequest::getBackgroundColor)
+                .bool(rembgNode, "use_refine", BatchMattingRequest::getUseRefine)
+                .integer(resizeNode, "height", BatchMattingRequest::getProcessHeight)
+                .integer(maskNode, "expand", BatchMattingRequest::getMaskExpand)
+                .decimal(maskNode, "blur_radius", BatchMattingRequest::getBlurRadius)
+                .bool(maskNode, "tapered_corners", BatchMattingRequest::getTaperedCorners)
+                .bool(maskNode, "fill_holes", BatchMattingRequest::getFillHoles)
+                .decimal(maskNode, "lerp_alpha", BatchMattingRequest::getLerpAlpha)
+                .decimal(maskNode, "decay_factor", BatchMattingRequest::getDecayFactor)
+                .string(upscaleNode, "model_name", BatchMattingRequest::getUpscaleModel)
+                .string(saveNode, "filename_prefix", BatchMattingRequest::getFilenamePrefix);
+    }
+
+    /**
+     * 启动时校验所有绑定计划
+     */
+    @PostConstruct
+    public void validateAll() throws IOException {
+        List<String> errors = new ArrayList<>();
+        for (WorkflowBinding<?> binding : ALL) {
+            errors.addAll(validate(binding, workflowTemplateCache.getTemplate(binding.getWorkflowName())));
+        }
+        if (!errors.isEmpty()) {
+            throw new IllegalStateException("工作流参数绑定校验失败:\n" + String.join("\n", errors));
+        }
+        log.info("工作流参数绑定校验通过，共 {} 个绑定计划", ALL.size());
+
+        // 热更新的工作流同样需要校验，失败时只记录错误
+        workflowTemplateCache.addReloadListener(this::revalidate);
+    }
+
+    private void revalidate(String workflowName, ObjectNode template) {
+        for (WorkflowBinding<?> binding : ALL) {
+            if (binding.getWorkflowName().equals(workflowName)) {
+                List<String> errors = validate(binding, template);
+                errors.forEach(error -> log.error("热更新的工作流与参数绑定不匹配: {}", error));
+            }
+        }
+    }
+
+    private List<String> validate(WorkflowBinding<?> binding, ObjectNode template) {
+        WorkflowBinding.Validation validation = binding.validate(template);
+        validation.warnings().forEach(warning -> log.warn("工作流参数类型与模板默认值不一致: {}", warning));
+        return validation.errors();
+    }
+}
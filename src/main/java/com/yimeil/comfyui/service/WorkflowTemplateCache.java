@@ -0,0 +1,227 @@
+package com.yimeil.comfyui.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.yimeil.comfyui.config.ComfyUIConfig;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
+
+/**
+ * 工作流模板缓存
+ * 启动时一次性解析 resources/workflows 下的所有工作流，请求时返回深拷贝，避免每次重新读取和解析 JSON
+ */
+@Service
+@Slf4j
+public class WorkflowTemplateCache {
+
+    @Autowired
+    private ComfyUIConfig config;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    /**
+     * 工作流名称 -> 模板（只读，不直接对外暴露）
+     */
+    private final Map<String, ObjectNode> templates = new ConcurrentHashMap<>();
+
+    /**
+     * classpath 中的原始模板，热更新目录中的文件删除后回退使用
+     */
+    private final Map<String, ObjectNode> classpathTemplates = new ConcurrentHashMap<>();
+
+    /**
+     * 热更新回调，参数为工作流名称和新模板
+     */
+    private final List<BiConsumer<String, ObjectNode>> reloadListeners = new CopyOnWriteArrayList<>();
+
+    private WatchService watchService;
+
+    @PostConstruct
+    public void init() throws IOException {
+        String directory = config.getWorkflow().getDirectory();
+        PathMatchingResourcePatternResolver resolver = new PathMatchingResourcePatternResolver();
+        Resource[] resources = resolver.getResources("classpath*:" + directory + "/*.json");
+
+        for (Resource resource : resources) {
+            String name = resource.getFilename();
+            try (InputStream inputStream = resource.getInputStream()) {
+                classpathTemplates.put(name, parse(name, inputStream));
+            }
+        }
+        templates.putAll(classpathTemplates);
+        log.info("已加载 {} 个工作流模板: {}", templates.size(), templates.keySet());
+
+        String watchDirectory = config.getWorkflow().getWatchDirectory();
+        if (watchDirectory != null && !watchDirectory.isEmpty()) {
+            startWatching(Paths.get(watchDirectory));
+        }
+    }
+
+    @PreDestroy
+    public void stop() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+        }
+    }
+
+    /**
+     * 获取工作流的新实例（模板的深拷贝），调用方可以任意修改
+     */
+    public ObjectNode instantiate(String workflowName) throws IOException {
+        return getTemplate(workflowName).deepCopy();
+    }
+
+    /**
+     * 获取只读模板，调用方不得修改返回值
+     */
+    public ObjectNode getTemplate(String workflowName) throws IOException {
+        ObjectNode template = templates.get(workflowName);
+        if (template == null) {
+            // 兼容未在启动时扫描到的工作流（如嵌套 jar 中的资源）
+            String workflowPath = config.getWorkflow().getDirectory() + "/" + workflowName;
+            ClassPathResource resource = new ClassPathResource(workflowPath);
+            if (!resource.exists()) {
+                throw new IOException("工作流文件不存在: " + workflowPath);
+            }
+            try (InputStream inputStream = resource.getInputStream()) {
+                template = parse(workflowName, inputStream);
+            }
+            templates.put(workflowName, template);
+        }
+        return template;
+    }
+
+    /**
+     * 注册热更新回调
+     */
+    public void addReloadListener(BiConsumer<String, ObjectNode> listener) {
+        reloadListeners.add(listener);
+    }
+
+    /**
+     * 已加载的工作流名称
+     */
+    public Set<String> getWorkflowNames() {
+        return templates.keySet();
+    }
+
+    private ObjectNode parse(String name, InputStream inputStream) throws IOException {
+        JsonNode node;
+        try {
+            node = objectMapper.readTree(inputStream);
+        } catch (IOException e) {
+            throw new IllegalStateException("工作流格式错误: " + name + " - " + e.getMessage(), e);
+        }
+        if (node == null || !node.isObject()) {
+            throw new IllegalStateException("工作流格式错误: " + name + " 不是 JSON 对象");
+        }
+        return (ObjectNode) node;
+    }
+
+    /**
+     * 加载热更新目录并监听变更
+     */
+    private void startWatching(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            log.warn("工作流热更新目录不存在: {}", directory.toAbsolutePath());
+            return;
+        }
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.json")) {
+            for (Path file : stream) {
+                reload(file);
+            }
+        }
+
+        watchService = FileSystems.getDefault().newWatchService();
+        directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+
+        Thread watcher = new Thread(() -> watch(directory), "workflow-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+        log.info("监听工作流目录: {}", directory.toAbsolutePath());
+    }
+
+    private void watch(Path directory) {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        continue;
+                    }
+                    Path file = directory.resolve((Path) event.context());
+                    String name = file.getFileName().toString();
+                    if (!name.endsWith(".json")) {
+                        continue;
+                    }
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                        remove(name);
+                    } else {
+                        reload(file);
+                    }
+                }
+                if (!key.reset()) {
+                    log.warn("工作流目录已失效，停止监听: {}", directory);
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // 服务关闭
+        }
+    }
+
+    /**
+     * 重新加载单个工作流，解析失败时保留旧模板
+     */
+    private void reload(Path file) {
+        String name = file.getFileName().toString();
+        try (InputStream inputStream = Files.newInputStream(file)) {
+            ObjectNode template = parse(name, inputStream);
+            templates.put(name, template);
+            log.info("工作流已重新加载: {}", name);
+            reloadListeners.forEach(listener -> listener.accept(name, template));
+        } catch (Exception e) {
+            log.error("工作流重新加载失败，继续使用旧版本: {} - {}", name, e.getMessage());
+        }
+    }
+
+    private void remove(String name) {
+        ObjectNode original = classpathTemplates.get(name);
+        if (original != null) {
+            templates.put(name, original);
+            log.info("工作流已回退为内置版本: {}", name);
+            reloadListeners.forEach(listener -> listener.accept(name, original));
+        } else {
+            templates.remove(name);
+            log.info("工作流已移除: {}", name);
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package com.yimeil.comfyui.service;
+
+import com.yimeil.comfyui.model.CollageRequest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class CollageSheetTest {
+
+    private static final String WORKBOOK = """
+            <?xml version="1.0" encoding="UTF-8"?>
+            <workbook xmlns="http://schemas.openxmlformats.org/spreadsheetml/2006/main"
+                      xmlns:r="http://schemas.openxmlformats.org/officeDocument/2006/relationships">
+              <sheets>
+                <sheet name="说明" sheetId="1" r:id="rId1"/>
+                <sheet name="Sheet1" sheetId="2" r:id="rId2"/>
+              </sheets>
+            </workbook>
+            """;
+
+    private static final String WORKBOOK_RELS = """
+            <?xml version="1.0" encoding="UTF-8"?>
+            <Relationships xmlns="http://schemas.openxmlformats.org/package/2006/relationships">
+              <Relationship Id="rId1" Type="http://schemas.openxmlformats.org/officeDocument/2006/relationships/worksheet" Target="worksheets/sheet1.xml"/>
+              <Relationship Id="rId2" Type="http://schemas.openxmlformats.org/officeDocument/2006/relationships/worksheet" Target="/xl/worksheets/products.xml"/>
+              <Relationship Id="rId3" Type="http://schemas.openxmlformats.org/officeDocument/2006/relationships/sharedStrings" Target="strings.xml"/>
+            </Relationships>
+            """;
+
+    private static final String SHARED_STRINGS = """
+            <?xml version="1.0" encoding="UTF-8"?>
+            <sst xmlns="http://schemas.openxmlformats.org/spreadsheetml/2006/main">
+              <si><t>组合SKU</t></si>
+              <si><t>COMBO-A</t></si>
+              <si><t>A-01</t></si>
+              <si><r><t>http://img/</t></r><r><rPr><b/></rPr><t>a1.png</t></r></si>
+              <si><t>A-02</t><rPh sb="0" eb="1"><t>ア</t></rPh></si>
+              <si><t>COMBO-B</t></si>
+            </sst>
+            """;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void readsSharedAndInlineStringsAndNumbers() throws Exception {
+        Path file = xlsx("""
+                <row r="1"><c r="A1" t="s"><v>0</v></c><c r="B1" t="inlineStr"><is><t>SKU</t></is></c></row>
+                <row r="2">
+                  <c r="A2" t="s"><v>1</v></c><c r="B2" t="s"><v>2</v></c>
+                  <c r="C2"><v>2.0</v></c><c r="D2" t="s"><v>3</v></c>
+                </row>
+                <row r="3">
+                  <c r="B3" t="s"><v>4</v></c><c r="C3" t="n"><v>1E1</v></c>
+                  <c r="D3" t="inlineStr"><is><r><t>http://img/</t></r><r><t xml:space="preserve">a2.png </t></r></is></c>
+                </row>
+                <row r="4">
+                  <c r="A4" t="inlineStr"><is><t>12345</t></is></c><c r="B4"><v>12345.0</v></c>
+                  <c r="C4" t="str"><f>1+1</f><v>2</v></c><c r="D4" t="s"><v>3</v></c>
+                </row>
+                """);
+
+        List<CollageSheet.Group> groups = CollageSheet.read(file, new CollageRequest());
+
+        assertThat(groups).containsExactly(
+                new CollageSheet.Group("COMBO-A", List.of(
+                        new CollageSheet.Row("A-01", "2", "http://img/a1.png"),
+                        new CollageSheet.Row("A-02", "10", "http://img/a2.png"))),
+                new CollageSheet.Group("12345", List.of(
+                        new CollageSheet.Row("12345", "2", "http://img/a1.png"))));
+    }
+
+    @Test
+    void readsRowsAndCellsWithoutReferences() throws Exception {
+        // 部分导出工具省略 r 属性：行号按顺序递增，列号紧接上一个单元格
+        Path file = xlsx("""
+                <row><c t="inlineStr"><is><t>组合SKU</t></is></c></row>
+                <row>
+                  <c t="s"><v>1</v></c><c t="s"><v>2</v></c><c><v>3</v></c><c t="s"><v>3</v></c>
+                </row>
+                <row r="5"><c r="B5" t="s"><v>4</v></c><c><v>1</v></c><c t="inlineStr"><is><t>http://img/x.png</t></is></c></row>
+                """);
+
+        List<CollageSheet.Group> groups = CollageSheet.read(file, new CollageRequest());
+
+        assertThat(groups).containsExactly(new CollageSheet.Group("COMBO-A", List.of(
+                new CollageSheet.Row("A-01", "3", "http://img/a1.png"),
+                new CollageSheet.Row("A-02", "1", "http://img/x.png"))));
+    }
+
+    @Test
+    void blankCombinedSkuInheritsPreviousOne() throws Exception {
+        // 合并单元格只有左上角有值
+        Path file = xlsx("""
+                <row r="1"><c r="A1" t="s"><v>0</v></c></row>
+                <row r="2"><c r="B2" t="inlineStr"><is><t>ORPHAN</t></is></c><c r="D2" t="s"><v>3</v></c></row>
+                <row r="3"><c r="A3" t="s"><v>1</v></c><c r="B3" t="s"><v>2</v></c><c r="D3" t="s"><v>3</v></c></row>
+                <row r="4"><c r="B4" t="s"><v>4</v></c><c r="D4" t="s"><v>3</v></c></row>
+                <row r="5"/>
+                <row r="6"><c r="A6" t="inlineStr"><is><t> </t></is></c><c r="B6" t="inlineStr"><is><t>A-03</t></is></c></row>
+                <row r="7"><c r="A7" t="s"><v>5</v></c><c r="B7" t="inlineStr"><is><t>B-01</t></is></c></row>
+                <row r="8"><c r="B8" t="inlineStr"><is><t>B-02</t></is></c></row>
+                """);
+
+        List<CollageSheet.Group> groups = CollageSheet.read(file, new CollageRequest());
+
+        assertThat(groups).extracting(CollageSheet.Group::combinedSku).containsExactly("COMBO-A", "COMBO-B");
+        assertThat(groups.get(0).rows()).extracting(CollageSheet.Row::sku).containsExactly("A-01", "A-02", "A-03");
+        assertThat(groups.get(1).rows()).extracting(CollageSheet.Row::sku).containsExactly("B-01", "B-02");
+        assertThat(groups.get(0).rows().get(2)).isEqualTo(new CollageSheet.Row("A-03", "", ""));
+    }
+
+    @Test
+    void filtersCombinedSkusAfterInheritance() throws Exception {
+        Path file = xlsx("""
+                <row r="2"><c r="A2" t="s"><v>1</v></c><c r="B2" t="s"><v>2</v></c></row>
+                <row r="3"><c r="B3" t="s"><v>4</v></c></row>
+                <row r="4"><c r="A4" t="s"><v>5</v></c><c r="B4" t="inlineStr"><is><t>B-01</t></is></c></row>
+                <row r="5"><c r="A5"><v>12345</v></c><c r="B5" t="inlineStr"><is><t>N-01</t></is></c></row>
+                """);
+        CollageRequest request = new CollageRequest();
+
+        request.setFilterCombinedSku("COMBO-A；12345");
+        List<CollageSheet.Group> groups = CollageSheet.read(file, request);
+        assertThat(groups).extracting(CollageSheet.Group::combinedSku).containsExactly("COMBO-A", "12345");
+        assertThat(groups.get(0).rows()).hasSize(2);
+
+        request.setFilterCombinedSku(" COMBO-B ");
+        assertThat(CollageSheet.read(file, request)).extracting(CollageSheet.Group::combinedSku)
+                .containsExactly("COMBO-B");
+    }
+
+    @Test
+    void usesConfiguredSheetColumnsAndStartRow() throws Exception {
+        Path file = xlsx("""
+                <row r="1"><c r="A1" t="inlineStr"><is><t>IGNORED</t></is></c><c r="AB1" t="inlineStr"><is><t>X</t></is></c></row>
+                <row r="3">
+                  <c r="C3" t="inlineStr"><is><t>K-1</t></is></c><c r="E3"><v>4</v></c>
+                  <c r="AA3" t="inlineStr"><is><t>http://img/k.png</t></is></c><c r="AB3" t="s"><v>5</v></c>
+                </row>
+                """);
+        CollageRequest request = new CollageRequest();
+        request.setCombinedSkuCol("ab");
+        request.setSkuCol("C");
+        request.setPcsCol("E");
+        request.setUrlCol("AA");
+        request.setStartRow(3);
+
+        assertThat(CollageSheet.read(file, request)).containsExactly(new CollageSheet.Group("COMBO-B",
+                List.of(new CollageSheet.Row("K-1", "4", "http://img/k.png"))));
+
+        request.setSheetName("不存在");
+        assertThatThrownBy(() -> CollageSheet.read(file, request))
+                .isInstanceOf(IOException.class).hasMessageContaining("不存在");
+        request.setSheetName("Sheet1");
+        request.setSkuCol("1");
+        assertThatThrownBy(() -> CollageSheet.read(file, request))
+                .isInstanceOf(IOException.class).hasMessageContaining("无效的列名");
+    }
+
+    @Test
+    void writtenWorkbookReadsBackAsSameGroup() throws Exception {
+        CollageRequest request = new CollageRequest();
+        request.setCombinedSkuCol("B");
+        request.setSkuCol("A");
+        request.setPcsCol("AB");
+        request.setUrlCol("D");
+        request.setStartRow(5);
+        request.setSheetName("商品");
+        CollageSheet.Group group = new CollageSheet.Group("COMBO-<&>", List.of(
+                new CollageSheet.Row("A-01", "2", "http://img/a.png?x=1&y=2"),
+                new CollageSheet.Row("00123", "1.5", " http://img/b.png"),
+                new CollageSheet.Row("A-03", "", "http://img/c.png")));
+        Path first = dir.resolve("first.xlsx");
+        Path second = dir.resolve("second.xlsx");
+
+        CollageSheet.write(group, request, first);
+        CollageSheet.write(group, request, second);
+
+        assertThat(CollageSheet.read(first, request)).containsExactly(new CollageSheet.Group("COMBO-<&>", List.of(
+                new CollageSheet.Row("A-01", "2", "http://img/a.png?x=1&y=2"),
+                new CollageSheet.Row("00123", "1.5", "http://img/b.png"),
+                new CollageSheet.Row("A-03", "", "http://img/c.png"))));
+        // 相同内容写出相同文件
+        assertThat(Files.readAllBytes(second)).isEqualTo(Files.readAllBytes(first));
+    }
+
+    /**
+     * 生成第二个工作表为 sheetData 的工作簿，第一个工作表是空的说明页
+     */
+    private Path xlsx(String sheetData) throws IOException {
+        Path file = Files.createTempFile(dir, "products", ".xlsx");
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(file))) {
+            entry(zip, "xl/workbook.xml", WORKBOOK);
+            entry(zip, "xl/_rels/workbook.xml.rels", WORKBOOK_RELS);
+            entry(zip, "xl/strings.xml", SHARED_STRINGS);
+            entry(zip, "xl/worksheets/sheet1.xml", sheet(""));
+            entry(zip, "xl/worksheets/products.xml", sheet(sheetData));
+        }
+        return file;
+    }
+
+    private static String sheet(String sheetData) {
+        return """
+                <?xml version="1.0" encoding="UTF-8"?>
+                <worksheet xmlns="http://schemas.openxmlformats.org/spreadsheetml/2006/main">
+                <sheetData>
+                %s</sheetData>
+                </worksheet>
+                """.formatted(sheetData);
+    }
+
+    private static void entry(ZipOutputStream zip, String name, String content) throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+        zip.write(content.getBytes(StandardCharsets.UTF_8));
+        zip.closeEntry();
+    }
+}
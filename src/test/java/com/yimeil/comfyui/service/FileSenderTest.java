@@ -0,0 +1,171 @@
+package com.yimeil.comfyui.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FileSenderTest {
+
+    private static final String CONTENT = "0123456789abcdefghij";
+
+    private final FileSender sender = new FileSender();
+
+    @TempDir
+    Path dir;
+
+    private Path file;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        file = Files.writeString(dir.resolve("result.png"), CONTENT);
+    }
+
+    @Test
+    void sendsWholeFileWithoutRange() throws Exception {
+        MockHttpServletResponse response = send(request(null), false);
+
+        assertThat(response.getStatus()).isEqualTo(200);
+        assertThat(response.getContentAsString()).isEqualTo(CONTENT);
+        assertThat(response.getContentLengthLong()).isEqualTo(20);
+        assertThat(response.getContentType()).isEqualTo("image/png");
+        assertThat(response.getHeader(HttpHeaders.ACCEPT_RANGES)).isEqualTo("bytes");
+        assertThat(response.getHeader(HttpHeaders.CACHE_CONTROL)).isEqualTo("no-cache");
+    }
+
+    @Test
+    void sendsClosedRange() throws Exception {
+        MockHttpServletResponse response = send(request("bytes=2-5"), false);
+
+        assertThat(response.getStatus()).isEqualTo(206);
+        assertThat(response.getHeader(HttpHeaders.CONTENT_RANGE)).isEqualTo("bytes 2-5/20");
+        assertThat(response.getContentAsString()).isEqualTo("2345");
+        assertThat(response.getContentLengthLong()).isEqualTo(4);
+    }
+
+    @Test
+    void sendsOpenEndedRange() throws Exception {
+        MockHttpServletResponse response = send(request("bytes=15-"), false);
+
+        assertThat(response.getStatus()).isEqualTo(206);
+        assertThat(response.getHeader(HttpHeaders.CONTENT_RANGE)).isEqualTo("bytes 15-19/20");
+        assertThat(response.getContentAsString()).isEqualTo("fghij");
+    }
+
+    @Test
+    void sendsSuffixRange() throws Exception {
+        MockHttpServletResponse response = send(request("bytes=-3"), false);
+
+        assertThat(response.getStatus()).isEqualTo(206);
+        assertThat(response.getHeader(HttpHeaders.CONTENT_RANGE)).isEqualTo("bytes 17-19/20");
+        assertThat(response.getContentAsString()).isEqualTo("hij");
+    }
+
+    @Test
+    void clampsRangesBeyondEndOfFile() throws Exception {
+        MockHttpServletResponse suffix = send(request("bytes=-100"), false);
+        assertThat(suffix.getStatus()).isEqualTo(206);
+        assertThat(suffix.getHeader(HttpHeaders.CONTENT_RANGE)).isEqualTo("bytes 0-19/20");
+        assertThat(suffix.getContentAsString()).isEqualTo(CONTENT);
+
+        MockHttpServletResponse end = send(request("bytes=18-99999999999999999999"), false);
+        assertThat(end.getStatus()).isEqualTo(206);
+        assertThat(end.getHeader(HttpHeaders.CONTENT_RANGE)).isEqualTo("bytes 18-19/20");
+        assertThat(end.getContentAsString()).isEqualTo("ij");
+    }
+
+    @Test
+    void rejectsUnsatisfiableRanges() throws Exception {
+        for (String range : new String[]{"bytes=20-", "bytes=25-30", "bytes=5-2", "bytes=-0",
+                "bytes=99999999999999999999-"}) {
+            MockHttpServletResponse response = send(request(range), false);
+
+            assertThat(response.getStatus()).as(range).isEqualTo(416);
+            assertThat(response.getHeader(HttpHeaders.CONTENT_RANGE)).as(range).isEqualTo("bytes */20");
+            assertThat(response.getContentAsByteArray()).as(range).isEmpty();
+        }
+    }
+
+    @Test
+    void ignoresMalformedAndMultipartRanges() throws Exception {
+        for (String range : new String[]{"bytes=-", "bytes=0-1,5-6", "items=0-1", "bytes=a-b"}) {
+            MockHttpServletResponse response = send(request(range), false);
+
+            assertThat(response.getStatus()).as(range).isEqualTo(200);
+            assertThat(response.getHeader(HttpHeaders.CONTENT_RANGE)).as(range).isNull();
+            assertThat(response.getContentAsString()).as(range).isEqualTo(CONTENT);
+        }
+    }
+
+    @Test
+    void ignoresRangeWhenIfRangeDoesNotMatch() throws Exception {
+        MockHttpServletRequest stale = request("bytes=0-1");
+        stale.addHeader(HttpHeaders.IF_RANGE, "\"other\"");
+        assertThat(send(stale, true).getStatus()).isEqualTo(200);
+
+        MockHttpServletRequest current = request("bytes=0-1");
+        current.addHeader(HttpHeaders.IF_RANGE, "\"result.png\"");
+        MockHttpServletResponse response = send(current, true);
+        assertThat(response.getStatus()).isEqualTo(206);
+        assertThat(response.getContentAsString()).isEqualTo("01");
+    }
+
+    @Test
+    void returnsNotModifiedForMatchingEtag() throws Exception {
+        String etag = send(request(null), true).getHeader(HttpHeaders.ETAG);
+        assertThat(etag).isEqualTo("\"result.png\"");
+
+        MockHttpServletRequest request = request("bytes=0-1");
+        request.addHeader(HttpHeaders.IF_NONE_MATCH, "W/" + etag);
+        MockHttpServletResponse response = send(request, true);
+
+        assertThat(response.getStatus()).isEqualTo(304);
+        assertThat(response.getContentAsByteArray()).isEmpty();
+        assertThat(response.getHeader(HttpHeaders.CACHE_CONTROL)).contains("immutable");
+    }
+
+    @Test
+    void headSendsHeadersOnly() throws Exception {
+        MockHttpServletRequest request = request("bytes=-3");
+        request.setMethod("HEAD");
+        MockHttpServletResponse response = send(request, false);
+
+        assertThat(response.getStatus()).isEqualTo(206);
+        assertThat(response.getContentLengthLong()).isEqualTo(3);
+        assertThat(response.getContentAsByteArray()).isEmpty();
+    }
+
+    @Test
+    void handsRangeToSendfileWhenSupported() throws Exception {
+        MockHttpServletRequest request = request("bytes=4-7");
+        request.setAttribute("org.apache.tomcat.sendfile.support", Boolean.TRUE);
+        MockHttpServletResponse response = send(request, false);
+
+        assertThat(response.getStatus()).isEqualTo(206);
+        assertThat(response.getContentAsByteArray()).isEmpty();
+        assertThat(request.getAttribute("org.apache.tomcat.sendfile.filename")).isEqualTo(file.toString());
+        assertThat(request.getAttribute("org.apache.tomcat.sendfile.start")).isEqualTo(4L);
+        assertThat(request.getAttribute("org.apache.tomcat.sendfile.end")).isEqualTo(8L);
+    }
+
+    private static MockHttpServletRequest request(String range) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/api/output/result.png");
+        if (range != null) {
+            request.addHeader(HttpHeaders.RANGE, range);
+        }
+        return request;
+    }
+
+    private MockHttpServletResponse send(MockHttpServletRequest request, boolean immutable) throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        sender.send(request, response, file, immutable, null);
+        return response;
+    }
+}
@@ -0,0 +1,125 @@
+package com.yimeil.comfyui.service;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockMultipartFile;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ImagePreScalerTest {
+
+    @Test
+    void keepProportionUsesSmallerRatio() {
+        assertThat(ImagePreScaler.keepProportion(4000, 3000, 1024, 1024)).containsExactly(1024, 768);
+        assertThat(ImagePreScaler.keepProportion(3000, 4000, 1024, 2048)).containsExactly(1024, 1365);
+        assertThat(ImagePreScaler.keepProportion(3000, 4000, 2048, 1024)).containsExactly(768, 1024);
+    }
+
+    @Test
+    void keepProportionTreatsZeroAsUnlimited() {
+        assertThat(ImagePreScaler.keepProportion(3000, 2000, 1024, 0)).containsExactly(1024, 683);
+        assertThat(ImagePreScaler.keepProportion(3000, 2000, 0, 1024)).containsExactly(1536, 1024);
+        assertThat(ImagePreScaler.keepProportion(3000, 2000, 0, 0)).isNull();
+    }
+
+    @Test
+    void keepProportionReturnsNullWhenNotShrinking() {
+        assertThat(ImagePreScaler.keepProportion(800, 600, 1024, 1024)).isNull();
+        assertThat(ImagePreScaler.keepProportion(1024, 768, 1024, 1024)).isNull();
+        assertThat(ImagePreScaler.keepProportion(800, 2000, 1024, 0)).isNull();
+    }
+
+    @Test
+    void keepProportionRoundsHalfToEvenLikePython() {
+        // ImageResize+ 用 Python 的 round()：2.5 -> 2，3.5 -> 4
+        assertThat(ImagePreScaler.keepProportion(5, 4, 0, 2)).containsExactly(2, 2);
+        assertThat(ImagePreScaler.keepProportion(7, 2, 0, 1)).containsExactly(4, 1);
+        assertThat(ImagePreScaler.keepProportion(1001, 2000, 0, 1000)).containsExactly(500, 1000);
+    }
+
+    @Test
+    void keepProportionKeepsAtLeastOnePixel() {
+        assertThat(ImagePreScaler.keepProportion(10000, 10, 100, 0)).containsExactly(100, 1);
+    }
+
+    @Test
+    void exifOrientationReadsBothByteOrders() {
+        assertThat(ImagePreScaler.exifOrientation(exif(ByteOrder.LITTLE_ENDIAN, 6))).isEqualTo(6);
+        assertThat(ImagePreScaler.exifOrientation(exif(ByteOrder.BIG_ENDIAN, 8))).isEqualTo(8);
+    }
+
+    @Test
+    void exifOrientationIsZeroWithoutOrientationTag() {
+        assertThat(ImagePreScaler.exifOrientation(exif(ByteOrder.LITTLE_ENDIAN, 0))).isZero();
+    }
+
+    @Test
+    void exifOrientationIsZeroForOtherOrBrokenSegments() {
+        byte[] xmp = "http://ns.adobe.com/xap/1.0/\0<x:xmpmeta/>".getBytes();
+        assertThat(ImagePreScaler.exifOrientation(xmp)).isZero();
+        assertThat(ImagePreScaler.exifOrientation(new byte[]{'E', 'x', 'i', 'f', 0, 0})).isZero();
+
+        byte[] segment = exif(ByteOrder.BIG_ENDIAN, 3);
+        assertThat(ImagePreScaler.exifOrientation(Arrays.copyOf(segment, 20))).isZero();
+    }
+
+    @Test
+    void probeReadsSizeOrientationAndBitDepth() throws Exception {
+        ImagePreScaler scaler = new ImagePreScaler();
+
+        ImagePreScaler.Probe png = scaler.probe(image("png", null));
+        assertThat(png).isEqualTo(new ImagePreScaler.Probe(64, 48, 1, 8));
+
+        ImagePreScaler.Probe jpeg = scaler.probe(image("jpg", exif(ByteOrder.BIG_ENDIAN, 6)));
+        assertThat(jpeg).isEqualTo(new ImagePreScaler.Probe(64, 48, 6, 8));
+
+        assertThat(scaler.probe(new MockMultipartFile("image", "a.txt", "text/plain", "hello".getBytes()))).isNull();
+    }
+
+    /**
+     * 构造只有 IFD0 的 Exif 段：一个无关标签，orientation > 0 时再加方向标签
+     */
+    private static byte[] exif(ByteOrder order, int orientation) {
+        int entries = orientation > 0 ? 2 : 1;
+        ByteBuffer buffer = ByteBuffer.allocate(6 + 8 + 2 + entries * 12 + 4).order(order);
+        buffer.put(new byte[]{'E', 'x', 'i', 'f', 0, 0});
+        buffer.put(order == ByteOrder.LITTLE_ENDIAN ? new byte[]{'I', 'I'} : new byte[]{'M', 'M'});
+        buffer.putShort((short) 42).putInt(8);
+        buffer.putShort((short) entries);
+        // ImageWidth (SHORT)
+        buffer.putShort((short) 0x0100).putShort((short) 3).putInt(1).putShort((short) 64).putShort((short) 0);
+        if (orientation > 0) {
+            buffer.putShort((short) 0x0112).putShort((short) 3).putInt(1).putShort((short) orientation).putShort((short) 0);
+        }
+        buffer.putInt(0);
+        return buffer.array();
+    }
+
+    /**
+     * 生成 64x48 的测试图片，app1 不为空时插入到 JPEG 的 APP0 之后
+     */
+    private static MockMultipartFile image(String format, byte[] app1) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(64, 48, BufferedImage.TYPE_INT_RGB), format, out);
+        byte[] bytes = out.toByteArray();
+        if (app1 != null) {
+            int app0End = 4 + ((bytes[4] & 0xff) << 8 | (bytes[5] & 0xff));
+            ByteArrayOutputStream withExif = new ByteArrayOutputStream();
+            withExif.write(bytes, 0, app0End);
+            withExif.write(0xff);
+            withExif.write(0xe1);
+            withExif.write((app1.length + 2) >> 8);
+            withExif.write((app1.length + 2) & 0xff);
+            withExif.write(app1);
+            withExif.write(bytes, app0End, bytes.length - app0End);
+            bytes = withExif.toByteArray();
+        }
+        return new MockMultipartFile("image", "test." + format, "image/" + format, bytes);
+    }
+}
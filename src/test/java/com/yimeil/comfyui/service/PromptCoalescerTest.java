@@ -0,0 +1,130 @@
+package com.yimeil.comfyui.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PromptCoalescerTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final WorkflowBinding.FileInput INPUT = new WorkflowBinding.FileInput("2", "image");
+
+    /**
+     * 1: 模型加载（不依赖输入），2: LoadImage，3: 处理（依赖 1 和 2），4: SaveImage（依赖 3），5: 只依赖模型
+     */
+    private static ObjectNode template() throws Exception {
+        return (ObjectNode) MAPPER.readTree("""
+                {
+                  "1": {"class_type": "ModelLoader", "inputs": {"model_name": "sam_vit_h"}},
+                  "2": {"class_type": "LoadImage", "inputs": {"image": ""}},
+                  "3": {"class_type": "Segment", "inputs": {"model": ["1", 0], "image": ["2", 0], "threshold": 0.3}},
+                  "4": {"class_type": "SaveImage", "inputs": {"images": ["3", 0], "filename_prefix": "out"}},
+                  "5": {"class_type": "ModelInfo", "inputs": {"model": ["1", 0]}}
+                }
+                """);
+    }
+
+    @Test
+    void downstreamIncludesStartAndTransitiveDependents() throws Exception {
+        assertThat(PromptCoalescer.downstream(template(), "2")).containsExactlyInAnyOrder("2", "3", "4");
+        assertThat(PromptCoalescer.downstream(template(), "1")).containsExactlyInAnyOrder("1", "3", "4", "5");
+        assertThat(PromptCoalescer.downstream(template(), "4")).containsExactly("4");
+    }
+
+    @Test
+    void mergeSharesUpstreamNodesAndClonesDownstreamPerFile() throws Exception {
+        ObjectNode template = template();
+        List<Map<String, String>> idMaps = new ArrayList<>();
+
+        ObjectNode merged = PromptCoalescer.merge(template, INPUT, List.of("a.png", "b.png", "c.png"), idMaps);
+
+        assertThat(toList(merged.fieldNames()))
+                .containsExactlyInAnyOrder("1", "2", "3", "4", "5", "2_1", "3_1", "4_1", "2_2", "3_2", "4_2");
+        assertThat(merged.at("/2/inputs/image").asText()).isEqualTo("a.png");
+        assertThat(merged.at("/2_1/inputs/image").asText()).isEqualTo("b.png");
+        assertThat(merged.at("/2_2/inputs/image").asText()).isEqualTo("c.png");
+        // 模板不被修改
+        assertThat(template.at("/2/inputs/image").asText()).isEmpty();
+        assertThat(template.has("2_1")).isFalse();
+    }
+
+    @Test
+    void mergeRewritesLinksOfClonedNodesOnlyForDownstreamSources() throws Exception {
+        ObjectNode merged = PromptCoalescer.merge(template(), INPUT, List.of("a.png", "b.png"), new ArrayList<>());
+
+        // 复制的节点连到同一请求复制的上游节点，共用节点的连线不变
+        assertThat(link(merged, "3_1", "image")).isEqualTo("2_1");
+        assertThat(link(merged, "3_1", "model")).isEqualTo("1");
+        assertThat(link(merged, "4_1", "images")).isEqualTo("3_1");
+        assertThat(merged.at("/3_1/inputs/image/1").asInt()).isZero();
+        assertThat(merged.at("/3_1/inputs/threshold").asDouble()).isEqualTo(0.3);
+        assertThat(merged.at("/4_1/inputs/filename_prefix").asText()).isEqualTo("out");
+
+        // 第 0 个请求沿用原节点
+        assertThat(link(merged, "3", "image")).isEqualTo("2");
+        assertThat(link(merged, "4", "images")).isEqualTo("3");
+    }
+
+    @Test
+    void mergeRecordsNodeIdMapPerRequest() throws Exception {
+        List<Map<String, String>> idMaps = new ArrayList<>();
+        PromptCoalescer.merge(template(), INPUT, List.of("a.png", "b.png"), idMaps);
+
+        assertThat(idMaps).hasSize(2);
+        assertThat(idMaps.get(0)).containsExactlyInAnyOrderEntriesOf(
+                Map.of("1", "1", "5", "5", "2", "2", "3", "3", "4", "4"));
+        assertThat(idMaps.get(1)).containsExactlyInAnyOrderEntriesOf(
+                Map.of("1", "1", "5", "5", "2_1", "2", "3_1", "3", "4_1", "4"));
+    }
+
+    @Test
+    void splitReturnsOutputsOfOneRequestUnderOriginalIds() throws Exception {
+        List<Map<String, String>> idMaps = new ArrayList<>();
+        PromptCoalescer.merge(template(), INPUT, List.of("a.png", "b.png"), idMaps);
+        JsonNode outputs = MAPPER.readTree("""
+                {
+                  "4": {"images": [{"filename": "out_00001_.png"}]},
+                  "4_1": {"images": [{"filename": "out_00002_.png"}]},
+                  "5": {"text": ["vit_h"]}
+                }
+                """);
+
+        JsonNode first = PromptCoalescer.split(outputs, idMaps.get(0));
+        JsonNode second = PromptCoalescer.split(outputs, idMaps.get(1));
+
+        assertThat(toList(first.fieldNames())).containsExactlyInAnyOrder("4", "5");
+        assertThat(first.at("/4/images/0/filename").asText()).isEqualTo("out_00001_.png");
+        assertThat(toList(second.fieldNames())).containsExactlyInAnyOrder("4", "5");
+        assertThat(second.at("/4/images/0/filename").asText()).isEqualTo("out_00002_.png");
+    }
+
+    @Test
+    void splitWithoutOutputsIsEmpty() throws Exception {
+        List<Map<String, String>> idMaps = new ArrayList<>();
+        PromptCoalescer.merge(template(), INPUT, List.of("a.png", "b.png"), idMaps);
+
+        assertThat(PromptCoalescer.split(null, idMaps.get(1)).isEmpty()).isTrue();
+        // 执行出错时只有部分请求有输出
+        JsonNode partial = MAPPER.readTree("{\"4\": {\"images\": []}}");
+        assertThat(PromptCoalescer.split(partial, idMaps.get(1)).isEmpty()).isTrue();
+    }
+
+    private static String link(JsonNode workflow, String nodeId, String input) {
+        return workflow.path(nodeId).path("inputs").path(input).get(0).asText();
+    }
+
+    private static <T> List<T> toList(Iterator<T> iterator) {
+        List<T> list = new ArrayList<>();
+        iterator.forEachRemaining(list::add);
+        return list;
+    }
+}